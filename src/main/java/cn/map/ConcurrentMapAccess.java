@@ -0,0 +1,115 @@
+package cn.map;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+/**
+ * @Description: MyConcurrentMap 的底层内存访问（Java 8 版本，基于 Unsafe）
+ *
+ *      Java 9 及以上运行时会使用多版本 JAR 中 META-INF/versions/9 下的同名类（src/main/java9，基于 VarHandle），
+ *      两个版本方法签名必须保持一致，MyConcurrentMap 只通过本类访问数组元素、sizeCtl、transferIndex、桶锁状态
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 20:30
+ * @Version 1.0
+ */
+final class ConcurrentMapAccess {
+
+    /** 声明全局的 Unsafe */
+    private static final Unsafe U;
+
+    /**
+     *  偏移量的定义：使用cas更新时，需要传入字段的偏移量
+     */
+    private static final long SIZE_CTL;
+
+    private static final long TRANSFER_INDEX;
+
+    private static final long LOCK_STATE;
+
+    private static final long ABASE;
+
+    private static final int ASHIFT;
+
+    /** 使用静态代码块来初始化 Unsafe，类似于单例的效果 */
+    static {
+
+        try {
+
+            U = getUnsafe();
+            Class<?> c = MyConcurrentMap.class;
+
+            /** 赋值偏移量 */
+            SIZE_CTL = U.objectFieldOffset(c.getDeclaredField("sizeCtl"));
+            TRANSFER_INDEX = U.objectFieldOffset(c.getDeclaredField("transferIndex"));
+            LOCK_STATE = U.objectFieldOffset(MyConcurrentMap.Node.class.getDeclaredField("lockState"));
+            Class<?> ak = MyConcurrentMap.Node[].class;
+
+            // 获取数组中第一个元素的地址
+            ABASE = U.arrayBaseOffset(ak);
+
+            // 获取数组中第一个元素占用的字节数
+            int scale = U.arrayIndexScale(ak);
+
+            // 返回无符号整型i的最高非零位前面的n个0的个数，包括符号位
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+
+        }catch (Exception e){
+            throw new Error(e);
+        }
+
+    }
+
+    private ConcurrentMapAccess() {
+    }
+
+    /**
+     * 使用反射构建 Unsafe
+     *      因为：Unsafe类位于rt.jar，会对调用者的classLoader进行检查，
+     *      判断当前类是否由Bootstrap classLoader加载，如果不是的话那么就会抛出一个SecurityException异常
+     * */
+    private static Unsafe getUnsafe() throws IllegalAccessException, NoSuchFieldException {
+        Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
+        //Field unsafeField = Unsafe.class.getDeclaredFields()[0]; //也可以这样，作用相同
+        unsafeField.setAccessible(true);
+        return (Unsafe) unsafeField.get(null);
+    }
+
+    static <K, V> MyConcurrentMap.Node<K, V> tabAt(MyConcurrentMap.Node<K, V>[] tab, int i) {
+        return (MyConcurrentMap.Node<K, V>) U.getObjectVolatile(tab, ((long) i << ASHIFT) + ABASE);
+    }
+
+    static <K, V> void setTabAt(MyConcurrentMap.Node<K, V>[] tab, int i, MyConcurrentMap.Node<K, V> node) {
+        U.putObjectVolatile(tab, ((long) i << ASHIFT) + ABASE, node);
+    }
+
+    static <K, V> boolean casTabAt(MyConcurrentMap.Node<K, V>[] tab, int i,
+                                   MyConcurrentMap.Node<K, V> c, MyConcurrentMap.Node<K, V> v) {
+        return U.compareAndSwapObject(tab, ((long) i << ASHIFT) + ABASE, c, v);
+    }
+
+    static boolean casSizeCtl(MyConcurrentMap<?, ?> map, int c, int v) {
+        return U.compareAndSwapInt(map, SIZE_CTL, c, v);
+    }
+
+    static boolean casTransferIndex(MyConcurrentMap<?, ?> map, int c, int v) {
+        return U.compareAndSwapInt(map, TRANSFER_INDEX, c, v);
+    }
+
+    static boolean casLockState(MyConcurrentMap.Node<?, ?> node, int c, int v) {
+        return U.compareAndSwapInt(node, LOCK_STATE, c, v);
+    }
+
+    static int getAndSetLockState(MyConcurrentMap.Node<?, ?> node, int v) {
+        return U.getAndSetInt(node, LOCK_STATE, v);
+    }
+
+    /**
+     * 读屏障：之前的读取不会重排到之后的读取后面（变更流覆盖模式下，读完事件再校验版本）
+     */
+    static void loadFence() {
+        U.loadFence();
+    }
+
+}
@@ -0,0 +1,985 @@
+package cn.map;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Description: 基于 MyConcurrentMap 的有界缓存，体现：W-TinyLFU 准入、分段LRU淘汰、读写缓冲批量维护
+ *
+ *      整体结构（仿照 Caffeine）：
+ *          数据：MyConcurrentMap 存放 key -> CacheNode，读写数据只依赖 MyConcurrentMap 本身的并发控制
+ *          策略：窗口LRU（1%） + 主区分段LRU（试用区 probation 20%、保护区 protected 80%），只在淘汰锁内修改
+ *          准入：窗口区淘汰出来的候选者，与试用区最久未访问的受害者比较访问频率（Count-Min Sketch），频率高的留下
+ *          缓冲：读操作只把节点放入无锁的环形读缓冲，写操作把任务放入写缓冲，由拿到淘汰锁的线程批量重放，
+ *               所以 get() 命中时永远不会阻塞在锁上
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 10:12
+ * @Version 1.0
+ */
+public class MyBoundedCache<K extends Comparable<K>, V> {
+
+    /** 窗口区占总容量的比例 */
+    static final double PERCENT_WINDOW = 0.01d;
+
+    /** 保护区占主区容量的比例 */
+    static final double PERCENT_MAIN_PROTECTED = 0.80d;
+
+    /** 节点所在队列 */
+    static final int NONE = -1, WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    /** 数据存储 */
+    final MyConcurrentMap<K, CacheNode<K, V>> data = new MyConcurrentMap<K, CacheNode<K, V>>();
+
+    /** 最大权重 */
+    final long maximum;
+
+    /** 窗口区最大权重 */
+    final long windowMaximum;
+
+    /** 保护区最大权重 */
+    final long protectedMaximum;
+
+    /** 权重计算 */
+    final Weigher<K, V> weigher;
+
+    /** 以下字段只在淘汰锁内读写 */
+    long weightedSize;
+    long windowWeightedSize;
+    long protectedWeightedSize;
+
+    final AccessOrderDeque<K, V> windowDeque = new AccessOrderDeque<K, V>();
+    final AccessOrderDeque<K, V> probationDeque = new AccessOrderDeque<K, V>();
+    final AccessOrderDeque<K, V> protectedDeque = new AccessOrderDeque<K, V>();
+
+    /** 访问频率统计 */
+    final FrequencySketch sketch;
+
+    /** 淘汰锁，所有策略相关的修改都在锁内批量完成 */
+    final ReentrantLock evictionLock = new ReentrantLock();
+
+    /** 读缓冲（有损，满了直接丢弃） */
+    final ReadBuffer<K, V> readBuffer = new ReadBuffer<K, V>();
+
+    /** 写缓冲（无损，写任务必须被重放） */
+    final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+
+    /** 统计 */
+    final LongAdder hitCount = new LongAdder();
+    final LongAdder missCount = new LongAdder();
+    final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * 按个数限制的缓存，每个元素权重为1
+     * @param maximumSize 最大个数
+     */
+    public MyBoundedCache(long maximumSize) {
+        this(maximumSize, null);
+    }
+
+    /**
+     * 按权重限制的缓存
+     * @param maximumWeight 最大权重
+     * @param weigher 权重计算，为空时每个元素权重为1
+     */
+    public MyBoundedCache(long maximumWeight, Weigher<K, V> weigher) {
+
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("maximumWeight must not be negative");
+        }
+
+        this.maximum = maximumWeight;
+        this.weigher = weigher;
+        this.windowMaximum = Math.max(maximumWeight == 0 ? 0 : 1, (long) (maximumWeight * PERCENT_WINDOW));
+        this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * PERCENT_MAIN_PROTECTED);
+        this.sketch = new FrequencySketch();
+
+        /** 按个数限制时最大个数就是元素个数上限；按权重限制时权重可能以字节计，按实际元素个数逐步扩大，见 AddTask */
+        if (weigher == null) {
+            sketch.ensureCapacity(maximumWeight);
+        }
+
+    }
+
+    /**
+     * 获取元素，命中时只记录一次读缓冲，不加锁
+     * @param k key
+     * @return 值，不存在返回 null
+     */
+    public V get(K k) {
+
+        CacheNode<K, V> node = data.get(k);
+
+        if (node == null) {
+            missCount.increment();
+            return null;
+        }
+
+        V v = node.value;
+        afterRead(node);
+        hitCount.increment();
+        return v;
+
+    }
+
+    /**
+     * 添加元素
+     * @param k key
+     * @param v value
+     * @return 旧值，不存在返回 null
+     */
+    public V put(K k, V v) {
+
+        if (k == null || v == null) {
+            throw new NullPointerException("key or value not null");
+        }
+
+        int weight = weigh(k, v);
+
+        for (;;) {
+
+            CacheNode<K, V> node = data.get(k);
+
+            /** 不存在，新增节点 */
+            if (node == null) {
+
+                CacheNode<K, V> n = new CacheNode<K, V>(k, v, weight);
+                node = data.putIfAbsent(k, n);
+
+                if (node == null) {
+                    afterWrite(new AddTask(n));
+                    return null;
+                }
+
+            }
+
+            /** 已存在，在节点锁内更新值（节点已被删除则重试） */
+            V oldVal;
+            int oldWeight;
+            synchronized (node) {
+
+                if (!node.alive) {
+                    continue;
+                }
+
+                oldVal = node.value;
+                oldWeight = node.weight;
+                node.value = v;
+                node.weight = weight;
+
+            }
+
+            /** 权重没有变化时当作一次访问处理，不需要写任务 */
+            if (oldWeight == weight) {
+                afterRead(node);
+            } else {
+                afterWrite(new UpdateTask(node));
+            }
+
+            return oldVal;
+
+        }
+
+    }
+
+    /**
+     * 删除元素
+     * @param k key
+     * @return 被删除的值，不存在返回 null
+     */
+    public V remove(K k) {
+
+        CacheNode<K, V> node = data.get(k);
+
+        if (node == null) {
+            return null;
+        }
+
+        V oldVal;
+        synchronized (node) {
+
+            if (!node.alive) {
+                return null;
+            }
+
+            data.remove(k);
+            node.alive = false;
+            oldVal = node.value;
+
+        }
+
+        afterWrite(new RemovalTask(node));
+        return oldVal;
+
+    }
+
+    /**
+     * 元素个数
+     */
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * 当前总权重（会先执行一次维护，保证结果准确）
+     */
+    public long weightedSize() {
+
+        evictionLock.lock();
+        try {
+            maintenance();
+            return weightedSize;
+        } finally {
+            evictionLock.unlock();
+        }
+
+    }
+
+    /**
+     * 立即执行一次维护：重放读写缓冲并淘汰超出容量的元素
+     */
+    public void cleanUp() {
+
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * 命中率
+     */
+    public double hitRate() {
+        long hit = hitCount.sum();
+        long total = hit + missCount.sum();
+        return total == 0 ? 1.0d : (double) hit / total;
+    }
+
+    private int weigh(K k, V v) {
+
+        int weight = weigher == null ? 1 : weigher.weigh(k, v);
+
+        if (weight < 0) {
+            throw new IllegalArgumentException("weight must not be negative");
+        }
+
+        return weight;
+
+    }
+
+    /**
+     * 读之后：放入读缓冲，缓冲满了才尝试获取淘汰锁（tryLock，不阻塞）
+     */
+    void afterRead(CacheNode<K, V> node) {
+
+        if (readBuffer.offer(node) == ReadBuffer.FULL) {
+            tryMaintenance();
+        }
+
+    }
+
+    /**
+     * 写之后：放入写缓冲，并尝试维护
+     *      拿不到锁说明其他线程正在维护，持锁线程释放锁之后会再次检查写缓冲，保证写任务不会遗留
+     */
+    void afterWrite(Runnable task) {
+
+        writeBuffer.offer(task);
+
+        do {
+
+            if (!tryMaintenance()) {
+                return;
+            }
+
+        } while (!writeBuffer.isEmpty());
+
+    }
+
+    private boolean tryMaintenance() {
+
+        if (!evictionLock.tryLock()) {
+            return false;
+        }
+
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+
+        return true;
+
+    }
+
+    /**
+     * 维护（必须持有淘汰锁）
+     */
+    void maintenance() {
+
+        readBuffer.drainTo(this);
+
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+
+        evictEntries();
+
+    }
+
+    /**
+     * 重放一次访问
+     */
+    void onAccess(CacheNode<K, V> node) {
+
+        if (node.queueType == NONE) {
+            return;
+        }
+
+        sketch.increment(node.key);
+
+        if (node.queueType == WINDOW) {
+
+            windowDeque.moveToBack(node);
+
+        } else if (node.queueType == PROBATION) {
+
+            /** 试用区再次被访问，晋升到保护区 */
+            probationDeque.remove(node);
+            protectedDeque.addLast(node);
+            node.queueType = PROTECTED;
+            protectedWeightedSize += node.policyWeight;
+            demoteFromProtected();
+
+        } else {
+
+            protectedDeque.moveToBack(node);
+
+        }
+
+    }
+
+    /**
+     * 保护区超出容量时，把最久未访问的节点降级到试用区
+     */
+    private void demoteFromProtected() {
+
+        while (protectedWeightedSize > protectedMaximum) {
+
+            CacheNode<K, V> demoted = protectedDeque.pollFirst();
+            if (demoted == null) {
+                break;
+            }
+
+            demoted.queueType = PROBATION;
+            probationDeque.addLast(demoted);
+            protectedWeightedSize -= demoted.policyWeight;
+
+        }
+
+    }
+
+    /**
+     * 淘汰
+     */
+    void evictEntries() {
+        int candidates = evictFromWindow();
+        evictFromMain(candidates);
+    }
+
+    /**
+     * 窗口区超出容量时，把最久未访问的节点移动到试用区尾部，作为候选者
+     * @return 候选者个数
+     */
+    private int evictFromWindow() {
+
+        int candidates = 0;
+        while (windowWeightedSize > windowMaximum) {
+
+            CacheNode<K, V> node = windowDeque.pollFirst();
+            if (node == null) {
+                break;
+            }
+
+            node.queueType = PROBATION;
+            probationDeque.addLast(node);
+            windowWeightedSize -= node.policyWeight;
+            candidates++;
+
+        }
+
+        return candidates;
+
+    }
+
+    /**
+     * 主区淘汰：候选者（试用区尾部）与受害者（试用区头部）比较频率，淘汰频率低的一方
+     * @param candidates 候选者个数
+     */
+    private void evictFromMain(int candidates) {
+
+        CacheNode<K, V> candidate = candidates > 0 ? probationDeque.peekLast() : null;
+
+        while (weightedSize > maximum) {
+
+            /** 候选者已在上一轮被淘汰 */
+            if (candidate != null && candidate.queueType != PROBATION) {
+                candidate = null;
+            }
+
+            /** 受害者优先从试用区选取，试用区为空时依次从保护区、窗口区选取 */
+            CacheNode<K, V> victim = probationDeque.peekFirst();
+            if (victim == null) {
+                victim = protectedDeque.peekFirst();
+            }
+            if (victim == null) {
+                victim = windowDeque.peekFirst();
+            }
+            if (victim == null) {
+                break;
+            }
+
+            if (candidates <= 0 || candidate == null || candidate == victim) {
+
+                evictEntry(victim);
+                candidate = null;
+                continue;
+
+            }
+
+            CacheNode<K, V> previous = probationDeque.previous(candidate);
+            candidates--;
+
+            if (admit(candidate.key, victim.key)) {
+                evictEntry(victim);
+            } else {
+                evictEntry(candidate);
+            }
+
+            candidate = previous;
+
+        }
+
+    }
+
+    /**
+     * 准入判断：候选者频率高于受害者时准入
+     *      频率较高（大于5）但不占优的候选者，以很小的概率随机准入，防止攻击者构造哈希冲突让热点数据永远留在缓存中
+     */
+    private boolean admit(K candidateKey, K victimKey) {
+
+        int candidateFreq = sketch.frequency(candidateKey);
+        int victimFreq = sketch.frequency(victimKey);
+
+        if (candidateFreq > victimFreq) {
+            return true;
+        } else if (candidateFreq <= 5) {
+            return false;
+        }
+
+        return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+
+    }
+
+    /**
+     * 淘汰节点：从数据中删除并移出策略队列
+     */
+    private void evictEntry(CacheNode<K, V> node) {
+
+        synchronized (node) {
+
+            if (node.alive) {
+                data.remove(node.key);
+                node.alive = false;
+                evictionCount.increment();
+            }
+
+        }
+
+        unlink(node);
+
+    }
+
+    /**
+     * 移出策略队列并扣减权重
+     */
+    private void unlink(CacheNode<K, V> node) {
+
+        if (node.queueType == WINDOW) {
+            windowDeque.remove(node);
+            windowWeightedSize -= node.policyWeight;
+        } else if (node.queueType == PROBATION) {
+            probationDeque.remove(node);
+        } else if (node.queueType == PROTECTED) {
+            protectedDeque.remove(node);
+            protectedWeightedSize -= node.policyWeight;
+        } else {
+            return;
+        }
+
+        weightedSize -= node.policyWeight;
+        node.queueType = NONE;
+
+    }
+
+    /**
+     * 新增任务：加入窗口区
+     */
+    final class AddTask implements Runnable {
+
+        final CacheNode<K, V> node;
+
+        AddTask(CacheNode<K, V> node) {
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+
+            if (weigher != null) {
+                sketch.ensureCapacity(data.size());
+            }
+            sketch.increment(node.key);
+
+            /** 删除任务可能先于新增任务执行，已删除的节点不再加入队列 */
+            if (!node.alive || node.queueType != NONE) {
+                return;
+            }
+
+            node.policyWeight = node.weight;
+            node.queueType = WINDOW;
+            windowDeque.addLast(node);
+            windowWeightedSize += node.policyWeight;
+            weightedSize += node.policyWeight;
+
+        }
+
+    }
+
+    /**
+     * 更新任务：同步权重变化，并当作一次访问
+     */
+    final class UpdateTask implements Runnable {
+
+        final CacheNode<K, V> node;
+
+        UpdateTask(CacheNode<K, V> node) {
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+
+            if (node.queueType == NONE) {
+                return;
+            }
+
+            int delta = node.weight - node.policyWeight;
+            node.policyWeight += delta;
+            weightedSize += delta;
+
+            if (node.queueType == WINDOW) {
+                windowWeightedSize += delta;
+            } else if (node.queueType == PROTECTED) {
+                protectedWeightedSize += delta;
+            }
+
+            onAccess(node);
+
+        }
+
+    }
+
+    /**
+     * 删除任务：移出策略队列
+     */
+    final class RemovalTask implements Runnable {
+
+        final CacheNode<K, V> node;
+
+        RemovalTask(CacheNode<K, V> node) {
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+            unlink(node);
+        }
+
+    }
+
+    /**
+     * 权重计算
+     */
+    public interface Weigher<K, V> {
+
+        int weigh(K key, V value);
+
+    }
+
+    /**
+     * 缓存节点
+     */
+    static final class CacheNode<K, V> {
+
+        final K key;
+
+        volatile V value;
+
+        /** 最新权重（节点锁内修改） */
+        volatile int weight;
+
+        /** 策略中记录的权重（淘汰锁内修改） */
+        int policyWeight;
+
+        /** 是否还在数据中（节点锁内修改） */
+        volatile boolean alive = true;
+
+        /** 所在队列（淘汰锁内修改） */
+        int queueType = NONE;
+
+        /** 访问顺序链表（淘汰锁内修改） */
+        CacheNode<K, V> prev;
+        CacheNode<K, V> next;
+
+        CacheNode(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+
+    }
+
+    /**
+     * 访问顺序双向链表，节点自身携带前后指针，不额外分配链表节点
+     */
+    static final class AccessOrderDeque<K, V> {
+
+        CacheNode<K, V> first;
+        CacheNode<K, V> last;
+
+        CacheNode<K, V> peekFirst() {
+            return first;
+        }
+
+        CacheNode<K, V> peekLast() {
+            return last;
+        }
+
+        CacheNode<K, V> previous(CacheNode<K, V> node) {
+            return node.prev;
+        }
+
+        void addLast(CacheNode<K, V> node) {
+
+            node.prev = last;
+            node.next = null;
+
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+
+            last = node;
+
+        }
+
+        CacheNode<K, V> pollFirst() {
+
+            CacheNode<K, V> node = first;
+            if (node != null) {
+                remove(node);
+            }
+
+            return node;
+
+        }
+
+        void remove(CacheNode<K, V> node) {
+
+            CacheNode<K, V> prev = node.prev;
+            CacheNode<K, V> next = node.next;
+
+            if (prev == null) {
+                first = next;
+            } else {
+                prev.next = next;
+            }
+
+            if (next == null) {
+                last = prev;
+            } else {
+                next.prev = prev;
+            }
+
+            node.prev = node.next = null;
+
+        }
+
+        void moveToBack(CacheNode<K, V> node) {
+
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+
+        }
+
+    }
+
+    /**
+     * 分段读缓冲
+     *      按线程分散到多个环形缓冲中，减少多线程 CAS 竞争；每个环形缓冲多生产者（CAS 占位），单消费者（持有淘汰锁的线程）
+     */
+    static final class ReadBuffer<K extends Comparable<K>, V> {
+
+        static final int SUCCESS = 0, FAILED = 1, FULL = 2;
+
+        /** 单个环形缓冲长度 */
+        static final int BUFFER_SIZE = 16;
+        static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+        /** 分段数：不小于CPU核数的2的幂 */
+        static final int STRIPES;
+
+        static {
+            int n = 1;
+            while (n < Runtime.getRuntime().availableProcessors()) {
+                n <<= 1;
+            }
+            STRIPES = Math.min(n, 64);
+        }
+
+        final AtomicReferenceArray<CacheNode<K, V>>[] buffers;
+
+        final AtomicLong[] writeCounters = new AtomicLong[STRIPES];
+
+        /** 读下标，只有消费者修改 */
+        final AtomicLongArray readCounters = new AtomicLongArray(STRIPES);
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ReadBuffer() {
+            buffers = new AtomicReferenceArray[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                buffers[i] = new AtomicReferenceArray<CacheNode<K, V>>(BUFFER_SIZE);
+                writeCounters[i] = new AtomicLong();
+            }
+        }
+
+        /**
+         * 放入读缓冲
+         * @return SUCCESS 成功；FAILED CAS 竞争失败（直接丢弃）；FULL 缓冲已满（需要维护）
+         */
+        int offer(CacheNode<K, V> node) {
+
+            int h = (int) Thread.currentThread().getId();
+            int stripe = (h ^ (h >>> 16)) & (STRIPES - 1);
+
+            AtomicLong writeCounter = writeCounters[stripe];
+            long tail = writeCounter.get();
+
+            /** 消费者只在淘汰锁内修改读下标，此处读取到旧值只会让判断更保守 */
+            long head = readCounters.get(stripe);
+
+            if (tail - head >= BUFFER_SIZE) {
+                return FULL;
+            }
+
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffers[stripe].lazySet((int) (tail & BUFFER_MASK), node);
+                return SUCCESS;
+            }
+
+            return FAILED;
+
+        }
+
+        /**
+         * 重放所有读缓冲（必须持有淘汰锁）
+         */
+        void drainTo(MyBoundedCache<K, V> cache) {
+
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+
+                AtomicReferenceArray<CacheNode<K, V>> buffer = buffers[stripe];
+                long head = readCounters.get(stripe);
+                long tail = writeCounters[stripe].get();
+
+                for (; head < tail; head++) {
+
+                    int index = (int) (head & BUFFER_MASK);
+                    CacheNode<K, V> node = buffer.get(index);
+
+                    /** 生产者已占位但还没写入，下次再处理 */
+                    if (node == null) {
+                        break;
+                    }
+
+                    buffer.lazySet(index, null);
+                    cache.onAccess(node);
+
+                }
+
+                readCounters.lazySet(stripe, head);
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Count-Min Sketch 访问频率统计（每个计数器4位，最大15）
+     *      每个 long 存放16个计数器；每个元素使用4个哈希函数，取最小值作为估算频率
+     *      计数达到采样阈值时所有计数器减半（老化），让频率能够反映最近的访问情况
+     *      计数器个数按元素个数确定（仿照 Caffeine 的 ensureCapacity），元素变多时扩大并清空计数，不会按最大权重一次性分配
+     *      只在淘汰锁内访问，不需要额外的并发控制
+     */
+    static final class FrequencySketch {
+
+        static final long[] SEED = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        static final long RESET_MASK = 0x7777777777777777L;
+
+        static final long ONE_MASK = 0x1111111111111111L;
+
+        /** 初始 long 个数 */
+        static final int INITIAL_SIZE = 16;
+
+        long[] table;
+
+        int tableMask;
+
+        int sampleSize;
+
+        int size;
+
+        FrequencySketch() {
+            table = new long[INITIAL_SIZE];
+            tableMask = INITIAL_SIZE - 1;
+            sampleSize = 10 * INITIAL_SIZE;
+        }
+
+        /**
+         * 保证能容纳 maximumSize 个元素（每个元素约一个 long，即16个计数器），不够时扩大到不小于它的 2 的幂并清空计数
+         * @param maximumSize 元素个数
+         */
+        void ensureCapacity(long maximumSize) {
+
+            int maximum = (int) Math.min(Math.max(maximumSize, 1), 1 << 30);
+            if (table.length >= maximum) {
+                return;
+            }
+
+            int n = table.length;
+            while (n < maximum) {
+                n <<= 1;
+            }
+
+            table = new long[n];
+            tableMask = n - 1;
+            sampleSize = (int) Math.min(10L * maximum, Integer.MAX_VALUE);
+            size = 0;
+
+        }
+
+        int frequency(Object e) {
+
+            int hash = spread(e.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+
+            return frequency;
+
+        }
+
+        void increment(Object e) {
+
+            int hash = spread(e.hashCode());
+            int start = (hash & 3) << 2;
+
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+
+            if (added && ++size >= sampleSize) {
+                reset();
+            }
+
+        }
+
+        private boolean incrementAt(int i, int j) {
+
+            int offset = j << 2;
+            long mask = 0xfL << offset;
+
+            /** 计数器未达到上限15时才递增 */
+            if ((table[i] & mask) != mask) {
+                table[i] += 1L << offset;
+                return true;
+            }
+
+            return false;
+
+        }
+
+        /**
+         * 老化：所有计数器减半
+         */
+        private void reset() {
+
+            int count = 0;
+            for (int i = 0; i < table.length; i++) {
+                count += Long.bitCount(table[i] & ONE_MASK);
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+
+            size = (size - (count >>> 2)) >>> 1;
+
+        }
+
+        private int indexOf(int item, int i) {
+            long hash = (item + SEED[i]) * SEED[i];
+            hash += (hash >>> 32);
+            return ((int) hash) & tableMask;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+
+    }
+
+}
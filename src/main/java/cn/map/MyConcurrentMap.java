@@ -1,11 +1,17 @@
 package cn.map;
 
-import sun.misc.Unsafe;
-import java.lang.reflect.Field;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 /**
- * @Description: 手动实现并发的哈希表，体现：synchronized、Unsafe、CAS
+ * @Description: 手动实现并发的哈希表，体现：synchronized、Unsafe/VarHandle、CAS
  * @Author 一枚路过的程序猿
  * @Date 2023/11/10 14:31
  * @Version 1.0
@@ -15,18 +21,51 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
     /** 初始长度 */
     final int DEFAULT_CAPACITY = 16;
 
-    /** 初始全局数组 */
-    Node<K,V>[] tab;
+    /** 初始全局数组，volatile 保证扩容替换数组后其他线程立即可见 */
+    volatile Node<K,V>[] tab;
 
-    /** 数组长度 */
-    AtomicLong size = new AtomicLong(0);
+    /**
+     * 元素个数
+     *      使用 LongAdder 分段计数，多个线程同时添加时不会争抢同一个缓存行（源码中为 baseCount + CounterCell）
+     */
+    LongAdder size = new LongAdder();
+
+    /**
+     * 正在进行的批量添加预留的个数
+     *      批量添加结束时才计数，预扩容时把其他线程还没写完的批次也算上，避免多个线程同时批量添加时数组按实际个数偏小、链表过长
+     */
+    final LongAdder batchReserved = new LongAdder();
 
     /** 单个哈希桶链表长度阈值，进行转换红黑树 */
     static final int TREEIFY_THRESHOLD = 8;
 
+    /** 红黑树节点数小于等于该值时，迁移过程中退化为链表 */
+    static final int UNTREEIFY_THRESHOLD = 6;
+
     /** 数组长度阈值，进行转换红黑树*/
     static final int MIN_TREEIFY_CAPACITY = 64;
 
+    /** 数组最大长度 */
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /** 缩容阈值：删除之后元素个数低于 数组长度 >>> 3（负载 0.125）时缩容 */
+    static final int SHRINK_SHIFT = 3;
+
+    /** 快照默认最长存活时间：超过之后需要扩容、缩容时快照作废 */
+    static final long SNAPSHOT_MAX_AGE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * 计数校验的采样掩码：不满足估算条件时，每 64 次添加、删除随机校验一次
+     *      size.sum() 要遍历 LongAdder 的所有分段，每次修改都求和会抵消分段计数的收益
+     */
+    static final int COUNT_CHECK_MASK = 63;
+
+    /** 数组长度小于该值时每次添加、删除都校验扩缩容：采样平均 64 次才校验一次，对小数组来说偏离阈值太多 */
+    static final int COUNT_CHECK_MIN_CAPACITY = 1024;
+
+    /** 删除后估算负载时检查的连续桶数（包括删除所在的桶） */
+    static final int SHRINK_PROBE = 4;
+
     /** 迁移的下标 */
     volatile int transferIndex;
 
@@ -36,47 +75,134 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
     /** 扩容标记 */
     static final int MOVED = -1;
 
+    /** 红黑树桶标记（桶头为 TreeNode 容器节点） */
+    static final int TREEBIN = -2;
+
+    /** 占位节点标记：缩容时给空桶加锁用的占位节点，不包含数据，查询时视为空桶 */
+    static final int RESERVED = -3;
+
+    /** 普通节点哈希值可用位，保证普通节点哈希值为非负数，不会与 MOVED、TREEBIN 冲突 */
+    static final int HASH_BITS = 0x7fffffff;
+
+    /** 桶锁策略：false 使用 synchronized 锁桶头节点，true 使用桶头节点上的 CAS 状态位 */
+    final boolean casBinLock;
+
+    /** CAS 桶锁状态：已加锁 */
+    static final int LOCKED = 1;
+
+    /** CAS 桶锁状态：有线程挂起等待 */
+    static final int WAITING = 2;
+
+    /** 抢锁失败后的自旋次数 */
+    static final int SPINS = 64;
+
+    /** 自旋之后让出CPU的次数，之后挂起 */
+    static final int YIELDS = 4;
+
+    /** CAS 桶锁的等待队列 */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static final java.util.Queue<Thread>[] WAIT_QUEUES = new java.util.Queue[64];
+
+    static {
+        for (int i = 0; i < WAIT_QUEUES.length; i++) {
+            WAIT_QUEUES[i] = new java.util.concurrent.ConcurrentLinkedQueue<Thread>();
+        }
+    }
+
+    /** 加锁、删除时表示桶头已变化，需要重新循环 */
+    static final Object RETRY = new Object();
+
+    public MyConcurrentMap() {
+        this(false);
+    }
+
+    /**
+     * @param casBinLock 是否使用 CAS 桶锁代替 synchronized，写热点桶较多、或运行在虚拟线程上时建议开启
+     */
+    public MyConcurrentMap(boolean casBinLock) {
+        this(casBinLock, false);
+    }
+
+    /**
+     * @param casBinLock 是否使用 CAS 桶锁代替 synchronized，写热点桶较多、或运行在虚拟线程上时建议开启
+     * @param snapshots 是否支持快照（snapshot()），开启后每次写入都要登记为进行中的写入
+     */
+    public MyConcurrentMap(boolean casBinLock, boolean snapshots) {
+        this.casBinLock = casBinLock;
+        this.writers = snapshots ? new AtomicLongArray(WRITER_STRIPES * WRITER_PAD) : null;
+    }
+
+    /** 桶锁竞争采样器，为空表示未开启，加锁路径上只多一次判空 */
+    volatile BinLockSampler lockSampler;
+
+    /** 变更流，为空表示未开启，写入路径上只多一次判空 */
+    volatile MyConcurrentMapChangeStream<K, V> changeStream;
+
+    /** 进行中的快照，为空表示没有快照，桶锁内的写入路径上只多一次判空 */
+    volatile MyConcurrentMapSnapshot<K, V> snapshot;
+
+    /** 进行中的写入计数分段数、每段占用的 long 个数（独占一个缓存行） */
+    static final int WRITER_STRIPES = 16;
+    static final int WRITER_PAD = 8;
+
+    /**
+     * 进行中的写入计数：写入线程修改桶之前登记、修改之后注销，同一个线程总是使用同一段
+     *      快照开始之前等待登记时还没有快照的写入完成，见 beginWrite、snapshot
+     *      只有创建时开启快照才分配，为空时写入不登记，没有任何额外的原子操作
+     */
+    final AtomicLongArray writers;
+
     /**
      * 仿照源码中表示：
      *      -1：正在初始化
      *       0：还没有初始化
      *     正数：如果已经扩容，标识扩容阈值
      * */
-    int sizeCtl;
+    volatile int sizeCtl;
+
+    /**
+     * 添加方法，key 存在时覆盖
+     * @param k 键
+     * @param v 值
+     * @return 旧值，不存在返回 null
+     */
+    public V putVal(K k, V v){
+        return putVal(k, v, false);
+    }
+
+    /**
+     * key 不存在时添加
+     * @param k 键
+     * @param v 值
+     * @return 已存在的值，不存在返回 null（表示添加成功）
+     */
+    public V putIfAbsent(K k, V v){
+        return putVal(k, v, true);
+    }
 
-    public void putVal(K k, V v){
+    final V putVal(K k, V v, boolean onlyIfAbsent){
 
         if(k == null || v == null){
             throw new NullPointerException("key or value not null");
         }
 
-        if(tab == null){
+        int stripe = beginWrite();
+        try {
+            return doPutVal(k, v, onlyIfAbsent);
+        } finally {
+            endWrite(stripe);
+        }
 
-            /** 初始化数组tab */
-            initTable();
+    }
 
-        }
+    @SuppressWarnings("unchecked")
+    private V doPutVal(K k, V v, boolean onlyIfAbsent){
 
         /** 根据 Key 获取哈希值 */
         int hashCode = getHashCode(k);
 
-        /**
-         * 根据 hashCode 计算下标位置
-         * 使用 数组长度-1 与运算 哈希值，
-         *
-         *  这样设计的好处：与运算是确保下标范围，防止越界；提高查询节点效率，位运算的操作效率是最高的；可以体现出一部分散列分布
-         *
-         * 与用算符表示：两个操作数中位都为1，才为1，否则为0
-         *      例：
-         *          001010001        -> 81
-         *          111011001        -> 473
-         *        ——————————————
-         *          001010001        -> 81
-         *
-         */
-        int i = (tab.length - 1) & hashCode;
-
-        Node<K,V>[] t;
+        /** 添加前桶中节点数的估计，传给 addCount 决定是否校验扩容 */
+        int check = 0;
 
         /**
          * 此处使用死循环的目的：
@@ -86,14 +212,35 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
          *      我们实现的是线程安全的哈希表，如果不用cas，要是有多个线程并发添加同一下标位置元素，会存在覆盖的情况，使用cas + 死循环，
          *      可以很好得处理这种并发添加
          */
-        other:
-        for (t  = tab;;){
+        for (Node<K,V>[] t = tab;;){
 
-            /** 获取数组对应下标的元素，使用 Unsafe.getObjectVolatile() 确保可见性 */
-            Node<K,V> currentNode = tabAt(t, i);
+            if(t == null || t.length == 0){
 
-            /** 创建待添加对象 */
-            Node<K, V> n = new Node<K, V>(hashCode, k, v, null);
+                /** 初始化数组tab */
+                t = initTable();
+                continue;
+
+            }
+
+            /**
+             * 根据 hashCode 计算下标位置
+             * 使用 数组长度-1 与运算 哈希值，
+             *
+             *  这样设计的好处：与运算是确保下标范围，防止越界；提高查询节点效率，位运算的操作效率是最高的；可以体现出一部分散列分布
+             *
+             * 与用算符表示：两个操作数中位都为1，才为1，否则为0
+             *      例：
+             *          001010001        -> 81
+             *          111011001        -> 473
+             *        ——————————————
+             *          001010001        -> 81
+             *
+             *  注意：下标必须根据当前循环使用的数组 t 重新计算，协助扩容之后 t 会变为新数组
+             */
+            int i = (t.length - 1) & hashCode;
+
+            /** 获取数组对应下标的元素，使用 volatile（Java 9+ 为 acquire）读取确保可见性 */
+            Node<K,V> currentNode = tabAt(t, i);
 
             /**
              * 校验下标位置元素是否为空
@@ -108,7 +255,7 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                  * 如果添加成功，直接退出
                  *      此处考虑添加失败和并发情况，使用CAS设置值，确保了一致性和安全性
                  * */
-                if (casTabAt(t, i, null, n)) {
+                if (casNewBin(t, i, new Node<K, V>(hashCode, k, v, null))) {
                     break;
                 }
 
@@ -117,316 +264,516 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
 
                 t = helpTransfer(t, currentNode);
 
-            } else if(currentNode instanceof TreeNode){ /** 红黑树 */
+            } else {
+
+                /**
+                 * 给桶头节点加锁
+                 *  加锁之后需要再次校验桶头是否发生变化（可能已被迁移或转换为红黑树），发生变化则重新循环
+                 */
+                /** 添加前桶中节点数，在锁外读取只是估计：红黑树或至少两个节点的链表记为 2 */
+                check = currentNode instanceof TreeNode || currentNode.next != null ? 2 : 1;
+
+                Object result;
+                long lockStart = beforeLock(), lockAcquired;
+                if (casBinLock) {
+                    lockBin(currentNode);
+                    try {
+                        lockAcquired = afterLock(i, lockStart);
+                        result = putInBin(t, i, currentNode, hashCode, k, v, onlyIfAbsent);
+                    } finally {
+                        unlockBin(currentNode);
+                    }
+                } else {
+                    synchronized (currentNode) {
+                        lockAcquired = afterLock(i, lockStart);
+                        result = putInBin(t, i, currentNode, hashCode, k, v, onlyIfAbsent);
+                    }
+                }
+
+                afterUnlock(i, k, lockStart, lockAcquired);
 
-                //TODO 此处红黑树不维护原链表
-                synchronized (currentNode){
+                if (result != RETRY) {
 
-                    TreeNode<K, V> treeNode = (TreeNode<K, V>) currentNode;
-                    treeNode.add(k, v, hashCode, null);
+                    if (result != null) {
+                        return (V) result;
+                    }
+
+                    break;
 
                 }
 
-            }else { /** 链表 */
+            }
 
-                /**
-                 * 链表处理逻辑（给当前node加锁）
-                 *  校验是不是要更新值，如果是直接更新，如果不是那就继续添加至链表尾部，然后校验是否需要转换红黑树
-                 */
-                synchronized (currentNode){
+        }
 
-                    for(int binCount = 0; ;++binCount){
+        /** 计数 */
+        addCount(1L, check);
 
-                        /** 校验是否需要更新值 */
-                        if(currentNode.key == k || k.equals(currentNode.key)){
+        return null;
 
-                            currentNode.value = v;
-                            return;
+    }
 
-                        }
+    /**
+     * 在桶锁内添加
+     *      链表长度达到 TREEIFY_THRESHOLD 时直接在锁内转换为红黑树
+     * @param t 数组
+     * @param i 下标
+     * @param f 加锁的桶头节点
+     * @return 桶头已变化返回 RETRY，key 已存在返回旧值，添加成功返回 null
+     */
+    private Object putInBin(Node<K, V>[] t, int i, Node<K, V> f, int hashCode, K k, V v, boolean onlyIfAbsent) {
 
-                        /** 从链表中添加 */
-                        if (currentNode.next == null) {
-                            currentNode.next = new Node<K, V>(hashCode,k,v,null);
+        if (tabAt(t, i) != f) {
+            return RETRY;
+        }
 
-                            /** 是否满足转换红黑树条件 */
-                            //TODO 源代码中此部分没有包含在synchronized中，因为转换红黑树单独做了线程安全处理，使用的是：synchronized + cas
-                            if(binCount >= TREEIFY_THRESHOLD - 1){
+        preserveForSnapshot(t, i, f);
 
-                                /** 转换为红黑树 */
-                                convertRBT(i);
+        if(f instanceof TreeNode){ /** 红黑树 */
 
-                            }
+            TreeNode<K, V> p = ((TreeNode<K, V>) f).add(k, v, hashCode, null);
 
-                            break other;
-                        }
+            /** 返回不为空表示 key 已存在 */
+            if (p == null) {
+                publishChange(MyConcurrentMapChangeStream.Type.PUT, k, v, null);
+                return null;
+            }
+
+            V oldVal = p.value;
+            if (!onlyIfAbsent) {
+                p.value = v;
+                publishChange(MyConcurrentMapChangeStream.Type.PUT, k, v, oldVal);
+            }
+            return oldVal;
 
-                        currentNode = currentNode.next;
+        }
 
-                    }
+        /**
+         * 链表处理逻辑
+         *  校验是不是要更新值，如果是直接更新，如果不是那就继续添加至链表尾部，然后校验是否需要转换红黑树
+         */
+        V oldVal = null;
+        int binCount = 1;
+        for (Node<K, V> e = f; ; ++binCount) {
+
+            /** 校验是否需要更新值 */
+            if (e.hash == hashCode && (e.key == k || k.equals(e.key))) {
 
+                oldVal = e.value;
+                if (!onlyIfAbsent) {
+                    e.value = v;
+                    publishChange(MyConcurrentMapChangeStream.Type.PUT, k, v, oldVal);
                 }
+                break;
 
             }
 
-        }
+            /** 从链表中添加 */
+            if (e.next == null) {
+                e.next = new Node<K, V>(hashCode, k, v, null);
+                publishChange(MyConcurrentMapChangeStream.Type.PUT, k, v, null);
+                break;
+            }
 
-        /** 计数 */
-        addCount();
+            e = e.next;
 
-    }
+        }
 
-    /**
-     * 协助扩容
-     * @param t 数组
-     * @param currentNode 当前节点
-     */
-    private Node<K, V>[] helpTransfer(Node<K, V>[] t, Node<K, V> currentNode) {
+        /** 是否满足转换红黑树条件 */
+        if (binCount >= TREEIFY_THRESHOLD) {
 
-        Node<K, V>[] nt;
-        if(t != null && currentNode instanceof ForwardingNode && (nt = ((ForwardingNode<K, V>) currentNode).nextTable) != null){
+            /** 转换为红黑树 */
+            convertRBT(t, i, f);
 
-            /** 获取扩容标识 */
-            int rs = resizeStamp(t.length);
+        }
 
-            int sc;
+        return oldVal;
 
-            /** 是否可以协助扩容 */
-            while (nt == nextTable && t == tab && (sc = sizeCtl) < 0){
+    }
 
-                /**
-                 * (sc >>> 16) != rs ：获取扩容标识，可以理解为版本号，如果不相等表示不需要协助扩容
-                 * transferIndex <= 0 ： 迁移下标如果等于0，表示不需要协助扩容
-                 */
-                if((sc >>> 16) != rs || transferIndex <= 0){
-                    break;
-                }
+    /**
+     * 批量添加，key 存在时覆盖
+     *      整批只计算一次哈希，按需预扩容，再按桶下标排序分组：每个桶只读取一次、加一次锁，计数只更新一次
+     *      单个 key 的添加是原子的，整批不是（其他线程可能看到一部分）；分组后遇到迁移节点的条目放到下一轮按新数组重新分组
+     * @param batch 键值对
+     */
+    public void putAll(Map<? extends K, ? extends V> batch) {
 
-                if (U.compareAndSwapInt(this, SIZE_CTL, sc, sc + 1)) {
-                    transfer(tab, nt);
-                    break;
-                }
+        int n = batch.size();
+        if (n == 0) {
+            return;
+        }
 
+        Object[] keys = new Object[n], vals = new Object[n];
+        int[] hashes = new int[n];
+        int c = 0;
+        for (Map.Entry<? extends K, ? extends V> e : batch.entrySet()) {
+
+            if (e.getKey() == null || e.getValue() == null) {
+                throw new NullPointerException("key or value not null");
             }
 
-            return nt;
+            keys[c] = e.getKey();
+            vals[c] = e.getValue();
+            hashes[c++] = getHashCode(e.getKey());
 
         }
 
-        return tab;
+        /** 预扩容：整批（连同其他线程正在写入的批次）加入之后不超过扩容阈值 */
+        batchReserved.add(n);
+        try {
+            tryPresize(size.sum() + batchReserved.sum());
+            int stripe = beginWrite();
+            try {
+                putAll(keys, vals, hashes, n);
+            } finally {
+                endWrite(stripe);
+            }
+        } finally {
+            batchReserved.add(-n);
+        }
 
     }
 
     /**
-     * 计数器、校验是否需要扩容
-     * */
-    private void addCount() {
+     * 批量添加：按桶分组逐组添加，结束时统一计数
+     */
+    @SuppressWarnings("unchecked")
+    private void putAll(Object[] keys, Object[] vals, int[] hashes, int n) {
 
-        long count = size.incrementAndGet();
+        int[] pending = new int[n];
+        for (int j = 0; j < n; j++) {
+            pending[j] = j;
+        }
 
-        int sc;
-        while (count >= (sc = sizeCtl)){
+        int[] added = new int[1];
+        for (int remaining = n; remaining > 0; ) {
 
-            int n = tab.length;
             Node<K, V>[] t = tab;
+            if (t == null) {
+                t = initTable();
+            }
 
-            /**
-             * 计算扩容标识
-             *  高16位表示：区分连续的多次扩容，可理解为一个版本号
-             *  低16位表示：有n-1个线程正在参与扩容
-             *
-             *  对于“n = 16”，resizeStamp(n)将返回 32795
-             *
-             * */
-            int rs = resizeStamp(n);
+            long[] order = groupByBin(t.length, hashes, pending, remaining);
+            remaining = 0;
 
-            /** 小于0表示其他线程正在扩容 */
-            if(sc < 0){
+            for (int g = 0; g < order.length; ) {
 
-                /**
-                 * 校验扩容是否完成：迁移完成为0
-                 * */
-                Node<K, V>[] nt = nextTable;
-                if(nt == null || transferIndex <= 0){
-                    break;
+                int i = (int) (order[g] >>> 32);
+                int end = g + 1;
+                while (end < order.length && (int) (order[end] >>> 32) == i) {
+                    end++;
                 }
 
-                if(U.compareAndSwapInt(this, SIZE_CTL, sc, sc + 1)){
-                    transfer(t, nt);
-                }
+                for (int pos = g; pos < end; ) {
 
-                /**
-                 *  此处以 rs=32795 接着计算
-                 *  (rs << 16) + 2) = -2145714174
-                 *
-                 *  使用cas更新之后，并发同时只能更新成功一个，另一个会继续进入循环，从而进入{sc < 0} 进行协助扩容
-                 *  此处 {+2} 因为后十六位表示有n-1个线程正在参与扩容，而在{sc < 0}分支内，协助扩容时每次会 +1 ，在扩容的方法中，每个线程扩容完成之后 {sc - 1}，并会-2来校验是否全部扩容完成
-                 *
-                 *  扩容方法中可以看到{ (sc -2) != resizeStamp(n) }，来表示是否扩容完成
-                 *
-                 * */
-            } else if (U.compareAndSwapInt(this, SIZE_CTL, sc, (rs << 16) + 2)) {
+                    Node<K, V> f = tabAt(t, i);
+                    int e = (int) order[pos];
 
-                /** 初始调用扩容，nextTab 为 null */
-                transfer(t, null);
+                    if (f == null) {
+
+                        /** 空桶：第一个条目 CAS 放入，其余条目在下一次循环中加锁添加 */
+                        if (casNewBin(t, i, new Node<K, V>(hashes[e], (K) keys[e], (V) vals[e], null))) {
+                            added[0]++;
+                            pos++;
+                        }
+
+                    } else if (f.hash == MOVED) {
+
+                        helpTransfer(t, f);
+                        for (; pos < end; pos++) {
+                            pending[remaining++] = (int) order[pos];
+                        }
+
+                    } else {
+
+                        long lockStart = beforeLock(), lockAcquired;
+                        if (casBinLock) {
+                            lockBin(f);
+                            try {
+                                lockAcquired = afterLock(i, lockStart);
+                                pos = putAllInBin(t, i, f, order, pos, end, keys, vals, hashes, added);
+                            } finally {
+                                unlockBin(f);
+                            }
+                        } else {
+                            synchronized (f) {
+                                lockAcquired = afterLock(i, lockStart);
+                                pos = putAllInBin(t, i, f, order, pos, end, keys, vals, hashes, added);
+                            }
+                        }
+
+                        afterUnlock(i, null, lockStart, lockAcquired);
+
+                    }
+
+                }
+
+                g = end;
 
             }
 
+        }
 
+        /** 计数 */
+        if (added[0] > 0) {
+            addCount(added[0], 2);
         }
 
     }
 
     /**
-     *
-     *      让我们以“n = 16”为例进行详细计算:
-     *         1.计算二进制表示中前导零的数量:
-     *             8~的二进制表示:0000 0000 0000 0000 0000 0000 0001 0000
-     *             前导零的数量:“27” (在第一个中之前有 27 个前导零)
-     *
-     *         2.计算高位比特的移位量:
-     *             RESIZE_STAMP_BITS通常在“ConcurrentHashMap’中是“16“
-     *             1 << (16 - 1): 将 1 移15”位，得到32768。
-     *
-     *         3.使用按位 OR操作符将两个值合并:
-     *             leadingZeros | (1 << shiftAmount): 27 | 32768
-     *             29的二进制表示:0000 0000 0000 0000 0000 0000 0001 1011
-     *             32768的二进制表示:1000 0000 0000 0000
-     *             执行按位OR:1000 0000 0000 0000 0000 0000 0001 1011，即 32795 的十进制表示。
-     *     所以，对于“n = 16”，resizeStamp(n)将返回 32795
-     *
-     * @param n
-     * @return
+     * 在桶锁内添加一组条目（同一个桶）
+     *      逐个复用 putInBin；桶头变化（加锁前被迁移、或本组添加过程中转换为红黑树）时停下，由调用方重新读取桶头后继续
+     * @return 下一个待处理的位置
      */
-    static final int resizeStamp(int n) {
-        return Integer.numberOfLeadingZeros(n) | (1 << (16 - 1));
-    }
+    @SuppressWarnings("unchecked")
+    private int putAllInBin(Node<K, V>[] t, int i, Node<K, V> f, long[] order, int pos, int end,
+                            Object[] keys, Object[] vals, int[] hashes, int[] added) {
 
-    /**
-     * 扩容
-     * */
-    private void transfer(Node<K,V>[] oldTab, Node<K,V>[] nextTab) {
+        for (; pos < end; pos++) {
 
-        /** 获取原数组长度 */
-        int n = oldTab.length;
+            int e = (int) order[pos];
+            Object result = putInBin(t, i, f, hashes[e], (K) keys[e], (V) vals[e], false);
 
-        /** 扩容步长默认为16 */
-        int stride = 16;
+            if (result == RETRY) {
+                break;
+            }
 
-        /** 如果数组是空的，表示第初始化进行扩容，创建扩容数组，长度为：旧数组长度2倍 */
-        if (nextTab == null) {
+            if (result == null) {
+                added[0]++;
+            }
 
-            nextTable = nextTab = new Node[n << 1];
+        }
 
-            /** 赋予迁移下标 */
-            transferIndex = n;
+        return pos;
+
+    }
+
+    /**
+     * 批量查询
+     *      按桶下标排序分组，链表桶只读取一次桶头后逐个查找，红黑树桶只加一次锁；已迁移的桶逐个走 findNode
+     * @param keys key 集合
+     * @return 存在的 key 与值
+     */
+    @SuppressWarnings("unchecked")
+    public Map<K, V> getAll(Collection<? extends K> keys) {
 
+        Map<K, V> found = new java.util.HashMap<K, V>(Math.max(16, (int) (keys.size() / 0.75f) + 1));
+
+        Node<K, V>[] t = tab;
+        if (t == null || keys.isEmpty()) {
+            return found;
         }
 
-        /** 创建迁移对象，如果有其他线程正在添加，发现正在扩容，会协助扩容 */
-        ForwardingNode<K,V> fwd = new ForwardingNode<K,V>(nextTab);
+        int n = 0;
+        Object[] ks = new Object[keys.size()];
+        int[] hashes = new int[ks.length];
+        for (K k : keys) {
+            if (k != null) {
+                ks[n] = k;
+                hashes[n++] = getHashCode(k);
+            }
+        }
 
-        /** 下标获取标记 */
-        boolean advance = true;
+        int[] pending = new int[n];
+        for (int j = 0; j < n; j++) {
+            pending[j] = j;
+        }
 
-        /**
-         * 整体迁移是从后往前进行迁移，每次迁移的长度是根据步长定的
-         * i：迁移的开始下标 = 旧数组长度n
-         * bound：迁移的结束下标 = 旧数组长度n - 迁移步长
-         * */
-        for (int i = 0, bound = 0; ; ){
+        long[] order = groupByBin(t.length, hashes, pending, n);
 
-            /** 计算迁移下标：i 和 bound  */
-            while (advance){
+        for (int g = 0; g < order.length; ) {
 
-                int nextIndex= transferIndex;
-                int nextBound = (nextIndex > stride ? nextIndex - stride : 0);
+            int i = (int) (order[g] >>> 32);
+            int end = g + 1;
+            while (end < order.length && (int) (order[end] >>> 32) == i) {
+                end++;
+            }
 
-                /**
-                 *  --i >= bound：从后往前依次递减
-                 * */
-                if(--i >= bound){
-                    advance = false;
+            Node<K, V> f = tabAt(t, i);
 
-                    /**
-                     * 以下情况会进入下面这个分支
-                     *      1、迁移区域已经被分配完，没有分配到迁移区域的线程。迁移区域分配完，意味着transferIndex为0
-                     *      2、被分配到[0,stride]区域的线程，在完成数据迁移后，i 自减到 -1
-                     *      3、没有分配到 [0,stride] 区域的线程完成了分配区域的数据迁移之后，没有空闲区域需要线程来迁移数据；这个时候会将i设置为-1
-                     * */
-                }else if(nextIndex <= 0){
-                    i = -1; /** 标记下标为-1，会进入下面校验是否迁移完成的分支，进行检查迁移情况 */
-                    advance = false;
+            if (f instanceof TreeNode) {
 
-                    /**
-                     * 更新迁移下标，考虑并发情况下多个线程同时争抢，使用CAS来设置
-                     *
-                     *  例：[0,16]
-                     *  TRANSFERINDEX = 0，i=15，bound=0
-                     *
-                     *  例：[0,32]
-                     *      第一个线程：TRANSFERINDEX = 16，i=31，bound=16
-                     *      第二个线程：TRAN11SFERINDEX = 0，i=15，bound=0
-                     *
-                     * */
-                }else if(U.compareAndSwapInt(this, TRANSFERINDEX, nextIndex, nextBound)){
+                boolean validated;
+                long lockStart = beforeLock(), lockAcquired;
+                if (casBinLock) {
+                    lockBin(f);
+                    try {
+                        lockAcquired = afterLock(i, lockStart);
+                        validated = getAllInTree(t, i, f, order, g, end, ks, found);
+                    } finally {
+                        unlockBin(f);
+                    }
+                } else {
+                    synchronized (f) {
+                        lockAcquired = afterLock(i, lockStart);
+                        validated = getAllInTree(t, i, f, order, g, end, ks, found);
+                    }
+                }
+                afterUnlock(i, null, lockStart, lockAcquired);
 
-                    /** 设置迁移结束下标 */
-                    bound = nextBound;
+                f = validated ? null : f;
+
+            } else if (f != null && f.hash != MOVED && f.hash != RESERVED) {
+
+                for (int pos = g; pos < end; pos++) {
+
+                    int e = (int) order[pos];
+                    K k = (K) ks[e];
+
+                    for (Node<K, V> p = f; p != null; p = p.next) {
+                        if (p.hash == hashes[e] && (p.key == k || k.equals(p.key))) {
+                            V v = p.value;
+                            if (v != null) {
+                                found.put(k, v);
+                            }
+                            break;
+                        }
+                    }
 
-                    /** 设置结束下标，nextIndex为旧数组长度，所以需要-1 */
-                    i = nextIndex -1;
-                    advance = false;
                 }
 
+                f = null;
+
             }
 
-            Node<K,V> f = null;
+            /** 迁移中（或红黑树桶头已变化）：逐个查找 */
+            if (f != null) {
+                for (int pos = g; pos < end; pos++) {
+                    int e = (int) order[pos];
+                    Node<K, V> node = findNode(t, hashes[e], (K) ks[e]);
+                    if (node != null) {
+                        found.put((K) ks[e], node.value);
+                    }
+                }
+            }
 
-            /** 迁移完成会进入此分支 */
-            if(i < 0){
+            g = end;
 
-                int sc = sizeCtl;
-                if(U.compareAndSwapInt(this, SIZE_CTL, sc, sc - 1)){
+        }
 
-                    /**
-                     *
-                     *   初始扩容：(rs << RESIZE_STAMP_SHIFT) + 2
-                     *   结束条件：(sc - 2) != resizeStamp(n) << 16
-                     *   其中：
-                     *      (rs << RESIZE_STAMP_SHIFT) == resizeStamp(n) << 16
-                     *   如果他两相等表示，没有线程在扩容完成，否则正在扩容
-                     *
-                     * */
-                    if ((sc - 2) != (resizeStamp(n) << 16))
-                        return;
+        return found;
 
-                    tab = nextTab;
-                    nextTable = null;
-                    sizeCtl = nextTab.length - (nextTab.length >>> 2);
-                    return;
+    }
+
+    /**
+     * 在桶锁内批量查询红黑树桶
+     * @return 桶头是否未变化（变化时不查询）
+     */
+    @SuppressWarnings("unchecked")
+    private boolean getAllInTree(Node<K, V>[] t, int i, Node<K, V> f, long[] order, int pos, int end,
+                                 Object[] ks, Map<K, V> found) {
+
+        if (tabAt(t, i) != f) {
+            return false;
+        }
+
+        for (; pos < end; pos++) {
+            K k = (K) ks[(int) order[pos]];
+            TreeNode<K, V> node = ((TreeNode<K, V>) f).getNode(k);
+            if (node != null) {
+                found.put(k, node.value);
+            }
+        }
+
+        return true;
+
+    }
 
+    /**
+     * 按桶下标排序分组：高32位为桶下标，低32位为条目位置
+     *      先按桶下标的高位做一次计数排序（分区个数不超过条目个数，O(n)），分区内通常只有一两个条目，再用插入排序排好；
+     *      分区内条目较多（哈希冲突严重）时改用 Arrays.sort
+     * @param n 数组长度
+     * @param hashes 各条目的哈希值
+     * @param pending 待处理的条目位置
+     * @param count 待处理个数
+     * @return 排好序的 (桶下标, 位置)
+     */
+    static long[] groupByBin(int n, int[] hashes, int[] pending, int count) {
+
+        int tableBits = Integer.numberOfTrailingZeros(n);
+        int bits = Math.min(tableBits, 32 - Integer.numberOfLeadingZeros(Math.max(count - 1, 1)));
+        int shift = tableBits - bits;
+
+        int[] start = new int[(1 << bits) + 1];
+        for (int j = 0; j < count; j++) {
+            start[(((n - 1) & hashes[pending[j]]) >>> shift) + 1]++;
+        }
+        for (int b = 1; b < start.length; b++) {
+            start[b] += start[b - 1];
+        }
+
+        long[] order = new long[count];
+        int[] fill = Arrays.copyOf(start, start.length - 1);
+        for (int j = 0; j < count; j++) {
+            int e = pending[j];
+            int bin = (n - 1) & hashes[e];
+            order[fill[bin >>> shift]++] = ((long) bin << 32) | e;
+        }
+
+        for (int b = 0; b < start.length - 1; b++) {
+
+            int from = start[b], to = start[b + 1];
+
+            if (to - from > 32) {
+                Arrays.sort(order, from, to);
+                continue;
+            }
+
+            for (int x = from + 1; x < to; x++) {
+                long v = order[x];
+                int y = x - 1;
+                for (; y >= from && order[y] > v; y--) {
+                    order[y + 1] = order[y];
                 }
+                order[y + 1] = v;
+            }
 
-            }else if((f = tabAt(oldTab, i)) == null){ /** 节点为空直接占位 */
+        }
 
-                advance = casTabAt(oldTab, i, null, fwd);
+        return order;
 
-            }else { /** 不为空节点：链表或红黑树 */
-                synchronized (f) {
+    }
 
-                    /**
-                     * 简单处理：计算扩容之后的新下标，直接赋予
-                     * */
-                    int newIndex = (nextTab.length - 1)  & f.hash;
-                    int oldIndex = (n - 1) & f.hash;
+    /**
+     * 预扩容：保证容纳 count 个元素之前不需要再扩容（扩容阈值大于 count）
+     *      数组为空时直接按目标长度初始化，否则按 addCount 的方式逐次扩容（其他线程同样可以协助）；正在扩缩容时直接返回
+     * @param count 预期元素个数
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void tryPresize(long count) {
 
-                    setTabAt(nextTab, newIndex, f);
-                    setTabAt(oldTab, oldIndex, fwd);
-                    advance = true;
+        int sc;
+        while ((sc = sizeCtl) >= 0) {
+
+            Node<K, V>[] t = tab;
+            int n;
+
+            if (t == null || (n = t.length) == 0) {
 
+                /** 长度 * 0.75 > count */
+                n = Math.max(sc, count >= (MAXIMUM_CAPACITY >>> 2) * 3L ? MAXIMUM_CAPACITY : tableSizeFor((int) (count + count / 3 + 1)));
+                if (ConcurrentMapAccess.casSizeCtl(this, sc, -1)) {
+                    try {
+                        if (tab == t) {
+                            tab = new Node[n];
+                            sc = n - (n >>> 2);
+                        }
+                    } finally {
+                        sizeCtl = sc;
+                    }
                 }
 
+            } else if (count < sc || n >= MAXIMUM_CAPACITY || snapshotBlocksTransfer()) {
+
+                break;
+
+            } else if (t == tab && startTransfer(sc, n)) {
+
+                transfer(t, null);
+
             }
 
         }
@@ -434,289 +781,1655 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
     }
 
     /**
-     * 初始化数组
-     * TODO 此方法仿照源码中 initTable() 方法，主要的目的是体验初始化时巧妙的设计和CAS的使用
+     * 大于等于 c 的最小 2 的幂
      */
-    private void initTable() {
+    static int tableSizeFor(int c) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(c - 1);
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
 
-        int sc = 0;
-        while (tab == null || tab.length == 0){
+    /**
+     * 协助扩容
+     * @param t 数组
+     * @param currentNode 当前节点
+     */
+    private Node<K, V>[] helpTransfer(Node<K, V>[] t, Node<K, V> currentNode) {
 
-            /** 如果标记小于0，表示正在初始化 */
-            if(sizeCtl < 0){
+        Node<K, V>[] nt;
+        if(t != null && currentNode instanceof ForwardingNode && (nt = ((ForwardingNode<K, V>) currentNode).nextTable) != null){
 
-                Thread.yield(); //TODO 让CPU放弃线程执行权，也就是让其他线程执行，这个方法用过的人应该很少吧！
+            /** 获取扩容标识 */
+            int rs = resizeStamp(t.length);
+
+            int sc;
+
+            /** 是否可以协助扩容 */
+            while (nt == nextTable && t == tab && (sc = sizeCtl) < 0){
 
                 /**
-                 * 不等于0。使用cas初始标识为正在初始化-1，达到线程安全
-                 *      解释：第一次进来之后，sc和sizeCtl的值都为0，因为使用的是CAS，所以就算多个线程并发执行，只会有一个线程更新成功
+                 * (sc >>> 16) != rs ：获取扩容标识，可以理解为版本号，如果不相等表示不需要协助扩容
+                 * transferIndex <= 0 ： 迁移下标如果等于0，表示不需要协助扩容
+                 */
+                if((sc >>> 16) != rs || transferIndex <= 0){
+                    break;
+                }
+
+                if (ConcurrentMapAccess.casSizeCtl(this, sc, sc + 1)) {
+                    transfer(t, nt);
+                    break;
+                }
+
+            }
+
+            return nt;
+
+        }
+
+        return tab;
+
+    }
+
+    /**
+     * 计数器、校验是否需要扩容
+     *      参考源码计数有竞争时的做法，只在桶中已有多个节点时求和校验（冲突变多说明负载在升高）；插入空桶或只有一个节点的桶时随机采样校验，
+     *      保证哈希值分布很均匀（例如连续整数）时也能扩容；大数组的负载最多超过阈值一点，不影响正确性
+     * @param x 计数变化量
+     * @param check 添加前桶中节点数的估计：小于等于 1 时采样校验，大于 1 时一定校验
+     * */
+    private void addCount(long x, int check) {
+
+        size.add(x);
+
+        Node<K, V>[] t;
+        if (check <= 1 && (t = tab) != null && t.length >= COUNT_CHECK_MIN_CAPACITY
+                && (ThreadLocalRandom.current().nextInt() & COUNT_CHECK_MASK) != 0) {
+            return;
+        }
+
+        long count = size.sum();
+
+        int sc;
+        while (count >= (sc = sizeCtl) && (t = tab) != null){
+
+            int n = t.length;
+
+            /**
+             * 计算扩容标识
+             *  高16位表示：区分连续的多次扩容，可理解为一个版本号
+             *  低16位表示：有n-1个线程正在参与扩容
+             *
+             *  对于“n = 16”，resizeStamp(n)将返回 32795
+             *
+             * */
+            int rs = resizeStamp(n);
+
+            /** 小于0表示其他线程正在扩容 */
+            if(sc < 0){
+
+                /**
+                 * 校验扩容是否完成：迁移完成为0
                  * */
-            }else if(U.compareAndSwapInt(this, SIZE_CTL, sc, -1)){
+                Node<K, V>[] nt = nextTable;
+                if((sc >>> 16) != rs || nt == null || transferIndex <= 0){
+                    break;
+                }
 
-                /** 初始化数组，长度：16 */
-                tab = new Node[DEFAULT_CAPACITY];
+                if(ConcurrentMapAccess.casSizeCtl(this, sc, sc + 1)){
+                    transfer(t, nt);
+                }
 
                 /**
-                 * 下面这句代码的意思：
-                 *  DEFAULT_CAPACITY - (DEFAULT_CAPACITY >>> 2)  == DEFAULT_CAPACITY * 0.75
+                 *  此处以 rs=32795 接着计算
+                 *  (rs << 16) + 2) = -2145714174
+                 *
+                 *  使用cas更新之后，并发同时只能更新成功一个，另一个会继续进入循环，从而进入{sc < 0} 进行协助扩容
+                 *  此处 {+2} 因为后十六位表示有n-1个线程正在参与扩容，而在{sc < 0}分支内，协助扩容时每次会 +1 ，在扩容的方法中，每个线程扩容完成之后 {sc - 1}，并会-2来校验是否全部扩容完成
+                 *
+                 *  扩容方法中可以看到{ (sc -2) != resizeStamp(n) }，来表示是否扩容完成
+                 *
                  * */
-                sizeCtl = DEFAULT_CAPACITY - (DEFAULT_CAPACITY >>> 2);
+            } else if (snapshotBlocksTransfer()) {
+
+                /** 快照进行中，扩容推迟到快照结束 */
+                break;
+
+            } else if (startTransfer(sc, n)) {
+
+                /** 初始调用扩容，nextTab 为 null */
+                transfer(t, null);
 
             }
 
+            count = size.sum();
+
         }
 
     }
 
-    /** 声明全局的 Unsafe */
-    private static Unsafe U = null;
-
     /**
      *
-     *  偏移量的定义：使用cas更新时，需要传入字段的偏移量
-     * sizeCtl 的偏移量
+     *      让我们以“n = 16”为例进行详细计算:
+     *         1.计算二进制表示中前导零的数量:
+     *             8~的二进制表示:0000 0000 0000 0000 0000 0000 0001 0000
+     *             前导零的数量:“27” (在第一个中之前有 27 个前导零)
+     *
+     *         2.计算高位比特的移位量:
+     *             RESIZE_STAMP_BITS通常在“ConcurrentHashMap’中是“16“
+     *             1 << (16 - 1): 将 1 移15”位，得到32768。
+     *
+     *         3.使用按位 OR操作符将两个值合并:
+     *             leadingZeros | (1 << shiftAmount): 27 | 32768
+     *             29的二进制表示:0000 0000 0000 0000 0000 0000 0001 1011
+     *             32768的二进制表示:1000 0000 0000 0000
+     *             执行按位OR:1000 0000 0000 0000 0000 0000 0001 1011，即 32795 的十进制表示。
+     *     所以，对于“n = 16”，resizeStamp(n)将返回 32795
+     *
+     * @param n
+     * @return
+     */
+    static final int resizeStamp(int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (16 - 1));
+    }
+
+    /**
+     * 删除后估算是否需要校验缩容，避免每次删除都对 size 求和
+     *      删除所在的桶及其后相邻的桶都为空时，说明数组可能很空，再求和校验；负载 0.125 时这种情况约占六成，负载 0.75 时只有约 5%
+     *      另外随机采样校验，避免元素集中在连续的桶中时一直估算不到；小数组每次都校验
+     * @param t 删除所在的数组
+     * @param i 删除所在的下标
      */
-    static long SIZE_CTL = 0;
+    private boolean underLoaded(Node<K, V>[] t, int i) {
 
-    static long TRANSFERINDEX = 0;
+        int n = t.length;
+        if (n <= DEFAULT_CAPACITY) {
+            return false;
+        }
 
-    private static long ABASE = 0;
-    private static int ASHIFT = 0;
+        if (n < COUNT_CHECK_MIN_CAPACITY || (ThreadLocalRandom.current().nextInt() & COUNT_CHECK_MASK) == 0) {
+            return true;
+        }
 
-    /** 使用静态代码块来初始化 Unsafe，类似于单例的效果 */
-    static {
+        for (int j = 0; j < SHRINK_PROBE; j++) {
+            if (tabAt(t, (i + j) & (n - 1)) != null) {
+                return false;
+            }
+        }
+        return true;
 
-        try {
+    }
+
+    /**
+     * 缩容：元素个数低于 数组长度 >>> shift 时，数组长度减半，直到不再满足条件或达到 DEFAULT_CAPACITY
+     *      复用扩容的迁移流程：sizeCtl 使用相同的扩容标识，transferIndex 分配迁移区间，迁移完的桶放置迁移节点，
+     *      其他线程遇到迁移节点同样会协助迁移、到新数组中查找；区别只在于每个迁移单元合并旧数组中的 i、i+n/2 两个桶
+     *      缩容后负载不超过 0.25，与扩容阈值 0.75 之间留有距离，反复 添加、删除 不会来回扩缩容
+     * @param shift 删除时自动缩容为 SHRINK_SHIFT（负载低于 0.125），compact 为 2（负载低于 0.25）
+     * @param wait 遇到正在进行的扩缩容时，true 协助完成后继续校验，false 直接返回
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void shrink(int shift, boolean wait) {
+
+        for (;;) {
+
+            /** 先读 sizeCtl 再读数组：迁移完成时先更新数组再更新 sizeCtl，保证读到的数组与 sizeCtl 对应 */
+            int sc = sizeCtl;
+            Node<K, V>[] t = tab;
+
+            if (t == null || t.length <= DEFAULT_CAPACITY) {
+                return;
+            }
 
-            U = getUnsafe();
-            Class<?> c = MyConcurrentMap.class;
+            int n = t.length;
+
+            if (sc < 0) {
+
+                if (!wait) {
+                    return;
+                }
 
-            /** 赋值偏移量 */
-            SIZE_CTL = U.objectFieldOffset(c.getDeclaredField("sizeCtl"));
-            TRANSFERINDEX = U.objectFieldOffset(c.getDeclaredField("transferIndex"));
-            Class<?> ak = Node[].class;
+                Node<K, V>[] nt = nextTable;
+                if ((sc >>> 16) == resizeStamp(n) && nt != null && transferIndex > 0
+                        && ConcurrentMapAccess.casSizeCtl(this, sc, sc + 1)) {
+                    transfer(t, nt);
+                } else {
+                    Thread.yield();
+                }
+                continue;
 
-            // 获取数组中第一个元素的地址
-            ABASE = U.arrayBaseOffset(ak);
+            }
 
-            // 获取数组中第一个元素占用的字节数
-            int scale = U.arrayIndexScale(ak);
+            if (size.sum() >= (n >>> shift) || snapshotBlocksTransfer()) {
+                return;
+            }
 
-            // 返回无符号整型i的最高非零位前面的n个0的个数，包括符号位
-            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            /** 与扩容相同的方式抢占 sizeCtl，抢占成功的线程创建新数组；先设置迁移下标，再发布新数组 */
+            if (startTransfer(sc, n)) {
+                Node<K, V>[] nt = new Node[n >>> 1];
+                transferIndex = n >>> 1;
+                nextTable = nt;
+                transfer(t, nt);
+            }
 
-        }catch (Exception e){
-            throw new Error(e);
         }
 
     }
 
     /**
-     * 使用反射构建 Unsafe
-     *      因为：Unsafe类位于rt.jar，会对调用者的classLoader进行检查，
-     *      判断当前类是否由Bootstrap classLoader加载，如果不是的话那么就会抛出一个SecurityException异常
-     * */
-    public static Unsafe getUnsafe() throws IllegalAccessException, NoSuchFieldException {
-        Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
-        //Field unsafeField = Unsafe.class.getDeclaredFields()[0]; //也可以这样，作用相同
-        unsafeField.setAccessible(true);
-        Unsafe unsafe =(Unsafe) unsafeField.get(null);
-        return unsafe;
+     * 压缩：把数组缩到负载不超过 0.5 的最小长度（不小于 DEFAULT_CAPACITY），适合批量删除之后主动调用
+     *      与其他线程的读写并发执行，调用返回时数组已经完成迁移
+     */
+    public void compact() {
+        shrink(2, true);
+    }
+
+    /**
+     * 数组长度
+     * @return 长度，未初始化返回 0
+     */
+    public int capacity() {
+        Node<K, V>[] t = tab;
+        return t == null ? 0 : t.length;
+    }
+
+    /**
+     * 扩容（新数组长度小于原数组时为缩容，由 shrink 创建新数组）
+     * */
+    private void transfer(Node<K,V>[] oldTab, Node<K,V>[] nextTab) {
+
+        /** 获取原数组长度 */
+        int n = oldTab.length;
+
+        /** 扩容步长默认为16 */
+        int stride = 16;
+
+        /** 如果数组是空的，表示第初始化进行扩容，创建扩容数组，长度为：旧数组长度2倍 */
+        if (nextTab == null) {
+
+            nextTable = nextTab = new Node[n << 1];
+
+            /** 赋予迁移下标 */
+            transferIndex = n;
+
+        }
+
+        /** 缩容：迁移单元为新数组下标 i，对应旧数组 i、i+n/2 两个桶，迁移下标从新数组长度开始分配 */
+        boolean shrink = nextTab.length < n;
+
+        /** 创建迁移对象，如果有其他线程正在添加，发现正在扩容，会协助扩容 */
+        ForwardingNode<K,V> fwd = new ForwardingNode<K,V>(nextTab);
+
+        /** 下标获取标记 */
+        boolean advance = true;
+
+        /**
+         * 整体迁移是从后往前进行迁移，每次迁移的长度是根据步长定的
+         * i：迁移的开始下标 = 旧数组长度n
+         * bound：迁移的结束下标 = 旧数组长度n - 迁移步长
+         * */
+        for (int i = 0, bound = 0; ; ){
+
+            /** 计算迁移下标：i 和 bound  */
+            while (advance){
+
+                int nextIndex= transferIndex;
+                int nextBound = (nextIndex > stride ? nextIndex - stride : 0);
+
+                /**
+                 *  --i >= bound：从后往前依次递减
+                 * */
+                if(--i >= bound){
+                    advance = false;
+
+                    /**
+                     * 以下情况会进入下面这个分支
+                     *      1、迁移区域已经被分配完，没有分配到迁移区域的线程。迁移区域分配完，意味着transferIndex为0
+                     *      2、被分配到[0,stride]区域的线程，在完成数据迁移后，i 自减到 -1
+                     *      3、没有分配到 [0,stride] 区域的线程完成了分配区域的数据迁移之后，没有空闲区域需要线程来迁移数据；这个时候会将i设置为-1
+                     * */
+                }else if(nextIndex <= 0){
+                    i = -1; /** 标记下标为-1，会进入下面校验是否迁移完成的分支，进行检查迁移情况 */
+                    advance = false;
+
+                    /**
+                     * 更新迁移下标，考虑并发情况下多个线程同时争抢，使用CAS来设置
+                     *
+                     *  例：[0,16]
+                     *  TRANSFERINDEX = 0，i=15，bound=0
+                     *
+                     *  例：[0,32]
+                     *      第一个线程：TRANSFERINDEX = 16，i=31，bound=16
+                     *      第二个线程：TRAN11SFERINDEX = 0，i=15，bound=0
+                     *
+                     * */
+                }else if(ConcurrentMapAccess.casTransferIndex(this, nextIndex, nextBound)){
+
+                    /** 设置迁移结束下标 */
+                    bound = nextBound;
+
+                    /** 设置结束下标，nextIndex为旧数组长度，所以需要-1 */
+                    i = nextIndex -1;
+                    advance = false;
+                }
+
+            }
+
+            Node<K,V> f = null;
+
+            /** 迁移完成会进入此分支 */
+            if(i < 0){
+
+                int sc = sizeCtl;
+                if(ConcurrentMapAccess.casSizeCtl(this, sc, sc - 1)){
+
+                    /**
+                     *
+                     *   初始扩容：(rs << RESIZE_STAMP_SHIFT) + 2
+                     *   结束条件：(sc - 2) != resizeStamp(n) << 16
+                     *   其中：
+                     *      (rs << RESIZE_STAMP_SHIFT) == resizeStamp(n) << 16
+                     *   如果他两相等表示，没有线程在扩容完成，否则正在扩容
+                     *
+                     * */
+                    if ((sc - 2) != (resizeStamp(n) << 16))
+                        return;
+
+                    tab = nextTab;
+                    nextTable = null;
+                    sizeCtl = nextTab.length - (nextTab.length >>> 2);
+                    return;
+
+                }
+
+            }else if(shrink){ /** 缩容：合并两个桶 */
+
+                advance = transferPair(oldTab, nextTab, i, fwd);
+
+            }else if((f = tabAt(oldTab, i)) == null){ /** 节点为空直接占位 */
+
+                advance = casTabAt(oldTab, i, null, fwd);
+
+            }else if(f.hash == MOVED){ /** 已经迁移过的桶，直接跳过 */
+
+                advance = true;
+
+            }else { /** 不为空节点：链表或红黑树 */
+                long lockStart = beforeLock(), lockAcquired;
+                if (casBinLock) {
+                    lockBin(f);
+                    try {
+                        lockAcquired = afterLock(i, lockStart);
+                        advance = transferBin(oldTab, nextTab, i, f, fwd);
+                    } finally {
+                        unlockBin(f);
+                    }
+                } else {
+                    synchronized (f) {
+                        lockAcquired = afterLock(i, lockStart);
+                        advance = transferBin(oldTab, nextTab, i, f, fwd);
+                    }
+                }
+
+                afterUnlock(i, null, lockStart, lockAcquired);
+
+            }
+
+        }
+
+    }
+
+    /**
+     * 在桶锁内迁移一个桶
+     * @param oldTab 原数组
+     * @param nextTab 新数组
+     * @param i 下标
+     * @param f 加锁的桶头节点
+     * @param fwd 迁移节点
+     * @return 是否迁移完成，桶头已变化返回 false（重新处理该下标）
+     */
+    private boolean transferBin(Node<K,V>[] oldTab, Node<K,V>[] nextTab, int i, Node<K,V> f, ForwardingNode<K,V> fwd) {
+
+        /** 加锁之后再次确认桶头没有变化 */
+        if (tabAt(oldTab, i) != f) {
+            return false;
+        }
+
+        int n = oldTab.length;
+
+        /**
+         * 数组长度是2的幂，扩容后节点只可能在 原下标i 或 i+n 两个位置：
+         *      hash & n == 0：低位链表，留在 i
+         *      hash & n != 0：高位链表，移动到 i+n
+         * 此处复制节点而不是直接移动，保证迁移过程中无锁读取旧链表的线程不会丢失节点
+         * */
+        Node<K, V> ln = null, hn = null;
+        int lc = 0, hc = 0;
+        Node<K, V> p = f instanceof TreeNode ? ((TreeNode<K, V>) f).first() : f;
+        for (; p != null; p = p.next) {
+            if ((p.hash & n) == 0) {
+                ln = new Node<K, V>(p.hash, p.key, p.value, ln);
+                ++lc;
+            } else {
+                hn = new Node<K, V>(p.hash, p.key, p.value, hn);
+                ++hc;
+            }
+        }
+
+        /** 红黑树拆分之后节点依然较多，则重新构建红黑树，否则退化为链表 */
+        if (f instanceof TreeNode) {
+            ln = lc > UNTREEIFY_THRESHOLD ? TreeNode.of(ln) : ln;
+            hn = hc > UNTREEIFY_THRESHOLD ? TreeNode.of(hn) : hn;
+        }
+
+        setTabAt(nextTab, i, ln);
+        setTabAt(nextTab, i + n, hn);
+        setTabAt(oldTab, i, fwd);
+        return true;
+
+    }
+
+    /**
+     * 缩容时迁移一个单元：旧数组 i、i+h 两个桶合并到新数组 i（h 为新数组长度）
+     *      两个桶按下标从小到大加锁（其他操作同一时间只持有一个桶锁，不会死锁）；
+     *      空桶先放入已加锁的占位节点，防止合并期间其他线程向空桶添加，占位期间的读取视为空桶，写入会等锁后重试
+     *      新数组的桶必须在任意一个旧桶放置迁移节点之前写好：其他线程只有看到迁移节点才会读写新数组
+     * @return 是否迁移完成，桶头已变化返回 false（重新处理该下标）
+     */
+    private boolean transferPair(Node<K,V>[] oldTab, Node<K,V>[] nextTab, int i, ForwardingNode<K,V> fwd) {
+
+        int h = nextTab.length;
+
+        Node<K, V> a = tabAt(oldTab, i), b = tabAt(oldTab, i + h);
+
+        /** 迁移节点总是最后放到 i，i 已迁移表示两个桶都已迁移 */
+        if (a != null && a.hash == MOVED) {
+            return true;
+        }
+
+        boolean reserveA = a == null, reserveB = b == null;
+        if (reserveA) {
+            a = new Node<K, V>(RESERVED, null, null, null);
+        }
+        if (reserveB) {
+            b = new Node<K, V>(RESERVED, null, null, null);
+        }
+
+        boolean done;
+        long lockStart = beforeLock(), lockAcquired;
+        if (casBinLock) {
+            lockBin(a);
+            try {
+                lockBin(b);
+                try {
+                    lockAcquired = afterLock(i, lockStart);
+                    done = mergeBins(oldTab, nextTab, i, a, b, reserveA, reserveB, fwd);
+                } finally {
+                    unlockBin(b);
+                }
+            } finally {
+                unlockBin(a);
+            }
+        } else {
+            synchronized (a) {
+                synchronized (b) {
+                    lockAcquired = afterLock(i, lockStart);
+                    done = mergeBins(oldTab, nextTab, i, a, b, reserveA, reserveB, fwd);
+                }
+            }
+        }
+
+        afterUnlock(i, null, lockStart, lockAcquired);
+
+        return done;
+
+    }
+
+    /**
+     * 在两个桶锁内合并（缩容）
+     *      与扩容一样复制节点，保证无锁读取旧链表的线程不会丢失节点
+     *      任意一个是红黑树且合并后节点数大于 UNTREEIFY_THRESHOLD，或合并后链表达到 TREEIFY_THRESHOLD（新数组长度不小于64），构建红黑树
+     * @return 是否迁移完成，桶头已变化返回 false
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private boolean mergeBins(Node<K,V>[] oldTab, Node<K,V>[] nextTab, int i, Node<K,V> a, Node<K,V> b,
+                              boolean reserveA, boolean reserveB, ForwardingNode<K,V> fwd) {
+
+        int h = nextTab.length;
+
+        /** 加锁之后再次确认桶头没有变化，空桶放入占位节点 */
+        if (reserveA ? !casTabAt(oldTab, i, null, a) : tabAt(oldTab, i) != a) {
+            return false;
+        }
+
+        if (reserveB ? !casTabAt(oldTab, i + h, null, b) : tabAt(oldTab, i + h) != b) {
+
+            /** 撤销占位，等待占位节点锁的线程拿到锁后会发现桶头已变化并重试 */
+            if (reserveA) {
+                setTabAt(oldTab, i, null);
+            }
+            return false;
+
+        }
+
+        Node<K, V> ln = null;
+        int c = 0;
+
+        for (Node<K, V> f : new Node[]{reserveA ? null : a, reserveB ? null : b}) {
+
+            Node<K, V> p = f instanceof TreeNode ? ((TreeNode<K, V>) f).first() : f;
+            for (; p != null; p = p.next) {
+                ln = new Node<K, V>(p.hash, p.key, p.value, ln);
+                ++c;
+            }
+
+        }
+
+        boolean tree = a instanceof TreeNode || b instanceof TreeNode;
+        if (tree ? c > UNTREEIFY_THRESHOLD : c >= TREEIFY_THRESHOLD && h >= MIN_TREEIFY_CAPACITY) {
+            ln = TreeNode.of(ln);
+        }
+
+        setTabAt(nextTab, i, ln);
+        setTabAt(oldTab, i + h, fwd);
+        setTabAt(oldTab, i, fwd);
+        return true;
+
+    }
+
+    /**
+     * 初始化数组
+     * TODO 此方法仿照源码中 initTable() 方法，主要的目的是体验初始化时巧妙的设计和CAS的使用
+     * @return 初始化完成的数组
+     */
+    private Node<K, V>[] initTable() {
+
+        Node<K, V>[] t;
+        int sc;
+        while ((t = tab) == null || t.length == 0){
+
+            /** 如果标记小于0，表示正在初始化 */
+            if((sc = sizeCtl) < 0){
+
+                Thread.yield(); //TODO 让CPU放弃线程执行权，也就是让其他线程执行，这个方法用过的人应该很少吧！
+
+                /**
+                 * 不等于0。使用cas初始标识为正在初始化-1，达到线程安全
+                 *      解释：第一次进来之后，sc和sizeCtl的值都为0，因为使用的是CAS，所以就算多个线程并发执行，只会有一个线程更新成功
+                 * */
+            }else if(ConcurrentMapAccess.casSizeCtl(this, sc, -1)){
+
+                try {
+
+                    /** 双重校验，防止其他线程已经初始化完成 */
+                    if ((t = tab) == null || t.length == 0) {
+
+                        /** 初始化数组，长度：sizeCtl 大于0时表示指定的初始容量，否则默认16 */
+                        int n = sc > 0 ? sc : DEFAULT_CAPACITY;
+                        tab = t = new Node[n];
+
+                        /**
+                         * 下面这句代码的意思：
+                         *  n - (n >>> 2)  == n * 0.75
+                         * */
+                        sc = n - (n >>> 2);
+
+                    }
+
+                } finally {
+                    sizeCtl = sc;
+                }
+                break;
+
+            }
+
+        }
+
+        return t;
+
+    }
+
+    /**
+     * 获取数组指定下标的元素，从而保证线程之间的可见性（底层实现见 ConcurrentMapAccess：Java 8 为 Unsafe，Java 9+ 为 VarHandle）
+     * @param tab 数组
+     * @param i 偏移量
+     * @return 对应下标对象
+     */
+    static <K,V> Node<K,V> tabAt(Node<K, V>[] tab, int i) {
+        return ConcurrentMapAccess.tabAt(tab, i);
+    }
+
+    /**
+     * 设置值的时候强制更新到主存，从而保证这些变更对其他线程是可见的。
+     * @param tab 数组
+     * @param i 偏移量
+     * @param node 待设置对象
+     */
+    static <K, V> void setTabAt(Node<K, V>[] tab, int i, Node<K, V> node) {
+        ConcurrentMapAccess.setTabAt(tab, i, node);
+    }
+
+    /**
+     * 使用CAS设置对应位置元素，保证：一致性、安全性
+     * @param tab 数组
+     * @param i 偏移量
+     * @param c 期待值
+     * @param v 待修改值
+     * @return 是否成功
+     */
+    static <K,V> boolean casTabAt(Node<K, V>[] tab, int i,
+                                  Node<K, V> c, Node<K, V> v) {
+        return ConcurrentMapAccess.casTabAt(tab, i, c, v);
+    }
+
+    /**
+     * 转换为红黑树，调用方必须持有桶锁
+     *      数组长度大于等于64，并且链表长度大于等于8
+     *
+     * @param t 数组
+     * @param index 下标
+     * @param node 桶头节点
+     */
+    private void convertRBT(Node<K, V>[] t, int index, Node<K, V> node) {
+
+        /** 数组长度小于64时不转换，交由扩容来分散链表（计数达到阈值时自然扩容） */
+        if (t.length < MIN_TREEIFY_CAPACITY) {
+            return;
+        }
+
+        //TODO 转换为红黑树之后不保留之前的链表结构，源代码中是有保留链表结构：
+        //       1. 维护两种数据结构是为了在不同负载情况下优化性能。在哈希表的生命周期内，可能会经历不同的负载阶段，有些阶段适合链表，有些阶段适合红黑树。动态地在这两者之间切换，可以在不同负载情况下兼顾时间和空间的性能。
+        //       2. 节点数量小于等于6的时候，会把红黑树转为链表继续存储，具体方法代码： # final void split(HashMap<K,V> map, Node<K,V>[] tab, int index, int bit)
+
+        /** 构建红黑树对象，更新数组指向为红黑树；其他等待该桶锁的线程拿到锁后会发现桶头已变化并重试 */
+        setTabAt(t, index, TreeNode.of(node));
+
+    }
+
+    /**
+     * 遍历（弱一致性）：不会抛出并发修改异常，遍历期间的修改可能看到也可能看不到
+     *      遇到迁移节点时：扩容转到新数组中对应的两个桶（i、i+n），缩容转到合并后的桶 i & (新数组长度-1) 继续遍历；
+     *      缩容后的桶还包含其他旧桶合并过来的节点，按 hash & mask == match 只遍历属于原桶的节点，避免重复；红黑树桶加锁复制出链表后再遍历
+     * @param action 回调
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+
+        Node<K, V>[] t = tab;
+        if (t == null) {
+            return;
+        }
+
+        for (int i = 0; i < t.length; i++) {
+            forEachInBin(t, i, t.length - 1, i, action);
+        }
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private void forEachInBin(Node<K, V>[] t, int i, int mask, int match, BiConsumer<? super K, ? super V> action) {
+
+        for (;;) {
+
+            Node<K, V> f = tabAt(t, i);
+
+            if (f == null) {
+                return;
+            }
+
+            /** 该桶已迁移：扩容后原下标 i 的节点在新数组中只可能在 i 或 i+n，缩容后在 i & (新数组长度-1) */
+            if (f.hash == MOVED) {
+
+                Node<K, V>[] nt = ((ForwardingNode<K, V>) f).nextTable;
+
+                if (t.length - 1 > mask) {
+                    mask = t.length - 1;
+                    match = i;
+                }
+
+                if (nt.length > t.length) {
+                    forEachInBin(nt, i, mask, match, action);
+                    forEachInBin(nt, i + t.length, mask, match, action);
+                } else {
+                    forEachInBin(nt, i & (nt.length - 1), mask, match, action);
+                }
+                return;
+
+            }
+
+            Node<K, V> p = f;
+            if (f instanceof TreeNode) {
+
+                Object copy;
+                if (casBinLock) {
+                    lockBin(f);
+                    try {
+                        copy = tabAt(t, i) == f ? ((TreeNode<K, V>) f).first() : RETRY;
+                    } finally {
+                        unlockBin(f);
+                    }
+                } else {
+                    synchronized (f) {
+                        copy = tabAt(t, i) == f ? ((TreeNode<K, V>) f).first() : RETRY;
+                    }
+                }
+
+                if (copy == RETRY) {
+                    continue;
+                }
+                p = (Node<K, V>) copy;
+
+            }
+
+            for (; p != null; p = p.next) {
+                V v = p.value;
+                if (v != null && (p.hash & mask) == match) {
+                    action.accept(p.key, v);
+                }
+            }
+
+            return;
+
+        }
+
+    }
+
+    /**
+     * 获取元素
+     * @param k key
+     * @return  值
+     */
+    public V get(K k){
+
+        if (k == null) {
+            return null;
+        }
+
+        /** 根据key获取哈希值 */
+        int hashCode = getHashCode(k);
+
+        Node<K, V> node = findNode(tab, hashCode, k);
+
+        return node == null ? null : node.value;
+
+    }
+
+    /**
+     * 查找节点，无锁读取（红黑树桶除外）
+     *      遇到迁移节点时，转到新数组继续查找
+     * @param t 数组
+     * @param hashCode 哈希值
+     * @param k key
+     * @return 节点，不存在返回 null
+     */
+    final Node<K, V> findNode(Node<K, V>[] t, int hashCode, K k) {
+
+        /** 校验数组是否为空 */
+        while (t != null) {
+
+            /** 计算哈希桶下标，获取哈希桶 */
+            Node<K, V> node = tabAt(t, (t.length - 1) & hashCode);
+
+            /** 校验单个哈希桶是否为空 */
+            if (node == null) {
+                return null;
+            }
+
+            /** 正在迁移，到新数组中查找 */
+            if (node.hash == MOVED) {
+                t = ((ForwardingNode<K, V>) node).nextTable;
+                continue;
+            }
+
+            /**
+             * 校验节点是否红黑树
+             *      红黑树在旋转的过程中无锁读取可能会丢失节点，此处加桶锁读取（只有哈希严重冲突时才会出现红黑树）
+             */
+            if(node instanceof TreeNode){
+
+                int i = (t.length - 1) & hashCode;
+                Node<K, V> found;
+                boolean validated;
+
+                long lockStart = beforeLock(), lockAcquired;
+                if (casBinLock) {
+                    lockBin(node);
+                    try {
+                        lockAcquired = afterLock(i, lockStart);
+                        validated = tabAt(t, i) == node;
+                        found = validated ? ((TreeNode<K, V>) node).getNode(k) : null;
+                    } finally {
+                        unlockBin(node);
+                    }
+                } else {
+                    synchronized (node) {
+                        lockAcquired = afterLock(i, lockStart);
+                        validated = tabAt(t, i) == node;
+                        found = validated ? ((TreeNode<K, V>) node).getNode(k) : null;
+                    }
+                }
+                afterUnlock(i, k, lockStart, lockAcquired);
+
+                if (!validated) {
+                    continue;
+                }
+                return found;
+
+            }
+
+            /** 链表结构 */
+            do {
+
+                if (node.hash == hashCode && (node.key == k || node.key.equals(k))) {
+                    return node;
+                }
+
+                node = node.next;
+
+            }while (node != null);
+
+            return null;
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * 删除方法
+     * @param k key
+     * @return  被删除的值，不存在返回 null
+     */
+    public V remove(K k){
+
+        /** 校验数组或者key是否为空 */
+        if (tab == null || k == null) {
+            return null;
+        }
+
+        return replaceNode(k, null, null);
+
+    }
+
+    /**
+     * 当前值等于 expected 时删除
+     * @param k key
+     * @param expected 期望值
+     * @return 是否删除
+     */
+    public boolean remove(K k, V expected){
+
+        if (tab == null || k == null || expected == null) {
+            return false;
+        }
+
+        return replaceNode(k, null, expected) != null;
+
+    }
+
+    /**
+     * key 存在时替换值
+     * @param k key
+     * @param v 新值
+     * @return 旧值，不存在返回 null（不会添加）
+     */
+    public V replace(K k, V v){
+
+        if(k == null || v == null){
+            throw new NullPointerException("key or value not null");
+        }
+
+        return replaceNode(k, v, null);
+
+    }
+
+    /**
+     * 当前值等于 oldVal 时替换为 newVal
+     * @param k key
+     * @param oldVal 期望值
+     * @param newVal 新值
+     * @return 是否替换
+     */
+    public boolean replace(K k, V oldVal, V newVal){
+
+        if(k == null || oldVal == null || newVal == null){
+            throw new NullPointerException("key or value not null");
+        }
+
+        return replaceNode(k, newVal, oldVal) != null;
+
+    }
+
+    /**
+     * 删除、替换的统一实现：在桶锁内一次遍历完成查找、比较、修改
+     * @param k key
+     * @param value 新值，为 null 表示删除
+     * @param cv 期望值，不为 null 时只有当前值相等才修改
+     * @return 修改前的值，key 不存在或当前值不等于期望值返回 null
+     */
+    final V replaceNode(K k, V value, V cv) {
+
+        int stripe = beginWrite();
+        try {
+            return doReplaceNode(k, value, cv);
+        } finally {
+            endWrite(stripe);
+        }
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private V doReplaceNode(K k, V value, V cv) {
+
+        /** 根据key获取哈希值 */
+        int hashCode = getHashCode(k);
+
+        for (Node<K, V>[] t = tab;;) {
+
+            if (t == null) {
+                return null;
+            }
+
+            /** 计算哈希桶下标 */
+            int i = (t.length - 1) & hashCode;
+
+            Node<K, V> f = tabAt(t, i);
+
+            if (f == null) {
+                return null;
+            }
+
+            if (f.hash == MOVED) {
+                t = helpTransfer(t, f);
+                continue;
+            }
+
+            Object result;
+            long lockStart = beforeLock(), lockAcquired;
+            if (casBinLock) {
+                lockBin(f);
+                try {
+                    lockAcquired = afterLock(i, lockStart);
+                    result = replaceInBin(t, i, f, hashCode, k, value, cv);
+                } finally {
+                    unlockBin(f);
+                }
+            } else {
+                synchronized (f) {
+                    lockAcquired = afterLock(i, lockStart);
+                    result = replaceInBin(t, i, f, hashCode, k, value, cv);
+                }
+            }
+
+            afterUnlock(i, k, lockStart, lockAcquired);
+
+            if (result != RETRY) {
+
+                if (result != null && value == null) {
+                    size.decrement();
+                    if (underLoaded(t, i)) {
+                        shrink(SHRINK_SHIFT, false);
+                    }
+                }
+
+                return (V) result;
+
+            }
+
+        }
+
+    }
+
+    /**
+     * 在桶锁内删除或替换
+     * @param t 数组
+     * @param i 下标
+     * @param f 加锁的桶头节点
+     * @param value 新值，为 null 表示删除
+     * @param cv 期望值，为 null 表示不比较
+     * @return 桶头已变化返回 RETRY，否则返回修改前的值，key 不存在或不等于期望值返回 null
+     */
+    private Object replaceInBin(Node<K, V>[] t, int i, Node<K, V> f, int hashCode, K k, V value, V cv) {
+
+        if (tabAt(t, i) != f) {
+            return RETRY;
+        }
+
+        preserveForSnapshot(t, i, f);
+
+        /** 如果是红黑树，调用红黑树删除 */
+        if (f instanceof TreeNode) {
+
+            TreeNode<K, V> treeNode = (TreeNode<K, V>) f;
+            Node<K, V> p = treeNode.getNode(k);
+            if (p == null) {
+                return null;
+            }
+
+            /** 红黑树删除可能把前驱节点的数据复制到 p 上，先取出旧值 */
+            V ev = p.value;
+            if (cv != null && cv != ev && !cv.equals(ev)) {
+                return null;
+            }
+
+            if (value != null) {
+                p.value = value;
+                publishChange(MyConcurrentMapChangeStream.Type.PUT, k, value, ev);
+                return ev;
+            }
+
+            treeNode.remove(k);
+            publishChange(MyConcurrentMapChangeStream.Type.REMOVE, k, null, ev);
+
+            /** 树为空时清空桶 */
+            if (treeNode.root == null) {
+                setTabAt(t, i, null);
+            }
+
+            return ev;
+
+        }
+
+        /** 处理链表情况 */
+        for (Node<K, V> e = f, pred = null; e != null; pred = e, e = e.next) {
+
+            if (e.hash == hashCode && (e.key == k || k.equals(e.key))) {
+
+                V ev = e.value;
+                if (cv != null && cv != ev && !cv.equals(ev)) {
+                    return null;
+                }
+
+                if (value != null) {
+                    e.value = value;
+                    publishChange(MyConcurrentMapChangeStream.Type.PUT, k, value, ev);
+                    return ev;
+                }
+
+                /** 删除头节点时，直接把下一个节点放到桶位置，否则跳过待删除节点 */
+                if (pred == null) {
+                    setTabAt(t, i, e.next);
+                } else {
+                    pred.next = e.next;
+                }
+
+                publishChange(MyConcurrentMapChangeStream.Type.REMOVE, k, null, ev);
+                return ev;
+
+            }
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * 获取桶锁（CAS 模式）
+     *      先 CAS 抢锁，失败后自旋，再失败让出CPU，最后挂起等待释放锁的线程唤醒
+     *      挂起使用 LockSupport.park，虚拟线程会被卸载而不是占住载体线程；不使用对象监视器，也就不会发生锁膨胀
+     * @param f 桶头节点
+     */
+    final void lockBin(Node<K, V> f) {
+        if (!ConcurrentMapAccess.casLockState(f, 0, LOCKED)) {
+            contendedLock(f);
+        }
+    }
+
+    private void contendedLock(Node<K, V> f) {
+
+        for (int spins = 0; ; ++spins) {
+
+            int s = f.lockState;
+
+            if ((s & LOCKED) == 0) {
+                if (ConcurrentMapAccess.casLockState(f, s, s | LOCKED)) {
+                    return;
+                }
+            } else if (spins < SPINS) {
+                /** 短暂自旋，持有时间很短的情况下不用挂起 */
+            } else if (spins < SPINS + YIELDS) {
+                Thread.yield();
+            } else {
+
+                /**
+                 * 先登记到等待队列，再重新读取状态、设置等待标记，
+                 * 释放锁的线程看到标记时一定能在队列中找到当前线程，不会漏掉唤醒
+                 * */
+                java.util.Queue<Thread> queue = waitQueue(f);
+                Thread current = Thread.currentThread();
+                queue.add(current);
+
+                int c = f.lockState;
+                if ((c & LOCKED) != 0 && ((c & WAITING) != 0 || ConcurrentMapAccess.casLockState(f, c, c | WAITING))) {
+                    LockSupport.park(f);
+                }
+
+                queue.remove(current);
+
+            }
+
+        }
+
+    }
+
+    /**
+     * 释放桶锁（CAS 模式）
+     * @param f 桶头节点
+     */
+    final void unlockBin(Node<K, V> f) {
+        if (ConcurrentMapAccess.getAndSetLockState(f, 0) != LOCKED) {
+            /** 有线程在等待：唤醒同一队列中的所有线程，被唤醒后重新抢锁，抢不到的重新登记 */
+            for (Thread waiter : waitQueue(f)) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * 等待队列按桶头节点的 identityHashCode 分组，多个桶共用一个队列，节点上只需要一个 int 状态字段
+     */
+    static java.util.Queue<Thread> waitQueue(Object f) {
+        return WAIT_QUEUES[System.identityHashCode(f) & (WAIT_QUEUES.length - 1)];
+    }
+
+    /**
+     * 空桶 CAS 放入新节点
+     *      开启变更流时，新节点先加锁再放入，事件在锁内发布：其他线程修改这个 key 之前必须拿到同一把锁，
+     *      所以同一个 key 的事件顺序与修改顺序一致（否则后来的加锁写入可能先于 CAS 写入发布事件）
+     *      快照进行中同样加锁放入，在锁内把该桶认领为空桶（修改前的内容）
+     * @return 是否放入成功
+     */
+    private boolean casNewBin(Node<K, V>[] t, int i, Node<K, V> node) {
+
+        MyConcurrentMapChangeStream<K, V> cs = changeStream;
+        MyConcurrentMapSnapshot<K, V> ss = snapshot;
+        if (cs == null && ss == null) {
+            return casTabAt(t, i, null, node);
+        }
+
+        if (casBinLock) {
+            lockBin(node);
+            try {
+                return casNewBinLocked(cs, ss, t, i, node);
+            } finally {
+                unlockBin(node);
+            }
+        }
+
+        synchronized (node) {
+            return casNewBinLocked(cs, ss, t, i, node);
+        }
+
+    }
+
+    private boolean casNewBinLocked(MyConcurrentMapChangeStream<K, V> cs, MyConcurrentMapSnapshot<K, V> ss,
+                                    Node<K, V>[] t, int i, Node<K, V> node) {
+        /**
+         * 是否认领在放入之前判断：此时快照已开始，之后读到这个节点的线程也一定看到快照已开始，它们的修改会被排除，
+         * 这次添加也要排除；此时快照还没开始（等待开始），快照会等这次写入完成之后才开始（见 beginWrite），这次添加算作快照之前的修改
+         */
+        boolean preserve = ss != null && ss.table == t;
+        if (!casTabAt(t, i, null, node)) {
+            return false;
+        }
+        if (preserve) {
+            ss.preserve(t, i, null);
+        }
+        if (cs != null) {
+            cs.publish(MyConcurrentMapChangeStream.Type.PUT, node.key, node.value, null);
+        }
+        return true;
+    }
+
+    /**
+     * 持有桶锁、修改之前调用：快照进行中且该桶还没被认领时，复制修改前的内容
+     */
+    private void preserveForSnapshot(Node<K, V>[] t, int i, Node<K, V> f) {
+        MyConcurrentMapSnapshot<K, V> ss = snapshot;
+        if (ss != null) {
+            ss.preserve(t, i, f);
+        }
+    }
+
+    /**
+     * 写入开始：登记为进行中的写入，返回登记的分段
+     *      先登记再读取快照：读到没有快照（或快照已开始）时，之后发布的快照一定能看到这次登记，会等这次写入完成之后才开始，
+     *      所以桶锁内“快照还没开始、不复制”的判断之后，修改一定早于快照时间点
+     *      读到快照正在等待开始时撤销登记、等快照开始之后重试，不持有任何锁，不会阻塞快照等待其他写入
+     * @return 登记的分段，没有开启快照时返回 -1
+     */
+    private int beginWrite() {
+
+        if (writers == null) {
+            return -1;
+        }
+
+        int stripe = (Thread.currentThread().hashCode() & (WRITER_STRIPES - 1)) * WRITER_PAD;
+
+        for (;;) {
+
+            writers.getAndIncrement(stripe);
+
+            MyConcurrentMapSnapshot<K, V> ss = snapshot;
+            if (ss == null || ss.table != null) {
+                return stripe;
+            }
+
+            writers.getAndDecrement(stripe);
+            while (snapshot == ss && ss.table == null) {
+                Thread.yield();
+            }
+
+        }
+
     }
 
     /**
-     * 获取当前对象var1在该对象指定偏移量var2上的值，从而保证线程之间的可见性
-     * @param tab 数组
-     * @param i 偏移量
-     * @return 对应下标对象
+     * 写入结束，注销登记
      */
-    static <K,V> Node<K,V> tabAt(Node<K, V>[] tab, int i) {
-        return (Node<K, V>) U.getObjectVolatile(tab, ((long) i << ASHIFT) + ABASE);
+    private void endWrite(int stripe) {
+        if (stripe >= 0) {
+            writers.getAndDecrement(stripe);
+        }
     }
 
     /**
-     * 设置值的时候强制更新到主存，从而保证这些变更对其他线程是可见的。
-     * @param tab 数组
-     * @param i 偏移量
-     * @param node 待设置对象
+     * 等待登记时还没有快照的写入全部完成
+     *      快照发布之后新登记的写入都会立即撤销，每一段最终都会读到 0
      */
-    static <K, V> void setTabAt(Node<K, V>[] tab, int i, Node<K, V> node) {
-        U.putObjectVolatile(tab, ((long) i << ASHIFT) + ABASE, node);
+    private void awaitWriters() {
+        for (int s = 0; s < WRITER_STRIPES * WRITER_PAD; s += WRITER_PAD) {
+            while (writers.get(s) != 0) {
+                Thread.yield();
+            }
+        }
     }
 
     /**
-     * 使用CAS设置对应位置元素，保证：一致性、安全性
-     * @param tab 数组
-     * @param i 偏移量
-     * @param c 期待值
-     * @param v 待修改值
-     * @return 是否成功
+     * 开始快照，最长存活时间为 SNAPSHOT_MAX_AGE_NANOS
+     * @see #snapshot(long, TimeUnit)
      */
-    static <K,V> boolean casTabAt(Node<K, V>[] tab, int i,
-                                  Node<K, V> c, Node<K, V> v) {
-        return U.compareAndSwapObject(tab, ((long) i << ASHIFT) + ABASE, c, v);
+    public MyConcurrentMapSnapshot<K, V> snapshot() {
+        return snapshot(SNAPSHOT_MAX_AGE_NANOS, TimeUnit.NANOSECONDS);
     }
 
     /**
-     * 转换为红黑树
-     *      数组长度大于等于64，并且链表长度大于等于7
-     *
-     * @param index
+     * 开始快照
+     *      先发布快照（之后不会再开始新的扩容、缩容，见 startTransfer；新的写入等待快照开始，见 beginWrite），
+     *      再协助完成正在进行的初始化、迁移，等待快照发布之前开始的写入完成，
+     *      数组固定之后快照才真正开始，从这一刻起修改桶的线程先复制修改前的内容
+     *      快照期间暂停扩容、缩容，忘记遍历或 close 的快照会一直阻止扩容：超过最长存活时间之后，
+     *      需要扩容、缩容或开始新的快照时把它作废，作废的快照遍历时抛出 IllegalStateException
+     * @param maxAge 最长存活时间
+     * @param unit 时间单位
+     * @return 快照，遍历完成或 close 之后结束，建议使用 try-with-resources
+     * @throws IllegalStateException 已有快照在进行中
+     * @throws UnsupportedOperationException 创建时没有开启快照
      */
-    private void convertRBT(Integer index) {
+    public MyConcurrentMapSnapshot<K, V> snapshot(long maxAge, TimeUnit unit) {
+
+        if (writers == null) {
+            throw new UnsupportedOperationException("snapshots not enabled, use MyConcurrentMap(casBinLock, true)");
+        }
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("maxAge must not be negative");
+        }
 
-        //TODO 预留  如果数组长度小于64，直接进行扩容
+        snapshotBlocksTransfer();
 
-        Node<K, V> node = tab[index];
+        MyConcurrentMapSnapshot<K, V> ss;
+        synchronized (this) {
+            if (snapshot != null) {
+                throw new IllegalStateException("snapshot in progress");
+            }
+            snapshot = ss = new MyConcurrentMapSnapshot<K, V>(this, unit.toNanos(maxAge));
+        }
 
-        //TODO 转换为红黑树之后不保留之前的链表结构，源代码中是有保留链表结构：
-        //       1. 维护两种数据结构是为了在不同负载情况下优化性能。在哈希表的生命周期内，可能会经历不同的负载阶段，有些阶段适合链表，有些阶段适合红黑树。动态地在这两者之间切换，可以在不同负载情况下兼顾时间和空间的性能。
-        //       2. 节点数量小于等于6的时候，会把红黑树转为链表继续存储，具体方法代码： # final void split(HashMap<K,V> map, Node<K,V>[] tab, int index, int bit)
+        for (;;) {
+
+            /** 等待开始期间已作废：直接返回，遍历时抛出异常 */
+            if (ss.expired) {
+                return ss;
+            }
 
-        /** 构建红黑树对象 */
-        TreeNode<K, V> treeNode = new TreeNode<K, V>();
+            int sc = sizeCtl;
+            Node<K, V>[] t = tab;
 
-        do {
+            if (sc < 0) {
 
-            /** 插入红黑树 */
-            treeNode.add(node.key, node.value, node.hash, node.next);
-            node = node.next;
+                Node<K, V>[] nt = nextTable;
+                if (t != null && (sc >>> 16) == resizeStamp(t.length) && nt != null
+                        && transferIndex > 0
+                        && ConcurrentMapAccess.casSizeCtl(this, sc, sc + 1)) {
+                    transfer(t, nt);
+                } else {
+                    Thread.yield();
+                }
 
-        }while (node != null);
+            } else if (t == null) {
+                initTable();
+            } else {
+                /** 等待期间进行中的写入可能刚好开始了迁移（在看到快照之前），重新检查 */
+                awaitWriters();
+                if (sizeCtl >= 0 && tab == t) {
+                    ss.start(t);
+                    return ss;
+                }
+            }
 
-        /** 更新数组指向为红黑树 */
-        tab[index] = treeNode;
+        }
 
     }
 
     /**
-     * 获取元素
-     * @param k key
-     * @return  值
+     * 快照读取线程认领一个还没被认领的桶：在桶锁内复制当前内容（空桶放入加锁的占位节点，防止认领期间有线程 CAS 添加）
+     * @return 桶内容，key、value 交替存放
      */
-    public V get(K k){
+    final Object[] claimForSnapshot(MyConcurrentMapSnapshot<K, V> ss, Node<K, V>[] t, int i) {
 
-        /** 校验数组是否为空 */
-        if (tab == null) {
-            return null;
-        }
+        for (;;) {
 
-        /** 根据key获取哈希值 */
-        int hashCode = getHashCode(k);
+            Node<K, V> f = tabAt(t, i);
+            boolean reserve = f == null;
+            if (reserve) {
+                f = new Node<K, V>(RESERVED, null, null, null);
+            } else if (f.hash == RESERVED) {
+                Thread.yield();
+                continue;
+            }
 
-        /** 计算哈希桶下标 */
-        int i = (tab.length - 1) & hashCode;
+            Object[] copy;
+            if (casBinLock) {
+                lockBin(f);
+                try {
+                    copy = claimLocked(ss, t, i, f, reserve);
+                } finally {
+                    unlockBin(f);
+                }
+            } else {
+                synchronized (f) {
+                    copy = claimLocked(ss, t, i, f, reserve);
+                }
+            }
 
-        /** 校验单个哈希桶是否为空 */
-        if (tab[i] != null) {
+            if (copy != RETRY_BIN) {
+                return copy;
+            }
 
-            /** 获取哈希桶 */
-            Node<K, V> node = tab[i];
+        }
 
-            /** 校验节点是否红黑树 */
-            if(node instanceof TreeNode){
+    }
 
-                TreeNode<K, V> treeNode = (TreeNode<K, V>) node;
-                node = treeNode.getNode(k);
-                if (node != null) {
-                    return node.value;
-                }
+    /** claimLocked 桶头已变化 */
+    private static final Object[] RETRY_BIN = new Object[0];
 
-            }else { /** 链表结构 */
+    private Object[] claimLocked(MyConcurrentMapSnapshot<K, V> ss, Node<K, V>[] t, int i, Node<K, V> f, boolean reserve) {
 
-                do {
+        if (reserve ? !casTabAt(t, i, null, f) : tabAt(t, i) != f) {
+            return RETRY_BIN;
+        }
 
-                    /** 链表结构 */
-                    if (node.key == k || node.key.equals(k)) {
-                        return node.value;
-                    }
+        /** 加锁期间可能已被写入线程认领 */
+        Object[] copy = ss.bins.get(i);
+        if (copy != null) {
+            ss.preserved.decrementAndGet();
+        } else {
+            copy = reserve ? MyConcurrentMapSnapshot.EMPTY : MyConcurrentMapSnapshot.copyBin(f);
+        }
+        ss.bins.set(i, MyConcurrentMapSnapshot.DONE);
+
+        /** 撤销占位，等待占位节点锁的线程拿到锁后会发现桶头已变化并重试 */
+        if (reserve) {
+            setTabAt(t, i, null);
+        }
+
+        return copy;
 
-                    node = node.next;
+    }
+
+    /**
+     * 是否有快照阻止扩容、缩容
+     *      超过最长存活时间的快照先标记作废再撤销：之后不再复制修改前的内容，
+     *      遍历线程认领桶之后检查作废标记，不会把作废之后的修改当作快照内容返回
+     */
+    private boolean snapshotBlocksTransfer() {
 
-                }while (node != null);
+        MyConcurrentMapSnapshot<K, V> ss = snapshot;
+        if (ss == null) {
+            return false;
+        }
+        if (!ss.overdue()) {
+            return true;
+        }
 
+        ss.expired = true;
+        synchronized (this) {
+            if (snapshot == ss) {
+                snapshot = null;
             }
+        }
+        return false;
+
+    }
+
+    /**
+     * 结束快照，补做快照期间暂停的扩容、缩容
+     */
+    final void endSnapshot(MyConcurrentMapSnapshot<K, V> ss) {
 
+        synchronized (this) {
+            if (snapshot != ss) {
+                return;
+            }
+            snapshot = null;
         }
 
-        return null;
+        addCount(0L, 2);
+        shrink(SHRINK_SHIFT, false);
 
     }
 
     /**
-     * 删除方法
-     * @param k key
-     * @return  值
+     * 抢占 sizeCtl 开始迁移（扩容、缩容）
+     *      快照进行中不迁移：这里先 CAS sizeCtl 再读快照，开始快照时先发布快照再读 sizeCtl（都是 volatile 读写），
+     *      两边至少有一边能看到对方：这里看到快照时还原 sizeCtl 放弃迁移，此时新数组还没有创建，不会有其他线程加入
+     * @return 是否抢占成功，成功后由调用方执行迁移
      */
-    public V remove(K k){
+    private boolean startTransfer(int sc, int n) {
 
-        /** 校验数组或者key是否为空 */
-        if (tab == null || k == null) {
-            return null;
+        if (!ConcurrentMapAccess.casSizeCtl(this, sc, (resizeStamp(n) << 16) + 2)) {
+            return false;
         }
 
-        /** 根据key获取哈希值 */
-        int hashCode = getHashCode(k);
+        if (snapshotBlocksTransfer()) {
+            sizeCtl = sc;
+            return false;
+        }
 
-        /** 计算哈希桶下标 */
-        int i = (tab.length - 1) & hashCode;
+        return true;
 
-        if(tab[i] != null){
+    }
 
-            Node<K, V> node = tab[i];
+    /**
+     * 持有桶锁时发布变更事件
+     */
+    private void publishChange(MyConcurrentMapChangeStream.Type type, K k, V value, V oldValue) {
+        MyConcurrentMapChangeStream<K, V> cs = changeStream;
+        if (cs != null) {
+            cs.publish(type, k, value, oldValue);
+        }
+    }
 
-            /** 如果是红黑树，调用红黑树删除 */
-            if(node instanceof TreeNode){
+    /**
+     * 开启变更流：之后每次成功的添加、覆盖、替换、删除都会发布一个事件（扩容、缩容迁移不产生事件）
+     *      已开启时返回已有的变更流，忽略参数
+     * @param capacity 环形缓冲容量，向上取 2 的幂
+     * @param policy 背压策略
+     * @return 变更流，通过 subscribe 订阅
+     */
+    public MyConcurrentMapChangeStream<K, V> enableChangeStream(int capacity, MyConcurrentMapChangeStream.Policy policy) {
+        return enableChangeStream(capacity, policy, MyConcurrentMapChangeStream.DEFAULT_MAX_BLOCK_NANOS);
+    }
+
+    /**
+     * 开启变更流
+     * @param maxBlockNanos 阻塞模式下写入线程（持有桶锁）等待订阅者的最长时间，超时丢弃事件
+     */
+    public synchronized MyConcurrentMapChangeStream<K, V> enableChangeStream(int capacity, MyConcurrentMapChangeStream.Policy policy,
+                                                                           long maxBlockNanos) {
+        MyConcurrentMapChangeStream<K, V> cs = changeStream;
+        if (cs == null) {
+            changeStream = cs = new MyConcurrentMapChangeStream<K, V>(capacity, policy, maxBlockNanos);
+        }
+        return cs;
+    }
 
-                TreeNode<K, V> treeNode = ((TreeNode) node);
-                treeNode.remove(k);
-                tab[i] = treeNode;
-                return node.value;
+    /**
+     * 关闭变更流，已订阅者不再收到新事件
+     */
+    public synchronized void disableChangeStream() {
+        changeStream = null;
+    }
 
-            }else { /** 处理链表情况 */
+    /**
+     * 开启桶锁竞争采样
+     * @param sampleRate 采样率，每 sampleRate 次加锁采样一次
+     */
+    public void enableContentionSampling(int sampleRate) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sampleRate must be positive");
+        }
+        lockSampler = new BinLockSampler(sampleRate);
+    }
 
-                if(node !=null && node.next == null){
+    /**
+     * 关闭桶锁竞争采样，已采样的数据一并丢弃
+     */
+    public void disableContentionSampling() {
+        lockSampler = null;
+    }
 
-                    if (node.key == k || node.key.equals(k)) {
+    /**
+     * 加锁前调用：需要采样时返回当前时间，否则返回 0
+     */
+    final long beforeLock() {
+        BinLockSampler sampler = lockSampler;
+        return sampler != null && sampler.shouldSample() ? System.nanoTime() : 0L;
+    }
 
-                        tab[i] = null;
-                        return node.value;
+    /**
+     * 拿到锁后调用：记录等待时间
+     * @param i 桶下标
+     * @param lockStart beforeLock 的返回值
+     * @return 拿到锁的时间，未采样返回 0
+     */
+    final long afterLock(int i, long lockStart) {
+        if (lockStart != 0L) {
+            BinLockSampler sampler = lockSampler;
+            if (sampler != null) {
+                long now = System.nanoTime();
+                sampler.record(i, now - lockStart);
+                return now;
+            }
+        }
+        return 0L;
+    }
 
-                    }
+    /**
+     * 释放锁后调用：记录持有时间，并把本次加锁计入热点桶、热点key
+     * @param i 桶下标
+     * @param k key，迁移、树化时为空
+     * @param lockStart beforeLock 的返回值
+     * @param lockAcquired afterLock 的返回值
+     */
+    final void afterUnlock(int i, K k, long lockStart, long lockAcquired) {
+        if (lockAcquired != 0L) {
+            BinLockSampler sampler = lockSampler;
+            if (sampler != null) {
+                sampler.release(i, k, lockAcquired - lockStart, System.nanoTime() - lockAcquired);
+            }
+        }
+    }
 
-                }
+    /**
+     * 桶锁性能分析快照：等待、持有时间分布，热点桶、热点key（需要先开启采样）
+     * @param topN 热点个数
+     * @return 快照，未开启采样返回 null
+     */
+    public MyConcurrentMapLockProfile lockProfile(int topN) {
+        BinLockSampler sampler = lockSampler;
+        return sampler == null ? null : new MyConcurrentMapLockProfile(
+                sampler.sampled.sum(), sampler.waitHistogram.snapshot(), sampler.holdHistogram.snapshot(),
+                sampler.hotBins.top(topN), sampler.hotKeys.top(topN));
+    }
 
-                while (node != null && node.next != null) {
+    /**
+     * 诊断快照：无锁扫描当前数组，统计桶长度分布、红黑树桶、迁移节点，并附带桶锁竞争采样数据
+     *      扫描期间其他线程仍在读写，结果是近似值，适合定时导出到监控系统
+     * @return 快照
+     */
+    public MyConcurrentMapDiagnostics diagnostics() {
 
-                    /** 链表结构 */
-                    if (node.next.key == k || node.next.key.equals(k)) {
+        long[] histogram = new long[TREEIFY_THRESHOLD + 1];
+        int bins = 0, treeBins = 0, maxTreeDepth = 0, forwardingNodes = 0;
 
-                        node.next = (node.next.next);
-                        tab[i] = node;
+        Node<K, V>[] t = tab;
+        if (t != null) {
 
-                        return node.next.value;
+            bins = t.length;
 
-                    }
+            for (int i = 0; i < t.length; i++) {
 
-                    node = node.next;
+                Node<K, V> f = tabAt(t, i);
 
+                if (f == null || f.hash == RESERVED) {
+                    histogram[0]++;
+                } else if (f.hash == MOVED) {
+                    forwardingNodes++;
+                } else if (f instanceof TreeNode) {
+                    TreeNode<K, V> treeNode = (TreeNode<K, V>) f;
+                    treeBins++;
+                    maxTreeDepth = Math.max(maxTreeDepth, treeNode.depth());
+                    histogram[TREEIFY_THRESHOLD]++;
+                } else {
+                    int length = 0;
+                    for (Node<K, V> e = f; e != null && length < TREEIFY_THRESHOLD; e = e.next) {
+                        length++;
+                    }
+                    histogram[length]++;
                 }
 
             }
 
         }
 
-        throw new IllegalArgumentException("invalid key");
+        BinLockSampler sampler = lockSampler;
+
+        return new MyConcurrentMapDiagnostics(size(), bins, histogram, treeBins, maxTreeDepth, forwardingNodes,
+                sampler == null ? 0L : sampler.sampled.sum(),
+                sampler == null ? 0L : sampler.contended.sum(),
+                sampler == null ? 0L : sampler.waitNanos.sum(),
+                sampler == null ? new long[0] : sampler.snapshot());
 
     }
 
+    /**
+     * 元素个数
+     * @return 个数
+     */
+    public long size() {
+        long n = size.sum();
+        return n < 0 ? 0 : n;
+    }
+
     /**
      * 获取HashCode
+     *      高16位与低16位异或，让高位也参与下标计算，减少冲突；并去掉符号位，保证与 MOVED、TREEBIN 区分
      * @param k key
      * @return 哈希值
      */
-    private int getHashCode(K k) {
-        return k == null ? 0 : k.hashCode();
+    final int getHashCode(K k) {
+        int h;
+        return k == null ? 0 : ((h = k.hashCode()) ^ (h >>> 16)) & HASH_BITS;
     }
 
     /**
@@ -732,11 +2445,14 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
         /** K */
         K key;
 
-        /** V */
-        V value;
+        /** V，volatile 保证无锁读取时的可见性 */
+        volatile V value;
 
         /** 下一个 */
-        Node<K,V> next;
+        volatile Node<K,V> next;
+
+        /** CAS 桶锁状态，只有桶头节点会用到（对象头对齐后正好占用填充字节，不增加节点大小） */
+        volatile int lockState;
 
         public Node() {
         }
@@ -764,6 +2480,158 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
         }
     }
 
+    /**
+     * 桶锁竞争采样器
+     *      按采样率对加锁做计时，等待时间超过 CONTENDED_NANOS 认为发生了竞争（未竞争的 synchronized 只需几十纳秒）
+     *      竞争次数按桶下标分槽累计，槽数固定为 STRIPES，数组长度不超过 STRIPES 时槽号就是桶下标
+     *      释放锁时记录持有时间，并按 等待 + 持有 时间加权计入热点桶、热点key（Space-Saving 算法，只保留固定个数的计数器）
+     */
+    static final class BinLockSampler {
+
+        /** 等待超过该时间视为竞争 */
+        static final long CONTENDED_NANOS = 1000L;
+
+        /** 分槽个数 */
+        static final int STRIPES = 1024;
+
+        final int sampleRate;
+
+        final LongAdder sampled = new LongAdder();
+
+        final LongAdder contended = new LongAdder();
+
+        final LongAdder waitNanos = new LongAdder();
+
+        final AtomicLongArray stripes = new AtomicLongArray(STRIPES);
+
+        final LatencyHistogram waitHistogram = new LatencyHistogram();
+
+        final LatencyHistogram holdHistogram = new LatencyHistogram();
+
+        /** 热点跟踪的计数器个数，远大于一般查看的 topN，保证前几名的误差足够小 */
+        static final int HEAVY_HITTERS = 64;
+
+        final SpaceSaving<Integer> hotBins = new SpaceSaving<Integer>(HEAVY_HITTERS);
+
+        final SpaceSaving<Object> hotKeys = new SpaceSaving<Object>(HEAVY_HITTERS);
+
+        BinLockSampler(int sampleRate) {
+            this.sampleRate = sampleRate;
+        }
+
+        boolean shouldSample() {
+            return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+        }
+
+        void record(int i, long nanos) {
+            sampled.increment();
+            waitNanos.add(nanos);
+            waitHistogram.record(nanos);
+            if (nanos >= CONTENDED_NANOS) {
+                contended.increment();
+                stripes.incrementAndGet(i & (STRIPES - 1));
+            }
+        }
+
+        void release(int i, Object k, long waitNanos, long holdNanos) {
+            holdHistogram.record(holdNanos);
+            long weight = waitNanos + holdNanos;
+            hotBins.offer(i, weight);
+            if (k != null) {
+                hotKeys.offer(k, weight);
+            }
+        }
+
+        long[] snapshot() {
+            long[] counts = new long[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                counts[i] = stripes.get(i);
+            }
+            return counts;
+        }
+
+    }
+
+    /**
+     * 耗时分布：按 2 的幂分桶（第 b 个桶为 [2^(b-1), 2^b) 纳秒），记录只需一次原子自增
+     */
+    static final class LatencyHistogram {
+
+        final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        void record(long nanos) {
+            buckets.incrementAndGet(Math.min(63, 64 - Long.numberOfLeadingZeros(Math.max(0L, nanos))));
+        }
+
+        long[] snapshot() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+    }
+
+    /**
+     * Space-Saving 热点统计：固定 capacity 个计数器，新元素替换计数最小的元素并继承其计数（记为误差上界）
+     *      计数最大的元素一定会被保留，误差不超过 总权重 / capacity
+     *      只在采样路径上调用，使用 synchronized 即可
+     */
+    static final class SpaceSaving<T> {
+
+        final int capacity;
+
+        /** 元素 -> {计数, 误差} */
+        final java.util.HashMap<T, long[]> counters = new java.util.HashMap<T, long[]>();
+
+        SpaceSaving(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized void offer(T item, long weight) {
+
+            long[] counter = counters.get(item);
+            if (counter != null) {
+                counter[0] += weight;
+                return;
+            }
+
+            if (counters.size() < capacity) {
+                counters.put(item, new long[]{weight, 0L});
+                return;
+            }
+
+            /** 替换计数最小的元素 */
+            T minItem = null;
+            long[] min = null;
+            for (java.util.Map.Entry<T, long[]> e : counters.entrySet()) {
+                if (min == null || e.getValue()[0] < min[0]) {
+                    minItem = e.getKey();
+                    min = e.getValue();
+                }
+            }
+
+            counters.remove(minItem);
+            counters.put(item, new long[]{min[0] + weight, min[0]});
+
+        }
+
+        synchronized java.util.List<MyConcurrentMapLockProfile.HeavyHitter> top(int n) {
+
+            java.util.List<MyConcurrentMapLockProfile.HeavyHitter> list = new java.util.ArrayList<MyConcurrentMapLockProfile.HeavyHitter>();
+            for (java.util.Map.Entry<T, long[]> e : counters.entrySet()) {
+                list.add(new MyConcurrentMapLockProfile.HeavyHitter(e.getKey(), e.getValue()[0], e.getValue()[1]));
+            }
+
+            list.sort((a, b) -> Long.compare(b.getWeight(), a.getWeight()));
+
+            return list.subList(0, Math.min(n, list.size()));
+
+        }
+
+    }
+
     /**
      * 红黑树
      * @param <K>
@@ -772,13 +2640,92 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
     static class TreeNode<K extends Comparable<K>, V> extends Node<K,V>{
 
         public TreeNode() {
-            super();
+            super(TREEBIN, null, null, null);
         }
 
         TreeNode(int hash, K key, V value, Node<K, V> next) {
             super(hash, key, value, next);
         }
 
+        /**
+         * 将链表构建为红黑树，返回红黑树容器节点
+         * @param node 链表头节点
+         * @return 红黑树容器节点
+         */
+        static <K extends Comparable<K>, V> TreeNode<K, V> of(Node<K, V> node) {
+
+            TreeNode<K, V> treeNode = new TreeNode<K, V>();
+
+            for (; node != null; node = node.next) {
+
+                /** 插入红黑树 */
+                treeNode.add(node.key, node.value, node.hash, null);
+
+            }
+
+            return treeNode;
+
+        }
+
+        /**
+         * 按中序遍历把红黑树节点串成链表（复制节点，不修改树结构）
+         * @return 链表头节点
+         */
+        Node<K, V> first() {
+
+            Node<K, V> head = null;
+            java.util.ArrayDeque<TreeNode<K, V>> stack = new java.util.ArrayDeque<TreeNode<K, V>>();
+            TreeNode<K, V> p = root;
+
+            /** 反向中序遍历（右 -> 根 -> 左），头插法之后链表为升序 */
+            while (p != null || !stack.isEmpty()) {
+                while (p != null) {
+                    stack.push(p);
+                    p = p.right;
+                }
+                p = stack.pop();
+                head = new Node<K, V>(p.hash, p.key, p.value, head);
+                p = p.left;
+            }
+
+            return head;
+
+        }
+
+        /**
+         * 树高，无锁读取时树可能正在旋转，最多访问 MAX_VISITS 个节点，防止读到不一致的指针时无法结束
+         */
+        int depth() {
+
+            int max = 0, visits = 0;
+            java.util.ArrayDeque<Object[]> stack = new java.util.ArrayDeque<Object[]>();
+            /** 不加锁读取，写线程可能同时在旋转：每个引用只读一次，判空和入栈用同一个值 */
+            TreeNode<?, ?> r = root;
+            if (r != null) {
+                stack.push(new Object[]{r, 1});
+            }
+
+            while (!stack.isEmpty() && visits++ < MAX_VISITS) {
+                Object[] e = stack.pop();
+                TreeNode<?, ?> node = (TreeNode<?, ?>) e[0];
+                int level = (Integer) e[1];
+                max = Math.max(max, level);
+                TreeNode<?, ?> left = node.left, right = node.right;
+                if (left != null) {
+                    stack.push(new Object[]{left, level + 1});
+                }
+                if (right != null) {
+                    stack.push(new Object[]{right, level + 1});
+                }
+            }
+
+            return max;
+
+        }
+
+        /** depth() 最多访问的节点个数 */
+        static final int MAX_VISITS = 1 << 16;
+
         boolean red;
 
         TreeNode<K, V> parent;
@@ -789,7 +2736,11 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
 
         TreeNode<K, V> root;
 
-        public void add(K k, V v, Integer hash, Node<K,V> next){
+        /**
+         * 添加节点
+         * @return key 已存在时返回已存在的节点（由调用方决定是否更新值），添加成功返回 null
+         */
+        public TreeNode<K, V> add(K k, V v, Integer hash, Node<K,V> next){
 
             TreeNode<K, V> node = new TreeNode<K, V>(hash, k, v, next);
 
@@ -833,12 +2784,10 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
 
                         tempNode = tempNode.right;
 
-                        /** 等于更新值 */
+                        /** 等于返回已存在节点 */
                     }else {
 
-                        node.value = v;
-
-                        return;
+                        return tempNode;
                     }
 
                 }
@@ -847,6 +2796,8 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
 
             }
 
+            return null;
+
         }
 
         private void balanceInsertion(TreeNode<K, V> node) {
@@ -893,8 +2844,9 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                          * */
                         if(node == node.parent.right){
 
-                            /** 左旋 */
-                            rotateLeft(node.parent);
+                            /** 左旋，旋转之后原父亲节点成为子节点，以原父亲节点继续处理 */
+                            node = node.parent;
+                            rotateLeft(node);
 
                         }
 
@@ -921,8 +2873,7 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                         /** 右旋 */
                         rotateRight(node.parent.parent);
 
-                        /** 继续向上递归 */
-                        balanceInsertion(node.parent.parent);
+                        /** 旋转之后子树的根节点为黑色，不会再与上层产生连续红色节点，无需继续向上递归 */
 
                     }
 
@@ -965,8 +2916,9 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                          * */
                         if(node == node.parent.left){
 
-                            /** 右旋 */
-                            rotateRight(node.parent);
+                            /** 右旋，旋转之后原父亲节点成为子节点，以原父亲节点继续处理 */
+                            node = node.parent;
+                            rotateRight(node);
 
                         }
 
@@ -993,8 +2945,7 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                         /** 右旋 */
                         rotateLeft(node.parent.parent);
 
-                        /** 继续向上递归 */
-                        balanceInsertion(node.parent.parent);
+                        /** 旋转之后子树的根节点为黑色，不会再与上层产生连续红色节点，无需继续向上递归 */
 
                     }
                 }
@@ -1020,7 +2971,9 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                 /** 采用前驱查找 */
                 TreeNode<K, V> n = precursorFind(node);
 
-                /** 修改值为待删除的值 */
+                /** 修改值为待删除的值（key、hash 需要一起替换，否则节点的 key 与 value 不对应） */
+                node.key = n.key;
+                node.hash = n.hash;
                 node.value = n.value;
 
                 /**
@@ -1095,6 +3048,13 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
 
         }
 
+        /**
+         * 是否红色节点，空节点（叶子节点）为黑色
+         */
+        private static boolean isRed(TreeNode<?, ?> node) {
+            return node != null && node.red;
+        }
+
         /**
          * 调整树平衡
          * @param node
@@ -1120,7 +3080,7 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                     }
 
                     /** 当兄弟节点一个子节点都没有，或者两个子节点都是黑色 */
-                    if (r.left == null && r.right == null || ((r.left != null && !r.left.red) && (r.right != null && !r.right.red))) {
+                    if (!isRed(r.left) && !isRed(r.right)) {
 
                         r.red = true;
                         node = node.parent;
@@ -1130,7 +3090,7 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                         /**
                          * 如果兄弟节点的子节点是左子节点，需要变色 + 右旋
                          * */
-                        if(r.right == null){ /** 如果兄弟节点的右子节点为空，左子节点肯定不为空，因为兄弟节点没有子节点的时候，只会进入上的if */
+                        if(!isRed(r.right)){ /** 如果兄弟节点的右子节点为黑色（空节点也是黑色），左子节点肯定是红色，因为两个子节点都是黑色的时候，只会进入上的if */
 
                             r.red = true;
                             r.left.red = false;
@@ -1165,7 +3125,7 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                     }
 
                     /** 当兄弟节点一个子节点都没有，或者两个子节点都是黑色 */
-                    if (r.left == null && r.right == null || ((r.left != null && !r.left.red) && (r.right != null && !r.right.red))) {
+                    if (!isRed(r.left) && !isRed(r.right)) {
 
                         r.red = true;
                         node = node.parent;
@@ -1175,7 +3135,7 @@ public class MyConcurrentMap<K extends Comparable<K>,V> {
                         /**
                          * 如果兄弟节点的子节点是左子节点，需要变色 + 右旋
                          * */
-                        if(r.left == null){ /** 如果兄弟节点的右子节点为空，左子节点肯定不为空，因为兄弟节点没有子节点的时候，只会进入上的if */
+                        if(!isRed(r.left)){ /** 如果兄弟节点的左子节点为黑色（空节点也是黑色），右子节点肯定是红色，因为两个子节点都是黑色的时候，只会进入上的if */
 
                             r.red = true;
                             r.right.red = false;
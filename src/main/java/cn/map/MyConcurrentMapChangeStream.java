@@ -0,0 +1,452 @@
+package cn.map;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @Description: MyConcurrentMap 的变更流，体现：Disruptor 风格的多生产者环形缓冲（预分配槽位、序号领取、可用标记、批量消费）
+ *
+ *      由 MyConcurrentMap.enableChangeStream 创建，写入成功后在桶锁内发布事件（同一个 key 的事件顺序与修改顺序一致）：
+ *          生产者：cursor 自增领取序号，写入序号对应的槽位（槽位对象预先分配，发布事件不创建对象），
+ *                 最后把槽位的可用标记设为序号的圈数（序号 / 容量），消费者看到圈数一致才读取
+ *          消费者：每个订阅者有自己的序号，由消费线程调用 poll 拉取，一次处理一批连续可用的事件，
+ *                 批次最后一个事件的 endOfBatch 为 true，便于下游批量提交
+ *      背压策略：
+ *          BLOCK：槽位还没被最慢的订阅者处理完时生产者等待，空出来之后才 CAS 领取序号（Disruptor 的 tryNext）；
+ *                 写入线程在桶锁内等待，所以等待有上限（maxBlockNanos）：超时丢弃事件并计入 dropped，不领取序号，
+ *                 订阅者收到的序号仍然连续；订阅者停顿或事件处理中写入源 map 时，写入最多被拖慢 maxBlockNanos，不会死锁
+ *          OVERWRITE：生产者从不等待，直接覆盖旧槽位；消费者读取后重新校验圈数（类似 StampedLock 的乐观读），
+ *                     被覆盖的事件跳过并计入 lost
+ *      没有订阅者时发布直接返回，不领取序号
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 23:10
+ * @Version 1.0
+ */
+public class MyConcurrentMapChangeStream<K, V> {
+
+    /** 事件类型 */
+    public enum Type {
+        PUT, REMOVE
+    }
+
+    /** 背压策略 */
+    public enum Policy {
+        BLOCK, OVERWRITE
+    }
+
+    /**
+     * 事件处理，在调用 poll 的线程中执行
+     */
+    public interface EventHandler<K, V> {
+
+        /**
+         * @param type 事件类型
+         * @param key key
+         * @param value 新值，删除时为 null
+         * @param oldValue 旧值，新增时为 null
+         * @param sequence 事件序号，同一个订阅者收到的序号递增（覆盖模式下可能不连续）
+         * @param endOfBatch 是否本批最后一个事件
+         */
+        void onEvent(Type type, K key, V value, V oldValue, long sequence, boolean endOfBatch);
+
+    }
+
+    /** 可用标记：槽位正在写入（覆盖模式） */
+    static final int WRITING = -1;
+
+    /** 可用标记：槽位从未写入 */
+    static final int EMPTY = -2;
+
+    static final int MAX_CAPACITY = 1 << 30;
+
+    /** 阻塞模式默认的最长等待时间：10 毫秒 */
+    static final long DEFAULT_MAX_BLOCK_NANOS = 10_000_000L;
+
+    /** 槽位 */
+    final Event<K, V>[] ring;
+
+    final int mask;
+
+    /** log2(容量)，序号右移得到圈数 */
+    final int shift;
+
+    /** 每个槽位最近一次发布的圈数 */
+    final AtomicIntegerArray available;
+
+    /** 已领取的最大序号 */
+    final AtomicLong cursor = new AtomicLong(-1L);
+
+    /** 最慢订阅者序号的缓存（阻塞模式），只有领取的序号超过它一圈时才重新计算 */
+    volatile long gatingCache = -1L;
+
+    final Policy policy;
+
+    /** 阻塞模式下生产者最长等待时间 */
+    final long maxBlockNanos;
+
+    /** 阻塞模式下等待超时丢弃的事件数 */
+    final LongAdder dropped = new LongAdder();
+
+    final CopyOnWriteArrayList<Subscriber<K, V>> subscribers = new CopyOnWriteArrayList<Subscriber<K, V>>();
+
+    /**
+     * @param capacity 容量，向上取 2 的幂
+     * @param policy 背压策略
+     * @param maxBlockNanos 阻塞模式下生产者最长等待时间
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    MyConcurrentMapChangeStream(int capacity, Policy policy, long maxBlockNanos) {
+
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be in (0, " + MAX_CAPACITY + "]");
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy not null");
+        }
+        if (maxBlockNanos < 0) {
+            throw new IllegalArgumentException("maxBlockNanos must not be negative");
+        }
+
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+
+        this.ring = (Event<K, V>[]) new Event[n];
+        for (int i = 0; i < n; i++) {
+            ring[i] = new Event<K, V>();
+        }
+        this.mask = n - 1;
+        this.shift = Integer.numberOfTrailingZeros(n);
+        this.available = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            available.lazySet(i, EMPTY);
+        }
+        this.policy = policy;
+        this.maxBlockNanos = maxBlockNanos;
+
+    }
+
+    /**
+     * 订阅：从下一个发布的事件开始接收
+     * @return 订阅者，不再需要时必须 close，否则阻塞模式下生产者会一直等待它
+     */
+    public Subscriber<K, V> subscribe() {
+
+        /** 先设置序号再加入列表：生产者只会覆盖 gatingCache 之前的槽位，而 gatingCache 不会超过当前 cursor */
+        Subscriber<K, V> subscriber = new Subscriber<K, V>(this, cursor.get());
+        subscribers.add(subscriber);
+        return subscriber;
+
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    /**
+     * 已领取的最大序号，-1 表示还没有发布过事件
+     */
+    public long cursor() {
+        return cursor.get();
+    }
+
+    /**
+     * 阻塞模式下等待超时丢弃的事件数（丢弃的事件没有序号，订阅者无法从序号上发现）
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 发布事件，由 MyConcurrentMap 在桶锁内调用
+     */
+    void publish(Type type, K key, V value, V oldValue) {
+
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        long seq;
+        if (policy == Policy.BLOCK) {
+            if ((seq = claimBlocking()) < 0) {
+                dropped.increment();
+                return;
+            }
+        } else {
+            seq = cursor.incrementAndGet();
+        }
+
+        int index = (int) seq & mask, lap = (int) (seq >>> shift);
+        if (policy == Policy.OVERWRITE && !claimSlot(index, lap)) {
+            return;
+        }
+
+        Event<K, V> e = ring[index];
+        e.type = type;
+        e.key = key;
+        e.value = value;
+        e.oldValue = oldValue;
+
+        /** 有序写入：事件字段先于可用标记可见 */
+        available.lazySet(index, lap);
+
+    }
+
+    /**
+     * 阻塞模式下领取序号：等最慢的订阅者处理完上一圈同一槽位的事件再 CAS 领取，之后该槽位只有当前线程写入
+     *      先领取再等待的话，超时放弃会留下一个永远不发布的序号，订阅者会停在那里；所以超时前不领取
+     * @return 序号，等待超时返回 -1
+     */
+    private long claimBlocking() {
+
+        boolean waiting = false;
+        long deadline = 0L;
+
+        for (;;) {
+
+            long current = cursor.get(), seq = current + 1, wrap = seq - ring.length;
+
+            if (wrap > gatingCache) {
+                long min = minimumSequence(current);
+                if (wrap > min) {
+                    long now = System.nanoTime();
+                    if (!waiting) {
+                        waiting = true;
+                        deadline = now + maxBlockNanos;
+                    } else if (now - deadline >= 0) {
+                        return -1L;
+                    }
+                    LockSupport.parkNanos(1L);
+                    continue;
+                }
+                gatingCache = min;
+            }
+
+            if (cursor.compareAndSet(current, seq)) {
+                return seq;
+            }
+
+        }
+
+    }
+
+    /**
+     * 覆盖模式下占用槽位：多个生产者可能同时领到相差整圈的序号，先把可用标记 CAS 为写入中，
+     *      槽位已被更新的圈写入时放弃（事件已经被覆盖），消费者按圈数判断为丢失
+     */
+    private boolean claimSlot(int index, int lap) {
+
+        for (;;) {
+
+            int a = available.get(index);
+
+            if (a == WRITING) {
+                Thread.yield();
+            } else if (a >= lap) {
+                return false;
+            } else if (available.compareAndSet(index, a, WRITING)) {
+                return true;
+            }
+
+        }
+
+    }
+
+    /**
+     * 所有订阅者中最小的序号
+     * @param defaultValue 没有订阅者时的返回值
+     */
+    long minimumSequence(long defaultValue) {
+        long min = defaultValue;
+        for (Subscriber<K, V> subscriber : subscribers) {
+            min = Math.min(min, subscriber.sequence);
+        }
+        return min;
+    }
+
+    /**
+     * 槽位，字段由生产者普通写入，依靠可用标记的有序写入发布
+     */
+    static final class Event<K, V> {
+        Type type;
+        K key;
+        V value;
+        V oldValue;
+    }
+
+    /**
+     * 订阅者，poll 只能由一个线程调用
+     */
+    public static final class Subscriber<K, V> {
+
+        @SuppressWarnings("rawtypes")
+        static final AtomicLongFieldUpdater<Subscriber> SEQUENCE =
+                AtomicLongFieldUpdater.newUpdater(Subscriber.class, "sequence");
+
+        final MyConcurrentMapChangeStream<K, V> stream;
+
+        /** 已处理的最大序号，生产者据此判断能否覆盖 */
+        volatile long sequence;
+
+        /** 覆盖模式下丢失的事件数 */
+        long lost;
+
+        /** 覆盖模式下的本批事件副本，先复制校验，再统一回调，保证 endOfBatch 准确 */
+        Type[] types;
+        Object[] keys, values, oldValues;
+        long[] sequences;
+
+        Subscriber(MyConcurrentMapChangeStream<K, V> stream, long sequence) {
+            this.stream = stream;
+            this.sequence = sequence;
+        }
+
+        /**
+         * 拉取一批事件
+         * @param handler 事件处理
+         * @param maxBatch 本批最多处理的事件数
+         * @return 处理的事件数，0 表示暂时没有新事件
+         */
+        public int poll(EventHandler<? super K, ? super V> handler, int maxBatch) {
+
+            if (maxBatch <= 0) {
+                throw new IllegalArgumentException("maxBatch must be positive");
+            }
+
+            MyConcurrentMapChangeStream<K, V> s = stream;
+            long next = sequence + 1, hi = s.cursor.get();
+            if (hi < next) {
+                return 0;
+            }
+
+            return s.policy == Policy.BLOCK
+                    ? pollBlocking(s, handler, next, Math.min(hi, next + maxBatch - 1))
+                    : pollOverwrite(s, handler, next, hi, maxBatch);
+
+        }
+
+        /**
+         * 阻塞模式：生产者不会覆盖未处理的槽位，先找到最大的连续可用序号，再直接从槽位回调
+         */
+        private int pollBlocking(MyConcurrentMapChangeStream<K, V> s, EventHandler<? super K, ? super V> handler,
+                                 long next, long limit) {
+
+            long end = next - 1;
+            while (end < limit && s.available.get((int) (end + 1) & s.mask) == (int) ((end + 1) >>> s.shift)) {
+                end++;
+            }
+
+            for (long seq = next; seq <= end; seq++) {
+                Event<K, V> e = s.ring[(int) seq & s.mask];
+                handler.onEvent(e.type, e.key, e.value, e.oldValue, seq, seq == end);
+            }
+
+            if (end >= next) {
+                SEQUENCE.lazySet(this, end);
+            }
+
+            return (int) (end - next + 1);
+
+        }
+
+        /**
+         * 覆盖模式：落后超过一圈时直接跳到最近一圈；每个事件复制后重新校验圈数，圈数变化说明读取期间被覆盖
+         */
+        @SuppressWarnings("unchecked")
+        private int pollOverwrite(MyConcurrentMapChangeStream<K, V> s, EventHandler<? super K, ? super V> handler,
+                                  long next, long hi, int maxBatch) {
+
+            int capacity = s.ring.length;
+            long start = next;
+            if (hi - next >= capacity) {
+                lost += hi - capacity + 1 - next;
+                next = hi - capacity + 1;
+            }
+
+            int batch = (int) Math.min(Math.min(maxBatch, capacity), hi - next + 1);
+            if (types == null || types.length < batch) {
+                int n = Math.min(Math.max(batch, 16), capacity);
+                types = new Type[n];
+                keys = new Object[n];
+                values = new Object[n];
+                oldValues = new Object[n];
+                sequences = new long[n];
+            }
+
+            int count = 0;
+            long seq = next;
+            for (long limit = next + batch - 1; seq <= limit; seq++) {
+
+                int index = (int) seq & s.mask, lap = (int) (seq >>> s.shift);
+                int a = s.available.get(index);
+
+                if (a == lap) {
+
+                    Event<K, V> e = s.ring[index];
+                    types[count] = e.type;
+                    keys[count] = e.key;
+                    values[count] = e.value;
+                    oldValues[count] = e.oldValue;
+
+                    ConcurrentMapAccess.loadFence();
+                    if (s.available.get(index) == lap) {
+                        sequences[count++] = seq;
+                    } else {
+                        lost++;
+                    }
+
+                } else if (a > lap || (a == WRITING && s.cursor.get() - seq >= capacity)) {
+                    /** 已被后一圈覆盖（或正在覆盖） */
+                    lost++;
+                } else {
+                    /** 还没发布，本批到此为止 */
+                    break;
+                }
+
+            }
+
+            for (int j = 0; j < count; j++) {
+                handler.onEvent(types[j], (K) keys[j], (V) values[j], (V) oldValues[j], sequences[j], j == count - 1);
+                keys[j] = values[j] = oldValues[j] = null;
+            }
+
+            /** 跳过的部分即使本批一个都没读到也要记录，否则下次会重复计入 lost */
+            if (seq > start) {
+                SEQUENCE.lazySet(this, seq - 1);
+            }
+
+            return count;
+
+        }
+
+        /**
+         * 覆盖模式下丢失的事件数，只能在调用 poll 的线程中读取
+         */
+        public long lost() {
+            return lost;
+        }
+
+        public long sequence() {
+            return sequence;
+        }
+
+        /**
+         * 取消订阅，阻塞模式下生产者不再等待该订阅者
+         */
+        public void close() {
+            stream.subscribers.remove(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,151 @@
+package cn.map;
+
+import java.util.Arrays;
+
+/**
+ * @Description: MyConcurrentMap 诊断快照，由 MyConcurrentMap.diagnostics() 生成，生成后不再变化
+ *
+ *      用来区分变慢的原因：
+ *          哈希聚集：桶长度分布右偏、红黑树桶增多、树高变大
+ *          迁移卡住：迁移节点（ForwardingNode）占比长时间不为 0
+ *          锁竞争：竞争次数集中在少数几个桶上
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 15:20
+ * @Version 1.0
+ */
+public class MyConcurrentMapDiagnostics {
+
+    /** 元素个数 */
+    private final long size;
+
+    /** 数组长度 */
+    private final int bins;
+
+    /** 桶长度分布，下标 i 表示长度为 i 的链表桶个数，最后一个下标为长度大于等于 8 的桶（含红黑树桶） */
+    private final long[] binLengthHistogram;
+
+    /** 红黑树桶个数 */
+    private final int treeBins;
+
+    /** 红黑树最大高度 */
+    private final int maxTreeDepth;
+
+    /** 迁移节点个数 */
+    private final int forwardingNodes;
+
+    /** 采样的加锁次数 */
+    private final long sampledLocks;
+
+    /** 采样中发生竞争的次数 */
+    private final long contendedLocks;
+
+    /** 采样中等待锁的总时间（纳秒） */
+    private final long lockWaitNanos;
+
+    /** 按桶下标分槽的竞争次数，未开启采样时为空数组 */
+    private final long[] binContention;
+
+    MyConcurrentMapDiagnostics(long size, int bins, long[] binLengthHistogram, int treeBins, int maxTreeDepth,
+                               int forwardingNodes, long sampledLocks, long contendedLocks, long lockWaitNanos,
+                               long[] binContention) {
+        this.size = size;
+        this.bins = bins;
+        this.binLengthHistogram = binLengthHistogram;
+        this.treeBins = treeBins;
+        this.maxTreeDepth = maxTreeDepth;
+        this.forwardingNodes = forwardingNodes;
+        this.sampledLocks = sampledLocks;
+        this.contendedLocks = contendedLocks;
+        this.lockWaitNanos = lockWaitNanos;
+        this.binContention = binContention;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    public long[] getBinLengthHistogram() {
+        return binLengthHistogram.clone();
+    }
+
+    public int getTreeBins() {
+        return treeBins;
+    }
+
+    public int getMaxTreeDepth() {
+        return maxTreeDepth;
+    }
+
+    public int getForwardingNodes() {
+        return forwardingNodes;
+    }
+
+    /**
+     * 迁移节点占比
+     */
+    public double getForwardingRatio() {
+        return bins == 0 ? 0d : (double) forwardingNodes / bins;
+    }
+
+    public long getSampledLocks() {
+        return sampledLocks;
+    }
+
+    public long getContendedLocks() {
+        return contendedLocks;
+    }
+
+    public long getLockWaitNanos() {
+        return lockWaitNanos;
+    }
+
+    public long[] getBinContention() {
+        return binContention.clone();
+    }
+
+    /**
+     * 竞争次数最多的 n 个槽
+     * @param n 个数
+     * @return 每个元素为 {槽号, 竞争次数}，按竞争次数降序
+     */
+    public long[][] hottestBins(int n) {
+
+        long[][] hot = new long[binContention.length][];
+        int count = 0;
+        for (int i = 0; i < binContention.length; i++) {
+            if (binContention[i] > 0) {
+                hot[count++] = new long[]{i, binContention[i]};
+            }
+        }
+
+        hot = Arrays.copyOf(hot, count);
+        Arrays.sort(hot, (a, b) -> Long.compare(b[1], a[1]));
+
+        return Arrays.copyOf(hot, Math.min(n, count));
+
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MyConcurrentMapDiagnostics{size=").append(size)
+                .append(", bins=").append(bins)
+                .append(", histogram=").append(Arrays.toString(binLengthHistogram))
+                .append(", treeBins=").append(treeBins)
+                .append(", maxTreeDepth=").append(maxTreeDepth)
+                .append(", forwardingNodes=").append(forwardingNodes)
+                .append(", sampledLocks=").append(sampledLocks)
+                .append(", contendedLocks=").append(contendedLocks)
+                .append(", lockWaitNanos=").append(lockWaitNanos)
+                .append(", hottestBins=[");
+        for (long[] bin : hottestBins(5)) {
+            sb.append(bin[0]).append(':').append(bin[1]).append(' ');
+        }
+        return sb.append("]}").toString();
+    }
+
+}
@@ -0,0 +1,144 @@
+package cn.map;
+
+import java.util.List;
+
+/**
+ * @Description: MyConcurrentMap 桶锁性能分析快照，由 MyConcurrentMap.lockProfile(topN) 生成
+ *
+ *      等待时间：从准备加锁到拿到锁，竞争激烈时 synchronized 会膨胀为重量级锁并挂起线程，等待时间明显变长
+ *      持有时间：从拿到锁到释放锁，链表越长、红黑树越大持有越久
+ *      热点：按 等待 + 持有 时间加权，集中在少数 key 上说明需要对热点 key 单独拆分
+ *
+ *      所有数据都来自采样，计数需要乘以采样率才是真实值；分位数为 2 的幂上界，精度为 2 倍
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 16:40
+ * @Version 1.0
+ */
+public class MyConcurrentMapLockProfile {
+
+    /** 采样的加锁次数 */
+    private final long sampledLocks;
+
+    /** 等待时间分布，下标 b 表示 [2^(b-1), 2^b) 纳秒 */
+    private final long[] waitHistogram;
+
+    /** 持有时间分布 */
+    private final long[] holdHistogram;
+
+    /** 热点桶（元素为桶下标） */
+    private final List<HeavyHitter> hottestBins;
+
+    /** 热点 key */
+    private final List<HeavyHitter> hottestKeys;
+
+    MyConcurrentMapLockProfile(long sampledLocks, long[] waitHistogram, long[] holdHistogram,
+                               List<HeavyHitter> hottestBins, List<HeavyHitter> hottestKeys) {
+        this.sampledLocks = sampledLocks;
+        this.waitHistogram = waitHistogram;
+        this.holdHistogram = holdHistogram;
+        this.hottestBins = hottestBins;
+        this.hottestKeys = hottestKeys;
+    }
+
+    public long getSampledLocks() {
+        return sampledLocks;
+    }
+
+    /**
+     * 等待时间分位数
+     * @param percentile 0 ~ 1，例如 0.99
+     * @return 纳秒（上界）
+     */
+    public long waitPercentile(double percentile) {
+        return percentile(waitHistogram, percentile);
+    }
+
+    /**
+     * 持有时间分位数
+     * @param percentile 0 ~ 1，例如 0.99
+     * @return 纳秒（上界）
+     */
+    public long holdPercentile(double percentile) {
+        return percentile(holdHistogram, percentile);
+    }
+
+    public List<HeavyHitter> getHottestBins() {
+        return hottestBins;
+    }
+
+    public List<HeavyHitter> getHottestKeys() {
+        return hottestKeys;
+    }
+
+    static long percentile(long[] histogram, double percentile) {
+
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+
+        if (total == 0) {
+            return 0L;
+        }
+
+        long rank = (long) Math.ceil(total * percentile), seen = 0;
+        for (int b = 0; b < histogram.length; b++) {
+            seen += histogram[b];
+            if (seen >= rank) {
+                return b == 0 ? 0L : 1L << b;
+            }
+        }
+
+        return Long.MAX_VALUE;
+
+    }
+
+    @Override
+    public String toString() {
+        return "MyConcurrentMapLockProfile{sampledLocks=" + sampledLocks
+                + ", wait p50/p99/p999=" + waitPercentile(0.5) + "/" + waitPercentile(0.99) + "/" + waitPercentile(0.999)
+                + ", hold p50/p99/p999=" + holdPercentile(0.5) + "/" + holdPercentile(0.99) + "/" + holdPercentile(0.999)
+                + ", hottestBins=" + hottestBins + ", hottestKeys=" + hottestKeys + "}";
+    }
+
+    /**
+     * 热点元素
+     */
+    public static class HeavyHitter {
+
+        /** 桶下标或 key */
+        private final Object item;
+
+        /** 加权计数（纳秒） */
+        private final long weight;
+
+        /** 误差上界，真实值在 [weight - error, weight] 之间 */
+        private final long error;
+
+        HeavyHitter(Object item, long weight, long error) {
+            this.item = item;
+            this.weight = weight;
+            this.error = error;
+        }
+
+        public Object getItem() {
+            return item;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return item + ":" + weight + (error > 0 ? "(error=" + error + ")" : "");
+        }
+
+    }
+
+}
@@ -0,0 +1,201 @@
+package cn.map;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * @Description: MyConcurrentMap 的时间点快照，体现：写时复制（只复制被修改的桶）
+ *
+ *      由 MyConcurrentMap.snapshot() 创建（map 创建时需要开启快照，见 MyConcurrentMap(casBinLock, snapshots)），快照时间点为创建方法返回之前的某一时刻（之后称为 T，即 start 设置 table 的时刻）：
+ *          T 之前先等待快照发布之前登记的写入全部完成，快照等待开始期间新的写入先退让，T 之后再修改，
+ *          所以写入线程在桶锁内看到“还没开始”时，它的修改一定早于 T，不会出现 T 之后才完成、却被算进快照的修改
+ *          每个桶在快照中只“认领”一次，认领时保存桶内容，认领总是在桶锁内进行：
+ *              写入线程：快照开始后第一次修改某个桶时，先在桶锁内复制修改前的内容（写时复制）
+ *              读取线程：遍历到还没被认领的桶时，加桶锁复制当前内容（空桶放入加锁的占位节点），说明 T 之后没有人修改过它
+ *          遍历完一个桶就释放它的副本，额外内存只与“已修改、还没遍历到”的桶数有关，不会复制整张表
+ *      快照期间暂停扩容、缩容（数组固定，桶下标才有意义），结束后再补做；正在进行的迁移会先协助完成再开始快照
+ *      同一时间只能有一个快照；遍历完成或 close 之后结束，不遍历时使用 try-with-resources 保证关闭：
+ *          try (MyConcurrentMapSnapshot<K, V> snapshot = map.snapshot()) {
+ *              if (...) {
+ *                  snapshot.forEach(action);
+ *              }
+ *          }
+ *      超过最长存活时间还没结束的快照，在需要扩容、缩容或开始新的快照时作废，之后遍历抛出 IllegalStateException
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 23:50
+ * @Version 1.0
+ */
+public class MyConcurrentMapSnapshot<K extends Comparable<K>, V> implements AutoCloseable {
+
+    /** 认领为空桶 */
+    static final Object[] EMPTY = new Object[0];
+
+    /** 已遍历，副本已释放 */
+    static final Object[] DONE = new Object[0];
+
+    final MyConcurrentMap<K, V> map;
+
+    /** 快照对应的数组，为空表示还在等待迁移、进行中的写入完成，此时在桶锁内的写入线程不需要复制（快照会等它们完成） */
+    volatile MyConcurrentMap.Node<K, V>[] table;
+
+    /** 每个桶的认领结果：null 未认领，EMPTY 空桶，DONE 已遍历，其余为 key、value 交替存放的副本 */
+    AtomicReferenceArray<Object[]> bins;
+
+    /** 当前保存的副本数、最大值 */
+    final AtomicInteger preserved = new AtomicInteger();
+    final AtomicInteger peakPreserved = new AtomicInteger();
+
+    volatile boolean closed;
+
+    /** 已作废：超过最长存活时间后被扩容、缩容撤销，之后的修改不再复制 */
+    volatile boolean expired;
+
+    /** 创建时间、最长存活时间 */
+    final long createdNanos;
+    final long maxAgeNanos;
+
+    MyConcurrentMapSnapshot(MyConcurrentMap<K, V> map, long maxAgeNanos) {
+        this.map = map;
+        this.maxAgeNanos = maxAgeNanos;
+        this.createdNanos = System.nanoTime();
+    }
+
+    /**
+     * 是否超过最长存活时间
+     */
+    boolean overdue() {
+        return System.nanoTime() - createdNanos > maxAgeNanos;
+    }
+
+    /**
+     * 迁移、快照发布之前开始的写入都完成后调用，从此刻起写入线程开始写时复制
+     */
+    void start(MyConcurrentMap.Node<K, V>[] t) {
+        bins = new AtomicReferenceArray<Object[]>(t.length);
+        table = t;
+    }
+
+    /**
+     * 写入线程在桶锁内、修改之前调用
+     * @param t 写入使用的数组
+     * @param i 桶下标
+     * @param f 桶头节点，为 null 表示修改前是空桶
+     */
+    void preserve(MyConcurrentMap.Node<K, V>[] t, int i, MyConcurrentMap.Node<K, V> f) {
+
+        if (t != table || bins.get(i) != null) {
+            return;
+        }
+
+        bins.set(i, f == null ? EMPTY : copyBin(f));
+
+        int n = preserved.incrementAndGet();
+        for (int peak; n > (peak = peakPreserved.get()) && !peakPreserved.compareAndSet(peak, n); ) {
+        }
+
+    }
+
+    /**
+     * 复制桶内容，调用方持有桶锁
+     */
+    static <K extends Comparable<K>, V> Object[] copyBin(MyConcurrentMap.Node<K, V> f) {
+
+        MyConcurrentMap.Node<K, V> first = f instanceof MyConcurrentMap.TreeNode ? ((MyConcurrentMap.TreeNode<K, V>) f).first() : f;
+
+        int count = 0;
+        for (MyConcurrentMap.Node<K, V> p = first; p != null; p = p.next) {
+            if (p.hash >= 0 && p.value != null) {
+                count++;
+            }
+        }
+
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        Object[] copy = new Object[count << 1];
+        int j = 0;
+        for (MyConcurrentMap.Node<K, V> p = first; p != null && j < copy.length; p = p.next) {
+            V v = p.value;
+            if (p.hash >= 0 && v != null) {
+                copy[j++] = p.key;
+                copy[j++] = v;
+            }
+        }
+
+        return j == copy.length ? copy : java.util.Arrays.copyOf(copy, j);
+
+    }
+
+    /**
+     * 按桶顺序遍历快照，回调不在任何锁内执行；遍历结束后快照自动关闭
+     * @param action 回调
+     * @return 遍历的元素个数
+     * @throws IllegalStateException 快照已关闭，或已作废（遍历中途作废时，之前回调的元素仍然属于快照）
+     */
+    @SuppressWarnings("unchecked")
+    public long forEach(BiConsumer<? super K, ? super V> action) {
+
+        if (closed) {
+            throw new IllegalStateException("snapshot closed");
+        }
+        if (expired) {
+            close();
+            throw new IllegalStateException("snapshot expired");
+        }
+
+        long count = 0;
+        try {
+
+            MyConcurrentMap.Node<K, V>[] t = table;
+            for (int i = 0; i < t.length; i++) {
+
+                Object[] copy = bins.get(i);
+                if (copy == null) {
+                    copy = map.claimForSnapshot(this, t, i);
+                } else {
+                    bins.set(i, DONE);
+                    preserved.decrementAndGet();
+                }
+
+                /** 认领在桶锁内，作废之后的修改在锁释放之前完成，能看到修改的认领一定能看到作废标记 */
+                if (expired) {
+                    throw new IllegalStateException("snapshot expired");
+                }
+
+                for (int j = 0; j < copy.length; j += 2) {
+                    action.accept((K) copy[j], (V) copy[j + 1]);
+                    count++;
+                }
+
+            }
+
+        } finally {
+            close();
+        }
+
+        return count;
+
+    }
+
+    /**
+     * 结束快照，恢复扩容、缩容；可以重复调用
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            map.endSnapshot(this);
+        }
+    }
+
+    /**
+     * 写入线程复制过的桶数的最大值（同时存在的副本数），用于观察快照期间的额外内存
+     */
+    public int peakPreservedBins() {
+        return peakPreserved.get();
+    }
+
+}
@@ -0,0 +1,192 @@
+package cn.map;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * @Description: 基于 MyConcurrentMap 的计数器哈希表，体现：值为分段计数单元（LongAdder），热点 key 计数不加锁
+ *
+ *      用 putVal 计数（读旧值、写新值）时，同一个 key 的每次计数都要拿桶锁，热点 key 上的线程全部排队
+ *      这里的值是 LongAdder：
+ *          key 已存在：get 拿到计数单元后直接累加，整个过程只有无锁读取 + LongAdder 的 CAS，
+ *                      多个线程同时累加时 LongAdder 自动拆分出多个单元，各自累加，竞争被分散
+ *          key 不存在：putIfAbsent 放入新的计数单元，只有第一次计数需要桶锁
+ *      读取计数为所有单元之和（sum），并发累加时不是精确的快照；sumThenReset 取走上次取走之后的计数，适合按周期上报：
+ *          不使用 LongAdder.sumThenReset（Java 8 中逐个单元读取后普通写入 0，两步之间的累加会丢失），
+ *          LongAdder 只累加不清零，另外记录已取走的累计值，每次取走 本次 sum - 上次取走时的 sum，
+ *          每次累加只会被算进某一次取走，取走的总和加上剩余计数始终等于总累加量
+ *
+ *      删除 key 与并发累加同时进行时，删除之后的累加会落在已删除的计数单元上而丢失，周期上报建议使用 sumThenReset 而不是删除
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/19 01:10
+ * @Version 1.0
+ */
+public class MyCounterMap<K extends Comparable<K>> {
+
+    /** 数据存储 */
+    final MyConcurrentMap<K, Counter> data;
+
+    public MyCounterMap() {
+        this(false);
+    }
+
+    /**
+     * @param casBinLock 是否使用 CAS 桶锁
+     */
+    public MyCounterMap(boolean casBinLock) {
+        this.data = new MyConcurrentMap<K, Counter>(casBinLock);
+    }
+
+    /**
+     * 计数加一
+     * @param k key
+     */
+    public void increment(K k) {
+        add(k, 1L);
+    }
+
+    /**
+     * 计数增加 x
+     * @param k key
+     * @param x 增加量，可以为负数
+     */
+    public void add(K k, long x) {
+
+        Counter counter = data.get(k);
+
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = data.putIfAbsent(k, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+
+        counter.adder.add(x);
+
+    }
+
+    /**
+     * 读取计数
+     * @param k key
+     * @return 计数，不存在返回 0
+     */
+    public long sum(K k) {
+        Counter counter = data.get(k);
+        return counter == null ? 0L : counter.sum();
+    }
+
+    /**
+     * 读取计数并清零（保留计数单元，下次计数不需要重新放入），并发累加时不会丢失计数
+     * @param k key
+     * @return 清零前的计数
+     */
+    public long sumThenReset(K k) {
+        Counter counter = data.get(k);
+        return counter == null ? 0L : counter.sumThenReset();
+    }
+
+    /**
+     * 所有 key 的计数之和
+     */
+    public long sum() {
+        long[] total = new long[1];
+        data.forEach((k, counter) -> total[0] += counter.sum());
+        return total[0];
+    }
+
+    /**
+     * 遍历所有 key 的计数，读取后清零，并发累加时不会丢失计数
+     * @param action 回调，计数为 0 的 key 也会回调
+     */
+    public void sumThenReset(BiConsumer<? super K, Long> action) {
+        data.forEach((k, counter) -> action.accept(k, counter.sumThenReset()));
+    }
+
+    /**
+     * 计数最大的 k 个 key
+     *      遍历时维护一个大小为 k 的最小堆，堆顶是当前第 k 大，比堆顶大才替换，时间 O(n log k)，额外空间 O(k)
+     * @param k 个数
+     * @return 按计数从大到小排列，计数相同时顺序不确定
+     */
+    public List<Map.Entry<K, Long>> topK(int k) {
+
+        if (k <= 0) {
+            return Collections.emptyList();
+        }
+
+        PriorityQueue<Map.Entry<K, Long>> heap = new PriorityQueue<Map.Entry<K, Long>>(k, Map.Entry.comparingByValue());
+
+        data.forEach((key, counter) -> {
+            long count = counter.sum();
+            if (heap.size() < k) {
+                heap.add(new AbstractMap.SimpleImmutableEntry<K, Long>(key, count));
+            } else if (count > heap.peek().getValue()) {
+                heap.poll();
+                heap.add(new AbstractMap.SimpleImmutableEntry<K, Long>(key, count));
+            }
+        });
+
+        List<Map.Entry<K, Long>> result = new ArrayList<Map.Entry<K, Long>>(heap);
+        result.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+        return result;
+
+    }
+
+    /**
+     * 删除 key 的计数
+     * @return 删除前的计数，不存在返回 0
+     */
+    public long remove(K k) {
+        Counter counter = data.remove(k);
+        return counter == null ? 0L : counter.sum();
+    }
+
+    /**
+     * key 个数
+     */
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * 计数单元：LongAdder 只累加不清零，清零时只推进已取走的累计值
+     */
+    static final class Counter {
+
+        final LongAdder adder = new LongAdder();
+
+        /** 已取走的累计值 */
+        final AtomicLong reported = new AtomicLong();
+
+        /**
+         * 当前计数：先读已取走的累计值，并发取走时只会多算、不会出现负数
+         */
+        long sum() {
+            long r = reported.get();
+            return adder.sum() - r;
+        }
+
+        /**
+         * 取走上次取走之后的计数：多个线程同时取走时只有 CAS 成功的线程取走这一段，失败的重新读取
+         */
+        long sumThenReset() {
+            for (;;) {
+                long r = reported.get(), s = adder.sum();
+                if (reported.compareAndSet(r, s)) {
+                    return s - r;
+                }
+            }
+        }
+
+    }
+
+}
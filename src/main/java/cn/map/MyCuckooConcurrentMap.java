@@ -0,0 +1,744 @@
+package cn.map;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * @Description: 布谷鸟哈希（cuckoo hashing）实现的线程安全哈希表，体现：分桶布谷鸟哈希 + 版本号乐观读 + 分段写锁
+ *
+ *      与 MyConcurrentMap 接口相同，适合读多写少、希望查找耗时稳定的场景：
+ *          每个桶 4 个槽位，key 用两个哈希函数算出两个候选桶，只可能在这两个桶中，查找最多访问 8 个槽位（不会有长链表）
+ *          两个桶都满时，广度优先搜索一条“踢出”路径：把路径上的元素逐个挪到它的另一个候选桶，腾出空位，负载可以超过 90%
+ *          搜索不到路径时才扩容（数组翻倍）
+ *      并发控制：
+ *          桶按下标分到固定数量的条带（stripe），每个条带一个版本号，最低位为 1 表示加锁
+ *          写：按下标从小到大锁住两个候选桶的条带，修改后解锁并增加版本号；挪动元素时锁住元素两个候选桶的条带，先写入目标槽位再清空原槽位
+ *          读：不加锁，依次读条带版本号、查桶：先第一个候选桶，没找到再第二个
+ *              找到时确认数组没有被替换后返回（元素在那一刻确实存在）
+ *              没找到时再读一次版本号和数组，都没变才返回 null，否则说明期间有写入或挪动（元素可能正从一个桶挪到另一个桶），重新查找
+ *          扩容锁住所有条带，在新数组中重新放置全部元素后替换数组
+ *
+ *      forEach 是弱一致性的：并发插入挪动元素时，同一个元素可能被遍历两次或漏掉（需要准确遍历时使用 MyConcurrentMap）
+ *      不缩容；删除只清空槽位
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/19 01:40
+ * @Version 1.0
+ */
+public class MyCuckooConcurrentMap<K extends Comparable<K>, V> {
+
+    /** 每个桶的槽位数 */
+    static final int SLOTS = 4;
+
+    /** 默认桶数 */
+    static final int DEFAULT_BUCKETS = 16;
+
+    /** 最大桶数 */
+    static final int MAX_BUCKETS = 1 << 28;
+
+    /** 条带数，扩容不改变，桶数小于条带数时部分条带不使用 */
+    static final int STRIPES = 1 << 10;
+
+    /** 踢出路径的最大长度（挪动次数） */
+    static final int MAX_PATH = 4;
+
+    /** 广度优先搜索最多访问的桶数：两个起点，每层每个桶最多扩展 4 个 */
+    static final int MAX_SEARCH = 2 * (1 + 4 + 16 + 64 + 256);
+
+    /** 扩容重新放置元素时，单个元素最多踢出的次数 */
+    static final int MAX_KICKS = 500;
+
+    /** 等待加锁的条带时先自旋的次数 */
+    static final int SPINS = 64;
+
+    static final int HASH_BITS = 0x7fffffff;
+
+    /** 乐观读期间数组被替换或桶被修改，需要重新读取 */
+    static final Object RETRY = new Object();
+
+    /** 当前数组，volatile 保证扩容后立即可见 */
+    volatile Table<K, V> table;
+
+    /** 条带版本号，偶数未加锁，奇数正在修改 */
+    final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+    /** 元素个数 */
+    final LongAdder size = new LongAdder();
+
+    /** 统计：挪动元素次数、扩容次数 */
+    final LongAdder displacements = new LongAdder();
+    final LongAdder resizes = new LongAdder();
+
+    public MyCuckooConcurrentMap() {
+        this(DEFAULT_BUCKETS * SLOTS);
+    }
+
+    /**
+     * @param initialCapacity 初始槽位数，向上取 桶数 * 4，桶数为 2 的幂
+     */
+    public MyCuckooConcurrentMap(int initialCapacity) {
+
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("initialCapacity must not be negative");
+        }
+
+        int buckets = 2;
+        while (buckets * SLOTS < initialCapacity && buckets < MAX_BUCKETS) {
+            buckets <<= 1;
+        }
+        this.table = new Table<K, V>(buckets);
+
+    }
+
+    static int hash(Object k) {
+        int h;
+        return ((h = k.hashCode()) ^ (h >>> 16)) & HASH_BITS;
+    }
+
+    /**
+     * 第二个候选桶：哈希值再做一次 murmur3 的混合，与第一个桶的下标无关；两者相同时取相邻的桶，保证两个候选桶不同
+     */
+    static int altBucket(int h, int mask) {
+
+        int x = h ^ 0x85ebca6b;
+        x ^= x >>> 16;
+        x *= 0x85ebca6b;
+        x ^= x >>> 13;
+        x *= 0xc2b2ae35;
+        x ^= x >>> 16;
+
+        int b1 = h & mask, b2 = x & mask;
+        return b2 == b1 ? b1 ^ 1 : b2;
+
+    }
+
+    /**
+     * 元素在桶 b 中时，它的另一个候选桶
+     */
+    static int otherBucket(int h, int b, int mask) {
+        int b1 = h & mask;
+        return b == b1 ? altBucket(h, mask) : b1;
+    }
+
+    /**
+     * 获取元素，不加锁
+     * @param k 键
+     * @return 值，不存在返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K k) {
+
+        if (k == null) {
+            return null;
+        }
+
+        int h = hash(k);
+        for (int spins = 0; ; spins++) {
+            Object result = read(table, h, k);
+            if (result != RETRY) {
+                return (V) result;
+            }
+            waitUnlocked(spins);
+        }
+
+    }
+
+    /**
+     * 在数组 t 中乐观读一次
+     *      找到时也要确认数组没有被替换：扩容复用元素对象，旧数组中的元素在新数组上删除后仍留在旧数组里，
+     *      扩容前读到旧数组的线程不校验就会返回已经删除的值（或删除后重新添加之前的旧值）
+     *      旧数组被替换后不再修改，读值之后 table 仍是 t，说明读取时 t 就是当前数组，元素在那一刻确实存在
+     * @return 值，不存在返回 null；数组已替换或期间有修改返回 RETRY
+     */
+    Object read(Table<K, V> t, int h, K k) {
+
+        int b1 = h & t.mask, s1 = b1 & (STRIPES - 1);
+        long v1 = versions.get(s1);
+        Entry<K, V> e = find(t, b1, h, k);
+        if (e != null) {
+            V v = e.value;
+            return table == t ? v : RETRY;
+        }
+
+        /** 第一个桶没找到才计算第二个候选桶 */
+        int b2 = altBucket(h, t.mask), s2 = b2 & (STRIPES - 1);
+        long v2 = versions.get(s2);
+        e = find(t, b2, h, k);
+        if (e != null) {
+            V v = e.value;
+            return table == t ? v : RETRY;
+        }
+
+        /**
+         * 没找到：第一个桶从读 v1 起、第二个桶从读 v2 起都没有修改，数组也没有替换，
+         * 则读 v2 的时刻两个桶中都没有这个 key（挪动会同时修改两个条带），可以返回 null
+         */
+        if (((v1 | v2) & 1L) == 0 && versions.get(s1) == v1 && versions.get(s2) == v2 && table == t) {
+            return null;
+        }
+        return RETRY;
+
+    }
+
+    public boolean containsKey(K k) {
+        return get(k) != null;
+    }
+
+    public V putVal(K k, V v) {
+        return insert(k, v, false);
+    }
+
+    public V putIfAbsent(K k, V v) {
+        return insert(k, v, true);
+    }
+
+    /**
+     * 批量添加，逐个添加（每个 key 只涉及两个桶，没有按桶分组的收益）
+     */
+    public void putAll(Map<? extends K, ? extends V> batch) {
+        for (Map.Entry<? extends K, ? extends V> e : batch.entrySet()) {
+            insert(e.getKey(), e.getValue(), false);
+        }
+    }
+
+    /**
+     * 批量查询
+     * @return 存在的 key 及其值
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> found = new HashMap<K, V>();
+        for (K k : keys) {
+            V v = get(k);
+            if (v != null) {
+                found.put(k, v);
+            }
+        }
+        return found;
+    }
+
+    public V remove(K k) {
+        return k == null ? null : replaceNode(k, null, null);
+    }
+
+    public boolean remove(K k, V expected) {
+        return k != null && expected != null && replaceNode(k, null, expected) != null;
+    }
+
+    public V replace(K k, V v) {
+        if (k == null || v == null) {
+            throw new NullPointerException("key or value not null");
+        }
+        return replaceNode(k, v, null);
+    }
+
+    public boolean replace(K k, V oldVal, V newVal) {
+        if (k == null || oldVal == null || newVal == null) {
+            throw new NullPointerException("key or value not null");
+        }
+        return replaceNode(k, newVal, oldVal) != null;
+    }
+
+    /**
+     * 遍历（弱一致性，见类注释）
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+
+        AtomicReferenceArray<Entry<K, V>> slots = table.slots;
+        for (int i = 0; i < slots.length(); i++) {
+            Entry<K, V> e = slots.get(i);
+            if (e != null) {
+                action.accept(e.key, e.value);
+            }
+        }
+
+    }
+
+    public long size() {
+        return size.sum();
+    }
+
+    /**
+     * 槽位数（桶数 * 4）
+     */
+    public int capacity() {
+        return table.slots.length();
+    }
+
+    /**
+     * 负载：元素个数 / 槽位数
+     */
+    public double loadFactor() {
+        return (double) size() / capacity();
+    }
+
+    /**
+     * 挪动元素的次数
+     */
+    public long displacementCount() {
+        return displacements.sum();
+    }
+
+    public long resizeCount() {
+        return resizes.sum();
+    }
+
+    /**
+     * 添加
+     * @param onlyIfAbsent 已存在时不覆盖
+     * @return 旧值
+     */
+    V insert(K k, V v, boolean onlyIfAbsent) {
+
+        if (k == null || v == null) {
+            throw new NullPointerException("key or value not null");
+        }
+
+        int h = hash(k);
+        for (;;) {
+
+            Table<K, V> t = table;
+            int b1 = h & t.mask, b2 = altBucket(h, t.mask);
+            int s1 = b1 & (STRIPES - 1), s2 = b2 & (STRIPES - 1);
+
+            lock2(s1, s2);
+            try {
+
+                /** 加锁前数组已被替换，重新计算候选桶 */
+                if (t != table) {
+                    continue;
+                }
+
+                int i = indexOf(t, b1, h, k);
+                if (i < 0) {
+                    i = indexOf(t, b2, h, k);
+                }
+                if (i >= 0) {
+                    Entry<K, V> e = t.slots.get(i);
+                    V old = e.value;
+                    if (!onlyIfAbsent) {
+                        e.value = v;
+                    }
+                    return old;
+                }
+
+                i = freeSlot(t, b1);
+                if (i < 0) {
+                    i = freeSlot(t, b2);
+                }
+                if (i >= 0) {
+                    t.set(i, new Entry<K, V>(h, k, v));
+                    size.increment();
+                    return null;
+                }
+
+            } finally {
+                unlock2(s1, s2);
+            }
+
+            /** 两个桶都满：在锁外搜索踢出路径腾出空位，找不到路径时扩容，然后重新添加 */
+            if (!makeRoom(t, b1, b2)) {
+                grow(t);
+            }
+
+        }
+
+    }
+
+    /**
+     * 替换或删除
+     * @param v 新值，为 null 表示删除
+     * @param cv 期望的旧值，为 null 表示不比较
+     * @return 旧值，不存在或旧值不匹配返回 null
+     */
+    V replaceNode(K k, V v, Object cv) {
+
+        int h = hash(k);
+        for (;;) {
+
+            Table<K, V> t = table;
+            int b1 = h & t.mask, b2 = altBucket(h, t.mask);
+            int s1 = b1 & (STRIPES - 1), s2 = b2 & (STRIPES - 1);
+
+            lock2(s1, s2);
+            try {
+
+                if (t != table) {
+                    continue;
+                }
+
+                int i = indexOf(t, b1, h, k);
+                if (i < 0) {
+                    i = indexOf(t, b2, h, k);
+                }
+                if (i < 0) {
+                    return null;
+                }
+
+                Entry<K, V> e = t.slots.get(i);
+                V old = e.value;
+                if (cv != null && cv != old && !cv.equals(old)) {
+                    return null;
+                }
+
+                if (v == null) {
+                    t.slots.set(i, null);
+                    size.decrement();
+                } else {
+                    e.value = v;
+                }
+                return old;
+
+            } finally {
+                unlock2(s1, s2);
+            }
+
+        }
+
+    }
+
+    /**
+     * 广度优先搜索踢出路径并执行：找到离两个候选桶最近的、有空位的桶，再从路径末端开始逐个挪动元素
+     *      搜索时不加锁，路径可能已经过时，每次挪动在锁内重新校验，校验失败放弃本次路径
+     * @return 是否需要直接重试添加；false 表示搜索不到路径，需要扩容
+     */
+    boolean makeRoom(Table<K, V> t, int b1, int b2) {
+
+        /**
+         * 搜索节点，每个节点 4 个 int：桶、父节点、从父节点的哪个槽位挪过来、深度
+         *      大多数情况下第一层就能找到空位，数组按需翻倍，不预先分配整棵搜索树
+         */
+        int[] nodes = new int[64];
+        nodes[0] = b1;
+        nodes[1] = -1;
+        nodes[4] = b2;
+        nodes[5] = -1;
+        int head = 0, tail = 2, found = -1;
+
+        /** 两个候选桶在锁外可能已经被其他线程腾出空位 */
+        if (freeSlot(t, b1) >= 0 || freeSlot(t, b2) >= 0) {
+            return true;
+        }
+
+        search:
+        while (head < tail) {
+
+            int n = head++, b = nodes[n << 2], depth = nodes[(n << 2) + 3];
+            if (depth == MAX_PATH) {
+                break;
+            }
+
+            /** 入队时就检查空位：同一层中第一个有空位的桶立即结束，不用展开整层 */
+            for (int j = 0; j < SLOTS && tail < MAX_SEARCH; j++) {
+                Entry<K, V> e = t.slots.get((b << 2) + j);
+                if (e != null) {
+                    if ((tail << 2) == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, nodes.length << 1);
+                    }
+                    int p = tail++ << 2;
+                    nodes[p] = otherBucket(e.hash, b, t.mask);
+                    nodes[p + 1] = n;
+                    nodes[p + 2] = j;
+                    nodes[p + 3] = depth + 1;
+                    if (freeSlot(t, nodes[p]) >= 0) {
+                        found = tail - 1;
+                        break search;
+                    }
+                }
+            }
+
+        }
+
+        if (found < 0) {
+            return false;
+        }
+
+        for (int n = found, parent; (parent = nodes[(n << 2) + 1]) >= 0; n = parent) {
+            if (!move(t, nodes[parent << 2], nodes[(n << 2) + 2], nodes[n << 2])) {
+                break;
+            }
+        }
+
+        return true;
+
+    }
+
+    /**
+     * 把桶 from 第 slot 个槽位的元素挪到它的另一个候选桶 to
+     * @return 是否挪动成功（原槽位已经为空也算成功）
+     */
+    boolean move(Table<K, V> t, int from, int slot, int to) {
+
+        int sf = from & (STRIPES - 1), st = to & (STRIPES - 1);
+        lock2(sf, st);
+        try {
+
+            if (t != table) {
+                return false;
+            }
+
+            int src = (from << 2) + slot;
+            Entry<K, V> e = t.slots.get(src);
+            if (e == null) {
+                return true;
+            }
+            if (otherBucket(e.hash, from, t.mask) != to) {
+                return false;
+            }
+
+            int dst = freeSlot(t, to);
+            if (dst < 0) {
+                return false;
+            }
+
+            /** 先写入目标槽位再清空原槽位，任意时刻元素至少在一个桶中；读线程没找到时会因版本号变化而重试 */
+            t.set(dst, e);
+            t.slots.set(src, null);
+            displacements.increment();
+            return true;
+
+        } finally {
+            unlock2(sf, st);
+        }
+
+    }
+
+    /**
+     * 扩容：锁住所有条带，重新放置全部元素，替换数组
+     * @param t 发现需要扩容时的数组，已被其他线程扩容时直接返回
+     */
+    void grow(Table<K, V> t) {
+
+        for (int s = 0; s < STRIPES; s++) {
+            lock(s);
+        }
+
+        try {
+
+            if (t != table) {
+                return;
+            }
+
+            int buckets = t.mask + 1;
+            Table<K, V> nt;
+            do {
+                if (buckets >= MAX_BUCKETS) {
+                    throw new IllegalStateException("cuckoo table full");
+                }
+                buckets <<= 1;
+            } while ((nt = rehash(t, buckets)) == null);
+
+            table = nt;
+            resizes.increment();
+
+        } finally {
+            for (int s = 0; s < STRIPES; s++) {
+                unlock(s);
+            }
+        }
+
+    }
+
+    /**
+     * 在新数组中重新放置全部元素（持有所有条带锁，单线程操作，随机踢出）
+     * @return 新数组，有元素放不下时返回 null，由调用方继续翻倍
+     */
+    static <K extends Comparable<K>, V> Table<K, V> rehash(Table<K, V> t, int buckets) {
+
+        Table<K, V> nt = new Table<K, V>(buckets);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < t.slots.length(); i++) {
+
+            Entry<K, V> e = t.slots.get(i);
+            if (e == null) {
+                continue;
+            }
+
+            int b = e.hash & nt.mask;
+            if (freeSlot(nt, b) < 0) {
+                b = altBucket(e.hash, nt.mask);
+            }
+
+            for (int kicks = 0; ; kicks++) {
+
+                int free = freeSlot(nt, b);
+                if (free >= 0) {
+                    nt.lazySet(free, e);
+                    break;
+                }
+                if (kicks == MAX_KICKS) {
+                    return null;
+                }
+
+                /** 随机踢出一个，被踢出的元素去它的另一个候选桶 */
+                int victim = (b << 2) + random.nextInt(SLOTS);
+                Entry<K, V> kicked = nt.slots.get(victim);
+                nt.lazySet(victim, e);
+                e = kicked;
+                b = otherBucket(e.hash, b, nt.mask);
+
+            }
+
+        }
+
+        return nt;
+
+    }
+
+    /**
+     * 在桶中查找：先比较槽位旁边的哈希值，一致才读取元素比较 key，桶内其他元素不用访问
+     */
+    static <K extends Comparable<K>, V> Entry<K, V> find(Table<K, V> t, int b, int h, K k) {
+        int[] hashes = t.hashes;
+        for (int i = b << 2, end = i + SLOTS; i < end; i++) {
+            if (hashes[i] == h) {
+                Entry<K, V> e = t.slots.get(i);
+                if (e != null && e.hash == h && (e.key == k || k.equals(e.key))) {
+                    return e;
+                }
+            }
+        }
+        return null;
+    }
+
+    static <K extends Comparable<K>, V> int indexOf(Table<K, V> t, int b, int h, K k) {
+        int[] hashes = t.hashes;
+        for (int i = b << 2, end = i + SLOTS; i < end; i++) {
+            if (hashes[i] == h) {
+                Entry<K, V> e = t.slots.get(i);
+                if (e != null && e.hash == h && (e.key == k || k.equals(e.key))) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    static int freeSlot(Table<?, ?> t, int b) {
+        for (int i = b << 2, end = i + SLOTS; i < end; i++) {
+            if (t.slots.get(i) == null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 加锁条带：版本号从偶数 CAS 为奇数
+     */
+    void lock(int s) {
+        for (int spins = 0; ; spins++) {
+            long v = versions.get(s);
+            if ((v & 1L) == 0 && versions.compareAndSet(s, v, v + 1)) {
+                return;
+            }
+            waitUnlocked(spins);
+        }
+    }
+
+    /**
+     * 解锁：版本号加一，回到偶数
+     */
+    void unlock(int s) {
+        versions.set(s, versions.get(s) + 1);
+    }
+
+    /**
+     * 按下标从小到大加锁两个条带，相同时只加一次
+     */
+    void lock2(int s1, int s2) {
+        if (s1 == s2) {
+            lock(s1);
+        } else if (s1 < s2) {
+            lock(s1);
+            lock(s2);
+        } else {
+            lock(s2);
+            lock(s1);
+        }
+    }
+
+    void unlock2(int s1, int s2) {
+        unlock(s1);
+        if (s1 != s2) {
+            unlock(s2);
+        }
+    }
+
+    /**
+     * 写锁只持有很短时间，先自旋，再让出 CPU
+     */
+    static void waitUnlocked(int spins) {
+        if (spins >= SPINS) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 数组：桶 b 的槽位为 [b * 4, b * 4 + 4)
+     */
+    static final class Table<K, V> {
+
+        final AtomicReferenceArray<Entry<K, V>> slots;
+
+        /**
+         * 槽位中元素的哈希值，查找时先比较它，避免逐个访问桶内的元素对象（每个都可能是一次缓存未命中）
+         *      普通数组、不加锁读取：在写入槽位之前写入，读到过时的值最多导致没找到，由版本号校验后重试；找到时仍以元素本身的哈希值和 key 为准
+         *      清空槽位时不修改
+         */
+        final int[] hashes;
+
+        /** 桶数 - 1 */
+        final int mask;
+
+        Table(int buckets) {
+            this.slots = new AtomicReferenceArray<Entry<K, V>>(buckets * SLOTS);
+            this.hashes = new int[buckets * SLOTS];
+            this.mask = buckets - 1;
+        }
+
+        /**
+         * 写入槽位，调用方持有槽位所在桶的条带锁
+         */
+        void set(int i, Entry<K, V> e) {
+            hashes[i] = e.hash;
+            slots.set(i, e);
+        }
+
+        /**
+         * 扩容时写入新数组，新数组通过 volatile 的 table 发布
+         */
+        void lazySet(int i, Entry<K, V> e) {
+            hashes[i] = e.hash;
+            slots.lazySet(i, e);
+        }
+
+    }
+
+    /**
+     * 元素，key 不变，值原地修改；挪动、扩容时整体移动
+     */
+    static final class Entry<K, V> {
+
+        final int hash;
+
+        final K key;
+
+        volatile V value;
+
+        Entry(int hash, K key, V value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+    }
+
+}
@@ -0,0 +1,622 @@
+package cn.map;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Description: 基于 MyConcurrentMap 的过期哈希表，体现：写后过期（TTL）、访问后过期（TTI）、分层时间轮
+ *
+ *      不扫描整个数组，而是把每个元素按过期时间挂到分层时间轮的桶上：
+ *          第1层：64个桶，每个桶约1.07秒
+ *          第2层：64个桶，每个桶约1.14分钟
+ *          第3层：32个桶，每个桶约1.22小时
+ *          第4层：4个桶，每个桶约1.63天
+ *          第5层：1个桶，存放更久之后过期的元素
+ *      时间推进时只处理走过的桶，过期的删除、没过期（被访问或更新过）的重新挂到对应的桶，均摊 O(1)
+ *
+ *      读操作只比较过期时间（懒检查），过期直接返回 null，不加锁；
+ *      时间轮的修改在锁内完成，由写操作顺带执行（tryLock，不阻塞），也可以启动一个单独的清理线程
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 14:20
+ * @Version 1.0
+ */
+public class MyExpiringMap<K extends Comparable<K>, V> {
+
+    /** 数据存储 */
+    final MyConcurrentMap<K, ExpiringNode<K, V>> data = new MyConcurrentMap<K, ExpiringNode<K, V>>();
+
+    /** 写后过期时间（纳秒），小于等于0表示不启用 */
+    final long expireAfterWriteNanos;
+
+    /** 访问后过期时间（纳秒），小于等于0表示不启用 */
+    final long expireAfterAccessNanos;
+
+    /** 时间源 */
+    final Ticker ticker;
+
+    /** 时间轮（只在锁内修改） */
+    final TimerWheel<K, V> timerWheel;
+
+    /** 时间轮锁 */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /** 写缓冲：新增、删除任务 */
+    final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+
+    /** 清理线程 */
+    volatile Thread cleanUpThread;
+
+    /**
+     * @param expireAfterWrite 写后过期时间，小于等于0表示不启用
+     * @param expireAfterAccess 访问后过期时间，小于等于0表示不启用
+     * @param unit 时间单位
+     */
+    public MyExpiringMap(long expireAfterWrite, long expireAfterAccess, TimeUnit unit) {
+        this(expireAfterWrite, expireAfterAccess, unit, null);
+    }
+
+    /**
+     * @param ticker 时间源，为空时使用 System.nanoTime()，测试时可以传入手动推进的时间源
+     */
+    public MyExpiringMap(long expireAfterWrite, long expireAfterAccess, TimeUnit unit, Ticker ticker) {
+
+        this.expireAfterWriteNanos = expireAfterWrite > 0 ? unit.toNanos(expireAfterWrite) : 0;
+        this.expireAfterAccessNanos = expireAfterAccess > 0 ? unit.toNanos(expireAfterAccess) : 0;
+        this.ticker = ticker == null ? System::nanoTime : ticker;
+        this.timerWheel = new TimerWheel<K, V>(this.ticker.read());
+
+    }
+
+    /**
+     * 获取元素，过期返回 null（懒检查，不加锁）
+     * @param k key
+     * @return 值
+     */
+    public V get(K k) {
+
+        ExpiringNode<K, V> node = data.get(k);
+
+        if (node == null) {
+            return null;
+        }
+
+        long now = ticker.read();
+
+        if (isExpired(node, now)) {
+
+            /** 已过期但还没被时间轮清理，顺带尝试清理一次 */
+            tryCleanUp();
+            return null;
+
+        }
+
+        /** 只更新访问时间，时间轮中的位置在桶到期时再根据最新的过期时间调整 */
+        if (expireAfterAccessNanos > 0) {
+            node.accessTime = now;
+        }
+
+        return node.value;
+
+    }
+
+    /**
+     * 添加元素
+     * @param k key
+     * @param v value
+     * @return 旧值（旧值已过期时返回 null）
+     */
+    public V put(K k, V v) {
+
+        if (k == null || v == null) {
+            throw new NullPointerException("key or value not null");
+        }
+
+        long now = ticker.read();
+
+        for (;;) {
+
+            ExpiringNode<K, V> node = data.get(k);
+
+            if (node == null) {
+
+                ExpiringNode<K, V> n = new ExpiringNode<K, V>(k, v, now);
+                node = data.putIfAbsent(k, n);
+
+                if (node == null) {
+                    afterWrite(new AddTask(n));
+                    return null;
+                }
+
+            }
+
+            V oldVal;
+            synchronized (node) {
+
+                if (!node.alive) {
+                    continue;
+                }
+
+                /** 已过期的节点直接复用，等同于重新添加 */
+                oldVal = isExpired(node, now) ? null : node.value;
+                node.value = v;
+                node.writeTime = now;
+                node.accessTime = now;
+
+            }
+
+            /** 更新不需要调整时间轮，顺带推进一次时间轮 */
+            if (now - timerWheel.nanos >= TimerWheel.SPANS[0]) {
+                tryCleanUp();
+            }
+
+            return oldVal;
+
+        }
+
+    }
+
+    /**
+     * 删除元素
+     * @param k key
+     * @return 被删除的值（已过期返回 null）
+     */
+    public V remove(K k) {
+
+        ExpiringNode<K, V> node = data.get(k);
+
+        if (node == null) {
+            return null;
+        }
+
+        V oldVal;
+        synchronized (node) {
+
+            if (!node.alive) {
+                return null;
+            }
+
+            data.remove(k);
+            node.alive = false;
+            oldVal = isExpired(node, ticker.read()) ? null : node.value;
+
+        }
+
+        afterWrite(new RemovalTask(node));
+        return oldVal;
+
+    }
+
+    /**
+     * 元素个数（可能包含已过期但尚未清理的元素，需要准确值时先调用 cleanUp()）
+     */
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * 立即清理：重放写缓冲并推进时间轮
+     */
+    public void cleanUp() {
+
+        lock.lock();
+        try {
+            maintenance();
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    /**
+     * 启动单独的清理线程，按固定间隔推进时间轮
+     * @param period 间隔
+     * @param unit 时间单位
+     */
+    public synchronized void startCleanUpThread(final long period, final TimeUnit unit) {
+
+        if (cleanUpThread != null) {
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                try {
+                    unit.sleep(period);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                cleanUp();
+
+            }
+
+        }, "MyExpiringMap-cleanUp");
+
+        thread.setDaemon(true);
+        cleanUpThread = thread;
+        thread.start();
+
+    }
+
+    /**
+     * 停止清理线程
+     */
+    public synchronized void stopCleanUpThread() {
+
+        Thread thread = cleanUpThread;
+        if (thread != null) {
+            thread.interrupt();
+            cleanUpThread = null;
+        }
+
+    }
+
+    /**
+     * 过期时间：写后过期、访问后过期取较早的一个
+     */
+    long deadline(ExpiringNode<K, V> node) {
+
+        long deadline = Long.MAX_VALUE;
+
+        if (expireAfterWriteNanos > 0) {
+            deadline = node.writeTime + expireAfterWriteNanos;
+        }
+
+        if (expireAfterAccessNanos > 0) {
+            long accessDeadline = node.accessTime + expireAfterAccessNanos;
+            deadline = deadline == Long.MAX_VALUE ? accessDeadline : Math.min(deadline, accessDeadline);
+        }
+
+        return deadline;
+
+    }
+
+    boolean isExpired(ExpiringNode<K, V> node, long now) {
+        long deadline = deadline(node);
+        return deadline != Long.MAX_VALUE && now - deadline >= 0;
+    }
+
+    /**
+     * 写之后：放入写缓冲，并尝试维护
+     *      拿不到锁说明其他线程正在维护，持锁线程释放锁之后会再次检查写缓冲，保证写任务不会遗留
+     */
+    void afterWrite(Runnable task) {
+
+        writeBuffer.offer(task);
+
+        do {
+
+            if (!tryCleanUp()) {
+                return;
+            }
+
+        } while (!writeBuffer.isEmpty());
+
+    }
+
+    private boolean tryCleanUp() {
+
+        if (!lock.tryLock()) {
+            return false;
+        }
+
+        try {
+            maintenance();
+        } finally {
+            lock.unlock();
+        }
+
+        return true;
+
+    }
+
+    /**
+     * 维护（必须持有锁）
+     */
+    void maintenance() {
+
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+
+        timerWheel.advance(this, ticker.read());
+
+    }
+
+    /**
+     * 时间轮到期：真正过期的删除，否则按照最新的过期时间重新挂载
+     */
+    void onTimerExpired(ExpiringNode<K, V> node, long now) {
+
+        if (!node.alive) {
+            return;
+        }
+
+        long deadline = deadline(node);
+
+        if (deadline == Long.MAX_VALUE) {
+            return;
+        }
+
+        if (now - deadline < 0) {
+            timerWheel.schedule(node, deadline);
+            return;
+        }
+
+        synchronized (node) {
+
+            /** 加锁后再次确认：等待锁期间可能被更新 */
+            if (!node.alive) {
+                return;
+            }
+
+            if (!isExpired(node, now)) {
+                timerWheel.schedule(node, deadline(node));
+                return;
+            }
+
+            data.remove(node.key);
+            node.alive = false;
+
+        }
+
+    }
+
+    /**
+     * 新增任务：挂到时间轮
+     */
+    final class AddTask implements Runnable {
+
+        final ExpiringNode<K, V> node;
+
+        AddTask(ExpiringNode<K, V> node) {
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+
+            /** 任务重放时可能已经过期，直接按到期处理（删除或挂到时间轮） */
+            if (node.nextInWheel == null) {
+                onTimerExpired(node, ticker.read());
+            }
+
+        }
+
+    }
+
+    /**
+     * 删除任务：从时间轮摘除
+     */
+    final class RemovalTask implements Runnable {
+
+        final ExpiringNode<K, V> node;
+
+        RemovalTask(ExpiringNode<K, V> node) {
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+            timerWheel.unlink(node);
+        }
+
+    }
+
+    /**
+     * 时间源
+     */
+    public interface Ticker {
+
+        /** 当前时间（纳秒） */
+        long read();
+
+    }
+
+    /**
+     * 过期节点
+     */
+    static class ExpiringNode<K, V> {
+
+        final K key;
+
+        volatile V value;
+
+        /** 最后写入时间 */
+        volatile long writeTime;
+
+        /** 最后访问时间 */
+        volatile long accessTime;
+
+        /** 是否还在数据中（节点锁内修改） */
+        volatile boolean alive = true;
+
+        /** 时间轮桶内的双向链表（时间轮锁内修改） */
+        ExpiringNode<K, V> prevInWheel;
+        ExpiringNode<K, V> nextInWheel;
+
+        ExpiringNode(K key, V value, long now) {
+            this.key = key;
+            this.value = value;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+
+    }
+
+    /**
+     * 分层时间轮（仿照 Caffeine TimerWheel）
+     *      每层的桶跨度都是2的幂，通过右移计算时间所在的刻度，不需要除法
+     */
+    static final class TimerWheel<K extends Comparable<K>, V> {
+
+        /** 每层桶的个数 */
+        static final int[] BUCKETS = {64, 64, 32, 4, 1};
+
+        /** 每层单个桶的时间跨度（纳秒，向上取2的幂） */
+        static final long[] SPANS = {
+                ceilingPowerOfTwo(TimeUnit.SECONDS.toNanos(1)),  // 1.07s
+                ceilingPowerOfTwo(TimeUnit.MINUTES.toNanos(1)),  // 1.14m
+                ceilingPowerOfTwo(TimeUnit.HOURS.toNanos(1)),    // 1.22h
+                ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),     // 1.63d
+                BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)), // 6.5d
+                BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)), // 6.5d
+        };
+
+        /** 每层的右移位数 */
+        static final long[] SHIFT = {
+                Long.numberOfTrailingZeros(SPANS[0]),
+                Long.numberOfTrailingZeros(SPANS[1]),
+                Long.numberOfTrailingZeros(SPANS[2]),
+                Long.numberOfTrailingZeros(SPANS[3]),
+                Long.numberOfTrailingZeros(SPANS[4]),
+        };
+
+        /** 每个桶是一个带哨兵的循环双向链表 */
+        final ExpiringNode<K, V>[][] wheel;
+
+        /** 时间轮当前时间，只在锁内修改，volatile 供写操作判断是否需要推进 */
+        volatile long nanos;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        TimerWheel(long now) {
+
+            this.nanos = now;
+            this.wheel = new ExpiringNode[BUCKETS.length][];
+
+            for (int i = 0; i < wheel.length; i++) {
+                wheel[i] = new ExpiringNode[BUCKETS[i]];
+                for (int j = 0; j < wheel[i].length; j++) {
+                    ExpiringNode<K, V> sentinel = new ExpiringNode<K, V>(null, null, 0L);
+                    sentinel.prevInWheel = sentinel.nextInWheel = sentinel;
+                    wheel[i][j] = sentinel;
+                }
+            }
+
+        }
+
+        /**
+         * 推进时间轮，处理走过的桶
+         */
+        void advance(MyExpiringMap<K, V> map, long currentTimeNanos) {
+
+            long previousTimeNanos = nanos;
+
+            if (currentTimeNanos - previousTimeNanos <= 0) {
+                return;
+            }
+
+            nanos = currentTimeNanos;
+
+            for (int i = 0; i < SHIFT.length; i++) {
+
+                long previousTicks = previousTimeNanos >>> SHIFT[i];
+                long currentTicks = currentTimeNanos >>> SHIFT[i];
+
+                /** 当前层没有走过新的刻度，更高层也不会有 */
+                if (currentTicks - previousTicks <= 0L) {
+                    break;
+                }
+
+                expire(map, i, previousTicks, currentTicks - previousTicks);
+
+            }
+
+        }
+
+        /**
+         * 处理某一层走过的桶
+         */
+        private void expire(MyExpiringMap<K, V> map, int index, long previousTicks, long delta) {
+
+            ExpiringNode<K, V>[] timerWheel = wheel[index];
+            int mask = timerWheel.length - 1;
+
+            /** 至少要处理当前所在的桶，最多处理一整圈 */
+            int steps = (int) Math.min(1 + delta, timerWheel.length);
+            int start = (int) (previousTicks & mask);
+            int end = start + steps;
+
+            for (int i = start; i < end; i++) {
+
+                ExpiringNode<K, V> sentinel = timerWheel[i & mask];
+                ExpiringNode<K, V> node = sentinel.nextInWheel;
+
+                /** 先把整个桶摘下来，重新挂载的节点不会在本轮被重复处理 */
+                sentinel.prevInWheel = sentinel.nextInWheel = sentinel;
+
+                while (node != sentinel) {
+
+                    ExpiringNode<K, V> next = node.nextInWheel;
+                    node.prevInWheel = node.nextInWheel = null;
+                    map.onTimerExpired(node, nanos);
+                    node = next;
+
+                }
+
+            }
+
+        }
+
+        /**
+         * 按过期时间挂到对应的桶
+         */
+        void schedule(ExpiringNode<K, V> node, long deadline) {
+
+            unlink(node);
+
+            ExpiringNode<K, V> sentinel = findBucket(deadline);
+            node.nextInWheel = sentinel;
+            node.prevInWheel = sentinel.prevInWheel;
+            sentinel.prevInWheel.nextInWheel = node;
+            sentinel.prevInWheel = node;
+
+        }
+
+        /**
+         * 从桶中摘除
+         */
+        void unlink(ExpiringNode<K, V> node) {
+
+            if (node.nextInWheel != null) {
+                node.prevInWheel.nextInWheel = node.nextInWheel;
+                node.nextInWheel.prevInWheel = node.prevInWheel;
+                node.prevInWheel = node.nextInWheel = null;
+            }
+
+        }
+
+        /**
+         * 查找过期时间所在的桶：距离现在越远，放在越粗粒度的层
+         */
+        private ExpiringNode<K, V> findBucket(long deadline) {
+
+            long duration = deadline - nanos;
+            int length = wheel.length - 1;
+
+            for (int i = 0; i < length; i++) {
+
+                if (duration < SPANS[i + 1]) {
+                    long ticks = deadline >>> SHIFT[i];
+                    int index = (int) (ticks & (wheel[i].length - 1));
+                    return wheel[i][index];
+                }
+
+            }
+
+            return wheel[length][0];
+
+        }
+
+        static long ceilingPowerOfTwo(long x) {
+            return 1L << -Long.numberOfLeadingZeros(x - 1);
+        }
+
+    }
+
+}
@@ -0,0 +1,503 @@
+package cn.map;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * @Description: 只读哈希表，体现：最小完美哈希（CHD / PTHash 风格的桶 + 导向值）+ 扁平数组
+ *
+ *      由 MyHashMap.freeze() 创建，之后不能修改，适合一次构建、大量读取的参考数据（字典、路由表、配置）
+ *      最小完美哈希：把 n 个 key 一一映射到 [0, n)，没有空位、没有冲突
+ *          key 先按哈希值分到若干个桶（平均每桶 LAMBDA 个 key），每个桶记录一个导向值（pilot，16 位）；
+ *          位置 = 哈希(key 的哈希值 ^ 桶的导向值) 映射到 [0, n / ALPHA)，构建时按桶从大到小，为每个桶从 0 开始尝试导向值，
+ *          直到桶内所有 key 的位置都没被占用且互不相同
+ *          位置范围比 n 大 1%（后面的桶更容易找到导向值），落到 [n, n / ALPHA) 的少数 key 再通过 remap 数组映射到 [0, n) 的空位
+ *      查找：一次哈希 -> 读取导向值 -> 计算位置（约 1% 再读一次 remap）-> 在扁平数组 table 的 [2i, 2i+1] 读取 key、value 并比较 key，
+ *          不会有链表、红黑树、探测序列，也没有依赖数据的分支，多次查找之间 CPU 可以并行地读取内存
+ *          不存在的 key 也会得到某个位置：每个位置另存 8 位指纹，指纹不同直接返回 null（约 255/256 的情况），不需要读取 key 对象
+ *      构建：key 按哈希值分成若干个分区（每个约 PARTITION_KEYS 个 key），每个分区各自独立构建，key 很多时使用 ForkJoin 公共线程池并行构建，
+ *          最后按分区的 key 个数计算起始下标，并行地把 key、value 写入扁平数组
+ *
+ *      hashCode 相同的 key 无论导向值是多少都落到同一位置，只能放入一个，其余的（以及极少数 65536 个导向值都失败的桶）放到一个小的 MyHashMap 中兜底
+ *          兜底的 key 查找时会落到的位置记为“有冲突”（每个位置 1 位），只有落到这些位置且 key 不相等时才查兜底表，
+ *          其余未命中仍然只查一次扁平数组
+ *      null key 不会被放入（与 MyHashMap.get(null) 返回 null 一致）
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/19 02:50
+ * @Version 1.0
+ */
+public class MyFrozenHashMap<K extends Comparable<K>, V> {
+
+    /** 平均每个桶的 key 个数，越大导向值越少、构建越慢 */
+    static final int LAMBDA = 4;
+
+    /** key 个数 / 位置范围 */
+    static final double ALPHA = 0.99d;
+
+    /** 导向值上限（char 存储） */
+    static final int MAX_PILOT = 1 << 16;
+
+    /** 每个分区的平均 key 个数，key 个数超过该值时分区并行构建 */
+    static final int PARTITION_KEYS = 1 << 16;
+
+    /** 分区参数：每个分区占 STRIDE 个 int */
+    static final int STRIDE = 8;
+    static final int OFFSET = 0, PLACED = 1, RANGE = 2, BUCKET_BASE = 3, BUCKETS = 4, REMAP_BASE = 5;
+
+    /** 分区个数 */
+    final int partitions;
+
+    /** 各分区的参数：起始下标、放入的 key 个数、位置范围、第一个桶的下标、桶个数、remap 起始下标 */
+    final int[] params;
+
+    /** 所有分区的桶的导向值 */
+    final char[] pilots;
+
+    /** 位置 [placed, range) 映射到 [0, placed) 的空位 */
+    final int[] remap;
+
+    /** 按编号存放：[2i] 为 key，[2i+1] 为 value */
+    final Object[] table;
+
+    /** 按编号存放的指纹 */
+    final byte[] fingerprints;
+
+    final int size;
+
+    /** 没有放入的 key（hashCode 相同），值为在 table 中的编号，没有时为 null */
+    final MyHashMap<K, Integer> fallback;
+
+    /** 按编号的位图：兜底表中有 key 查找时落到该编号，没有兜底表时为 null */
+    final long[] collisions;
+
+    @SuppressWarnings("unchecked")
+    MyFrozenHashMap(MyHashMap<K, V> source, boolean parallel) {
+
+        Object[] srcKeys = new Object[source.size()], srcValues = new Object[source.size()];
+        int[] count = {0};
+        source.forEach((k, v) -> {
+            if (k != null) {
+                srcKeys[count[0]] = k;
+                srcValues[count[0]++] = v;
+            }
+        });
+        int n = count[0];
+        if (n > (Integer.MAX_VALUE - 8) / 2) {
+            throw new IllegalStateException("too many keys: " + n);
+        }
+
+        long[] hashes = new long[n];
+        IntStream all = IntStream.range(0, n);
+        (parallel && n > PARTITION_KEYS ? all.parallel() : all).forEach(i -> hashes[i] = hash(srcKeys[i].hashCode()));
+
+        /** 按分区计数排序 */
+        int partitions = Math.max(1, (n + PARTITION_KEYS - 1) / PARTITION_KEYS);
+        int[] partitionStart = new int[partitions + 1], order = new int[n];
+        for (int i = 0; i < n; i++) {
+            partitionStart[partition(hashes[i], partitions) + 1]++;
+        }
+        for (int p = 0; p < partitions; p++) {
+            partitionStart[p + 1] += partitionStart[p];
+        }
+        int[] next = Arrays.copyOf(partitionStart, partitions);
+        for (int i = 0; i < n; i++) {
+            order[next[partition(hashes[i], partitions)]++] = i;
+        }
+
+        Partition[] built = new Partition[partitions];
+        IntStream parts = IntStream.range(0, partitions);
+        (parallel && partitions > 1 ? parts.parallel() : parts).forEach(p ->
+                built[p] = new Partition(hashes, order, partitionStart[p], partitionStart[p + 1]));
+
+        /** 汇总：各分区依次排列，兜底的 key 接在最后 */
+        this.partitions = partitions;
+        this.params = new int[partitions * STRIDE];
+        int offset = 0, buckets = 0, remaps = 0, unplaced = 0;
+        for (int p = 0; p < partitions; p++) {
+            Partition part = built[p];
+            int base = p * STRIDE;
+            params[base + OFFSET] = offset;
+            params[base + PLACED] = part.placed;
+            params[base + RANGE] = part.range;
+            params[base + BUCKET_BASE] = buckets;
+            params[base + BUCKETS] = part.pilots.length;
+            params[base + REMAP_BASE] = remaps;
+            offset += part.placed;
+            buckets += part.pilots.length;
+            remaps += part.remap.length;
+            unplaced += part.unplaced.length;
+        }
+
+        this.pilots = new char[buckets];
+        this.remap = new int[remaps];
+        for (int p = 0; p < partitions; p++) {
+            System.arraycopy(built[p].pilots, 0, pilots, params[p * STRIDE + BUCKET_BASE], built[p].pilots.length);
+            System.arraycopy(built[p].remap, 0, remap, params[p * STRIDE + REMAP_BASE], built[p].remap.length);
+        }
+
+        this.size = n;
+        this.table = new Object[n * 2];
+        this.fingerprints = new byte[n];
+
+        parts = IntStream.range(0, partitions);
+        (parallel && partitions > 1 ? parts.parallel() : parts).forEach(p -> {
+            int[] slots = built[p].slots;
+            for (int j = 0, base = params[p * STRIDE + OFFSET]; j < slots.length; j++) {
+                int i = slots[j], slot = base + j;
+                table[slot * 2] = srcKeys[i];
+                table[slot * 2 + 1] = srcValues[i];
+                fingerprints[slot] = fingerprint(hashes[i]);
+            }
+        });
+
+        if (unplaced == 0) {
+            this.fallback = null;
+            this.collisions = null;
+        } else {
+            this.fallback = new MyHashMap<K, Integer>();
+            this.collisions = new long[(n + 63) >>> 6];
+            int slot = offset;
+            for (Partition part : built) {
+                for (int i : part.unplaced) {
+                    table[slot * 2] = srcKeys[i];
+                    table[slot * 2 + 1] = srcValues[i];
+                    fallback.put((K) srcKeys[i], slot++);
+                    int at = indexOf(hashes[i]);
+                    if (at >= 0) {
+                        collisions[at >>> 6] |= 1L << at;
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * 一个分区的构建结果
+     */
+    static class Partition {
+
+        /** 放入的 key 个数、位置范围 */
+        final int placed, range;
+
+        final char[] pilots;
+
+        final int[] remap;
+
+        /** 第 j 个位置存放的 key（源数组下标） */
+        final int[] slots;
+
+        /** 没有放入的 key（源数组下标） */
+        final int[] unplaced;
+
+        /**
+         * @param hashes 所有 key 的哈希值
+         * @param order  按分区排好的源数组下标，本分区为 [from, to)
+         */
+        Partition(long[] hashes, int[] order, int from, int to) {
+
+            int c = to - from;
+            int range = Math.max(c, (int) Math.ceil(c / ALPHA)), buckets = Math.max(1, (c + LAMBDA - 1) / LAMBDA);
+
+            /** 按桶计数排序 */
+            int[] bucketStart = new int[buckets + 1], keys = new int[c];
+            for (int j = from; j < to; j++) {
+                bucketStart[bucket(hashes[order[j]], buckets) + 1]++;
+            }
+            int maxBucket = 0;
+            for (int b = 0; b < buckets; b++) {
+                maxBucket = Math.max(maxBucket, bucketStart[b + 1]);
+                bucketStart[b + 1] += bucketStart[b];
+            }
+            int[] next = Arrays.copyOf(bucketStart, buckets);
+            for (int j = from; j < to; j++) {
+                keys[next[bucket(hashes[order[j]], buckets)]++] = order[j];
+            }
+
+            /** 桶按大小从大到小排列（计数排序） */
+            int[] sizeStart = new int[maxBucket + 2], bySize = new int[buckets];
+            for (int b = 0; b < buckets; b++) {
+                sizeStart[maxBucket - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+            }
+            for (int s = 0; s <= maxBucket; s++) {
+                sizeStart[s + 1] += sizeStart[s];
+            }
+            for (int b = 0; b < buckets; b++) {
+                bySize[sizeStart[maxBucket - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+            }
+
+            char[] pilots = new char[buckets];
+            long[] taken = new long[(range + 63) >>> 6];
+            int[] position = new int[c], positions = new int[maxBucket];
+            boolean[] dropped = new boolean[c];
+            int droppedCount = 0;
+
+            for (int b : bySize) {
+
+                int start = bucketStart[b], end = bucketStart[b + 1];
+                if (start == end) {
+                    break;
+                }
+
+                /** hashCode 相同的 key 无论导向值是多少都落在同一位置，只保留第一个 */
+                int s = 0;
+                for (int j = start; j < end; j++) {
+                    boolean duplicate = false;
+                    for (int q = start; q < j && !duplicate; q++) {
+                        duplicate = !dropped[q] && hashes[keys[q]] == hashes[keys[j]];
+                    }
+                    if (duplicate) {
+                        dropped[j] = true;
+                        droppedCount++;
+                    } else {
+                        s++;
+                    }
+                }
+
+                int pilot = 0;
+                while (pilot < MAX_PILOT && !tryPilot(hashes, keys, dropped, start, end, s, pilot, range, taken, positions)) {
+                    pilot++;
+                }
+
+                if (pilot == MAX_PILOT) {
+                    for (int j = start; j < end; j++) {
+                        if (!dropped[j]) {
+                            dropped[j] = true;
+                            droppedCount++;
+                        }
+                    }
+                    continue;
+                }
+
+                pilots[b] = (char) pilot;
+                for (int j = start, q = 0; j < end; j++) {
+                    if (!dropped[j]) {
+                        position[j] = positions[q++];
+                    }
+                }
+
+            }
+
+            /** 位置 [placed, range) 中被占用的，依次映射到 [0, placed) 的空位 */
+            int placed = c - droppedCount;
+            int[] remap = new int[range - placed];
+            for (int pos = placed, free = 0; pos < range; pos++) {
+                if ((taken[pos >>> 6] & (1L << pos)) != 0) {
+                    while ((taken[free >>> 6] & (1L << free)) != 0) {
+                        free++;
+                    }
+                    remap[pos - placed] = free++;
+                }
+            }
+
+            int[] slots = new int[placed], unplaced = new int[droppedCount];
+            for (int j = 0, u = 0; j < c; j++) {
+                if (dropped[j]) {
+                    unplaced[u++] = keys[j];
+                } else {
+                    int pos = position[j];
+                    slots[pos < placed ? pos : remap[pos - placed]] = keys[j];
+                }
+            }
+
+            this.placed = placed;
+            this.range = range;
+            this.pilots = pilots;
+            this.remap = remap;
+            this.slots = slots;
+            this.unplaced = unplaced;
+
+        }
+
+        /**
+         * 尝试导向值：桶内 s 个 key 的位置都没被占用且互不相同时占用这些位置（记录到 positions），返回 true
+         */
+        private static boolean tryPilot(long[] hashes, int[] keys, boolean[] dropped, int start, int end, int s,
+                                        int pilot, int range, long[] taken, int[] positions) {
+
+            int q = 0;
+            for (int j = start; j < end; j++) {
+
+                if (dropped[j]) {
+                    continue;
+                }
+
+                int pos = position(hashes[keys[j]], pilot, range);
+                if ((taken[pos >>> 6] & (1L << pos)) != 0) {
+                    break;
+                }
+
+                /** 先占用，失败时再清除，顺便发现桶内重复的位置 */
+                taken[pos >>> 6] |= 1L << pos;
+                positions[q++] = pos;
+
+            }
+
+            if (q == s) {
+                return true;
+            }
+
+            for (int r = 0; r < q; r++) {
+                taken[positions[r] >>> 6] &= ~(1L << positions[r]);
+            }
+            return false;
+
+        }
+
+    }
+
+    /**
+     * key 的 64 位哈希值：hashCode 做一次 splitmix64 混合，不同的 hashCode 得到不同的哈希值
+     */
+    static long hash(int hashCode) {
+        return mix(hashCode + 0x9E3779B97F4A7C15L);
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    /**
+     * 分区：哈希值高 32 位按比例映射到 [0, partitions)，不需要取模
+     */
+    static int partition(long hash, int partitions) {
+        return (int) (((hash >>> 32) * partitions) >>> 32);
+    }
+
+    /**
+     * 桶：哈希值低 32 位按比例映射到 [0, buckets)
+     */
+    static int bucket(long hash, int buckets) {
+        return (int) (((hash & 0xffffffffL) * buckets) >>> 32);
+    }
+
+    /**
+     * 位置：哈希值与导向值一起再混合一次，高 32 位按比例映射到 [0, range)
+     */
+    static int position(long hash, int pilot, int range) {
+        return (int) (((mix(hash ^ (pilot + 1) * 0x9E3779B97F4A7C15L) >>> 32) * range) >>> 32);
+    }
+
+    /**
+     * 指纹：哈希值最低 8 位（分区、桶主要由高位决定）
+     */
+    static byte fingerprint(long hash) {
+        return (byte) hash;
+    }
+
+    /**
+     * key 的编号，一定在 [0, size) 内（key 不在表中时是某个其他 key 的编号，由调用方比较 key）；分区为空时为 -1
+     */
+    int indexOf(long hash) {
+
+        int base = partition(hash, partitions) * STRIDE, placed = params[base + PLACED];
+        if (placed == 0) {
+            return -1;
+        }
+
+        int pilot = pilots[params[base + BUCKET_BASE] + bucket(hash, params[base + BUCKETS])];
+        int pos = position(hash, pilot, params[base + RANGE]);
+        if (pos >= placed) {
+            pos = remap[params[base + REMAP_BASE] + pos - placed];
+        }
+
+        return params[base + OFFSET] + pos;
+
+    }
+
+    /**
+     * 是否需要再查兜底表：编号 i 上记有冲突（分区为空时 i 为 -1，兜底的 key 不会被标记，总是查兜底表）
+     */
+    boolean collides(int i) {
+        return fallback != null && (i < 0 || (collisions[i >>> 6] & (1L << i)) != 0);
+    }
+
+    /**
+     * 获取元素
+     * @param k key
+     * @return 值，不存在返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K k) {
+
+        if (k == null) {
+            return null;
+        }
+
+        long hash = hash(k.hashCode());
+        int i = indexOf(hash);
+        if (i >= 0 && fingerprints[i] == fingerprint(hash)) {
+            Object key = table[i * 2];
+            if (key == k || k.equals(key)) {
+                return (V) table[i * 2 + 1];
+            }
+        }
+
+        if (collides(i)) {
+            Integer slot = fallback.get(k);
+            return slot == null ? null : (V) table[slot * 2 + 1];
+        }
+
+        return null;
+
+    }
+
+    public boolean containsKey(K k) {
+
+        if (k == null) {
+            return false;
+        }
+
+        long hash = hash(k.hashCode());
+        int i = indexOf(hash);
+        if (i >= 0 && fingerprints[i] == fingerprint(hash)) {
+            Object key = table[i * 2];
+            if (key == k || k.equals(key)) {
+                return true;
+            }
+        }
+
+        return collides(i) && fallback.get(k) != null;
+
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 按编号顺序遍历
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (int i = 0; i < table.length; i += 2) {
+            action.accept((K) table[i], (V) table[i + 1]);
+        }
+    }
+
+    /**
+     * 分区个数
+     */
+    public int partitions() {
+        return partitions;
+    }
+
+    /**
+     * 哈希函数（导向值 + remap + 分区参数）占用的位数 / key 个数，不含指纹与 key、value 数组
+     */
+    public double bitsPerKey() {
+        return size == 0 ? 0 : ((long) pilots.length * 16 + (long) remap.length * 32 + (long) params.length * 32) / (double) size;
+    }
+
+    /**
+     * 没有放入、放在兜底表中的 key 个数
+     */
+    public int fallbackSize() {
+        return fallback == null ? 0 : fallback.size();
+    }
+
+}
@@ -29,6 +29,72 @@ public class MyHashMap<K extends Comparable<K>,V> {
     /** 数组长度阈值，进行转换红黑树*/
     static final int MIN_TREEIFY_CAPACITY = 64;
 
+    /** 红黑树节点数小于等于该值时，扩容拆分过程中退化为链表 */
+    static final int UNTREEIFY_THRESHOLD = 6;
+
+    /** 缩容比例：删除之后元素个数低于 数组长度 * 0.125 时缩容 */
+    static final float SHRINK_LOAD_FACTOR = 0.125f;
+
+    /** 是否维护双向链表（链表模式），维护后可以按顺序遍历、淘汰最老元素 */
+    final boolean linked;
+
+    /** 链表排序方式：true 访问顺序（LRU），false 插入顺序 */
+    final boolean accessOrder;
+
+    /** 双向链表头（最老元素） */
+    Node<K,V> head;
+
+    /** 双向链表尾（最新元素） */
+    Node<K,V> tail;
+
+    /** 监听器（可选），为空时只多一次判空，不产生其他开销 */
+    MyHashMapListener listener;
+
+    /** 渐进式扩容：每次 添加、查询、删除 迁移的旧哈希桶个数 */
+    static final int REHASH_STEP = 4;
+
+    /** 渐进式扩容：单次迁移最多跳过的空桶个数（REHASH_STEP 的倍数），避免稀疏数组上单次操作扫描过多 */
+    static final int REHASH_EMPTY_VISITS = REHASH_STEP * 10;
+
+    /**
+     * 是否渐进式扩容
+     *      false：达到阈值时一次性迁移整个数组（默认）
+     *      true：新旧两个数组同时存在，之后每次 添加、查询、删除 只迁移少量旧哈希桶，单次操作的最坏耗时与元素个数无关
+     */
+    final boolean incrementalResize;
+
+    /** 渐进式扩容中的旧数组，迁移完成后为 null；已迁移的哈希桶置为 null */
+    Node<K,V>[] oldTab;
+
+    /** 旧数组中下一个待迁移的下标，小于该值的哈希桶都已迁移 */
+    int rehashIndex;
+
+    /** 本轮渐进式扩容累计耗时（只在设置监听器时统计） */
+    long rehashNanos;
+
+    public MyHashMap() {
+        this(false, false);
+    }
+
+    /**
+     * @param linked 是否维护双向链表
+     * @param accessOrder true 访问顺序，false 插入顺序（只有 linked 为 true 时生效）
+     */
+    public MyHashMap(boolean linked, boolean accessOrder) {
+        this(linked, accessOrder, false);
+    }
+
+    /**
+     * @param linked 是否维护双向链表
+     * @param accessOrder true 访问顺序，false 插入顺序（只有 linked 为 true 时生效）
+     * @param incrementalResize 是否渐进式扩容
+     */
+    public MyHashMap(boolean linked, boolean accessOrder, boolean incrementalResize) {
+        this.linked = linked;
+        this.accessOrder = linked && accessOrder;
+        this.incrementalResize = incrementalResize;
+    }
+
     /**
      * 添加方法
      * @param k 键
@@ -46,6 +112,12 @@ public class MyHashMap<K extends Comparable<K>,V> {
             grow();
         }
 
+        /** 渐进式扩容中：先推进迁移，再保证 key 所在的旧哈希桶已经迁移到新数组，之后只需操作新数组 */
+        if (oldTab != null) {
+            rehashStep();
+            rehashBin(hashCode);
+        }
+
         /**
          * 使用 数组长度-1 与运算 哈希值，
          *
@@ -65,19 +137,34 @@ public class MyHashMap<K extends Comparable<K>,V> {
         if (tab[i] != null) {
 
             Node<K, V> node = tab[i];
-            if (k == node.key || k.equals(node.key)) {
-                node.value = v;
-                return;
-            }else if(node instanceof TreeNode){
+            if(node instanceof TreeNode){
+
+                TreeNode<K, V> treeNode = (TreeNode<K, V>) node;
+                TreeNode<K, V> p = treeNode.add(k, v, hashCode, null);
+
+                /** key 已存在，更新值 */
+                if (p != null) {
+                    p.value = v;
+                    afterNodeAccess(p);
+                    return;
+                }
 
-                  ((TreeNode<K, V>) node).add(k, v, hashCode, null);
-                  new TreePrintUtil().show(((TreeNode<K, V>) node).root);
+                linkLast(treeNode.getNode(k));
 
             }else{
 
                 for(int binCount = 0; ;++binCount){
+
+                    /** key 已存在，更新值 */
+                    if (node.hash == hashCode && (k == node.key || k.equals(node.key))) {
+                        node.value = v;
+                        afterNodeAccess(node);
+                        return;
+                    }
+
                     if (node.next == null) {
                         node.next = new Node<K, V>(hashCode,k,v,null);
+                        linkLast(node.next);
 
                         if(binCount >= TREEIFY_THRESHOLD - 1){
 
@@ -95,6 +182,7 @@ public class MyHashMap<K extends Comparable<K>,V> {
 
         }else { /** 不存在哈希冲突，直接插入 */
             tab[i] = new Node<K, V>(hashCode,k,v,null);
+            linkLast(tab[i]);
         }
 
         /** 校验是否达到扩容阈值 */
@@ -102,6 +190,8 @@ public class MyHashMap<K extends Comparable<K>,V> {
             grow();
         }
 
+        afterNodeInsertion();
+
     }
 
     /**
@@ -117,30 +207,74 @@ public class MyHashMap<K extends Comparable<K>,V> {
             grow();
         }else { /** 转换红黑树 */
 
-            Node<K, V> node = tab[index];
-
             //TODO 转换为红黑树之后不保留之前的链表结构，源代码中是有保留链表结构：
             //       1. 维护两种数据结构是为了在不同负载情况下优化性能。在哈希表的生命周期内，可能会经历不同的负载阶段，有些阶段适合链表，有些阶段适合红黑树。动态地在这两者之间切换，可以在不同负载情况下兼顾时间和空间的性能。
             //       2. 节点数量小于等于6的时候，会把红黑树转为链表继续存储，具体方法代码： # final void split(HashMap<K,V> map, Node<K,V>[] tab, int index, int bit)
 
-            /** 构建红黑树对象 */
-            TreeNode<K, V> treeNode = new TreeNode<K, V>();
+            /** 构建红黑树对象，更新数组指向为红黑树 */
+            tab[index] = treeify(tab[index]);
+
+            if (listener != null) {
+                listener.onTreeify(index, TREEIFY_THRESHOLD + 1);
+            }
 
-            do {
+        }
+
+    }
 
-                /** 插入红黑树 */
-                treeNode.add(node.key, node.value, node.hash, node.next);
-                node = node.next;
+    /**
+     * 链表构建为红黑树
+     *      红黑树节点是新创建的对象，需要接替原节点在双向链表中的位置
+     * @param node 链表头节点
+     * @return 红黑树容器节点
+     */
+    private TreeNode<K, V> treeify(Node<K, V> node) {
 
-            }while (node != null);
+        TreeNode<K, V> treeNode = new TreeNode<K, V>();
 
-            /** 更新数组指向为红黑树 */
-            tab[index] = treeNode;
+        for (; node != null; node = node.next) {
 
-            new TreePrintUtil().show(treeNode.root);
+            /** 插入红黑树 */
+            treeNode.add(node.key, node.value, node.hash, null);
+            transferLinks(node, treeNode.getNode(node.key));
 
         }
 
+        return treeNode;
+
+    }
+
+    /**
+     * 红黑树退化为链表
+     * @param index 新数组中的下标
+     * @param binCount 节点个数
+     * @param lo 红黑树节点串成的链表（节点类型为 TreeNode）
+     * @return 普通节点链表
+     */
+    private Node<K, V> untreeify(int index, int binCount, Node<K, V> lo) {
+
+        if (listener != null) {
+            listener.onUntreeify(index, binCount);
+        }
+
+        Node<K, V> hd = null, tl = null;
+
+        for (Node<K, V> p = lo; p != null; p = p.next) {
+
+            Node<K, V> n = new Node<K, V>(p.hash, p.key, p.value, null);
+            transferLinks(p, n);
+
+            if (tl == null) {
+                hd = n;
+            } else {
+                tl.next = n;
+            }
+            tl = n;
+
+        }
+
+        return hd;
+
     }
 
     /**
@@ -155,31 +289,390 @@ public class MyHashMap<K extends Comparable<K>,V> {
 
         if(newSize > 0){
 
-            /** 扩容 + 数据迁移 */
-            Node<K,V>[] newTab = new Node[newSize];
-            for (int i = 0; i < oldTab.length; i++) {
+            resize(newSize);
 
-                Node<K, V> node = oldTab[i];
+        }else {
 
-                if (node != null) {
-                    newTab[(newTab.length - 1) & node.hash] = node;
+            /** 初始化 */
+            tab = new Node[DEFAULT_CAPACITY];
+            threshold = (int) (DEFAULT_CAPACITY * DEFAULT_LOAD_FACTOR);
+
+        }
+
+    }
+
+    /**
+     * 调整数组长度（扩容或缩容），渐进式扩容模式下只创建新数组
+     * @param newSize 新数组长度
+     */
+    private void resize(int newSize) {
+
+        /** 渐进式扩容：只创建新数组，数据在之后的操作中逐步迁移 */
+        if (incrementalResize) {
+            startRehash(newSize);
+        } else {
+            transfer(newSize);
+        }
+
+    }
+
+    /**
+     * 一次性迁移整个数组
+     * @param newSize 新数组长度
+     */
+    private void transfer(int newSize) {
+
+        long start = listener != null ? System.nanoTime() : 0L;
+
+        /** 扩容 + 数据迁移 */
+        Node<K,V>[] oldTab = tab;
+        int n = oldTab.length;
+        Node<K,V>[] newTab = new Node[newSize];
+        for (int i = 0; i < n; i++) {
+
+            Node<K, V> node = oldTab[i];
+
+            if (node != null) {
+                migrate(newTab, i, n, node);
+            }
+
+        }
+
+        tab = newTab;
+        threshold = (int) (newSize * DEFAULT_LOAD_FACTOR);
+
+        if (listener != null) {
+            listener.onResize(n, newSize, System.nanoTime() - start);
+        }
+
+    }
+
+    /**
+     * 缩容：删除之后元素个数低于 数组长度 * SHRINK_LOAD_FACTOR 时，缩到负载不超过 0.5 的长度
+     *      缩容后的负载（0.25 ~ 0.5）与扩容阈值（0.75）、缩容阈值（0.125）都有距离，反复 添加、删除 不会来回扩缩容
+     *      渐进式扩容进行中不缩容，迁移结束后的删除会再次校验
+     */
+    private void shrinkIfNeeded() {
+
+        if (oldTab == null && tab.length > DEFAULT_CAPACITY && size < (int) (tab.length * SHRINK_LOAD_FACTOR)) {
+            resize(capacityFor(size));
+        }
+
+    }
+
+    /**
+     * 压缩：把数组缩到能容纳当前元素、负载不超过 0.5 的最小长度（不小于 DEFAULT_CAPACITY），一次性完成迁移
+     *      适合批量删除之后主动调用，释放内存并降低遍历开销
+     */
+    public void compact() {
+
+        if (tab == null) {
+            return;
+        }
+
+        if (oldTab != null) {
+            finishRehash();
+        }
+
+        int newSize = capacityFor(size);
+        if (newSize < tab.length) {
+            transfer(newSize);
+        }
+
+    }
+
+    /**
+     * 数组长度
+     * @return 长度，未初始化返回 0
+     */
+    public int capacity() {
+        return tab == null ? 0 : tab.length;
+    }
+
+    /**
+     * 容纳 count 个元素、负载不超过 0.5 的数组长度（2的幂，不小于 DEFAULT_CAPACITY）
+     */
+    private int capacityFor(int count) {
+
+        int n = Integer.highestOneBit(Math.max(count << 1, 1));
+        n = n < (count << 1) ? n << 1 : n;
+
+        return Math.max(n, DEFAULT_CAPACITY);
+
+    }
+
+    /**
+     * 迁移旧数组中的一个哈希桶到新数组：扩容时拆分，缩容时合并
+     * @param newTab 新数组
+     * @param i 旧数组下标
+     * @param n 旧数组长度
+     * @param node 哈希桶头节点（不为空）
+     */
+    private void migrate(Node<K, V>[] newTab, int i, int n, Node<K, V> node) {
+
+        if (newTab.length > n) {
+            split(newTab, i, n, node);
+        } else {
+            merge(newTab, i, node);
+        }
+
+    }
+
+    /**
+     * 拆分旧数组中的一个哈希桶到新数组
+     *      数组长度是2的幂，扩容后节点只可能在 原下标i 或 i+n 两个位置：
+     *          hash & n == 0：低位链表，留在 i
+     *          hash & n != 0：高位链表，移动到 i+n
+     *      红黑树先按中序串成链表再拆分
+     * @param newTab 新数组
+     * @param i 旧数组下标
+     * @param n 旧数组长度
+     * @param node 哈希桶头节点（不为空）
+     */
+    private void split(Node<K, V>[] newTab, int i, int n, Node<K, V> node) {
+
+        boolean tree = node instanceof TreeNode;
+        Node<K, V> p = tree ? ((TreeNode<K, V>) node).first() : node;
+
+        Node<K, V> loHead = null, loTail = null, hiHead = null, hiTail = null;
+        int lc = 0, hc = 0;
+
+        while (p != null) {
+
+            Node<K, V> next = p.next;
+            p.next = null;
+
+            if ((p.hash & n) == 0) {
+                if (loTail == null) {
+                    loHead = p;
+                } else {
+                    loTail.next = p;
                 }
+                loTail = p;
+                ++lc;
+            } else {
+                if (hiTail == null) {
+                    hiHead = p;
+                } else {
+                    hiTail.next = p;
+                }
+                hiTail = p;
+                ++hc;
+            }
+
+            p = next;
+
+        }
+
+        /** 红黑树拆分之后节点依然较多，则重新构建红黑树，否则退化为链表 */
+        if (tree) {
+            loHead = loHead == null ? null : lc > UNTREEIFY_THRESHOLD ? treeify(loHead) : untreeify(i, lc, loHead);
+            hiHead = hiHead == null ? null : hc > UNTREEIFY_THRESHOLD ? treeify(hiHead) : untreeify(i + n, hc, hiHead);
+        }
+
+        newTab[i] = loHead;
+        newTab[i + n] = hiHead;
+
+    }
+
+    /**
+     * 合并旧数组中的一个哈希桶到新数组（缩容）
+     *      新数组长度是旧数组长度的约数，节点全部落在 i & (新数组长度-1)，该位置可能已有其他旧桶合并过来的节点
+     *      红黑树桶先退化为链表再合并（目标桶为空且节点足够多时直接整体移动），合并后链表过长再重新构建红黑树
+     * @param newTab 新数组
+     * @param i 旧数组下标
+     * @param node 哈希桶头节点（不为空）
+     */
+    private void merge(Node<K, V>[] newTab, int i, Node<K, V> node) {
 
+        int j = i & (newTab.length - 1);
+        Node<K, V> target = newTab[j];
+
+        if (node instanceof TreeNode) {
+
+            int count = binLength(node);
+
+            if (target == null && count >= TREEIFY_THRESHOLD && newTab.length >= MIN_TREEIFY_CAPACITY) {
+                newTab[j] = node;
+                return;
             }
 
-            tab = newTab;
-            threshold = (int) (newSize * DEFAULT_LOAD_FACTOR);
+            node = untreeify(j, count, ((TreeNode<K, V>) node).first());
 
-        }else {
+        }
 
-            /** 初始化 */
-            tab = new Node[DEFAULT_CAPACITY];
-            threshold = (int) (DEFAULT_CAPACITY * DEFAULT_LOAD_FACTOR);
+        /** 目标桶是红黑树：逐个插入，新建的红黑树节点接替原节点在双向链表中的位置 */
+        if (target instanceof TreeNode) {
+
+            TreeNode<K, V> treeNode = (TreeNode<K, V>) target;
+            for (Node<K, V> p = node; p != null; p = p.next) {
+                treeNode.add(p.key, p.value, p.hash, null);
+                transferLinks(p, treeNode.getNode(p.key));
+            }
+            return;
+
+        }
+
+        /** 目标桶是链表：追加到尾部 */
+        int length = 0;
+        if (target == null) {
+            newTab[j] = node;
+        } else {
+            Node<K, V> tl = target;
+            for (length = 1; tl.next != null; tl = tl.next) {
+                length++;
+            }
+            tl.next = node;
+        }
+
+        for (Node<K, V> p = node; p != null; p = p.next) {
+            length++;
+        }
+
+        if (length >= TREEIFY_THRESHOLD && newTab.length >= MIN_TREEIFY_CAPACITY) {
+
+            newTab[j] = treeify(newTab[j]);
+
+            if (listener != null) {
+                listener.onTreeify(j, length);
+            }
+
+        }
+
+    }
+
+    /**
+     * 开始渐进式扩容（参考 Redis 的 rehash）
+     *      新数组立即生效，新增元素只写入新数组；旧数组保留未迁移的哈希桶，查询时两个数组都要查
+     *      上一轮还没迁移完时先一次性迁移剩余部分（按 REHASH_STEP 推进时，下一次达到阈值前一定已迁移完，这里只是兜底）
+     * @param newSize 新数组长度
+     */
+    private void startRehash(int newSize) {
+
+        if (oldTab != null) {
+            finishRehash();
+        }
+
+        oldTab = tab;
+        tab = new Node[newSize];
+        threshold = (int) (newSize * DEFAULT_LOAD_FACTOR);
+        rehashIndex = 0;
+        rehashNanos = 0L;
+
+    }
+
+    /**
+     * 推进一步渐进式扩容：最多迁移 REHASH_STEP 个非空哈希桶，最多跳过 REHASH_EMPTY_VISITS 个空桶
+     */
+    private void rehashStep() {
+
+        long start = listener != null ? System.nanoTime() : 0L;
+
+        Node<K, V>[] old = oldTab;
+        int n = old.length;
+        int moved = 0, emptyVisits = REHASH_EMPTY_VISITS;
+
+        while (moved < REHASH_STEP && rehashIndex < n) {
+
+            Node<K, V> node = old[rehashIndex];
+
+            if (node == null) {
+                ++rehashIndex;
+                if (--emptyVisits == 0) {
+                    break;
+                }
+                continue;
+            }
+
+            old[rehashIndex] = null;
+            migrate(tab, rehashIndex++, n, node);
+            ++moved;
+
+        }
+
+        if (listener != null) {
+            rehashNanos += System.nanoTime() - start;
+        }
+
+        if (rehashIndex >= n) {
+            endRehash();
+        }
+
+    }
+
+    /**
+     * 迁移 hash 所在的旧哈希桶（如果还没迁移），之后该 hash 的所有节点都在新数组中
+     * @param hash 哈希值
+     */
+    private void rehashBin(int hash) {
+
+        Node<K, V>[] old = oldTab;
+
+        if (old == null) {
+            return;
+        }
+
+        int j = (old.length - 1) & hash;
+        Node<K, V> node = old[j];
+
+        if (node != null) {
+            old[j] = null;
+            migrate(tab, j, old.length, node);
+        }
+
+    }
+
+    /**
+     * 一次性迁移剩余的旧哈希桶
+     */
+    private void finishRehash() {
+
+        long start = listener != null ? System.nanoTime() : 0L;
+
+        Node<K, V>[] old = oldTab;
+        int n = old.length;
+
+        for (; rehashIndex < n; rehashIndex++) {
+
+            Node<K, V> node = old[rehashIndex];
+
+            if (node != null) {
+                old[rehashIndex] = null;
+                migrate(tab, rehashIndex, n, node);
+            }
+
+        }
+
+        if (listener != null) {
+            rehashNanos += System.nanoTime() - start;
+        }
+
+        endRehash();
+
+    }
+
+    /**
+     * 渐进式扩容结束：释放旧数组，通知监听器（耗时为各次迁移的累计耗时）
+     */
+    private void endRehash() {
+
+        int n = oldTab.length;
+        oldTab = null;
 
+        if (listener != null) {
+            listener.onResize(n, tab.length, rehashNanos);
         }
 
     }
 
+    /**
+     * 是否正在渐进式扩容
+     * @return true 新旧数组同时存在
+     */
+    public boolean isRehashing() {
+        return oldTab != null;
+    }
+
     /**
      * 获取元素
      * @param k key
@@ -187,14 +680,56 @@ public class MyHashMap<K extends Comparable<K>,V> {
      */
     public V get(K k){
 
+        if (oldTab != null) {
+            rehashStep();
+        }
+
+        Node<K, V> node = getNode(k);
+
+        if (node == null) {
+            return null;
+        }
+
+        afterNodeAccess(node);
+        return node.value;
+
+    }
+
+    /**
+     * 查找节点
+     * @param k key
+     * @return 节点，不存在返回 null
+     */
+    final Node<K, V> getNode(K k){
+
         /** 校验数组是否为空 */
-        if (tab == null) {
+        if (tab == null || k == null) {
             return null;
         }
 
         /** 根据key获取哈希值 */
         int hashCode = getHashCode(k);
 
+        Node<K, V> node = getNode(tab, k, hashCode);
+
+        /** 渐进式扩容中：新数组中没有，再查还没迁移的旧哈希桶（已迁移的桶为 null） */
+        if (node == null && oldTab != null) {
+            node = getNode(oldTab, k, hashCode);
+        }
+
+        return node;
+
+    }
+
+    /**
+     * 在指定数组中查找节点
+     * @param tab 数组
+     * @param k key
+     * @param hashCode 哈希值
+     * @return 节点，不存在返回 null
+     */
+    private Node<K, V> getNode(Node<K, V>[] tab, K k, int hashCode){
+
         /** 计算哈希桶下标 */
         int i = (tab.length - 1) & hashCode;
 
@@ -207,19 +742,15 @@ public class MyHashMap<K extends Comparable<K>,V> {
             /** 校验节点是否红黑树 */
             if(node instanceof TreeNode){
 
-                TreeNode<K, V> treeNode = (TreeNode<K, V>) node;
-                node = treeNode.getNode(k);
-                if (node != null) {
-                    return node.value;
-                }
+                return ((TreeNode<K, V>) node).getNode(k);
 
             }else { /** 链表结构 */
 
                 do {
 
                     /** 链表结构 */
-                    if (node.key == k || node.key.equals(k)) {
-                        return node.value;
+                    if (node.hash == hashCode && (node.key == k || node.key.equals(k))) {
+                        return node;
                     }
 
                     node = node.next;
@@ -249,6 +780,12 @@ public class MyHashMap<K extends Comparable<K>,V> {
         /** 根据key获取哈希值 */
         int hashCode = getHashCode(k);
 
+        /** 渐进式扩容中：和添加一样，先把 key 所在的旧哈希桶迁移到新数组 */
+        if (oldTab != null) {
+            rehashStep();
+            rehashBin(hashCode);
+        }
+
         /** 计算哈希桶下标 */
         int i = (tab.length - 1) & hashCode;
 
@@ -260,47 +797,316 @@ public class MyHashMap<K extends Comparable<K>,V> {
             if(node instanceof TreeNode){
 
                 TreeNode<K, V> treeNode = ((TreeNode) node);
-                treeNode.remove(k);
+                TreeNode<K, V> target = treeNode.getNode(k);
 
-                new TreePrintUtil().show(treeNode.root);
+                if (target != null) {
 
-                tab[i] = treeNode;
-                return node.value;
+                    V oldVal = target.value;
+
+                    /**
+                     * 待删除节点有两个子节点时，红黑树会把前驱节点的数据复制到待删除节点上，然后摘除前驱节点对象，
+                     * 所以双向链表中：先摘除待删除节点，再让它接替被摘除的前驱节点的位置
+                     * */
+                    TreeNode<K, V> removed = treeNode.remove(k);
+                    unlink(target);
+                    if (removed != target) {
+                        transferLinks(removed, target);
+                    }
+
+                    tab[i] = treeNode.root == null ? null : treeNode;
+                    --size;
+                    shrinkIfNeeded();
+                    return oldVal;
+
+                }
 
             }else { /** 处理链表情况 */
 
-                if(node !=null && node.next == null){
+                for (Node<K, V> pred = null; node != null; pred = node, node = node.next) {
 
-                    if (node.key == k || node.key.equals(k)) {
+                    /** 链表结构 */
+                    if (node.hash == hashCode && (node.key == k || node.key.equals(k))) {
+
+                        /** 删除头节点时，直接把下一个节点放到桶位置，否则跳过待删除节点 */
+                        if (pred == null) {
+                            tab[i] = node.next;
+                        } else {
+                            pred.next = node.next;
+                        }
 
-                        tab[i] = null;
+                        unlink(node);
+                        --size;
+                        shrinkIfNeeded();
                         return node.value;
 
                     }
 
                 }
 
-                while (node != null && node.next != null) {
+            }
 
-                    /** 链表结构 */
-                    if (node.next.key == k || node.next.key.equals(k)) {
+        }
 
-                        node.next = (node.next.next);
-                        tab[i] = node;
+        throw new IllegalArgumentException("invalid key");
 
-                        return node.next.value;
+    }
 
-                    }
+    /**
+     * 元素个数
+     * @return 个数
+     */
+    public int size() {
+        return size;
+    }
 
-                    node = node.next;
+    /**
+     * 遍历
+     *      链表模式：按插入顺序或访问顺序（从最老到最新）遍历；否则按数组下标遍历
+     *      遍历过程中不会改变访问顺序
+     * @param action 处理方法
+     */
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+
+        if (linked) {
+
+            for (Node<K, V> e = head; e != null; e = e.after) {
+                action.accept(e.key, e.value);
+            }
 
+        } else if (tab != null) {
+
+            forEach(tab, action);
+
+            /** 渐进式扩容中：还没迁移的旧哈希桶 */
+            if (oldTab != null) {
+                forEach(oldTab, action);
+            }
+
+        }
+
+    }
+
+    /**
+     * 按数组下标遍历
+     */
+    private void forEach(Node<K, V>[] tab, java.util.function.BiConsumer<? super K, ? super V> action) {
+
+        for (Node<K, V> node : tab) {
+
+            Node<K, V> p = node instanceof TreeNode ? ((TreeNode<K, V>) node).first() : node;
+
+            for (; p != null; p = p.next) {
+                action.accept(p.key, p.value);
+            }
+
+        }
+
+    }
+
+    /**
+     * 冻结：按当前内容构建只读的 MyFrozenHashMap（最小完美哈希 + 扁平数组，每次查找只比较一次 key），之后对本表的修改不影响它
+     *      key 很多时并行构建
+     * @return 只读哈希表
+     */
+    public MyFrozenHashMap<K, V> freeze() {
+        return new MyFrozenHashMap<>(this, true);
+    }
+
+    /**
+     * 设置监听器，传入 null 关闭
+     * @param listener 监听器
+     */
+    public void setListener(MyHashMapListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 哈希桶长度分布（按需扫描整个数组，不在添加、删除时统计）
+     *      下标 i 表示长度为 i 的桶个数，最后一个下标表示长度大于等于 TREEIFY_THRESHOLD 的桶个数（含红黑树桶）
+     *      渐进式扩容中只统计旧数组里还没迁移的非空桶
+     * @return 分布
+     */
+    public long[] binLengthHistogram() {
+
+        long[] histogram = new long[TREEIFY_THRESHOLD + 1];
+
+        if (tab != null) {
+            for (Node<K, V> node : tab) {
+                histogram[Math.min(binLength(node), TREEIFY_THRESHOLD)]++;
+            }
+        }
+
+        if (oldTab != null) {
+            for (Node<K, V> node : oldTab) {
+                if (node != null) {
+                    histogram[Math.min(binLength(node), TREEIFY_THRESHOLD)]++;
                 }
+            }
+        }
+
+        return histogram;
+
+    }
+
+    /**
+     * 最大查找深度：链表为长度，红黑树为树高
+     * @return 深度
+     */
+    public int maxBinDepth() {
+
+        int max = maxBinDepth(tab);
+
+        if (oldTab != null) {
+            max = Math.max(max, maxBinDepth(oldTab));
+        }
+
+        return max;
+
+    }
+
+    private int maxBinDepth(Node<K, V>[] tab) {
+
+        int max = 0;
+
+        if (tab != null) {
+            for (Node<K, V> node : tab) {
+
+                int depth = node instanceof TreeNode ? ((TreeNode<K, V>) node).depth() : binLength(node);
+                max = Math.max(max, depth);
 
             }
+        }
 
+        return max;
+
+    }
+
+    /**
+     * 哈希桶节点个数
+     */
+    private int binLength(Node<K, V> node) {
+
+        if (node instanceof TreeNode) {
+            return ((TreeNode<K, V>) node).count();
         }
 
-        throw new IllegalArgumentException("invalid key");
+        int length = 0;
+        for (; node != null; node = node.next) {
+            length++;
+        }
+
+        return length;
+
+    }
+
+    /**
+     * 是否删除最老的元素，每次新增元素之后调用，默认不删除
+     *      子类重写此方法即可实现 LRU 缓存（链表模式 + 访问顺序），例如：
+     *          return size() > 100;
+     * @param key 最老元素的 key
+     * @param value 最老元素的 value
+     * @return true 删除
+     */
+    protected boolean removeEldestEntry(K key, V value) {
+        return false;
+    }
+
+    /**
+     * 新增节点之后：链表模式下校验是否需要删除最老元素
+     */
+    private void afterNodeInsertion() {
+
+        Node<K, V> first = head;
+
+        if (linked && first != null && removeEldestEntry(first.key, first.value)) {
+            remove(first.key);
+        }
+
+    }
+
+    /**
+     * 访问节点之后：访问顺序模式下把节点移动到链表尾部，O(1)
+     */
+    private void afterNodeAccess(Node<K, V> node) {
+
+        if (accessOrder && tail != node) {
+            unlink(node);
+            linkLast(node);
+        }
+
+    }
+
+    /**
+     * 追加到双向链表尾部
+     */
+    private void linkLast(Node<K, V> node) {
+
+        if (!linked) {
+            return;
+        }
+
+        Node<K, V> last = tail;
+        tail = node;
+
+        if (last == null) {
+            head = node;
+        } else {
+            node.before = last;
+            last.after = node;
+        }
+
+    }
+
+    /**
+     * 从双向链表中摘除
+     */
+    private void unlink(Node<K, V> node) {
+
+        if (!linked) {
+            return;
+        }
+
+        Node<K, V> b = node.before, a = node.after;
+        node.before = node.after = null;
+
+        if (b == null) {
+            head = a;
+        } else {
+            b.after = a;
+        }
+
+        if (a == null) {
+            tail = b;
+        } else {
+            a.before = b;
+        }
+
+    }
+
+    /**
+     * 新节点接替旧节点在双向链表中的位置
+     */
+    private void transferLinks(Node<K, V> src, Node<K, V> dst) {
+
+        if (!linked) {
+            return;
+        }
+
+        Node<K, V> b = dst.before = src.before;
+        Node<K, V> a = dst.after = src.after;
+        src.before = src.after = null;
+
+        if (b == null) {
+            head = dst;
+        } else {
+            b.after = dst;
+        }
+
+        if (a == null) {
+            tail = dst;
+        } else {
+            a.before = dst;
+        }
 
     }
 
@@ -332,6 +1138,10 @@ public class MyHashMap<K extends Comparable<K>,V> {
         /** 下一个 */
         Node<K,V> next;
 
+        /** 双向链表：前一个、后一个（只在链表模式下使用） */
+        Node<K,V> before;
+        Node<K,V> after;
+
         public Node() {
         }
 
@@ -409,7 +1219,11 @@ public class MyHashMap<K extends Comparable<K>,V> {
             this.root = root;
         }
 
-        public void add(K k, V v, Integer hash, Node<K,V> next){
+        /**
+         * 添加节点
+         * @return key 已存在时返回已存在的节点（由调用方决定是否更新值），添加成功返回 null
+         */
+        public TreeNode<K, V> add(K k, V v, Integer hash, Node<K,V> next){
 
             TreeNode<K, V> node = new TreeNode<K, V>(hash, k, v, next);
 
@@ -453,12 +1267,10 @@ public class MyHashMap<K extends Comparable<K>,V> {
 
                         tempNode = tempNode.right;
 
-                        /** 等于更新值 */
+                        /** 等于返回已存在节点 */
                     }else {
 
-                        node.value = v;
-
-                        return;
+                        return tempNode;
                     }
 
                 }
@@ -467,6 +1279,8 @@ public class MyHashMap<K extends Comparable<K>,V> {
 
             }
 
+            return null;
+
         }
 
         private void balanceInsertion(TreeNode<K, V> node) {
@@ -513,8 +1327,9 @@ public class MyHashMap<K extends Comparable<K>,V> {
                          * */
                         if(node == node.parent.right){
 
-                            /** 左旋 */
-                            rotateLeft(node.parent);
+                            /** 左旋，旋转之后原父亲节点成为子节点，以原父亲节点继续处理 */
+                            node = node.parent;
+                            rotateLeft(node);
 
                         }
 
@@ -541,8 +1356,7 @@ public class MyHashMap<K extends Comparable<K>,V> {
                         /** 右旋 */
                         rotateRight(node.parent.parent);
 
-                        /** 继续向上递归 */
-                        balanceInsertion(node.parent.parent);
+                        /** 旋转之后子树的根节点为黑色，不会再与上层产生连续红色节点，无需继续向上递归 */
 
                     }
 
@@ -585,8 +1399,9 @@ public class MyHashMap<K extends Comparable<K>,V> {
                          * */
                         if(node == node.parent.left){
 
-                            /** 右旋 */
-                            rotateRight(node.parent);
+                            /** 右旋，旋转之后原父亲节点成为子节点，以原父亲节点继续处理 */
+                            node = node.parent;
+                            rotateRight(node);
 
                         }
 
@@ -613,8 +1428,7 @@ public class MyHashMap<K extends Comparable<K>,V> {
                         /** 右旋 */
                         rotateLeft(node.parent.parent);
 
-                        /** 继续向上递归 */
-                        balanceInsertion(node.parent.parent);
+                        /** 旋转之后子树的根节点为黑色，不会再与上层产生连续红色节点，无需继续向上递归 */
 
                     }
                 }
@@ -625,13 +1439,17 @@ public class MyHashMap<K extends Comparable<K>,V> {
 
         }
 
-        public void remove(K k){
+        /**
+         * 删除节点
+         * @return 从树中摘除的节点对象（待删除节点有两个子节点时，摘除的是前驱节点对象），不存在返回 null
+         */
+        public TreeNode<K, V> remove(K k){
 
             /** 查找到节点 */
             TreeNode<K, V> node = getNode(k);
 
             if (node == null) {
-                return;
+                return null;
             }
 
             /** 第三种情况：删除结点有两个叶子节点，需要使用前驱查找或者后继查找来替换 */
@@ -640,7 +1458,9 @@ public class MyHashMap<K extends Comparable<K>,V> {
                 /** 采用前驱查找 */
                 TreeNode<K, V> n = precursorFind(node);
 
-                /** 修改值为待删除的值 */
+                /** 修改值为待删除的值（key、hash 需要一起替换，否则节点的 key 与 value 不对应） */
+                node.key = n.key;
+                node.hash = n.hash;
                 node.value = n.value;
 
                 /**
@@ -713,6 +1533,15 @@ public class MyHashMap<K extends Comparable<K>,V> {
 
             }
 
+            return node;
+
+        }
+
+        /**
+         * 是否红色节点，空节点（叶子节点）为黑色
+         */
+        private static boolean isRed(TreeNode<?, ?> node) {
+            return node != null && node.red;
         }
 
         /**
@@ -740,7 +1569,7 @@ public class MyHashMap<K extends Comparable<K>,V> {
                     }
 
                     /** 当兄弟节点一个子节点都没有，或者两个子节点都是黑色 */
-                    if (r.left == null && r.right == null || ((r.left != null && !r.left.red) && (r.right != null && !r.right.red))) {
+                    if (!isRed(r.left) && !isRed(r.right)) {
 
                         r.red = true;
                         node = node.parent;
@@ -750,7 +1579,7 @@ public class MyHashMap<K extends Comparable<K>,V> {
                         /**
                          * 如果兄弟节点的子节点是左子节点，需要变色 + 右旋
                          * */
-                        if(r.right == null){ /** 如果兄弟节点的右子节点为空，左子节点肯定不为空，因为兄弟节点没有子节点的时候，只会进入上的if */
+                        if(!isRed(r.right)){ /** 如果兄弟节点的右子节点为黑色（空节点也是黑色），左子节点肯定是红色，因为两个子节点都是黑色的时候，只会进入上的if */
 
                             r.red = true;
                             r.left.red = false;
@@ -785,7 +1614,7 @@ public class MyHashMap<K extends Comparable<K>,V> {
                     }
 
                     /** 当兄弟节点一个子节点都没有，或者两个子节点都是黑色 */
-                    if (r.left == null && r.right == null || ((r.left != null && !r.left.red) && (r.right != null && !r.right.red))) {
+                    if (!isRed(r.left) && !isRed(r.right)) {
 
                         r.red = true;
                         node = node.parent;
@@ -795,7 +1624,7 @@ public class MyHashMap<K extends Comparable<K>,V> {
                         /**
                          * 如果兄弟节点的子节点是左子节点，需要变色 + 右旋
                          * */
-                        if(r.left == null){ /** 如果兄弟节点的右子节点为空，左子节点肯定不为空，因为兄弟节点没有子节点的时候，只会进入上的if */
+                        if(!isRed(r.left)){ /** 如果兄弟节点的左子节点为黑色（空节点也是黑色），右子节点肯定是红色，因为两个子节点都是黑色的时候，只会进入上的if */
 
                             r.red = true;
                             r.right.red = false;
@@ -822,6 +1651,54 @@ public class MyHashMap<K extends Comparable<K>,V> {
 
         }
 
+        /**
+         * 按中序遍历把红黑树节点串成链表（复用树节点的 next 指针）
+         * @return 链表头节点
+         */
+        Node<K, V> first() {
+
+            Node<K, V> head = null;
+            java.util.ArrayDeque<TreeNode<K, V>> stack = new java.util.ArrayDeque<TreeNode<K, V>>();
+            TreeNode<K, V> p = root;
+
+            /** 反向中序遍历（右 -> 根 -> 左），头插法之后链表为升序 */
+            while (p != null || !stack.isEmpty()) {
+                while (p != null) {
+                    stack.push(p);
+                    p = p.right;
+                }
+                p = stack.pop();
+                p.next = head;
+                head = p;
+                p = p.left;
+            }
+
+            return head;
+
+        }
+
+        /**
+         * 树高
+         */
+        int depth() {
+            return depth(root);
+        }
+
+        private static int depth(TreeNode<?, ?> node) {
+            return node == null ? 0 : 1 + Math.max(depth(node.left), depth(node.right));
+        }
+
+        /**
+         * 节点个数
+         */
+        int count() {
+            return count(root);
+        }
+
+        private static int count(TreeNode<?, ?> node) {
+            return node == null ? 0 : 1 + count(node.left) + count(node.right);
+        }
+
         public TreeNode<K, V> getNode(K k){
 
             TreeNode<K, V> node = root;
@@ -985,87 +1862,4 @@ public class MyHashMap<K extends Comparable<K>,V> {
         
     }
 
-    /**
-     * 红黑树输出
-     */
-    class TreePrintUtil {
-          /*
-        树的结构示例：
-                  1
-                /   \
-              2       3
-             / \     / \
-            4   5   6   7
-        */
-
-        // 用于获得树的层数
-        public int getTreeDepth(TreeNode root) {
-            return root == null ? 0 : (1 + Math.max(getTreeDepth(root.getLeft()), getTreeDepth(root.getRight())));
-        }
-
-
-        private void writeArray(TreeNode currNode, int rowIndex, int columnIndex, String[][] res, int treeDepth) {
-            // 保证输入的树不为空
-            if (currNode == null) return;
-            // 先将当前节点保存到二维数组中
-            res[rowIndex][columnIndex] = String.valueOf(currNode.value +  (currNode.red ? "R" : "B") + "");
-
-            // 计算当前位于树的第几层
-            int currLevel = ((rowIndex + 1) / 2);
-            // 若到了最后一层，则返回
-            if (currLevel == treeDepth) return;
-            // 计算当前行到下一行，每个元素之间的间隔（下一行的列索引与当前元素的列索引之间的间隔）
-            int gap = treeDepth - currLevel - 1;
-
-            // 对左儿子进行判断，若有左儿子，则记录相应的"/"与左儿子的值
-            if (currNode.getLeft() != null) {
-                res[rowIndex + 1][columnIndex - gap] = "/";
-                writeArray(currNode.getLeft(), rowIndex + 2, columnIndex - gap * 2, res, treeDepth);
-            }
-
-            // 对右儿子进行判断，若有右儿子，则记录相应的"\"与右儿子的值
-            if (currNode.getRight() != null) {
-                res[rowIndex + 1][columnIndex + gap] = "\\";
-                writeArray(currNode.getRight(), rowIndex + 2, columnIndex + gap * 2, res, treeDepth);
-            }
-        }
-
-
-        public void show(TreeNode root) {
-            if (root == null) System.out.println("EMPTY!");
-            // 得到树的深度
-            int treeDepth = getTreeDepth(root);
-
-            // 最后一行的宽度为2的（n - 1）次方乘3，再加1
-            // 作为整个二维数组的宽度
-            int arrayHeight = treeDepth * 2 - 1;
-            int arrayWidth = (2 << (treeDepth - 2)) * 3 + 1;
-            // 用一个字符串数组来存储每个位置应显示的元素
-            String[][] res = new String[arrayHeight][arrayWidth];
-            // 对数组进行初始化，默认为一个空格
-            for (int i = 0; i < arrayHeight; i ++) {
-                for (int j = 0; j < arrayWidth; j ++) {
-                    res[i][j] = " ";
-                }
-            }
-
-            // 从根节点开始，递归处理整个树
-            // res[0][(arrayWidth + 1)/ 2] = (char)(root.val + '0');
-            writeArray(root, 0, arrayWidth/ 2, res, treeDepth);
-
-            // 此时，已经将所有需要显示的元素储存到了二维数组中，将其拼接并打印即可
-            for (String[] line: res) {
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < line.length; i ++) {
-                    sb.append(line[i]);
-                    if (line[i].length() > 1 && i <= line.length - 1) {
-                        i += line[i].length() > 4 ? 2: line[i].length() - 1;
-                    }
-                }
-                System.out.println(sb);
-            }
-        }
-
-    }
-
-}
\ No newline at end of file
+}
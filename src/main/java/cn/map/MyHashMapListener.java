@@ -0,0 +1,39 @@
+package cn.map;
+
+/**
+ * @Description: MyHashMap 结构变化监听器，通过 MyHashMap.setListener 注册，未注册时不产生任何开销
+ *
+ *      回调在执行 put/remove 的线程里同步调用，实现类应尽量轻量（例如只做计数）
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 14:05
+ * @Version 1.0
+ */
+public interface MyHashMapListener {
+
+    /**
+     * 链表转为红黑树
+     * @param index 数组下标
+     * @param binCount 转换时桶内节点个数
+     */
+    default void onTreeify(int index, int binCount) {
+    }
+
+    /**
+     * 扩容拆分时红黑树退化为链表
+     * @param index 新数组中的下标
+     * @param binCount 退化后桶内节点个数
+     */
+    default void onUntreeify(int index, int binCount) {
+    }
+
+    /**
+     * 扩容完成
+     * @param oldCapacity 原数组长度
+     * @param newCapacity 新数组长度
+     * @param nanos 扩容 + 数据迁移耗时（纳秒）
+     */
+    default void onResize(int oldCapacity, int newCapacity, long nanos) {
+    }
+
+}
@@ -0,0 +1,138 @@
+package cn.map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Description: MyHashMap 统计信息，监听器计数 + 采样快照，可选注册为 JMX MBean
+ *
+ *      计数：树化、退树化、扩容次数与耗时，由 MyHashMap 回调累加
+ *      采样：桶长度分布、最大查找深度需要扫描整个数组，所以只在调用 sample 时计算一次并缓存结果，
+ *           MyHashMap 不是线程安全的，sample 必须在持有 map 的线程里调用
+ *
+ *      用法：
+ *          MyHashMapStats stats = new MyHashMapStats();
+ *          map.setListener(stats);
+ *          stats.register("orders");
+ *          ...
+ *          stats.sample(map);
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 14:05
+ * @Version 1.0
+ */
+public class MyHashMapStats implements MyHashMapListener, MyHashMapStatsMBean {
+
+    final LongAdder treeifyCount = new LongAdder();
+
+    final LongAdder untreeifyCount = new LongAdder();
+
+    final LongAdder resizeCount = new LongAdder();
+
+    final LongAdder resizeNanos = new LongAdder();
+
+    /** 最近一次采样结果 */
+    volatile int maxBinDepth;
+
+    volatile long[] binLengthHistogram = new long[0];
+
+    @Override
+    public void onTreeify(int index, int binCount) {
+        treeifyCount.increment();
+    }
+
+    @Override
+    public void onUntreeify(int index, int binCount) {
+        untreeifyCount.increment();
+    }
+
+    @Override
+    public void onResize(int oldCapacity, int newCapacity, long nanos) {
+        resizeCount.increment();
+        resizeNanos.add(nanos);
+    }
+
+    /**
+     * 采样桶长度分布、最大查找深度
+     * @param map 被统计的 map
+     */
+    public void sample(MyHashMap<?, ?> map) {
+        binLengthHistogram = map.binLengthHistogram();
+        maxBinDepth = map.maxBinDepth();
+    }
+
+    /**
+     * 注册到平台 MBeanServer，ObjectName 为 cn.map:type=MyHashMap,name=#{name}
+     * @param name 名称
+     */
+    public void register(String name) {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, objectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException("register mbean failed: " + name, e);
+        }
+
+    }
+
+    /**
+     * 从平台 MBeanServer 注销
+     * @param name 名称
+     */
+    public void unregister(String name) {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(objectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException("unregister mbean failed: " + name, e);
+        }
+
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("cn.map:type=MyHashMap,name=" + ObjectName.quote(name));
+    }
+
+    @Override
+    public long getTreeifyCount() {
+        return treeifyCount.sum();
+    }
+
+    @Override
+    public long getUntreeifyCount() {
+        return untreeifyCount.sum();
+    }
+
+    @Override
+    public long getResizeCount() {
+        return resizeCount.sum();
+    }
+
+    @Override
+    public long getResizeNanos() {
+        return resizeNanos.sum();
+    }
+
+    @Override
+    public int getMaxBinDepth() {
+        return maxBinDepth;
+    }
+
+    @Override
+    public long[] getBinLengthHistogram() {
+        return binLengthHistogram.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "MyHashMapStats{treeify=" + getTreeifyCount() + ", untreeify=" + getUntreeifyCount()
+                + ", resize=" + getResizeCount() + ", resizeNanos=" + getResizeNanos()
+                + ", maxBinDepth=" + maxBinDepth + ", histogram=" + java.util.Arrays.toString(binLengthHistogram) + "}";
+    }
+
+}
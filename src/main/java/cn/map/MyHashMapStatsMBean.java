@@ -0,0 +1,24 @@
+package cn.map;
+
+/**
+ * @Description: MyHashMapStats 的 JMX 接口，方法名即 jconsole 中看到的属性名
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 14:05
+ * @Version 1.0
+ */
+public interface MyHashMapStatsMBean {
+
+    long getTreeifyCount();
+
+    long getUntreeifyCount();
+
+    long getResizeCount();
+
+    long getResizeNanos();
+
+    int getMaxBinDepth();
+
+    long[] getBinLengthHistogram();
+
+}
@@ -0,0 +1,261 @@
+package cn.map;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Function;
+
+/**
+ * @Description: 基于 MyConcurrentMap 的异步加载哈希表，体现：在途加载去重（防缓存击穿）、提前刷新（refresh-ahead）
+ *
+ *      值是一个加载节点（占位节点），节点里保存加载结果的 CompletableFuture：
+ *          未命中：putIfAbsent 放入一个未完成的占位节点，放入成功的线程调用加载方法，其余线程拿到同一个 Future，同一个 key 同时只有一次加载
+ *          加载方法在 putIfAbsent 返回之后调用，不会在桶锁内执行；加载失败（或返回 null）时删除占位节点，之后的调用重新加载
+ *          写后超过 refreshAfterWrite：返回旧值，同时在后台重新加载（每个节点只触发一次），加载成功后替换为新节点
+ *          写后超过 expireAfterWrite：视为未命中，用新的占位节点替换旧节点，等待新的加载结果
+ *
+ *      只做懒检查，不主动清理过期节点；需要容量限制、主动过期时使用 MyBoundedCache、MyExpiringMap
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 22:10
+ * @Version 1.0
+ */
+public class MyLoadingMap<K extends Comparable<K>, V> {
+
+    /** 数据存储 */
+    final MyConcurrentMap<K, LoadingNode<V>> data = new MyConcurrentMap<K, LoadingNode<V>>();
+
+    /** 写后提前刷新时间（纳秒），小于等于0表示不启用 */
+    final long refreshAfterWriteNanos;
+
+    /** 写后过期时间（纳秒），小于等于0表示不启用 */
+    final long expireAfterWriteNanos;
+
+    /** 时间源 */
+    final MyExpiringMap.Ticker ticker;
+
+    public MyLoadingMap() {
+        this(0, 0, TimeUnit.NANOSECONDS, null);
+    }
+
+    /**
+     * @param refreshAfterWrite 写后提前刷新时间，小于等于0表示不启用，应小于过期时间
+     * @param expireAfterWrite 写后过期时间，小于等于0表示不启用
+     * @param unit 时间单位
+     * @param ticker 时间源，为空时使用 System.nanoTime()
+     */
+    public MyLoadingMap(long refreshAfterWrite, long expireAfterWrite, TimeUnit unit, MyExpiringMap.Ticker ticker) {
+
+        this.refreshAfterWriteNanos = refreshAfterWrite > 0 ? unit.toNanos(refreshAfterWrite) : 0;
+        this.expireAfterWriteNanos = expireAfterWrite > 0 ? unit.toNanos(expireAfterWrite) : 0;
+        this.ticker = ticker == null ? System::nanoTime : ticker;
+
+    }
+
+    /**
+     * 获取元素，不存在（或已过期）时加载
+     *      同一个 key 并发调用时共享同一次加载；返回的 Future 可能已经完成（命中），也可能还在加载中
+     * @param k key
+     * @param loader 加载方法，返回异步结果；直接在调用线程中执行，耗时操作应在方法内部提交到线程池
+     * @return 值的 Future，加载失败时异常完成
+     */
+    public CompletableFuture<V> getOrLoad(K k, Function<? super K, ? extends CompletableFuture<? extends V>> loader) {
+
+        if (k == null || loader == null) {
+            throw new NullPointerException("key or loader not null");
+        }
+
+        for (;;) {
+
+            LoadingNode<V> node = data.get(k);
+            long now = ticker.read();
+
+            if (node == null) {
+
+                LoadingNode<V> created = new LoadingNode<V>(now);
+                node = data.putIfAbsent(k, created);
+
+                /** 放入成功：由当前线程加载（此时已不持有任何桶锁） */
+                if (node == null) {
+                    load(k, created, loader);
+                    return created.future;
+                }
+
+            }
+
+            /** 在途加载：共享同一个 Future */
+            if (!node.future.isDone()) {
+                return node.future;
+            }
+
+            /** 加载失败的节点由加载线程删除，这里可能还没删掉，协助删除后重试 */
+            if (node.future.isCompletedExceptionally()) {
+                data.remove(k, node);
+                continue;
+            }
+
+            long age = now - node.writeTime;
+
+            /** 已过期：只有替换成功的线程加载，替换失败说明其他线程已经替换或删除，重新读取 */
+            if (expireAfterWriteNanos > 0 && age >= expireAfterWriteNanos) {
+
+                LoadingNode<V> created = new LoadingNode<V>(now);
+                if (data.replace(k, node, created)) {
+                    load(k, created, loader);
+                    return created.future;
+                }
+                continue;
+
+            }
+
+            /** 需要刷新：每个节点只有一个线程能触发刷新，刷新期间继续返回旧值 */
+            if (refreshAfterWriteNanos > 0 && age >= refreshAfterWriteNanos && node.tryStartRefresh()) {
+                refresh(k, node, loader);
+            }
+
+            return node.future;
+
+        }
+
+    }
+
+    /**
+     * 获取已加载且未过期的值，不触发加载
+     * @param k key
+     * @return 值，不存在、加载中、已过期返回 null
+     */
+    public V getIfPresent(K k) {
+
+        LoadingNode<V> node = data.get(k);
+
+        if (node == null || !node.future.isDone() || node.future.isCompletedExceptionally()) {
+            return null;
+        }
+
+        if (expireAfterWriteNanos > 0 && ticker.read() - node.writeTime >= expireAfterWriteNanos) {
+            return null;
+        }
+
+        return node.future.join();
+
+    }
+
+    /**
+     * 删除元素；正在进行的加载完成后不会再写回
+     * @param k key
+     */
+    public void invalidate(K k) {
+        data.remove(k);
+    }
+
+    /**
+     * 元素个数（包含加载中的占位节点）
+     * @return 个数
+     */
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * 调用加载方法，结果回填到占位节点
+     *      加载完成时先更新写入时间再完成 Future，其他线程看到 Future 完成时一定能看到新的写入时间
+     */
+    private void load(K k, LoadingNode<V> node, Function<? super K, ? extends CompletableFuture<? extends V>> loader) {
+
+        CompletableFuture<? extends V> loading;
+        try {
+            loading = loader.apply(k);
+        } catch (Throwable e) {
+            loading = failed(e);
+        }
+
+        if (loading == null) {
+            loading = failed(new NullPointerException("loader returned null"));
+        }
+
+        loading.whenComplete((v, e) -> {
+
+            if (e != null || v == null) {
+
+                /** 只删除自己的占位节点，期间被删除、替换的不影响 */
+                data.remove(k, node);
+                node.future.completeExceptionally(e != null ? e : new NullPointerException("loader returned null value"));
+
+            } else {
+
+                node.writeTime = ticker.read();
+                node.future.complete(v);
+
+            }
+
+        });
+
+    }
+
+    /**
+     * 后台刷新：加载成功后用新节点替换旧节点（旧节点已被删除、替换时放弃结果），失败时保留旧值，下次访问再触发
+     */
+    private void refresh(K k, LoadingNode<V> node, Function<? super K, ? extends CompletableFuture<? extends V>> loader) {
+
+        CompletableFuture<? extends V> loading;
+        try {
+            loading = loader.apply(k);
+        } catch (Throwable e) {
+            loading = failed(e);
+        }
+
+        if (loading == null) {
+            node.refreshing = 0;
+            return;
+        }
+
+        loading.whenComplete((v, e) -> {
+
+            if (e != null || v == null) {
+                node.refreshing = 0;
+                return;
+            }
+
+            LoadingNode<V> fresh = new LoadingNode<V>(ticker.read());
+            fresh.future.complete(v);
+            data.replace(k, node, fresh);
+
+        });
+
+    }
+
+    private static <V> CompletableFuture<V> failed(Throwable e) {
+        CompletableFuture<V> future = new CompletableFuture<V>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * 加载节点（占位节点），使用对象本身做比较（删除、替换时只匹配同一个节点）
+     */
+    static final class LoadingNode<V> {
+
+        @SuppressWarnings("rawtypes")
+        static final AtomicIntegerFieldUpdater<LoadingNode> REFRESHING =
+                AtomicIntegerFieldUpdater.newUpdater(LoadingNode.class, "refreshing");
+
+        /** 加载结果 */
+        final CompletableFuture<V> future = new CompletableFuture<V>();
+
+        /** 写入时间：创建时为放入时间，加载完成后更新为完成时间 */
+        volatile long writeTime;
+
+        /** 是否正在刷新：0 否，1 是 */
+        volatile int refreshing;
+
+        LoadingNode(long writeTime) {
+            this.writeTime = writeTime;
+        }
+
+        boolean tryStartRefresh() {
+            return refreshing == 0 && REFRESHING.compareAndSet(this, 0, 1);
+        }
+
+    }
+
+}
@@ -0,0 +1,263 @@
+package cn.map;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * @Description: 带线程本地近端缓存的 MyConcurrentMap，体现：读多写少场景下用版本号（epoch）做整体失效
+ *
+ *      每个线程一个直接映射的小数组（槽位下标 = 哈希值乘以黄金分割数取高位），槽位里保存 key、值和读取时的版本号：
+ *          读：先读版本号，槽位的 key 相同且版本号等于当前版本号时直接返回（包括缓存的“不存在”），不访问共享的哈希表
+ *              未命中时读共享哈希表，用读之前的版本号写入槽位；读期间发生写入时版本号已变，该槽位下次读取时自然失效
+ *          写：先写共享哈希表，再把版本号加一，所有线程的所有槽位一次性失效
+ *      写入越少命中率越高，适合配置、路由表这类读写比极高的数据；写入频繁时每次读取都会失效，反而多一次数组访问
+ *
+ *      所有写入必须通过本类进行，直接修改内部的 MyConcurrentMap 不会更新版本号
+ *      近端缓存使用 ThreadLocal，线程池中的线程长期复用；虚拟线程每个线程一份，生命周期短，命中率会很低
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 22:40
+ * @Version 1.0
+ */
+public class MyNearCacheMap<K extends Comparable<K>, V> {
+
+    /** 默认每个线程的槽位数 */
+    static final int DEFAULT_SLOTS = 256;
+
+    /** 最大槽位数 */
+    static final int MAX_SLOTS = 1 << 16;
+
+    /** 线程本地累计的命中次数达到该值时汇总到 hits */
+    static final int FLUSH_HITS = 64;
+
+    @SuppressWarnings("rawtypes")
+    static final AtomicLongFieldUpdater<MyNearCacheMap> EPOCH =
+            AtomicLongFieldUpdater.newUpdater(MyNearCacheMap.class, "epoch");
+
+    /** 数据存储 */
+    final MyConcurrentMap<K, V> data;
+
+    /** 修改版本号，每次写入后加一 */
+    volatile long epoch;
+
+    /** 每个线程的槽位数，2 的幂 */
+    final int slots;
+
+    /** 槽位下标取哈希值乘积的高位，右移位数 = 32 - log2(slots) */
+    final int slotShift;
+
+    /** 线程本地缓存 */
+    final ThreadLocal<NearCache<K, V>> nearCache;
+
+    /**
+     * 命中、未命中计数
+     *      不再保存各线程缓存的列表来汇总：线程池换线程或使用虚拟线程时列表只增不减，已结束线程的缓存和其中的 key、值无法回收
+     *      近端缓存只由 ThreadLocal 引用，线程结束后随之回收
+     *      命中路径不访问共享计数：先累计在线程本地，每 FLUSH_HITS 次或下一次未命中时汇总，未命中本来就要读共享哈希表
+     */
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+
+    public MyNearCacheMap() {
+        this(DEFAULT_SLOTS, false);
+    }
+
+    /**
+     * @param slots 每个线程的槽位数，向上取 2 的幂，最大 MAX_SLOTS
+     * @param casBinLock 是否使用 CAS 桶锁
+     */
+    public MyNearCacheMap(int slots, boolean casBinLock) {
+
+        if (slots <= 0) {
+            throw new IllegalArgumentException("slots must be positive");
+        }
+
+        int n = 1;
+        while (n < slots && n < MAX_SLOTS) {
+            n <<= 1;
+        }
+
+        this.slots = n;
+        this.slotShift = 32 - Integer.numberOfTrailingZeros(n);
+        this.data = new MyConcurrentMap<K, V>(casBinLock);
+        this.nearCache = ThreadLocal.withInitial(() -> new NearCache<K, V>(this.slots));
+
+    }
+
+    /**
+     * 获取元素：先查线程本地缓存，版本号一致时直接返回
+     * @param k 键
+     * @return 值，不存在返回 null
+     */
+    public V get(K k) {
+
+        if (k == null) {
+            return null;
+        }
+
+        /** 版本号必须在读共享哈希表之前读取 */
+        long e = epoch;
+        NearCache<K, V> cache = nearCache.get();
+        Slot<K, V>[] table = cache.table;
+        int i = slotIndex(k.hashCode());
+        Slot<K, V> s = table[i];
+
+        if (s != null && s.epoch == e && (s.key == k || s.key.equals(k))) {
+            if (++cache.hits == FLUSH_HITS) {
+                hits.add(FLUSH_HITS);
+                cache.hits = 0;
+            }
+            return s.value;
+        }
+
+        if (cache.hits != 0) {
+            hits.add(cache.hits);
+            cache.hits = 0;
+        }
+        misses.increment();
+        V v = data.get(k);
+        table[i] = new Slot<K, V>(k, v, e);
+        return v;
+
+    }
+
+    public V put(K k, V v) {
+        V old = data.putVal(k, v);
+        bump();
+        return old;
+    }
+
+    public V putIfAbsent(K k, V v) {
+        V existing = data.putIfAbsent(k, v);
+        if (existing == null) {
+            bump();
+        }
+        return existing;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> batch) {
+        data.putAll(batch);
+        bump();
+    }
+
+    public V remove(K k) {
+        V old = data.remove(k);
+        if (old != null) {
+            bump();
+        }
+        return old;
+    }
+
+    public boolean remove(K k, V expected) {
+        boolean removed = data.remove(k, expected);
+        if (removed) {
+            bump();
+        }
+        return removed;
+    }
+
+    public V replace(K k, V v) {
+        V old = data.replace(k, v);
+        if (old != null) {
+            bump();
+        }
+        return old;
+    }
+
+    public boolean replace(K k, V oldVal, V newVal) {
+        boolean replaced = data.replace(k, oldVal, newVal);
+        if (replaced) {
+            bump();
+        }
+        return replaced;
+    }
+
+    /**
+     * 使所有线程的近端缓存失效
+     */
+    public void invalidateAll() {
+        bump();
+    }
+
+    /**
+     * 遍历共享哈希表，不经过近端缓存
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        data.forEach(action);
+    }
+
+    public long size() {
+        return data.size();
+    }
+
+    public long epoch() {
+        return epoch;
+    }
+
+    /**
+     * 命中次数：只包含已汇总的部分，每个线程最多还有 FLUSH_HITS - 1 次命中累计在线程本地（线程结束时丢弃），只是近似值
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * 写入完成后再加一：读线程看到新版本号时，一定能在共享哈希表中看到这次写入
+     */
+    private void bump() {
+        EPOCH.incrementAndGet(this);
+    }
+
+    /**
+     * 斐波那契散列：乘以黄金分割数后取高位
+     *      槽位很少（默认256），只取低位时相似的字符串 key 容易落到同一个槽位互相挤掉，取高位时所有位都参与
+     */
+    int slotIndex(int h) {
+        return slotShift == 32 ? 0 : (h * 0x9E3779B9) >>> slotShift;
+    }
+
+    /**
+     * 单个线程的缓存，只被所属线程修改
+     */
+    static final class NearCache<K, V> {
+
+        final Slot<K, V>[] table;
+
+        /** 尚未汇总到 hits 的命中次数 */
+        int hits;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        NearCache(int slots) {
+            this.table = (Slot<K, V>[]) new Slot[slots];
+        }
+
+    }
+
+    /**
+     * 槽位，不可变，整体替换
+     */
+    static final class Slot<K, V> {
+
+        final K key;
+
+        /** 值，null 表示读取时不存在 */
+        final V value;
+
+        /** 读取前的版本号 */
+        final long epoch;
+
+        Slot(K key, V value, long epoch) {
+            this.key = key;
+            this.value = value;
+            this.epoch = epoch;
+        }
+
+    }
+
+}
@@ -0,0 +1,585 @@
+package cn.map;
+
+import java.util.function.BiConsumer;
+
+/**
+ * @Description: 持久化（不可变）哈希表，体现：哈希数组映射前缀树（HAMT）+ 结构共享 + 临时可变批量修改（transient）
+ *
+ *      树结构：哈希值每 5 位为一层，每个节点最多 32 个分支，用 32 位的位图记录哪些分支存在，数组只存放存在的分支（按位图中 1 的个数压缩）
+ *          分支为 key、value 或者子节点；哈希值完全相同的 key 放在冲突节点中，按顺序比较
+ *          最多 7 层，查找、修改为 O(log32 n)，100 万个元素只有 4 层
+ *      不可变：put、remove 不修改当前版本，而是复制从根到修改位置的路径（每层一个小数组），其余子树与旧版本共享，返回新版本
+ *          “分叉”一个版本就是直接持有它的引用，O(1)，各个分叉之后的修改互不影响；与 MyHashMap 逐个复制 O(n) 相比，适合频繁做“假如”计算
+ *      批量修改：asTransient 得到一个临时可变的版本，节点带有创建它的 transient 的标记，标记相同的节点原地修改，不再逐次复制路径，
+ *          persistent 结束后标记失效，之后这些节点与普通节点一样不可变
+ *
+ *      key、value 不能为 null；版本本身是不可变的，可以在线程之间任意传递，transient 只能在一个线程中使用
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/19 02:20
+ * @Version 1.0
+ */
+public class MyPersistentHashMap<K extends Comparable<K>, V> {
+
+    /** 每层的位数 */
+    static final int BITS = 5;
+
+    static final int MASK = (1 << BITS) - 1;
+
+    @SuppressWarnings("rawtypes")
+    static final MyPersistentHashMap EMPTY = new MyPersistentHashMap(null, 0);
+
+    /** 根节点，空表为 null */
+    final Node root;
+
+    final int size;
+
+    MyPersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * 空表
+     */
+    @SuppressWarnings("unchecked")
+    public static <K extends Comparable<K>, V> MyPersistentHashMap<K, V> empty() {
+        return (MyPersistentHashMap<K, V>) EMPTY;
+    }
+
+    /**
+     * 从 MyHashMap 复制（一次 O(n)，之后的分叉都是 O(1)）
+     */
+    public static <K extends Comparable<K>, V> MyPersistentHashMap<K, V> from(MyHashMap<K, V> source) {
+        Transient<K, V> t = MyPersistentHashMap.<K, V>empty().asTransient();
+        source.forEach(t::put);
+        return t.persistent();
+    }
+
+    static int hash(Object k) {
+        int h = k.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 获取元素
+     * @param k key
+     * @return 值，不存在返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K k) {
+        return k == null || root == null ? null : (V) root.find(0, hash(k), k);
+    }
+
+    public boolean containsKey(K k) {
+        return get(k) != null;
+    }
+
+    /**
+     * 添加或覆盖
+     * @return 新版本，值没有变化时返回当前版本
+     */
+    public MyPersistentHashMap<K, V> put(K k, V v) {
+
+        if (k == null || v == null) {
+            throw new NullPointerException("key or value not null");
+        }
+
+        Box added = new Box();
+        Node r = (root == null ? BitmapNode.EMPTY : root).assoc(null, 0, hash(k), k, v, added);
+        return r == root ? this : new MyPersistentHashMap<K, V>(r, added.value ? size + 1 : size);
+
+    }
+
+    /**
+     * 删除
+     * @return 新版本，key 不存在时返回当前版本
+     */
+    public MyPersistentHashMap<K, V> remove(K k) {
+
+        if (k == null || root == null) {
+            return this;
+        }
+
+        Box removed = new Box();
+        Node r = root.without(null, 0, hash(k), k, removed);
+        if (r == root) {
+            return this;
+        }
+        return r == null ? MyPersistentHashMap.<K, V>empty() : new MyPersistentHashMap<K, V>(r, size - 1);
+
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 遍历，顺序由哈希值决定
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null) {
+            root.forEach((BiConsumer<Object, Object>) action);
+        }
+    }
+
+    /**
+     * 复制为 MyHashMap
+     */
+    public MyHashMap<K, V> toMyHashMap() {
+        MyHashMap<K, V> map = new MyHashMap<K, V>();
+        forEach(map::put);
+        return map;
+    }
+
+    /**
+     * 批量修改：返回基于当前版本的临时可变版本，当前版本不受影响
+     */
+    public Transient<K, V> asTransient() {
+        return new Transient<K, V>(root, size);
+    }
+
+    /**
+     * 临时可变版本：只复制第一次修改到的节点，之后原地修改；persistent 之后不能再使用
+     */
+    public static final class Transient<K extends Comparable<K>, V> {
+
+        /** 修改标记：节点的标记与它相同时可以原地修改，为 null 表示已经结束 */
+        Object edit = new Object();
+
+        Node root;
+
+        int size;
+
+        final Box box = new Box();
+
+        Transient(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public Transient<K, V> put(K k, V v) {
+
+            if (k == null || v == null) {
+                throw new NullPointerException("key or value not null");
+            }
+
+            Object e = ensureEditable();
+            box.value = false;
+            root = (root == null ? BitmapNode.EMPTY : root).assoc(e, 0, hash(k), k, v, box);
+            if (box.value) {
+                size++;
+            }
+            return this;
+
+        }
+
+        public Transient<K, V> remove(K k) {
+
+            Object e = ensureEditable();
+            if (k == null || root == null) {
+                return this;
+            }
+
+            box.value = false;
+            root = root.without(e, 0, hash(k), k, box);
+            if (box.value) {
+                size--;
+            }
+            return this;
+
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(K k) {
+            ensureEditable();
+            return k == null || root == null ? null : (V) root.find(0, hash(k), k);
+        }
+
+        public int size() {
+            ensureEditable();
+            return size;
+        }
+
+        /**
+         * 结束批量修改，返回不可变版本
+         */
+        public MyPersistentHashMap<K, V> persistent() {
+            ensureEditable();
+            edit = null;
+            return size == 0 ? MyPersistentHashMap.<K, V>empty() : new MyPersistentHashMap<K, V>(root, size);
+        }
+
+        private Object ensureEditable() {
+            if (edit == null) {
+                throw new IllegalStateException("transient used after persistent() call");
+            }
+            return edit;
+        }
+
+    }
+
+    /**
+     * 修改结果：是否新增、是否删除
+     */
+    static final class Box {
+        boolean value;
+    }
+
+    /**
+     * 节点
+     *      edit 为创建节点的 transient 的标记，持久版本创建的节点为 null；
+     *      只有传入的标记不为 null 且与节点的标记相同时才原地修改
+     */
+    abstract static class Node {
+
+        final Object edit;
+
+        Node(Object edit) {
+            this.edit = edit;
+        }
+
+        final boolean editable(Object e) {
+            return e != null && edit == e;
+        }
+
+        /**
+         * @param shift 当前层使用哈希值的第 shift 位开始的 5 位
+         * @return 值，不存在返回 null
+         */
+        abstract Object find(int shift, int hash, Object key);
+
+        /**
+         * @param added 新增时设为 true
+         * @return 修改后的节点，没有变化时返回自身
+         */
+        abstract Node assoc(Object e, int shift, int hash, Object key, Object value, Box added);
+
+        /**
+         * @param removed 删除时设为 true
+         * @return 删除后的节点，为空时返回 null，没有变化时返回自身
+         */
+        abstract Node without(Object e, int shift, int hash, Object key, Box removed);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+
+    }
+
+    /**
+     * 位图节点：array 中每个分支占两个位置，[key, value] 或 [null, 子节点]
+     */
+    static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        int bitmap;
+
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        static int bitpos(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        /** 分支在压缩数组中的下标：位图中比它低的 1 的个数 */
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+
+            int i = index(bit) << 1;
+            Object k = array[i], v = array[i + 1];
+            if (k == null) {
+                return ((Node) v).find(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? v : null;
+
+        }
+
+        @Override
+        Node assoc(Object e, int shift, int hash, Object key, Object value, Box added) {
+
+            int bit = bitpos(hash, shift), idx = index(bit), i = idx << 1;
+
+            if ((bitmap & bit) != 0) {
+
+                Object k = array[i], v = array[i + 1];
+
+                if (k == null) {
+                    Node n = ((Node) v).assoc(e, shift + BITS, hash, key, value, added);
+                    return n == v ? this : editAndSet(e, i + 1, n);
+                }
+
+                if (key.equals(k)) {
+                    return v == value ? this : editAndSet(e, i + 1, value);
+                }
+
+                /** 同一分支上已有另一个 key：下沉为子节点 */
+                added.value = true;
+                Node sub = createNode(e, shift + BITS, k, v, hash, key, value);
+                return editAndSet(e, i, null, i + 1, sub);
+
+            }
+
+            added.value = true;
+            int n = Integer.bitCount(bitmap);
+
+            /** transient 的节点有预留空间时原地插入 */
+            if (editable(e) && (n << 1) < array.length) {
+                System.arraycopy(array, i, array, i + 2, (n - idx) << 1);
+                array[i] = key;
+                array[i + 1] = value;
+                bitmap |= bit;
+                return this;
+            }
+
+            /** transient 多预留 4 个分支，避免每次插入都复制；持久版本按实际大小分配 */
+            Object[] copy = new Object[(n + (e != null ? 4 : 1)) << 1];
+            System.arraycopy(array, 0, copy, 0, i);
+            copy[i] = key;
+            copy[i + 1] = value;
+            System.arraycopy(array, i, copy, i + 2, (n - idx) << 1);
+
+            if (editable(e)) {
+                array = copy;
+                bitmap |= bit;
+                return this;
+            }
+            return new BitmapNode(e, bitmap | bit, copy);
+
+        }
+
+        @Override
+        Node without(Object e, int shift, int hash, Object key, Box removed) {
+
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+
+            int i = index(bit) << 1;
+            Object k = array[i], v = array[i + 1];
+
+            if (k == null) {
+
+                Node n = ((Node) v).without(e, shift + BITS, hash, key, removed);
+                if (n == v) {
+                    return this;
+                }
+                if (n == null) {
+                    return bitmap == bit ? null : editAndRemovePair(e, bit, i);
+                }
+
+                /** 子节点只剩一个 key 时提升到当前层，减少查找的层数 */
+                if (n instanceof BitmapNode) {
+                    BitmapNode b = (BitmapNode) n;
+                    if (Integer.bitCount(b.bitmap) == 1 && b.array[0] != null) {
+                        return editAndSet(e, i, b.array[0], i + 1, b.array[1]);
+                    }
+                }
+                return editAndSet(e, i + 1, n);
+
+            }
+
+            if (!key.equals(k)) {
+                return this;
+            }
+
+            removed.value = true;
+            return bitmap == bit ? null : editAndRemovePair(e, bit, i);
+
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0, n = Integer.bitCount(bitmap) << 1; i < n; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+
+        private BitmapNode editAndSet(Object e, int i, Object a) {
+            BitmapNode n = editable(e) ? this : new BitmapNode(e, bitmap, array.clone());
+            n.array[i] = a;
+            return n;
+        }
+
+        private BitmapNode editAndSet(Object e, int i, Object a, int j, Object b) {
+            BitmapNode n = editable(e) ? this : new BitmapNode(e, bitmap, array.clone());
+            n.array[i] = a;
+            n.array[j] = b;
+            return n;
+        }
+
+        private BitmapNode editAndRemovePair(Object e, int bit, int i) {
+
+            int len = Integer.bitCount(bitmap) << 1;
+
+            if (editable(e)) {
+                bitmap ^= bit;
+                System.arraycopy(array, i + 2, array, i, len - i - 2);
+                array[len - 2] = null;
+                array[len - 1] = null;
+                return this;
+            }
+
+            Object[] copy = new Object[len - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, len - i - 2);
+            return new BitmapNode(e, bitmap ^ bit, copy);
+
+        }
+
+        /**
+         * 两个 key 落在同一分支：逐层下沉直到哈希值的 5 位不同；哈希值完全相同时放入冲突节点
+         */
+        static Node createNode(Object e, int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+
+            int h1 = hash(k1);
+            if (h1 == h2) {
+                return new CollisionNode(e, h1, new Object[]{k1, v1, k2, v2});
+            }
+
+            int b1 = bitpos(h1, shift), b2 = bitpos(h2, shift);
+            if (b1 == b2) {
+                return new BitmapNode(e, b1, new Object[]{null, createNode(e, shift + BITS, k1, v1, h2, k2, v2)});
+            }
+
+            /** 按分支下标排列（不能直接比较 b1、b2，第 31 个分支的位为负数） */
+            return ((h1 >>> shift) & MASK) < ((h2 >>> shift) & MASK)
+                    ? new BitmapNode(e, b1 | b2, new Object[]{k1, v1, k2, v2})
+                    : new BitmapNode(e, b1 | b2, new Object[]{k2, v2, k1, v1});
+
+        }
+
+    }
+
+    /**
+     * 冲突节点：哈希值完全相同的 key，array 为 [key, value] 连续存放
+     */
+    static final class CollisionNode extends Node {
+
+        final int hash;
+
+        Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            if (hash != this.hash) {
+                return null;
+            }
+            int i = indexOf(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        Node assoc(Object e, int shift, int hash, Object key, Object value, Box added) {
+
+            /** 哈希值不同：把冲突节点放进一个位图节点，再添加 */
+            if (hash != this.hash) {
+                return new BitmapNode(e, BitmapNode.bitpos(this.hash, shift), new Object[]{null, this})
+                        .assoc(e, shift, hash, key, value, added);
+            }
+
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                CollisionNode n = editable(e) ? this : new CollisionNode(e, hash, array.clone());
+                n.array[i + 1] = value;
+                return n;
+            }
+
+            added.value = true;
+            Object[] copy = new Object[array.length + 2];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            if (editable(e)) {
+                array = copy;
+                return this;
+            }
+            return new CollisionNode(e, hash, copy);
+
+        }
+
+        @Override
+        Node without(Object e, int shift, int hash, Object key, Box removed) {
+
+            if (hash != this.hash) {
+                return this;
+            }
+
+            int i = indexOf(key);
+            if (i < 0) {
+                return this;
+            }
+
+            removed.value = true;
+            if (array.length == 2) {
+                return null;
+            }
+
+            /** 只剩一个 key：变成单分支的位图节点，由上一层提升 */
+            if (array.length == 4) {
+                int j = i == 0 ? 2 : 0;
+                return new BitmapNode(e, BitmapNode.bitpos(hash, shift), new Object[]{array[j], array[j + 1]});
+            }
+
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            if (editable(e)) {
+                array = copy;
+                return this;
+            }
+            return new CollisionNode(e, hash, copy);
+
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,243 @@
+package cn.map;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * @Description: 分片的线程安全哈希表，体现：分段思想（类似 JDK 7 ConcurrentHashMap 的 Segment）
+ *
+ *      单个 MyConcurrentMap 只有一个数组：sizeCtl、计数、扩容都是全局的，扩容迁移期间所有写入都要协助迁移
+ *      分片模式把 key 按哈希值的高位分到 N 个互相独立的 MyConcurrentMap 上：
+ *          每个分片独立扩容、独立计数，一次扩容只影响 1/N 的 key
+ *          分片选择使用哈希值高位，分片内部的桶下标使用低位，两者互不相关，key 在分片内依然分布均匀
+ *      size() 为各分片之和，forEach 依次遍历各分片，都是弱一致性的
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 21:40
+ * @Version 1.0
+ */
+public class MyShardedConcurrentMap<K extends Comparable<K>, V> {
+
+    /** 最大分片数 */
+    static final int MAX_SHARDS = 1 << 8;
+
+    /** 分片 */
+    final MyConcurrentMap<K, V>[] shards;
+
+    /** 哈希值右移位数，取高位作为分片下标 */
+    final int shift;
+
+    /**
+     * 分片数按 CPU 核数计算：核数 * 4 向上取 2 的幂，写入线程越多分片越多
+     */
+    public MyShardedConcurrentMap() {
+        this(Runtime.getRuntime().availableProcessors() * 4, false);
+    }
+
+    /**
+     * @param shards 分片数，向上取 2 的幂，最大 MAX_SHARDS
+     * @param casBinLock 是否使用 CAS 桶锁
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MyShardedConcurrentMap(int shards, boolean casBinLock) {
+
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive");
+        }
+
+        int n = 1;
+        while (n < shards && n < MAX_SHARDS) {
+            n <<= 1;
+        }
+
+        this.shards = new MyConcurrentMap[n];
+        for (int i = 0; i < n; i++) {
+            this.shards[i] = new MyConcurrentMap<K, V>(casBinLock);
+        }
+
+        /** n 为 1 时移 32 位在 Java 中等于不移位，单独处理 */
+        this.shift = 32 - Integer.numberOfTrailingZeros(n);
+
+    }
+
+    /**
+     * 根据 key 选择分片
+     *      先乘以黄金分割常数打散，再取高位：MyConcurrentMap 桶下标只用低位，两者不会互相影响
+     */
+    final MyConcurrentMap<K, V> shardFor(K k) {
+        return shards[shardIndex(k)];
+    }
+
+    final int shardIndex(K k) {
+        if (shards.length == 1) {
+            return 0;
+        }
+        return (k.hashCode() * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * 批量添加：先按分片拆分，再交给各分片按桶分组添加
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void putAll(Map<? extends K, ? extends V> batch) {
+
+        if (shards.length == 1) {
+            shards[0].putAll(batch);
+            return;
+        }
+
+        Map<K, V>[] parts = new Map[shards.length];
+        for (Map.Entry<? extends K, ? extends V> e : batch.entrySet()) {
+
+            if (e.getKey() == null || e.getValue() == null) {
+                throw new NullPointerException("key or value not null");
+            }
+
+            int i = shardIndex(e.getKey());
+            if (parts[i] == null) {
+                parts[i] = new HashMap<K, V>();
+            }
+            parts[i].put(e.getKey(), e.getValue());
+
+        }
+
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != null) {
+                shards[i].putAll(parts[i]);
+            }
+        }
+
+    }
+
+    /**
+     * 批量查询：先按分片拆分，再交给各分片按桶分组查询
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+
+        if (shards.length == 1) {
+            return shards[0].getAll(keys);
+        }
+
+        List<K>[] parts = new List[shards.length];
+        for (K k : keys) {
+            if (k != null) {
+                int i = shardIndex(k);
+                if (parts[i] == null) {
+                    parts[i] = new ArrayList<K>();
+                }
+                parts[i].add(k);
+            }
+        }
+
+        Map<K, V> found = new HashMap<K, V>();
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != null) {
+                found.putAll(shards[i].getAll(parts[i]));
+            }
+        }
+
+        return found;
+
+    }
+
+    public V putVal(K k, V v) {
+        if (k == null || v == null) {
+            throw new NullPointerException("key or value not null");
+        }
+        return shardFor(k).putVal(k, v);
+    }
+
+    public V putIfAbsent(K k, V v) {
+        if (k == null || v == null) {
+            throw new NullPointerException("key or value not null");
+        }
+        return shardFor(k).putIfAbsent(k, v);
+    }
+
+    public V get(K k) {
+        return k == null ? null : shardFor(k).get(k);
+    }
+
+    public V remove(K k) {
+        return k == null ? null : shardFor(k).remove(k);
+    }
+
+    public boolean remove(K k, V expected) {
+        return k != null && shardFor(k).remove(k, expected);
+    }
+
+    public V replace(K k, V v) {
+        if (k == null) {
+            throw new NullPointerException("key or value not null");
+        }
+        return shardFor(k).replace(k, v);
+    }
+
+    public boolean replace(K k, V oldVal, V newVal) {
+        if (k == null) {
+            throw new NullPointerException("key or value not null");
+        }
+        return shardFor(k).replace(k, oldVal, newVal);
+    }
+
+    /**
+     * 元素个数：各分片之和
+     */
+    public long size() {
+        long n = 0;
+        for (MyConcurrentMap<K, V> shard : shards) {
+            n += shard.size();
+        }
+        return n;
+    }
+
+    /**
+     * 各分片元素个数，用于观察分布是否均匀
+     */
+    public long[] shardSizes() {
+        long[] sizes = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            sizes[i] = shards[i].size();
+        }
+        return sizes;
+    }
+
+    /**
+     * 分片数
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 依次遍历各分片（弱一致性）
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (MyConcurrentMap<K, V> shard : shards) {
+            shard.forEach(action);
+        }
+    }
+
+    /**
+     * 依次压缩各分片（各分片删除之后也会各自自动缩容）
+     */
+    public void compact() {
+        for (MyConcurrentMap<K, V> shard : shards) {
+            shard.compact();
+        }
+    }
+
+    /**
+     * 某个分片的诊断快照
+     * @param shard 分片下标
+     */
+    public MyConcurrentMapDiagnostics diagnostics(int shard) {
+        return shards[shard].diagnostics();
+    }
+
+}
@@ -0,0 +1,431 @@
+package cn.map;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * @Description: 基于 MyConcurrentMap 的多 key 事务，体现：乐观并发控制（类似 TL2 软件事务内存）
+ *
+ *      版本表：key 按哈希值分到固定数量的条带（stripe），每个条带一个版本号，最低位为 1 表示正在提交（加锁）
+ *          条带数量固定，不随 MyConcurrentMap 扩缩容变化，事务读到的版本号在扩容前后依然可以比较
+ *      事务执行：
+ *          读：读到自己写过的 key 直接返回缓冲的值；否则读条带版本 -> 读值 -> 再读版本，两次一致才算读到，
+ *              记入读集合，并校验读集合中之前的版本都没有变化（事务内看到的始终是某一时刻的一致状态，不会读到提交了一半的数据）
+ *          写：只写入事务自己的缓冲，提交之前其他线程看不到
+ *          提交：写集合涉及的条带按下标从小到大加锁（不会死锁），校验读集合，写入 MyConcurrentMap，版本号 + 2 并解锁；
+ *               任何一步发现版本变化都放弃并重新执行事务
+ *      不同条带上的事务互不影响，随核数扩展；单 key 的 get/put/remove 相当于只有一个条带的事务
+ *
+ *      所有写入必须通过本类进行，直接修改内部的 MyConcurrentMap 不会更新版本号；事务方法体可能被执行多次，不能有外部副作用
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/19 00:30
+ * @Version 1.0
+ */
+public class MyTransactionalMap<K extends Comparable<K>, V> {
+
+    /** 默认条带数 */
+    static final int DEFAULT_STRIPES = 1 << 12;
+
+    /** 最大条带数 */
+    static final int MAX_STRIPES = 1 << 20;
+
+    /** 等待加锁的条带时先自旋的次数 */
+    static final int SPINS = 64;
+
+    /** 事务冲突，重新执行（不需要堆栈） */
+    static final RuntimeException CONFLICT = new RuntimeException("transaction conflict", null, false, false) {
+    };
+
+    /** 数据存储 */
+    final MyConcurrentMap<K, V> data;
+
+    /** 条带版本号，偶数未加锁，奇数正在提交 */
+    final AtomicLongArray versions;
+
+    final int mask;
+
+    /** 统计 */
+    final LongAdder commitCount = new LongAdder();
+    final LongAdder conflictCount = new LongAdder();
+
+    public MyTransactionalMap() {
+        this(DEFAULT_STRIPES, false);
+    }
+
+    /**
+     * @param stripes 条带数，向上取 2 的幂，最大 MAX_STRIPES；越多冲突越少，只读版本号数组的内存越大
+     * @param casBinLock 是否使用 CAS 桶锁
+     */
+    public MyTransactionalMap(int stripes, boolean casBinLock) {
+
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+
+        int n = 1;
+        while (n < stripes && n < MAX_STRIPES) {
+            n <<= 1;
+        }
+
+        this.data = new MyConcurrentMap<K, V>(casBinLock);
+        this.versions = new AtomicLongArray(n);
+        this.mask = n - 1;
+
+    }
+
+    /**
+     * 执行事务，冲突时自动重试直到提交成功
+     * @param body 事务方法体，通过参数读写；抛出异常时放弃事务（不提交）并向外抛出
+     * @return 方法体的返回值
+     */
+    public <R> R atomically(Function<? super Transaction<K, V>, ? extends R> body) {
+
+        for (int attempt = 0; ; attempt++) {
+
+            Transaction<K, V> tx = new Transaction<K, V>(this);
+
+            try {
+                R result = body.apply(tx);
+                tx.commit();
+                commitCount.increment();
+                return result;
+            } catch (RuntimeException e) {
+                if (e != CONFLICT) {
+                    throw e;
+                }
+            }
+
+            conflictCount.increment();
+            backoff(attempt);
+
+        }
+
+    }
+
+    /**
+     * 读取单个 key，不会读到提交了一半的事务
+     */
+    public V get(K k) {
+
+        if (k == null) {
+            return null;
+        }
+
+        int s = stripe(k);
+        for (int spins = 0; ; spins++) {
+
+            long v1 = versions.get(s);
+            if ((v1 & 1L) != 0) {
+                waitUnlocked(spins);
+                continue;
+            }
+
+            V val = data.get(k);
+            if (versions.get(s) == v1) {
+                return val;
+            }
+
+        }
+
+    }
+
+    public V put(K k, V v) {
+
+        if (k == null || v == null) {
+            throw new NullPointerException("key or value not null");
+        }
+
+        int s = stripe(k);
+        long v0 = lock(s);
+        try {
+            return data.putVal(k, v);
+        } finally {
+            versions.set(s, v0 + 2);
+        }
+
+    }
+
+    public V remove(K k) {
+
+        if (k == null) {
+            return null;
+        }
+
+        int s = stripe(k);
+        long v0 = lock(s);
+        try {
+            return data.remove(k);
+        } finally {
+            versions.set(s, v0 + 2);
+        }
+
+    }
+
+    /**
+     * 遍历（弱一致性），需要一致的多 key 读取时使用只读事务
+     */
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+        data.forEach(action);
+    }
+
+    public long size() {
+        return data.size();
+    }
+
+    public long commitCount() {
+        return commitCount.sum();
+    }
+
+    /**
+     * 冲突重试次数
+     */
+    public long conflictCount() {
+        return conflictCount.sum();
+    }
+
+    int stripe(K k) {
+        int h = k.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * 加锁条带：版本号从偶数 CAS 为奇数
+     * @return 加锁前的版本号
+     */
+    long lock(int s) {
+
+        for (int spins = 0; ; spins++) {
+
+            long v = versions.get(s);
+            if ((v & 1L) == 0 && versions.compareAndSet(s, v, v | 1L)) {
+                return v;
+            }
+
+            waitUnlocked(spins);
+
+        }
+
+    }
+
+    /**
+     * 提交只持有很短时间的锁，先自旋，再让出 CPU
+     */
+    static void waitUnlocked(int spins) {
+        if (spins >= SPINS) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 冲突后退避：重试次数越多等待越久（最多约 1 毫秒），避免冲突的事务同时重试再次冲突
+     */
+    static void backoff(int attempt) {
+        if (attempt > 0) {
+            LockSupport.parkNanos(1000L << Math.min(attempt, 10));
+        }
+    }
+
+    /**
+     * 事务，只能在 atomically 的方法体中由当前线程使用
+     */
+    @SuppressWarnings("unchecked")
+    public static final class Transaction<K extends Comparable<K>, V> {
+
+        final MyTransactionalMap<K, V> map;
+
+        /** 读集合：条带、读到的版本号 */
+        int[] readStripes = new int[8];
+        long[] readVersions = new long[8];
+        int reads;
+
+        /** 写缓冲，值为 null 表示删除；事务通常只涉及几个 key，用数组顺序查找比 HashMap 更省 */
+        Object[] writeKeys = new Object[4];
+        Object[] writeValues = new Object[4];
+        int writes;
+
+        Transaction(MyTransactionalMap<K, V> map) {
+            this.map = map;
+        }
+
+        /**
+         * 事务内读取
+         * @throws RuntimeException 冲突（由 atomically 捕获并重试，方法体不要捕获）
+         */
+        public V get(K k) {
+
+            if (k == null) {
+                return null;
+            }
+
+            int w = indexOfWrite(k);
+            if (w >= 0) {
+                return (V) writeValues[w];
+            }
+
+            int s = map.stripe(k);
+            for (int spins = 0; ; spins++) {
+
+                long v1 = map.versions.get(s);
+                if ((v1 & 1L) != 0) {
+                    waitUnlocked(spins);
+                    continue;
+                }
+
+                V val = map.data.get(k);
+                if (map.versions.get(s) != v1) {
+                    continue;
+                }
+
+                record(s, v1);
+                validate();
+                return val;
+
+            }
+
+        }
+
+        /**
+         * 事务内写入，提交时生效
+         */
+        public void put(K k, V v) {
+            if (k == null || v == null) {
+                throw new NullPointerException("key or value not null");
+            }
+            bufferWrite(k, v);
+        }
+
+        /**
+         * 事务内删除，提交时生效
+         */
+        public void remove(K k) {
+            if (k != null) {
+                bufferWrite(k, null);
+            }
+        }
+
+        private int indexOfWrite(K k) {
+            for (int j = 0; j < writes; j++) {
+                if (writeKeys[j] == k || k.equals(writeKeys[j])) {
+                    return j;
+                }
+            }
+            return -1;
+        }
+
+        private void bufferWrite(K k, V v) {
+
+            int w = indexOfWrite(k);
+            if (w < 0) {
+                if (writes == writeKeys.length) {
+                    writeKeys = Arrays.copyOf(writeKeys, writes << 1);
+                    writeValues = Arrays.copyOf(writeValues, writes << 1);
+                }
+                w = writes++;
+                writeKeys[w] = k;
+            }
+            writeValues[w] = v;
+
+        }
+
+        /**
+         * 记入读集合：同一个条带只记一次，再次读到不同的版本说明中间有提交，冲突
+         */
+        private void record(int s, long version) {
+
+            for (int j = 0; j < reads; j++) {
+                if (readStripes[j] == s) {
+                    if (readVersions[j] != version) {
+                        throw CONFLICT;
+                    }
+                    return;
+                }
+            }
+
+            if (reads == readStripes.length) {
+                readStripes = Arrays.copyOf(readStripes, reads << 1);
+                readVersions = Arrays.copyOf(readVersions, reads << 1);
+            }
+            readStripes[reads] = s;
+            readVersions[reads++] = version;
+
+        }
+
+        /**
+         * 校验读集合：所有读过的条带版本号都没有变化
+         */
+        private void validate() {
+            for (int j = 0; j < reads; j++) {
+                if (map.versions.get(readStripes[j]) != readVersions[j]) {
+                    throw CONFLICT;
+                }
+            }
+        }
+
+        void commit() {
+
+            /** 只读事务：每次读取都已校验过，最后再校验一次 */
+            if (writes == 0) {
+                validate();
+                return;
+            }
+
+            /** 写集合的条带去重、排序 */
+            int n = writes;
+            int[] stripes = new int[n];
+            for (int j = 0; j < n; j++) {
+                stripes[j] = map.stripe((K) writeKeys[j]);
+            }
+            Arrays.sort(stripes);
+            int unique = 0;
+            for (int j = 0; j < n; j++) {
+                if (unique == 0 || stripes[unique - 1] != stripes[j]) {
+                    stripes[unique++] = stripes[j];
+                }
+            }
+
+            /** 按下标顺序加锁 */
+            long[] locked = new long[unique];
+            for (int j = 0; j < unique; j++) {
+                locked[j] = map.lock(stripes[j]);
+            }
+
+            boolean validated = false;
+            try {
+
+                /** 校验读集合：自己加锁的条带与加锁前的版本比较 */
+                for (int j = 0; j < reads; j++) {
+                    int s = readStripes[j];
+                    int pos = Arrays.binarySearch(stripes, 0, unique, s);
+                    long current = pos >= 0 ? locked[pos] : map.versions.get(s);
+                    if (current != readVersions[j]) {
+                        throw CONFLICT;
+                    }
+                }
+
+                validated = true;
+                for (int j = 0; j < n; j++) {
+                    if (writeValues[j] == null) {
+                        map.data.remove((K) writeKeys[j]);
+                    } else {
+                        map.data.putVal((K) writeKeys[j], (V) writeValues[j]);
+                    }
+                }
+
+            } finally {
+
+                /** 开始写入后版本号 + 2（即使写入中途异常），校验失败时恢复原版本号（读到它的事务不需要重试） */
+                for (int j = 0; j < unique; j++) {
+                    map.versions.set(stripes[j], validated ? locked[j] + 2 : locked[j]);
+                }
+
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package cn.map;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * @Description: MyConcurrentMap 的底层内存访问（Java 9+ 版本，基于 VarHandle）
+ *
+ *      打包在多版本 JAR 的 META-INF/versions/9 下，Java 9 及以上运行时替换 src/main/java 中基于 Unsafe 的同名类，
+ *      不再需要反射获取 Unsafe，也不需要自己计算数组元素偏移量（ABASE/ASHIFT）
+ *
+ *      内存语义：
+ *          tabAt、setTabAt：getVolatile、setVolatile，与 Java 8 版本的 getObjectVolatile、putObjectVolatile 一致
+ *          CAS：完整的 volatile 语义，与 Java 8 版本一致
+ *          loadFence：acquireFence，与 Unsafe.loadFence 等价
+ *          节点的 value、next 以及 transferIndex 都是 volatile 字段，直接读写，不经过本类
+ *
+ *      更弱的内存序（release/acquire/opaque）需要先在多核机器上用 VarHandle 版本跑过压力测试，在此之前保持 volatile 语义
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 20:30
+ * @Version 1.0
+ */
+final class ConcurrentMapAccess {
+
+    private static final VarHandle TAB = MethodHandles.arrayElementVarHandle(MyConcurrentMap.Node[].class);
+
+    private static final VarHandle SIZE_CTL;
+
+    private static final VarHandle TRANSFER_INDEX;
+
+    private static final VarHandle LOCK_STATE;
+
+    static {
+
+        try {
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            SIZE_CTL = lookup.findVarHandle(MyConcurrentMap.class, "sizeCtl", int.class);
+            TRANSFER_INDEX = lookup.findVarHandle(MyConcurrentMap.class, "transferIndex", int.class);
+            LOCK_STATE = lookup.findVarHandle(MyConcurrentMap.Node.class, "lockState", int.class);
+
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+    }
+
+    private ConcurrentMapAccess() {
+    }
+
+    static <K, V> MyConcurrentMap.Node<K, V> tabAt(MyConcurrentMap.Node<K, V>[] tab, int i) {
+        return (MyConcurrentMap.Node<K, V>) TAB.getVolatile(tab, i);
+    }
+
+    static <K, V> void setTabAt(MyConcurrentMap.Node<K, V>[] tab, int i, MyConcurrentMap.Node<K, V> node) {
+        TAB.setVolatile(tab, i, node);
+    }
+
+    static <K, V> boolean casTabAt(MyConcurrentMap.Node<K, V>[] tab, int i,
+                                   MyConcurrentMap.Node<K, V> c, MyConcurrentMap.Node<K, V> v) {
+        return TAB.compareAndSet(tab, i, c, v);
+    }
+
+    static boolean casSizeCtl(MyConcurrentMap<?, ?> map, int c, int v) {
+        return SIZE_CTL.compareAndSet(map, c, v);
+    }
+
+    static boolean casTransferIndex(MyConcurrentMap<?, ?> map, int c, int v) {
+        return TRANSFER_INDEX.compareAndSet(map, c, v);
+    }
+
+    static boolean casLockState(MyConcurrentMap.Node<?, ?> node, int c, int v) {
+        return LOCK_STATE.compareAndSet(node, c, v);
+    }
+
+    static int getAndSetLockState(MyConcurrentMap.Node<?, ?> node, int v) {
+        return (int) LOCK_STATE.getAndSet(node, v);
+    }
+
+    static void loadFence() {
+        VarHandle.acquireFence();
+    }
+
+}
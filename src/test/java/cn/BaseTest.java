@@ -1,11 +1,24 @@
 package cn;
 
 import cn.list.MyArrayList;
+import cn.map.MyBoundedCache;
 import cn.map.MyConcurrentMap;
+import cn.map.MyConcurrentMapChangeStream;
+import cn.map.MyConcurrentMapHarness;
+import cn.map.MyConcurrentMapSnapshot;
+import cn.map.MyCounterMap;
+import cn.map.MyCuckooConcurrentMap;
+import cn.map.MyExpiringMap;
+import cn.map.MyFrozenHashMap;
 import cn.map.MyHashMap;
+import cn.map.MyHashMapStats;
+import cn.map.MyLoadingMap;
+import cn.map.MyNearCacheMap;
+import cn.map.MyPersistentHashMap;
+import cn.map.MyShardedConcurrentMap;
+import cn.map.MyTransactionalMap;
 import cn.tree.BinarySearchTree;
 import cn.tree.RedBlackTree;
-import javafx.concurrent.Worker;
 
 import java.util.Scanner;
 
@@ -24,36 +37,758 @@ public class BaseTest {
     }
 
     /**
-     * 线程安全集合测试
+     * 线程安全集合测试：虚拟线程（JDK 21+）与平台线程池分别压测，读写删比例 70/25/5，Zipf 热点 key
      */
     public static void myConcurrentMap(){
 
-        // 创建一个 ConcurrentHashMap
-        MyConcurrentMap<String, Integer> map = new MyConcurrentMap<>();
+        for (boolean casBinLock : new boolean[]{false, true}) {
 
-        // 创建并启动多个线程，向 ConcurrentHashMap 中添加元素
-        for (int i = 0; i < 20; i++) {
-            String key = "Key-" + i;
-            Thread thread = new Thread(()->{
-                // 模拟向 ConcurrentHashMap 中添加元素
-                for (int j = 0; j < 1000; j++) {
+            System.out.println("casBinLock=" + casBinLock);
+
+            MyConcurrentMapHarness.Result virtual = new MyConcurrentMapHarness()
+                    .tasks(10000).opsPerTask(500).casBinLock(casBinLock)
+                    .runOnVirtualThreads();
+            if (virtual != null) {
+                System.out.println(virtual);
+            }
+
+            System.out.println(new MyConcurrentMapHarness()
+                    .tasks(64).opsPerTask(50000).casBinLock(casBinLock)
+                    .runOnPlatformThreads());
+
+        }
+
+    }
+
+    /**
+     * 线程安全集合诊断测试：8个线程争抢少量热点key，采样桶锁竞争、热点key
+     */
+    public static void myConcurrentMapDiagnosticsTest(){
+
+        MyConcurrentMap<Integer, Integer> map = new MyConcurrentMap<>();
+        map.enableContentionSampling(1);
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(()->{
+                java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();
+                for (int j = 0; j < 200000; j++) {
+                    int key = random.nextInt(10) < 8 ? random.nextInt(4) : random.nextInt(100000);
                     map.putVal(key, j);
                 }
-                System.out.println(Thread.currentThread().getName() + " 完成了对 ConcurrentHashMap 的操作：" + map.get(key));
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println(map.diagnostics());
+        System.out.println(map.lockProfile(5));
+
+    }
+
+    /**
+     * 桶锁策略对比：32个线程写4个热点key，分别使用 synchronized 和 CAS 桶锁
+     */
+    public static void myConcurrentMapBinLockTest(){
+
+        for (boolean casBinLock : new boolean[]{false, true}) {
+
+            MyConcurrentMap<Integer, Integer> map = new MyConcurrentMap<>(casBinLock);
+            long start = System.nanoTime();
+
+            Thread[] threads = new Thread[32];
+            for (int i = 0; i < threads.length; i++) {
+                int id = i;
+                threads[i] = new Thread(()->{
+                    for (int j = 0; j < 100000; j++) {
+                        map.putVal(j & 3, id);
+                    }
+                    map.putVal(100 + id, id);
+                });
+                threads[i].start();
+            }
+
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            System.out.println("casBinLock=" + casBinLock + " size=" + map.size()
+                    + " ms=" + (System.nanoTime() - start) / 1000000);
+
+        }
+
+    }
+
+    /**
+     * 批量写入对比：每批 10000 个 key，1、8、32 个线程分别用逐个 putVal 和 putAll 写入 64 批，再分别用 get 和 getAll 读回
+     *      第一轮为预热，不输出
+     */
+    public static void myConcurrentMapBatchTest(){
+
+        int batches = 64, batchSize = 10000;
+        java.util.List<java.util.Map<Integer, Integer>> data = new java.util.ArrayList<>();
+        java.util.Random random = new java.util.Random(41);
+        for (int b = 0; b < batches; b++) {
+            java.util.Map<Integer, Integer> batch = new java.util.HashMap<>();
+            while (batch.size() < batchSize) {
+                batch.put(random.nextInt(), b);
+            }
+            data.add(batch);
+        }
+
+        for (int round = 0; round < 2; round++) {
+            for (int threads : new int[]{1, 8, 32}) {
+
+                long[] ms = new long[4];
+                for (int mode = 0; mode < 2; mode++) {
+
+                    boolean batched = mode == 1;
+                    MyConcurrentMap<Integer, Integer> map = new MyConcurrentMap<>();
+
+                    ms[mode] = runBatches(threads, batches, b -> {
+                        if (batched) {
+                            map.putAll(data.get(b));
+                        } else {
+                            data.get(b).forEach(map::putVal);
+                        }
+                    });
 
+                    ms[mode + 2] = runBatches(threads, batches, b -> {
+                        if (batched) {
+                            map.getAll(data.get(b).keySet());
+                        } else {
+                            java.util.Map<Integer, Integer> found = new java.util.HashMap<>();
+                            for (Integer key : data.get(b).keySet()) {
+                                found.put(key, map.get(key));
+                            }
+                        }
+                    });
+
+                }
+
+                if (round > 0) {
+                    System.out.println("threads=" + threads + " putVal=" + ms[0] + "ms putAll=" + ms[1]
+                            + "ms get=" + ms[2] + "ms getAll=" + ms[3] + "ms");
+                }
+
+            }
+        }
+
+    }
+
+    /**
+     * 多个线程按批次下标领取任务执行，返回总耗时（毫秒）
+     */
+    private static long runBatches(int threads, int batches, java.util.function.IntConsumer task) {
+
+        java.util.concurrent.atomic.AtomicInteger next = new java.util.concurrent.atomic.AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                for (int b; (b = next.getAndIncrement()) < batches; ) {
+                    task.accept(b);
+                }
             });
-            thread.start();
+            workers[i].start();
         }
 
-        // 等待所有线程执行完毕
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return (System.nanoTime() - start) / 1000000;
+
+    }
+
+    /**
+     * 分片模式测试：写入之后查看各分片元素个数是否均匀
+     */
+    public static void myShardedConcurrentMapTest(){
+
+        MyShardedConcurrentMap<Integer, Integer> map = new MyShardedConcurrentMap<>(16, false);
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            int base = i * 100000;
+            threads[i] = new Thread(()->{
+                for (int j = base; j < base + 100000; j++) {
+                    map.putVal(j, j);
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        long[] count = new long[1];
+        map.forEach((k, v) -> count[0]++);
+        System.out.println("shards=" + map.shardCount() + " size=" + map.size() + " iterated=" + count[0]
+                + " shardSizes=" + java.util.Arrays.toString(map.shardSizes()));
+
+    }
+
+    /**
+     * 有界缓存测试
+     *      热点key（前10%）占90%的访问，夹杂大量只访问一次的冷数据，W-TinyLFU 应该能把热点key留在缓存中
+     */
+    public static void myBoundedCacheTest(){
+
+        MyBoundedCache<Integer, Integer> cache = new MyBoundedCache<>(1000);
+
+        java.util.Random random = new java.util.Random(1);
+        for (int i = 0; i < 200000; i++) {
+
+            int key = random.nextInt(10) < 9 ? random.nextInt(1000) : 1000 + random.nextInt(1000000);
+
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+
+        }
+
+        cache.cleanUp();
+        System.out.println("size:" + cache.size() + " weightedSize:" + cache.weightedSize()
+                + " evictions:" + cache.evictionCount() + " hitRate:" + cache.hitRate());
+
+        // 按权重限制：value长度作为权重
+        MyBoundedCache<String, String> weighted = new MyBoundedCache<>(100, (k, v) -> v.length());
+        for (int i = 0; i < 100; i++) {
+            weighted.put("Key" + i, "Value" + i);
+        }
+        System.out.println("weighted size:" + weighted.size() + " weightedSize:" + weighted.weightedSize());
+
+    }
+
+    /**
+     * 过期哈希表测试（使用手动推进的时间源）
+     */
+    public static void myExpiringMapTest(){
+
+        java.util.concurrent.atomic.AtomicLong time = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.TimeUnit seconds = java.util.concurrent.TimeUnit.SECONDS;
+
+        // 写后10秒过期，访问后3秒过期
+        MyExpiringMap<String, String> map = new MyExpiringMap<>(10, 3, seconds, time::get);
+
+        for (int i = 0; i < 100; i++) {
+            map.put("Key" + i, "Value" + i);
+        }
+
+        // 2秒后只访问 Key0，其余元素访问后过期时间不变
+        time.addAndGet(seconds.toNanos(2));
+        System.out.println("2s Key0:" + map.get("Key0"));
+
+        // 4秒后：Key0 距上次访问2秒未过期，其余元素已过期
+        time.addAndGet(seconds.toNanos(2));
+        System.out.println("4s Key0:" + map.get("Key0") + " Key1:" + map.get("Key1"));
+
+        map.cleanUp();
+        System.out.println("4s size:" + map.size());
+
+        // 持续访问 Key0，写后过期时间到达之后依然过期
+        for (int i = 0; i < 4; i++) {
+            time.addAndGet(seconds.toNanos(2));
+            map.get("Key0");
+        }
+        time.addAndGet(seconds.toNanos(1));
+        map.cleanUp();
+        System.out.println("13s Key0:" + map.get("Key0") + " size:" + map.size());
+
+    }
+
+    /**
+     * 异步加载测试：64个线程同时未命中同一个 key 只加载一次；写后5秒提前刷新、10秒过期；加载失败后重新加载
+     */
+    public static void myLoadingMapTest(){
+
+        java.util.concurrent.atomic.AtomicLong time = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.atomic.AtomicInteger loads = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.TimeUnit seconds = java.util.concurrent.TimeUnit.SECONDS;
+        MyLoadingMap<String, String> map = new MyLoadingMap<>(5, 10, seconds, time::get);
+
+        // 慢加载：50毫秒
+        java.util.function.Function<String, java.util.concurrent.CompletableFuture<String>> slowLoader = k ->
+                java.util.concurrent.CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return k + "-v" + loads.incrementAndGet();
+                });
+
+        java.util.List<java.util.concurrent.CompletableFuture<String>> futures = new java.util.concurrent.CopyOnWriteArrayList<>();
+        Thread[] threads = new Thread[64];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> futures.add(map.getOrLoad("hot", slowLoader)));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        java.util.Set<String> values = new java.util.HashSet<>();
+        futures.forEach(f -> values.add(f.join()));
+        System.out.println("stampede callers=" + futures.size() + " loads=" + loads.get() + " values=" + values);
+
+        // 同步加载，便于观察刷新
+        java.util.function.Function<String, java.util.concurrent.CompletableFuture<String>> loader = k ->
+                java.util.concurrent.CompletableFuture.completedFuture(k + "-v" + loads.incrementAndGet());
+
+        // 6秒：超过刷新时间，返回旧值并在后台刷新
+        time.addAndGet(seconds.toNanos(6));
+        String stale = map.getOrLoad("hot", loader).join();
+        System.out.println("6s returned=" + stale + " after refresh=" + map.getIfPresent("hot"));
+
+        // 再过11秒：已过期，重新加载
+        time.addAndGet(seconds.toNanos(11));
+        System.out.println("17s present=" + map.getIfPresent("hot") + " reload=" + map.getOrLoad("hot", loader).join());
+
+        // 加载失败：Future 异常完成，占位节点被删除，下次重新加载
+        java.util.concurrent.CompletableFuture<String> failed = map.getOrLoad("bad", k -> {
+            throw new IllegalStateException("backend down");
+        });
+        System.out.println("failed=" + failed.isCompletedExceptionally() + " size=" + map.size()
+                + " retry=" + map.getOrLoad("bad", loader).join());
+
+    }
+
+    /**
+     * 变更流测试：4个线程各写入50万次，对比 未开启、开启无订阅者、阻塞模式（1个消费者）、覆盖模式（1个消费者）的写入耗时
+     */
+    public static void myConcurrentMapChangeStreamTest(){
+
+        String[] modes = {"off", "no subscriber", "BLOCK", "OVERWRITE"};
+
+        for (int round = 0; round < 3; round++) {
+
+            StringBuilder line = new StringBuilder("round " + round);
+
+            for (int mode = 0; mode < modes.length; mode++) {
+
+                MyConcurrentMap<Integer, Integer> map = new MyConcurrentMap<>();
+                MyConcurrentMapChangeStream<Integer, Integer> stream = mode == 0 ? null : map.enableChangeStream(4096,
+                        mode == 3 ? MyConcurrentMapChangeStream.Policy.OVERWRITE : MyConcurrentMapChangeStream.Policy.BLOCK);
+                MyConcurrentMapChangeStream.Subscriber<Integer, Integer> subscriber = mode >= 2 ? stream.subscribe() : null;
+
+                long[] received = new long[1];
+                java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+                Thread consumer = new Thread(() -> {
+                    while (subscriber != null && (!done.get() || subscriber.sequence() < stream.cursor())) {
+                        if (subscriber.poll((type, key, value, oldValue, sequence, endOfBatch) -> received[0]++, 256) == 0) {
+                            Thread.yield();
+                        }
+                    }
+                });
+                consumer.start();
+
+                long nanos = runReaders(4, t -> {
+                    for (int i = 0; i < 500_000; i++) {
+                        map.putVal((i * 4 + t) & 0xFFFF, i);
+                    }
+                });
+
+                done.set(true);
+                try {
+                    consumer.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+
+                line.append(' ').append(modes[mode]).append('=').append(nanos / 1_000_000).append("ms");
+                if (subscriber != null) {
+                    line.append("(received=").append(received[0]).append(", lost=").append(subscriber.lost())
+                            .append(", dropped=").append(stream.dropped()).append(')');
+                }
+
+            }
+
+            System.out.println(line);
+
+        }
+
+    }
+
+    /**
+     * 快照测试：100万个元素，4个线程持续写入的同时做快照，观察快照耗时、写时复制的桶数（额外内存）
+     */
+    public static void myConcurrentMapSnapshotTest(){
+
+        MyConcurrentMap<Integer, Integer> map = new MyConcurrentMap<>(false, true);
+        for (int i = 0; i < 1_000_000; i++) {
+            map.putVal(i, i);
+        }
+
+        java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+        java.util.concurrent.atomic.LongAdder writes = new java.util.concurrent.atomic.LongAdder();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                java.util.Random random = new java.util.Random(id);
+                while (!stop.get()) {
+                    map.putVal(random.nextInt(1_000_000), -1);
+                    writes.increment();
+                }
+            });
+            writers[t].start();
+        }
+
+        for (int round = 0; round < 5; round++) {
+
+            long start = System.nanoTime(), before = writes.sum();
+            long[] sum = new long[1];
+            MyConcurrentMapSnapshot<Integer, Integer> snapshot = map.snapshot();
+            long entries = snapshot.forEach((k, v) -> sum[0] += v);
+
+            System.out.println("round " + round + " entries=" + entries + " time=" + (System.nanoTime() - start) / 1_000_000
+                    + "ms writesDuring=" + (writes.sum() - before) + " peakPreservedBins=" + snapshot.peakPreservedBins()
+                    + " of " + map.capacity());
+
+        }
+
+        stop.set(true);
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
+    /**
+     * 持久化哈希表测试：10万个元素的基础数据，200次“假如”计算，每次分叉后修改50个 key 再读取，
+     * 对比 复制 MyHashMap 与 分叉 MyPersistentHashMap 的耗时；另外对比逐个 put 与 transient 批量构建的耗时
+     */
+    public static void myPersistentHashMapTest(){
+
+        int n = 100000, forks = 200, edits = 50;
+        MyHashMap<Integer, Integer> base = new MyHashMap<>();
+        for (int i = 0; i < n; i++) {
+            base.put(i, i);
+        }
+
+        for (int round = 0; round < 3; round++) {
+
+            long start = System.nanoTime();
+            MyPersistentHashMap<Integer, Integer> persistent = MyPersistentHashMap.empty();
+            for (int i = 0; i < n; i++) {
+                persistent = persistent.put(i, i);
+            }
+            long putNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            persistent = MyPersistentHashMap.from(base);
+            long transientNanos = System.nanoTime() - start;
+
+            java.util.Random random = new java.util.Random(49);
+            long sum = 0;
+            start = System.nanoTime();
+            for (int f = 0; f < forks; f++) {
+                MyHashMap<Integer, Integer> copy = new MyHashMap<>();
+                base.forEach(copy::put);
+                for (int e = 0; e < edits; e++) {
+                    copy.put(random.nextInt(n), -f);
+                }
+                sum += copy.get(random.nextInt(n));
+            }
+            long copyNanos = System.nanoTime() - start;
+
+            random = new java.util.Random(49);
+            start = System.nanoTime();
+            for (int f = 0; f < forks; f++) {
+                MyPersistentHashMap<Integer, Integer> fork = persistent;
+                for (int e = 0; e < edits; e++) {
+                    fork = fork.put(random.nextInt(n), -f);
+                }
+                sum -= fork.get(random.nextInt(n));
+            }
+            long forkNanos = System.nanoTime() - start;
+
+            System.out.println("round " + round + " build: put=" + putNanos / 1_000_000 + "ms transient=" + transientNanos / 1_000_000
+                    + "ms; " + forks + " forks: copy=" + copyNanos / 1_000_000 + "ms persistent=" + forkNanos / 1_000_000
+                    + "ms base.size=" + persistent.size() + " check=" + sum);
+
         }
 
     }
 
+    /**
+     * 冻结哈希表测试：100万个 key，输出冻结耗时、分区数、每个 key 占用的位数，
+     * 对比 MyHashMap 与 MyFrozenHashMap 随机查找（一半命中、一半不存在）的耗时
+     */
+    public static void myFrozenHashMapTest(){
+
+        int n = 1_000_000, lookups = 10_000_000;
+        MyHashMap<Integer, Integer> map = new MyHashMap<>();
+        java.util.Random random = new java.util.Random(50);
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = random.nextInt();
+            map.put(keys[i], i);
+        }
+        Integer[] probes = new Integer[lookups];
+        for (int i = 0; i < lookups; i++) {
+            probes[i] = (i & 1) == 0 ? keys[random.nextInt(n)] : random.nextInt();
+        }
+
+        for (int round = 0; round < 3; round++) {
+
+            long start = System.nanoTime();
+            MyFrozenHashMap<Integer, Integer> frozen = map.freeze();
+            long freezeNanos = System.nanoTime() - start;
+
+            long hits = 0;
+            start = System.nanoTime();
+            for (Integer k : probes) {
+                if (map.get(k) != null) {
+                    hits++;
+                }
+            }
+            long mapNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Integer k : probes) {
+                if (frozen.get(k) != null) {
+                    hits--;
+                }
+            }
+            long frozenNanos = System.nanoTime() - start;
+
+            System.out.println("round " + round + " freeze=" + freezeNanos / 1_000_000 + "ms partitions=" + frozen.partitions()
+                    + " bitsPerKey=" + String.format("%.2f", frozen.bitsPerKey()) + " fallback=" + frozen.fallbackSize()
+                    + "; get: MyHashMap=" + mapNanos / lookups + "ns frozen=" + frozenNanos / lookups + "ns check=" + hits);
+
+        }
+
+    }
+
+    /**
+     * 布谷鸟哈希测试：
+     *      1. 插入随机 key，输出每次扩容前达到的负载（连续整数 key 恰好均匀填满每个桶，看不出踢出的效果）
+     *      2. 同一套压测负载（读多写少 90/8/2 与默认 70/25/5）分别压测 MyConcurrentMap 与 MyCuckooConcurrentMap，第一轮为预热，不输出
+     */
+    public static void myCuckooConcurrentMapTest(){
+
+        MyCuckooConcurrentMap<Integer, Integer> map = new MyCuckooConcurrentMap<>();
+        java.util.Random random = new java.util.Random(48);
+        for (int i = 0; i < 1 << 20; i++) {
+            long size = map.size();
+            int capacity = map.capacity();
+            long resizes = map.resizeCount();
+            map.putVal(random.nextInt(), i);
+            if (map.resizeCount() != resizes) {
+                System.out.println("resize at size=" + size + " capacity=" + capacity + " load=" + (double) size / capacity);
+            }
+        }
+        System.out.println("size=" + map.size() + " capacity=" + map.capacity() + " displacements=" + map.displacementCount());
+
+        for (int round = 0; round < 2; round++) {
+            for (int[] mix : new int[][]{{90, 8}, {70, 25}}) {
+                for (boolean cuckoo : new boolean[]{false, true}) {
+                    MyConcurrentMapHarness.Result result = new MyConcurrentMapHarness()
+                            .tasks(64).opsPerTask(50000).mix(mix[0], mix[1]).cuckoo(cuckoo)
+                            .runOnPlatformThreads();
+                    if (round > 0) {
+                        System.out.println("mix=" + mix[0] + "/" + mix[1] + " " + result);
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * 计数器测试：4个线程按 Zipf 分布（skew=1.2）对1万个 key 各计数100万次，
+     * 对比 MyConcurrentMap 读旧值 + replace 比较替换计数 与 MyCounterMap 分段计数的耗时，并输出计数最大的5个 key
+     */
+    public static void myCounterMapTest(){
+
+        int keys = 10000, increments = 1_000_000;
+        MyConcurrentMapHarness.ZipfGenerator zipf = new MyConcurrentMapHarness.ZipfGenerator(keys, 1.2d);
+
+        for (int round = 0; round < 3; round++) {
+
+            MyConcurrentMap<Integer, Long> plain = new MyConcurrentMap<>();
+            MyCounterMap<Integer> counters = new MyCounterMap<>();
+
+            long plainNanos = runReaders(4, t -> {
+                java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();
+                for (int i = 0; i < increments; i++) {
+                    Integer k = zipf.next(random);
+                    for (;;) {
+                        Long old = plain.get(k);
+                        if (old == null ? plain.putIfAbsent(k, 1L) == null : plain.replace(k, old, old + 1)) {
+                            break;
+                        }
+                    }
+                }
+            });
+
+            long adderNanos = runReaders(4, t -> {
+                java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();
+                for (int i = 0; i < increments; i++) {
+                    counters.increment(zipf.next(random));
+                }
+            });
+
+            long[] plainTotal = new long[1];
+            plain.forEach((k, v) -> plainTotal[0] += v);
+            System.out.println("round " + round + " putVal=" + plainNanos / 1_000_000 + "ms adder=" + adderNanos / 1_000_000
+                    + "ms totals=" + plainTotal[0] + "/" + counters.sum() + " top5=" + counters.topK(5));
+
+        }
+
+    }
+
+    /**
+     * 事务测试：4个线程在1万个账户之间随机转账各20万次，对比 全局锁 + MyConcurrentMap 与 乐观事务 的耗时，并校验总额
+     */
+    public static void myTransactionalMapTest(){
+
+        int accounts = 10000, transfers = 200_000;
+
+        for (int round = 0; round < 3; round++) {
+
+            MyConcurrentMap<Integer, Integer> locked = new MyConcurrentMap<>();
+            MyTransactionalMap<Integer, Integer> stm = new MyTransactionalMap<>();
+            for (int a = 0; a < accounts; a++) {
+                locked.putVal(a, 100);
+                stm.put(a, 100);
+            }
+
+            Object globalLock = new Object();
+            long lockNanos = runReaders(4, t -> {
+                java.util.Random random = new java.util.Random(t);
+                for (int i = 0; i < transfers; i++) {
+                    int from = random.nextInt(accounts), to = random.nextInt(accounts);
+                    synchronized (globalLock) {
+                        int balance = locked.get(from);
+                        if (balance > 0 && from != to) {
+                            locked.putVal(from, balance - 1);
+                            locked.putVal(to, locked.get(to) + 1);
+                        }
+                    }
+                }
+            });
+
+            long stmNanos = runReaders(4, t -> {
+                java.util.Random random = new java.util.Random(t);
+                for (int i = 0; i < transfers; i++) {
+                    int from = random.nextInt(accounts), to = random.nextInt(accounts);
+                    stm.atomically(tx -> {
+                        int balance = tx.get(from);
+                        if (balance > 0 && from != to) {
+                            tx.put(from, balance - 1);
+                            tx.put(to, tx.get(to) + 1);
+                        }
+                        return null;
+                    });
+                }
+            });
+
+            long[] total = new long[1];
+            stm.forEach((k, v) -> total[0] += v);
+            System.out.println("round " + round + " globalLock=" + lockNanos / 1_000_000 + "ms stm=" + stmNanos / 1_000_000
+                    + "ms conflicts=" + stm.conflictCount() + " total=" + total[0]);
+
+        }
+
+    }
+
+    /**
+     * 近端缓存测试：4个读线程读32个热点 key，读写比 10000:1，与直接读 MyConcurrentMap 对比耗时和命中率
+     */
+    public static void myNearCacheMapTest(){
+
+        int keys = 32, reads = 4_000_000, readers = 4;
+
+        for (int round = 0; round < 5; round++) {
+
+            MyConcurrentMap<String, String> plain = new MyConcurrentMap<>();
+            MyNearCacheMap<String, String> near = new MyNearCacheMap<>();
+            String[] names = new String[100000];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = "service/region-" + (i % 16) + "/route-" + i;
+                plain.putVal(names[i], "route-" + i);
+                near.put(names[i], "route-" + i);
+            }
+
+            long plainNanos = runReaders(readers, t -> {
+                for (int i = 0; i < reads; i++) {
+                    String k = names[((i * 7 + t) & (keys - 1)) * 3001];
+                    if (i % 10000 == 0) {
+                        plain.putVal(k, "route-" + i);
+                    }
+                    plain.get(k);
+                }
+            });
+
+            long nearNanos = runReaders(readers, t -> {
+                for (int i = 0; i < reads; i++) {
+                    String k = names[((i * 7 + t) & (keys - 1)) * 3001];
+                    if (i % 10000 == 0) {
+                        near.put(k, "route-" + i);
+                    }
+                    near.get(k);
+                }
+            });
+
+            System.out.println("round " + round + " plain=" + plainNanos / 1_000_000 + "ms near=" + nearNanos / 1_000_000
+                    + "ms hits=" + near.hitCount() + " misses=" + near.missCount() + " epoch=" + near.epoch());
+
+        }
+
+    }
+
+    private static long runReaders(int threads, java.util.function.IntConsumer body){
+
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> body.accept(id));
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        return System.nanoTime() - start;
+
+    }
+
     /**
      * List测试
      */
@@ -115,6 +850,195 @@ public class BaseTest {
 
     }
 
+    /**
+     * HashMap链表模式测试：插入顺序遍历、访问顺序 + 淘汰最老元素实现 LRU
+     */
+    public static void myLinkedHashMapTest(){
+
+        // 插入顺序
+        MyHashMap<String, Integer> insertionOrder = new MyHashMap<>(true, false);
+        for (int i = 0; i < 20; i++) {
+            insertionOrder.put("Key" + i, i);
+        }
+        insertionOrder.remove("Key5");
+        insertionOrder.put("Key3", 33);
+        StringBuilder sb = new StringBuilder();
+        insertionOrder.forEach((k, v) -> sb.append(k).append('=').append(v).append(' '));
+        System.out.println("insertion order: " + sb);
+
+        // 访问顺序 + 最多保留3个元素
+        MyHashMap<String, Integer> lru = new MyHashMap<String, Integer>(true, true) {
+            @Override
+            protected boolean removeEldestEntry(String key, Integer value) {
+                return size() > 3;
+            }
+        };
+        lru.put("a", 1);
+        lru.put("b", 2);
+        lru.put("c", 3);
+        lru.get("a");
+        lru.put("d", 4); // 淘汰最久未访问的 b
+        StringBuilder lruOrder = new StringBuilder();
+        lru.forEach((k, v) -> lruOrder.append(k).append(' '));
+        System.out.println("lru order: " + lruOrder + " b:" + lru.get("b"));
+
+    }
+
+    /**
+     * HashMap统计测试：哈希冲突严重的 key 触发树化，扩容时部分桶退化为链表
+     */
+    public static void myHashMapStatsTest(){
+
+        MyHashMapStats stats = new MyHashMapStats();
+        MyHashMap<CollideKey, Integer> map = new MyHashMap<>();
+        map.setListener(stats);
+        stats.register("myHashMapStatsTest");
+
+        for (int i = 0; i < 2000; i++) {
+            map.put(new CollideKey(i), i);
+        }
+
+        stats.sample(map);
+        System.out.println(stats);
+        stats.unregister("myHashMapStatsTest");
+
+    }
+
+    /**
+     * HashMap渐进式扩容测试：随机 添加、查询、删除 与 java.util.HashMap 对比结果，再对比一次性扩容与渐进式扩容的单次添加最大耗时
+     */
+    public static void myHashMapIncrementalResizeTest(){
+
+        java.util.Random random = new java.util.Random(38);
+        java.util.Map<CollideKey, Integer> model = new java.util.HashMap<>();
+        MyHashMap<CollideKey, Integer> map = new MyHashMap<>(false, false, true);
+
+        for (int i = 0; i < 200000; i++) {
+
+            CollideKey key = new CollideKey(random.nextInt(20000));
+            int op = random.nextInt(10);
+
+            if (op < 6) {
+                model.put(key, i);
+                map.put(key, i);
+            } else if (op < 8) {
+                if (!java.util.Objects.equals(model.get(key), map.get(key))) {
+                    throw new IllegalStateException("get mismatch: " + key.id);
+                }
+            } else if (model.containsKey(key)) {
+                if (!model.remove(key).equals(map.remove(key))) {
+                    throw new IllegalStateException("remove mismatch: " + key.id);
+                }
+            }
+
+        }
+
+        int[] count = new int[1];
+        map.forEach((k, v) -> {
+            if (!v.equals(model.get(k))) {
+                throw new IllegalStateException("forEach mismatch: " + k.id);
+            }
+            count[0]++;
+        });
+        if (count[0] != model.size() || map.size() != model.size()) {
+            throw new IllegalStateException("size mismatch: " + map.size() + " / " + model.size());
+        }
+        System.out.println("incremental resize model check ok, size=" + map.size());
+
+        /** 前两轮预热（JIT），只输出后两轮 */
+        int n = 1 << 21;
+        for (int round = 0; round < 4; round++) {
+
+            boolean incremental = (round & 1) == 1;
+            MyHashMap<Integer, Integer> latency = new MyHashMap<>(false, false, incremental);
+            long max = 0L, total = System.nanoTime();
+
+            for (int i = 0; i < n; i++) {
+                long start = System.nanoTime();
+                latency.put(i, i);
+                max = Math.max(max, System.nanoTime() - start);
+            }
+
+            total = System.nanoTime() - total;
+            if (round >= 2) {
+                System.out.println((incremental ? "incremental" : "stop-the-world") + " put: max " + max / 1000 + " us, total " + total / 1000000 + " ms");
+            }
+
+        }
+
+    }
+
+    /**
+     * HashMap缩容测试：批量添加后批量删除，数组随元素个数缩小（含红黑树桶合并、渐进式缩容），compact 缩到负载不超过 0.5
+     */
+    public static void myHashMapShrinkTest(){
+
+        for (boolean incremental : new boolean[]{false, true}) {
+
+            MyHashMapStats stats = new MyHashMapStats();
+            MyHashMap<CollideKey, Integer> map = new MyHashMap<>(true, false, incremental);
+            map.setListener(stats);
+
+            for (int i = 0; i < 100000; i++) {
+                map.put(new CollideKey(i), i);
+            }
+            int peak = map.capacity();
+
+            for (int i = 300; i < 100000; i++) {
+                if (map.remove(new CollideKey(i)) != i) {
+                    throw new IllegalStateException("remove mismatch: " + i);
+                }
+            }
+            int shrunk = map.capacity();
+
+            map.compact();
+
+            int[] expected = {0};
+            map.forEach((k, v) -> {
+                if (k.id != expected[0] || v != expected[0]++) {
+                    throw new IllegalStateException("order mismatch: " + k.id);
+                }
+            });
+            if (expected[0] != 300 || map.size() != 300) {
+                throw new IllegalStateException("size mismatch: " + map.size());
+            }
+
+            stats.sample(map);
+            System.out.println((incremental ? "incremental" : "stop-the-world") + " capacity: peak " + peak
+                    + ", after removes " + shrunk + ", after compact " + map.capacity() + ", " + stats);
+
+        }
+
+    }
+
+    /**
+     * 只有 8 种哈希值的 key，用于制造哈希冲突
+     */
+    static class CollideKey implements Comparable<CollideKey> {
+
+        final int id;
+
+        CollideKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return (id & 7) * 64 + (id & 63) / 32;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollideKey && ((CollideKey) o).id == id;
+        }
+
+        @Override
+        public int compareTo(CollideKey o) {
+            return Integer.compare(id, o.id);
+        }
+
+    }
+
     /**
      * 二叉树测试
      */
@@ -0,0 +1,466 @@
+package cn.map;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @Description: MyConcurrentMap 并发压测工具
+ *
+ *      负载：tasks 个任务并发执行，每个任务执行 opsPerTask 次操作，按 读/写/删 比例随机选择操作，
+ *           key 在 [0, keySpace) 中按 Zipf 分布选择（skew 为 0 时均匀分布），模拟热点 key
+ *      线程：虚拟线程（JDK 21+，通过反射创建，低版本自动跳过）或固定大小的平台线程池
+ *      实现：默认压测 MyConcurrentMap，cuckoo(true) 时压测 MyCuckooConcurrentMap，便于按负载选择
+ *      统计：按操作类型记录耗时分布（对数 + 线性分桶，精度约 6%），输出吞吐量和 p50/p99/p999/max
+ *      校验：
+ *          1. 读到的值必须是某个任务真实写入过的值（值编码为 任务号 << 32 | 序号）
+ *          2. 每个任务另外读写一段只有自己访问的 key，并在本地 HashMap 中同步记录，结束时逐个比对，
+ *             单 key 单线程的操作顺序是确定的，不一致说明发生了丢失更新（例如扩容过程中）
+ *          3. 结束时 size() 等于逐个 get 统计出的元素个数
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 18:10
+ * @Version 1.0
+ */
+public class MyConcurrentMapHarness {
+
+    /** 任务个数（虚拟线程模式下即线程个数） */
+    int tasks = 1000;
+
+    /** 每个任务的操作次数 */
+    int opsPerTask = 2000;
+
+    /** 读、写比例（百分比），剩余为删除 */
+    int readPercent = 70;
+
+    int writePercent = 25;
+
+    /** 共享 key 个数 */
+    int keySpace = 100000;
+
+    /** Zipf 指数，0 为均匀分布，越大热点越集中 */
+    double skew = 0.99d;
+
+    /** 每个任务私有的 key 个数 */
+    int ownedKeys = 16;
+
+    /** 平台线程池大小 */
+    int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+
+    /** 是否使用 CAS 桶锁 */
+    boolean casBinLock;
+
+    /** 是否压测 MyCuckooConcurrentMap（负载、校验相同） */
+    boolean cuckoo;
+
+    public MyConcurrentMapHarness tasks(int tasks) {
+        this.tasks = tasks;
+        return this;
+    }
+
+    public MyConcurrentMapHarness opsPerTask(int opsPerTask) {
+        this.opsPerTask = opsPerTask;
+        return this;
+    }
+
+    public MyConcurrentMapHarness mix(int readPercent, int writePercent) {
+        if (readPercent < 0 || writePercent < 0 || readPercent + writePercent > 100) {
+            throw new IllegalArgumentException("invalid mix");
+        }
+        this.readPercent = readPercent;
+        this.writePercent = writePercent;
+        return this;
+    }
+
+    public MyConcurrentMapHarness keySpace(int keySpace) {
+        this.keySpace = keySpace;
+        return this;
+    }
+
+    public MyConcurrentMapHarness skew(double skew) {
+        this.skew = skew;
+        return this;
+    }
+
+    public MyConcurrentMapHarness poolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    public MyConcurrentMapHarness casBinLock(boolean casBinLock) {
+        this.casBinLock = casBinLock;
+        return this;
+    }
+
+    public MyConcurrentMapHarness cuckoo(boolean cuckoo) {
+        this.cuckoo = cuckoo;
+        return this;
+    }
+
+    /**
+     * 使用平台线程池运行
+     */
+    public Result runOnPlatformThreads() {
+        return run("platform(" + poolSize + ")", Executors.newFixedThreadPool(poolSize));
+    }
+
+    /**
+     * 使用虚拟线程运行（每个任务一个虚拟线程）
+     * @return 结果，当前 JDK 不支持虚拟线程时返回 null
+     */
+    public Result runOnVirtualThreads() {
+
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("virtual threads not available on java " + System.getProperty("java.version") + ", skipped");
+            return null;
+        }
+
+        return run("virtual", executor);
+
+    }
+
+    Result run(String name, ExecutorService executor) {
+
+        Target map = cuckoo ? target(new MyCuckooConcurrentMap<Integer, Long>()) : target(new MyConcurrentMap<Integer, Long>(casBinLock));
+        Result result = new Result(cuckoo ? "cuckoo " + name : name);
+        ZipfGenerator keys = new ZipfGenerator(keySpace, skew);
+        CountDownLatch ready = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(tasks);
+
+        for (int t = 0; t < tasks; t++) {
+            int task = t;
+            executor.execute(() -> {
+                try {
+                    ready.await();
+                    runTask(task, map, keys, result);
+                } catch (Throwable e) {
+                    result.errors.add(e.toString());
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        ready.countDown();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        result.elapsedNanos = System.nanoTime() - start;
+        executor.shutdown();
+
+        verifySize(map, result);
+
+        return result;
+
+    }
+
+    private void runTask(int task, Target map, ZipfGenerator keys, Result result) {
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        /** 私有 key 放在共享 key 之后，本地模型记录期望值 */
+        int ownedBase = keySpace + task * ownedKeys;
+        Map<Integer, Long> model = new HashMap<>();
+
+        for (int seq = 0; seq < opsPerTask; seq++) {
+
+            boolean owned = (seq & 7) == 0;
+            int key = owned ? ownedBase + random.nextInt(ownedKeys) : keys.next(random);
+            long value = ((long) task << 32) | seq;
+            int op = random.nextInt(100);
+
+            long start = System.nanoTime();
+
+            if (op < readPercent) {
+
+                Long v = map.get(key);
+                result.read.record(System.nanoTime() - start);
+                checkValue(v, result);
+                if (owned && !java.util.Objects.equals(v, model.get(key))) {
+                    result.errors.add("task " + task + " read " + v + " for owned key " + key + ", expected " + model.get(key));
+                }
+
+            } else if (op < readPercent + writePercent) {
+
+                map.putVal(key, value);
+                result.write.record(System.nanoTime() - start);
+                if (owned) {
+                    model.put(key, value);
+                }
+
+            } else {
+
+                map.remove(key);
+                result.remove.record(System.nanoTime() - start);
+                if (owned) {
+                    model.remove(key);
+                }
+
+            }
+
+        }
+
+        /** 私有 key 最终状态必须与本地模型一致 */
+        for (int i = 0; i < ownedKeys; i++) {
+            int key = ownedBase + i;
+            Long actual = map.get(key);
+            if (!java.util.Objects.equals(actual, model.get(key))) {
+                result.errors.add("owned key " + key + " expected " + model.get(key) + " but was " + actual);
+            }
+        }
+
+    }
+
+    private void checkValue(Long v, Result result) {
+        if (v != null) {
+            long task = v >>> 32, seq = v & 0xffffffffL;
+            if (task >= tasks || seq >= opsPerTask) {
+                result.errors.add("read a value that was never written: " + v);
+            }
+        }
+    }
+
+    private void verifySize(Target map, Result result) {
+
+        long present = 0;
+        for (int key = 0, n = keySpace + tasks * ownedKeys; key < n; key++) {
+            if (map.get(key) != null) {
+                present++;
+            }
+        }
+
+        if (present != map.size()) {
+            result.errors.add("size() = " + map.size() + " but " + present + " keys are present");
+        }
+
+    }
+
+    /**
+     * 被压测的哈希表：压测只用到这几个方法，两种实现共用同一套负载和校验
+     */
+    interface Target {
+
+        Long get(Integer k);
+
+        Long putVal(Integer k, Long v);
+
+        Long remove(Integer k);
+
+        long size();
+
+    }
+
+    static Target target(MyConcurrentMap<Integer, Long> map) {
+        return new Target() {
+            @Override
+            public Long get(Integer k) {
+                return map.get(k);
+            }
+            @Override
+            public Long putVal(Integer k, Long v) {
+                return map.putVal(k, v);
+            }
+            @Override
+            public Long remove(Integer k) {
+                return map.remove(k);
+            }
+            @Override
+            public long size() {
+                return map.size();
+            }
+        };
+    }
+
+    static Target target(MyCuckooConcurrentMap<Integer, Long> map) {
+        return new Target() {
+            @Override
+            public Long get(Integer k) {
+                return map.get(k);
+            }
+            @Override
+            public Long putVal(Integer k, Long v) {
+                return map.putVal(k, v);
+            }
+            @Override
+            public Long remove(Integer k) {
+                return map.remove(k);
+            }
+            @Override
+            public long size() {
+                return map.size();
+            }
+        };
+    }
+
+    /**
+     * 压测结果
+     */
+    public static class Result {
+
+        final String name;
+
+        final LatencyHistogram read = new LatencyHistogram();
+
+        final LatencyHistogram write = new LatencyHistogram();
+
+        final LatencyHistogram remove = new LatencyHistogram();
+
+        final java.util.Queue<String> errors = new java.util.concurrent.ConcurrentLinkedQueue<>();
+
+        long elapsedNanos;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        public boolean isConsistent() {
+            return errors.isEmpty();
+        }
+
+        public long totalOps() {
+            return read.count() + write.count() + remove.count();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name)
+                    .append(": ops=").append(totalOps())
+                    .append(", ops/s=").append(totalOps() * TimeUnit.SECONDS.toNanos(1) / Math.max(1L, elapsedNanos))
+                    .append("\n  get    ").append(read)
+                    .append("\n  put    ").append(write)
+                    .append("\n  remove ").append(remove)
+                    .append("\n  consistency: ").append(errors.isEmpty() ? "ok" : errors.size() + " errors");
+            errors.stream().limit(5).forEach(e -> sb.append("\n    ").append(e));
+            return sb.toString();
+        }
+
+    }
+
+    /**
+     * 耗时分布（HdrHistogram 的简化版）：按 2 的幂分段，每段再线性分为 16 个桶，相对误差不超过 1/16
+     */
+    static class LatencyHistogram {
+
+        static final int SUB_BUCKETS = 16;
+
+        final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+
+            buckets.incrementAndGet(indexOf(Math.max(0L, nanos)));
+
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+            }
+
+        }
+
+        static int indexOf(long v) {
+            if (v < SUB_BUCKETS) {
+                return (int) v;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(v) - 3;
+            return (shift + 1) * SUB_BUCKETS + (int) (v >>> shift) - SUB_BUCKETS;
+        }
+
+        /** 桶的上界 */
+        static long valueOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            return ((long) (index % SUB_BUCKETS + SUB_BUCKETS + 1) << shift) - 1;
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        long percentile(double percentile) {
+
+            long total = count();
+            if (total == 0) {
+                return 0L;
+            }
+
+            long rank = (long) Math.ceil(total * percentile), seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(valueOf(i), max.get());
+                }
+            }
+
+            return max.get();
+
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count() + " p50=" + percentile(0.5) + "ns p99=" + percentile(0.99)
+                    + "ns p999=" + percentile(0.999) + "ns max=" + max.get() + "ns";
+        }
+
+    }
+
+    /**
+     * Zipf 分布 key 生成器：预先计算累积分布，取值时二分查找
+     */
+    public static class ZipfGenerator {
+
+        final double[] cdf;
+
+        public ZipfGenerator(int n, double skew) {
+
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0d / Math.pow(i + 1, skew);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cdf[i] /= sum;
+            }
+
+        }
+
+        public int next(ThreadLocalRandom random) {
+
+            double u = random.nextDouble();
+            int lo = 0, hi = cdf.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+
+            return lo;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,2290 @@
+package cn.map;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.Supplier;
+
+/**
+ * @Description: MyConcurrentMap 正确性测试（无第三方依赖，surefire 自动执行 public void test*() 方法）
+ *
+ *      竞争测试：仿照 jcstress，多个参与者（Actor）在同一时刻对同一个新建的 map 操作，重复很多轮，
+ *               每轮结束后由仲裁（Arbiter）把结果归纳为一个字符串，统计每种结果出现的次数，出现不允许的结果则失败
+ *               覆盖：初始化 sizeCtl 竞争、空桶 casTabAt 竞争、扩容中 transferIndex 领取、扩容中读取、同 key 增删、缩容中读写
+ *      模型测试：随机生成操作序列（大量哈希冲突的 key，覆盖链表、红黑树、扩容），与 ConcurrentHashMap 逐步对比；
+ *               并发版本中每个线程只操作自己的 key，每个 key 的结果是确定的，结束后整体对比
+ *
+ *      所有测试分别在 synchronized 桶锁、CAS 桶锁两种模式下运行，随机种子失败时会打印出来便于复现
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 19:30
+ * @Version 1.0
+ */
+public class MyConcurrentMapStressTest {
+
+    /** 每个竞争测试的轮数 */
+    static final int ROUNDS = Integer.getInteger("stress.rounds", 2000);
+
+    static final boolean[] LOCK_MODES = {false, true};
+
+    /** 打印每个测试的结果分布等诊断信息，默认关闭：失败时 check(...) 已经给出原因 */
+    static final boolean VERBOSE = Boolean.getBoolean("stress.verbose");
+
+    /**
+     * 两个线程同时向一个全新的 map 添加：只有一个线程能初始化数组，两个 key 都必须存在
+     */
+    public void testConcurrentInitTable() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            Map<String, Integer> outcomes = race(ROUNDS,
+                    () -> new MyConcurrentMap<Key, Integer>(cas),
+                    actors(m -> m.putVal(new Key(1, 1), 1), m -> m.putVal(new Key(2, 2), 2)),
+                    (m, r) -> m.get(new Key(1, 1)) + "," + m.get(new Key(2, 2)) + ",size=" + m.size());
+
+            expectOnly("initTable cas=" + cas, outcomes, "1,2,size=2");
+
+        }
+
+    }
+
+    /**
+     * 两个线程同时向同一个空桶添加不同的 key：casTabAt 只有一个成功，另一个必须重试加到链表上
+     */
+    public void testRacingPutsIntoEmptyBin() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            Map<String, Integer> outcomes = race(ROUNDS,
+                    () -> {
+                        MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+                        map.putVal(new Key(0, 100), 0);
+                        return map;
+                    },
+                    actors(m -> m.putVal(new Key(1, 7), 1), m -> m.putVal(new Key(2, 7), 2), m -> m.putVal(new Key(3, 7), 3)),
+                    (m, r) -> m.get(new Key(1, 7)) + "," + m.get(new Key(2, 7)) + "," + m.get(new Key(3, 7)) + ",size=" + m.size());
+
+            expectOnly("emptyBin cas=" + cas, outcomes, "1,2,3,size=4");
+
+        }
+
+    }
+
+    /**
+     * 同一个 key 一个线程删除、一个线程覆盖：只允许两种线性化顺序
+     *      先删后加：删除返回 1，添加返回 null，最终为 2
+     *      先加后删：添加返回 1，删除返回 2，最终为 null
+     */
+    public void testRacingPutAndRemoveSameKey() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            Key key = new Key(5, 5);
+            Map<String, Integer> outcomes = race(ROUNDS,
+                    () -> {
+                        MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+                        map.putVal(key, 1);
+                        return map;
+                    },
+                    actors(m -> m.remove(key), m -> m.putVal(key, 2)),
+                    (m, r) -> "remove=" + r[0] + ",put=" + r[1] + ",final=" + m.get(key) + ",size=" + m.size());
+
+            expectOnly("putRemove cas=" + cas, outcomes,
+                    "remove=1,put=null,final=2,size=1",
+                    "remove=2,put=1,final=null,size=0");
+
+        }
+
+    }
+
+    /**
+     * 同一个 key 上的条件替换与条件删除竞争：两者期望值相同，只能有一个成功
+     *      同一个桶里放入其他 key，覆盖链表中间节点的修改
+     */
+    public void testRacingConditionalReplaceAndRemove() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            Key key = new Key(5, 5);
+            Map<String, Integer> outcomes = race(ROUNDS,
+                    () -> {
+                        MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+                        map.putVal(new Key(100, 5), 100);
+                        map.putVal(key, 1);
+                        return map;
+                    },
+                    actors(m -> m.replace(key, 1, 2), m -> m.remove(key, 1)),
+                    (m, r) -> "replace=" + r[0] + ",remove=" + r[1] + ",final=" + m.get(key) + ",size=" + m.size());
+
+            expectOnly("conditional cas=" + cas, outcomes,
+                    "replace=true,remove=false,final=2,size=2",
+                    "replace=false,remove=true,final=null,size=1");
+
+        }
+
+    }
+
+    /**
+     * 近端缓存：读线程先把 key 读入线程本地缓存，写线程依次写 key、flag；
+     *      读线程看到 flag=1 后再读 key，不能返回缓存里的旧值
+     */
+    public void testNearCacheSeesWritesInOrder() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            Key key = new Key(1, 1), flag = new Key(2, 2);
+            Map<String, Integer> outcomes = race(ROUNDS,
+                    () -> {
+                        MyNearCacheMap<Key, Integer> map = new MyNearCacheMap<>(16, cas);
+                        map.put(key, 0);
+                        return map;
+                    },
+                    actors(m -> {
+                                m.put(key, 1);
+                                return m.put(flag, 1);
+                            },
+                            m -> {
+                                m.get(key);
+                                Integer f = m.get(flag);
+                                return f + "," + m.get(key);
+                            }),
+                    (m, r) -> "read=" + r[1] + ",final=" + m.get(key));
+
+            expectOnly("near cache cas=" + cas, outcomes,
+                    "read=null,0,final=1",
+                    "read=null,1,final=1",
+                    "read=1,1,final=1");
+
+        }
+
+    }
+
+    /**
+     * 近端缓存统计：很多短生命周期的线程各自读取，没有写入时每个线程只有第一次未命中；
+     *      命中先累计在线程本地，每个线程最后读一个不存在的 key，未命中时把累计的命中汇总，计数是精确的；
+     *      线程结束后它的近端缓存不能再被 map 引用（弱引用在 GC 后被清除）
+     */
+    public void testNearCacheCountsAndReleasesThreadCaches() throws Exception {
+
+        int threads = 64, reads = 100;
+        MyNearCacheMap<Key, Integer> map = new MyNearCacheMap<>(16, false);
+        Key key = new Key(1, 1);
+        map.put(key, 1);
+
+        List<WeakReference<Object>> refs = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Object[] cache = new Object[1];
+            Thread th = new Thread(() -> {
+                for (int i = 0; i < reads; i++) {
+                    map.get(key);
+                }
+                map.get(new Key(2, 2));
+                cache[0] = map.nearCache.get();
+            });
+            th.start();
+            th.join();
+            refs.add(new WeakReference<Object>(cache[0]));
+        }
+
+        check("near cache misses", 2L * threads, map.missCount());
+        check("near cache hits", (long) threads * (reads - 1), map.hitCount());
+
+        int live = refs.size();
+        for (int i = 0; i < 20 && live > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            live = 0;
+            for (WeakReference<Object> r : refs) {
+                if (r.get() != null) {
+                    live++;
+                }
+            }
+        }
+        check("near caches of finished threads retained", 0, live);
+
+    }
+
+    /**
+     * 多个线程同时添加，跨过扩容阈值：多个线程通过 transferIndex 领取迁移区间协助扩容，不能丢失任何 key
+     */
+    public void testPutsAcrossResize() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            int perActor = 40;
+            List<Actor<MyConcurrentMap<Key, Integer>>> actors = new ArrayList<>();
+            for (int a = 0; a < 4; a++) {
+                int base = a * perActor;
+                actors.add(m -> {
+                    for (int i = base; i < base + perActor; i++) {
+                        m.putVal(new Key(i, i * 31), i);
+                    }
+                    return null;
+                });
+            }
+
+            Map<String, Integer> outcomes = race(ROUNDS / 4,
+                    () -> new MyConcurrentMap<Key, Integer>(cas),
+                    actors,
+                    (m, r) -> {
+                        int missing = 0;
+                        for (int i = 0; i < 4 * perActor; i++) {
+                            Integer v = m.get(new Key(i, i * 31));
+                            if (v == null || v != i) {
+                                missing++;
+                            }
+                        }
+                        return "missing=" + missing + ",size=" + m.size();
+                    });
+
+            expectOnly("resize cas=" + cas, outcomes, "missing=0,size=" + 4 * perActor);
+
+        }
+
+    }
+
+    /**
+     * 扩容过程中读取：已存在的 key 在迁移期间（ForwardingNode、新旧数组切换）始终可读
+     */
+    public void testGetDuringResize() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            Map<String, Integer> outcomes = race(ROUNDS / 2,
+                    () -> {
+                        MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+                        for (int i = 0; i < 11; i++) {
+                            map.putVal(new Key(i, i), i);
+                        }
+                        return map;
+                    },
+                    actors(m -> {
+                        for (int i = 100; i < 200; i++) {
+                            m.putVal(new Key(i, i), i);
+                        }
+                        return null;
+                    }, m -> {
+                        int lost = 0;
+                        for (int round = 0; round < 20; round++) {
+                            for (int i = 0; i < 11; i++) {
+                                Integer v = m.get(new Key(i, i));
+                                if (v == null || v != i) {
+                                    lost++;
+                                }
+                            }
+                        }
+                        return lost;
+                    }),
+                    (m, r) -> "lost=" + r[1] + ",size=" + m.size());
+
+            expectOnly("getDuringResize cas=" + cas, outcomes, "lost=0,size=111");
+
+        }
+
+    }
+
+    /**
+     * 扩容过程中遍历：遍历开始前已存在且未被删除的 key 必须恰好出现一次
+     */
+    public void testForEachDuringResize() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            Map<String, Integer> outcomes = race(ROUNDS / 4,
+                    () -> {
+                        MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+                        for (int i = 0; i < 40; i++) {
+                            /** 哈希值只有 4 种，保证红黑树桶也会参与迁移 */
+                            map.putVal(new Key(i, i & 3), i);
+                        }
+                        return map;
+                    },
+                    actors(m -> {
+                        for (int i = 1000; i < 1400; i++) {
+                            m.putVal(new Key(i, i), i);
+                        }
+                        return null;
+                    }, m -> {
+                        int[] seen = new int[40];
+                        m.forEach((k, v) -> {
+                            if (k.id < 40) {
+                                seen[k.id]++;
+                            }
+                        });
+                        int wrong = 0;
+                        for (int count : seen) {
+                            if (count != 1) {
+                                wrong++;
+                            }
+                        }
+                        return wrong;
+                    }),
+                    (m, r) -> "wrong=" + r[1] + ",size=" + m.size());
+
+            expectOnly("forEachDuringResize cas=" + cas, outcomes, "wrong=0,size=440");
+
+        }
+
+    }
+
+    /**
+     * 缩容过程中读取、遍历：批量删除触发连续缩容（1024 -> 512 -> 256），未删除的 key 始终可读，遍历时恰好出现一次
+     */
+    public void testGetAndForEachDuringShrink() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            Map<String, Integer> outcomes = race(ROUNDS / 4,
+                    () -> {
+                        MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+                        for (int i = 0; i < 400; i++) {
+                            /** 前 40 个 key 哈希值只有 4 种，保证红黑树桶也会参与合并 */
+                            map.putVal(new Key(i, i < 40 ? i & 3 : i), i);
+                        }
+                        return map;
+                    },
+                    actors(m -> {
+                        for (int i = 40; i < 400; i++) {
+                            m.remove(new Key(i, i));
+                        }
+                        return null;
+                    }, m -> {
+                        int wrong = 0;
+                        for (int round = 0; round < 4; round++) {
+                            int[] seen = new int[40];
+                            m.forEach((k, v) -> {
+                                if (k.id < 40) {
+                                    seen[k.id]++;
+                                }
+                            });
+                            for (int i = 0; i < 40; i++) {
+                                Integer v = m.get(new Key(i, i & 3));
+                                if (seen[i] != 1 || v == null || v != i) {
+                                    wrong++;
+                                }
+                            }
+                        }
+                        return wrong;
+                    }),
+                    (m, r) -> "wrong=" + r[1] + ",size=" + m.size() + ",capacity=" + m.capacity());
+
+            expectOnly("getAndForEachDuringShrink cas=" + cas, outcomes, "wrong=0,size=40,capacity=256");
+
+        }
+
+    }
+
+    /**
+     * 缩容过程中添加：合并桶时空桶放入占位节点，同时添加的 key 不会被合并结果覆盖
+     */
+    public void testPutsDuringShrink() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            Map<String, Integer> outcomes = race(ROUNDS / 4,
+                    () -> {
+                        MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+                        for (int i = 0; i < 400; i++) {
+                            map.putVal(new Key(i, i), i);
+                        }
+                        return map;
+                    },
+                    actors(m -> {
+                        for (int i = 40; i < 400; i++) {
+                            m.remove(new Key(i, i));
+                        }
+                        return null;
+                    }, m -> {
+                        for (int i = 1000; i < 1100; i++) {
+                            m.putVal(new Key(i, i), i);
+                        }
+                        return null;
+                    }),
+                    (m, r) -> {
+                        int missing = 0;
+                        for (int i = 0; i < 1100; i = i == 39 ? 1000 : i + 1) {
+                            Integer v = m.get(new Key(i, i));
+                            if (v == null || v != i) {
+                                missing++;
+                            }
+                        }
+                        return "missing=" + missing + ",size=" + m.size();
+                    });
+
+            expectOnly("putsDuringShrink cas=" + cas, outcomes, "missing=0,size=140");
+
+        }
+
+    }
+
+    /**
+     * 压缩：批量删除后缩到负载不超过 0.5 的长度，数据不变
+     */
+    public void testCompact() {
+
+        for (boolean cas : LOCK_MODES) {
+
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+            for (int i = 0; i < 10000; i++) {
+                map.putVal(new Key(i, i & 1023), i);
+            }
+
+            /** 删除时自动缩容到 512 为止（100 不低于 512 >>> 3），compact 继续缩到 256 */
+            for (int i = 100; i < 10000; i++) {
+                map.remove(new Key(i, i & 1023));
+            }
+            check("auto shrink cas=" + cas + " capacity", 512, map.capacity());
+            map.compact();
+
+            check("compact cas=" + cas + " capacity", 256, map.capacity());
+            check("compact cas=" + cas + " size", 100L, map.size());
+            for (int i = 0; i < 100; i++) {
+                check("compact cas=" + cas + " get " + i, i, map.get(new Key(i, i & 1023)));
+            }
+
+        }
+
+    }
+
+    /**
+     * 分片模式：多线程随机操作与 ConcurrentHashMap 对比，并校验遍历结果与各分片计数之和
+     */
+    public void testShardedModelConcurrent() throws Exception {
+
+        long seed = Long.getLong("stress.seed", System.nanoTime());
+        MyShardedConcurrentMap<Key, Integer> map = new MyShardedConcurrentMap<>(8, false);
+        ConcurrentHashMap<Key, Integer> model = new ConcurrentHashMap<>();
+        List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+        Thread[] workers = new Thread[4];
+        for (int t = 0; t < workers.length; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    Random random = new Random(seed + thread);
+                    for (int step = 0; step < 50000; step++) {
+                        int id = random.nextInt(5000) * workers.length + thread;
+                        Key key = new Key(id, id);
+                        if (random.nextInt(3) == 0) {
+                            check("seed=" + seed + " sharded remove", model.remove(key), map.remove(key));
+                        } else {
+                            check("seed=" + seed + " sharded putVal", model.put(key, step), map.putVal(key, step));
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            workers[t].start();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+
+        Map<Key, Integer> iterated = new java.util.HashMap<>();
+        map.forEach(iterated::put);
+        check("seed=" + seed + " sharded forEach", model, iterated);
+        check("seed=" + seed + " sharded size", (long) model.size(), map.size());
+
+    }
+
+    /**
+     * 批量添加、批量查询：随机批次（大量哈希冲突，覆盖空桶、链表、红黑树、预扩容）与 ConcurrentHashMap 对比；
+     *      多个线程同时批量添加不相交的 key，跨过多次扩容，结束后不能丢失任何 key
+     */
+    public void testBatchModel() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            long seed = Long.getLong("stress.seed", System.nanoTime());
+            Random random = new Random(seed);
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+            ConcurrentHashMap<Key, Integer> model = new ConcurrentHashMap<>();
+
+            for (int round = 0; round < 300; round++) {
+
+                String where = "seed=" + seed + " cas=" + cas + " round=" + round;
+                Map<Key, Integer> batch = new java.util.HashMap<>();
+                List<Key> lookup = new ArrayList<>();
+
+                for (int j = random.nextInt(200); j >= 0; j--) {
+                    int id = random.nextInt(5000), other = random.nextInt(5000);
+                    batch.put(new Key(id, id & 63), round * 1000 + j);
+                    lookup.add(new Key(other, other & 63));
+                }
+
+                model.putAll(batch);
+                map.putAll(batch);
+
+                Map<Key, Integer> expected = new java.util.HashMap<>();
+                for (Key key : lookup) {
+                    if (model.containsKey(key)) {
+                        expected.put(key, model.get(key));
+                    }
+                }
+                check(where + " getAll", expected, map.getAll(lookup));
+                check(where + " size", (long) model.size(), map.size());
+
+                if (round % 3 == 0) {
+                    for (Key key : batch.keySet()) {
+                        if (random.nextInt(4) == 0) {
+                            check(where + " remove", model.remove(key), map.remove(key));
+                        }
+                    }
+                }
+
+            }
+
+            MyConcurrentMap<Key, Integer> shared = new MyConcurrentMap<>(cas);
+            List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+            Thread[] workers = new Thread[4];
+            for (int t = 0; t < workers.length; t++) {
+                int thread = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        for (int b = 0; b < 20; b++) {
+                            Map<Key, Integer> batch = new java.util.HashMap<>();
+                            for (int j = 0; j < 500; j++) {
+                                int id = (b * 500 + j) * workers.length + thread;
+                                batch.put(new Key(id, id & 255), id);
+                            }
+                            shared.putAll(batch);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (!errors.isEmpty()) {
+                throw new AssertionError(errors.get(0));
+            }
+
+            check("cas=" + cas + " concurrent putAll size", 40000L, shared.size());
+            for (int id = 0; id < 40000; id++) {
+                check("cas=" + cas + " concurrent putAll " + id, id, shared.get(new Key(id, id & 255)));
+            }
+
+        }
+
+    }
+
+    /**
+     * 变更流（阻塞模式）：多个线程在少量、大量冲突的 key 上随机写入（覆盖空桶 CAS、链表、红黑树、扩容），
+     *      消费线程按事件重放到副本，结束后副本必须与 map 完全一致（同一个 key 的事件乱序会导致不一致）
+     */
+    public void testChangeStreamReplica() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            long seed = Long.getLong("stress.seed", System.nanoTime());
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+            /** 等待上限足够长，单核机器上消费线程迟迟得不到调度也不能丢事件 */
+            MyConcurrentMapChangeStream<Key, Integer> stream = map.enableChangeStream(256, MyConcurrentMapChangeStream.Policy.BLOCK,
+                    java.util.concurrent.TimeUnit.SECONDS.toNanos(30));
+            MyConcurrentMapChangeStream.Subscriber<Key, Integer> subscriber = stream.subscribe();
+
+            Map<Key, Integer> replica = new java.util.HashMap<>();
+            long[] last = {-1L};
+            List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+
+            Thread consumer = new Thread(() -> {
+                try {
+                    while (!done.get() || subscriber.sequence() < stream.cursor()) {
+                        subscriber.poll((type, key, value, oldValue, sequence, endOfBatch) -> {
+                            check("seed=" + seed + " sequence", last[0] + 1, sequence);
+                            last[0] = sequence;
+                            check("seed=" + seed + " oldValue " + key, replica.get(key), oldValue);
+                            if (type == MyConcurrentMapChangeStream.Type.PUT) {
+                                replica.put(key, value);
+                            } else {
+                                replica.remove(key);
+                            }
+                        }, 64);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            consumer.start();
+
+            Thread[] workers = new Thread[4];
+            for (int t = 0; t < workers.length; t++) {
+                int thread = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        Random random = new Random(seed + thread);
+                        for (int step = 0; step < 20000; step++) {
+                            int id = random.nextInt(2000);
+                            Key key = new Key(id, id & 63);
+                            switch (random.nextInt(6)) {
+                                case 0: map.remove(key); break;
+                                case 1: map.putIfAbsent(key, step); break;
+                                case 2: map.replace(key, step); break;
+                                case 3: map.remove(key, step - 1); break;
+                                case 4: map.putAll(java.util.Collections.singletonMap(key, step)); break;
+                                default: map.putVal(key, step);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                workers[t].start();
+            }
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            done.set(true);
+            consumer.join();
+
+            if (!errors.isEmpty()) {
+                throw new AssertionError(errors.get(0));
+            }
+
+            Map<Key, Integer> expected = new java.util.HashMap<>();
+            map.forEach(expected::put);
+            check("seed=" + seed + " cas=" + cas + " dropped", 0L, stream.dropped());
+            check("seed=" + seed + " cas=" + cas + " replica", expected, replica);
+            subscriber.close();
+
+        }
+
+    }
+
+    /**
+     * 变更流（阻塞模式）的等待上限：订阅者停顿时写入不能无限等待，事件处理中写入源 map 不能死锁
+     *      超时丢弃的事件计入 dropped，不占用序号，订阅者之后收到的序号仍然连续
+     */
+    public void testChangeStreamBlockIsBounded() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            long maxBlock = java.util.concurrent.TimeUnit.MILLISECONDS.toNanos(5);
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+            MyConcurrentMapChangeStream<Key, Integer> stream = map.enableChangeStream(4, MyConcurrentMapChangeStream.Policy.BLOCK, maxBlock);
+            MyConcurrentMapChangeStream.Subscriber<Key, Integer> subscriber = stream.subscribe();
+
+            /** 订阅者不消费：填满环形缓冲后，下一次写入等待超时后返回，写入本身成功 */
+            for (int i = 0; i < 4; i++) {
+                map.putVal(new Key(i, i), i);
+            }
+            long start = System.nanoTime();
+            map.putVal(new Key(4, 4), 4);
+            long waited = System.nanoTime() - start;
+            check("cas=" + cas + " put while full", 4, map.get(new Key(4, 4)));
+            check("cas=" + cas + " dropped while full", 1L, stream.dropped());
+            check("cas=" + cas + " cursor while full", 3L, stream.cursor());
+            if (waited < maxBlock || waited > java.util.concurrent.TimeUnit.SECONDS.toNanos(5)) {
+                throw new AssertionError("cas=" + cas + " waited " + waited + "ns for maxBlock " + maxBlock + "ns");
+            }
+
+            /** 事件处理中写入源 map：同一个线程既是订阅者又是生产者，缓冲已满，只能超时丢弃 */
+            long[] last = {-1L};
+            int[] handled = {0};
+            MyConcurrentMapChangeStream.EventHandler<Key, Integer> writeBack = (type, key, value, oldValue, sequence, endOfBatch) -> {
+                check("cas=" + cas + " sequence", last[0] + 1, sequence);
+                last[0] = sequence;
+                if (handled[0]++ == 0) {
+                    map.putVal(new Key(100, 0), 100);
+                }
+            };
+            check("cas=" + cas + " polled", 4, subscriber.poll(writeBack, 16));
+            check("cas=" + cas + " written from handler", 100, map.get(new Key(100, 0)));
+            check("cas=" + cas + " dropped from handler", 2L, stream.dropped());
+
+            /** 订阅者追上之后恢复正常发布，序号接着 3 连续 */
+            map.putVal(new Key(5, 5), 5);
+            check("cas=" + cas + " polled after catch-up", 1, subscriber.poll(writeBack, 16));
+            check("cas=" + cas + " last sequence", 4L, last[0]);
+            check("cas=" + cas + " dropped after catch-up", 2L, stream.dropped());
+            subscriber.close();
+
+        }
+
+    }
+
+    /**
+     * 变更流（覆盖模式）：很小的环形缓冲、很慢的消费者，生产者从不等待；
+     *      收到的事件不能是读取一半被覆盖的（value 编码了 key），序号递增，收到 + 丢失 = 发布总数
+     */
+    public void testChangeStreamOverwrite() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+            MyConcurrentMapChangeStream<Key, Integer> stream = map.enableChangeStream(64, MyConcurrentMapChangeStream.Policy.OVERWRITE);
+            MyConcurrentMapChangeStream.Subscriber<Key, Integer> subscriber = stream.subscribe();
+
+            long[] received = {0L}, last = {-1L};
+            List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+
+            MyConcurrentMapChangeStream.EventHandler<Key, Integer> handler = (type, key, value, oldValue, sequence, endOfBatch) -> {
+                if (sequence <= last[0]) {
+                    throw new AssertionError("sequence " + sequence + " after " + last[0]);
+                }
+                last[0] = sequence;
+                check("torn event " + key, key.id, value / 100000);
+                received[0]++;
+            };
+
+            Thread consumer = new Thread(() -> {
+                try {
+                    while (!done.get() || subscriber.sequence() < stream.cursor()) {
+                        subscriber.poll(handler, 16);
+                        Thread.yield();
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            consumer.start();
+
+            Thread[] workers = new Thread[3];
+            for (int t = 0; t < workers.length; t++) {
+                int thread = t;
+                workers[t] = new Thread(() -> {
+                    for (int step = 0; step < 50000; step++) {
+                        int id = (step * workers.length + thread) % 1000;
+                        map.putVal(new Key(id, id), id * 100000 + step % 100000);
+                    }
+                });
+                workers[t].start();
+            }
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            done.set(true);
+            consumer.join();
+
+            if (!errors.isEmpty()) {
+                throw new AssertionError(errors.get(0));
+            }
+
+            check("cas=" + cas + " received + lost", stream.cursor() + 1, received[0] + subscriber.lost());
+            report("change stream overwrite cas=" + cas + " published=" + (stream.cursor() + 1)
+                    + " received=" + received[0] + " lost=" + subscriber.lost());
+
+        }
+
+    }
+
+    /**
+     * 快照：两个线程各自在自己的 key 上随机添加、删除（大量哈希冲突，跨过多次扩容、缩容），同时不断做快照；
+     *      每个写入线程记录自己的修改历史，快照中属于该线程的部分必须等于历史中某一步之后的完整状态，
+     *      且这一步在 snapshot() 调用之前已完成的步数、snapshot() 返回时已开始的步数之间（返回之后才开始的修改不能出现在快照中）
+     */
+    public void testSnapshotIsPointInTime() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            long seed = Long.getLong("stress.seed", System.nanoTime());
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas, true);
+            int writers = 2, steps = 60000;
+            int[][] ids = new int[writers][steps], vals = new int[writers][steps];
+            /** started：已记录历史、即将执行的步数；progress：已执行完的步数 */
+            java.util.concurrent.atomic.AtomicIntegerArray started = new java.util.concurrent.atomic.AtomicIntegerArray(writers);
+            java.util.concurrent.atomic.AtomicIntegerArray progress = new java.util.concurrent.atomic.AtomicIntegerArray(writers);
+            List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+            Thread[] threads = new Thread[writers];
+            for (int w = 0; w < writers; w++) {
+                int writer = w;
+                threads[w] = new Thread(() -> {
+                    try {
+                        Random random = new Random(seed + writer);
+                        for (int step = 0; step < steps; step++) {
+                            /** 前半段 key 范围逐渐变大、少量删除（扩容），后半段大量删除（缩容） */
+                            boolean growing = step < steps / 2;
+                            int id = random.nextInt(16 + Math.min(step, steps / 2) / 10) * writers + writer;
+                            boolean remove = growing ? random.nextInt(4) == 0 : random.nextInt(4) != 0;
+                            Key key = new Key(id, id & 127);
+                            ids[writer][step] = id;
+                            vals[writer][step] = remove ? -1 : step;
+                            started.set(writer, step + 1);
+                            if (remove) {
+                                map.remove(key);
+                            } else {
+                                map.putVal(key, step);
+                            }
+                            progress.set(writer, step + 1);
+                            if ((step & 255) == 0) {
+                                Thread.yield();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                threads[w].start();
+            }
+
+            int snapshots = 0, peak = 0;
+            while (progress.get(0) < steps || progress.get(1) < steps) {
+
+                int[] lo = new int[writers], hi = new int[writers];
+                for (int w = 0; w < writers; w++) {
+                    lo[w] = progress.get(w);
+                }
+
+                Map<Integer, Integer> contents = new java.util.HashMap<>();
+                MyConcurrentMapSnapshot<Key, Integer> snapshot = map.snapshot();
+
+                /** 快照时间点在 snapshot() 返回之前：正在执行的一步可能已经生效，上界用返回时的 started */
+                for (int w = 0; w < writers; w++) {
+                    hi[w] = started.get(w);
+                }
+
+                snapshot.forEach((k, v) -> {
+                    if (contents.put(k.id, v) != null) {
+                        throw new AssertionError("duplicate key " + k);
+                    }
+                });
+                peak = Math.max(peak, snapshot.peakPreservedBins());
+
+                for (int w = 0; w < writers; w++) {
+                    checkPrefix("seed=" + seed + " cas=" + cas + " snapshot=" + snapshots + " writer=" + w,
+                            contents, writers, w, ids[w], vals[w], lo[w], hi[w]);
+                }
+                snapshots++;
+
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            if (!errors.isEmpty()) {
+                throw new AssertionError(errors.get(0));
+            }
+
+            /** 快照结束后补做推迟的缩容、扩容，数据不能丢失 */
+            Map<Integer, Integer> expected = new java.util.HashMap<>(), actual = new java.util.HashMap<>();
+            for (int w = 0; w < writers; w++) {
+                for (int step = 0; step < steps; step++) {
+                    if (vals[w][step] < 0) {
+                        expected.remove(ids[w][step]);
+                    } else {
+                        expected.put(ids[w][step], vals[w][step]);
+                    }
+                }
+            }
+            map.forEach((k, v) -> actual.put(k.id, v));
+            check("seed=" + seed + " cas=" + cas + " final", expected, actual);
+
+            report("snapshot cas=" + cas + " snapshots=" + snapshots + " peakPreservedBins=" + peak
+                    + " capacity=" + map.capacity());
+
+        }
+
+    }
+
+    /**
+     * 校验快照中属于某个写入线程的部分等于它的历史中 [lo, hi] 之间某一步之后的状态
+     */
+    static void checkPrefix(String where, Map<Integer, Integer> contents, int writers, int writer,
+                            int[] ids, int[] vals, int lo, int hi) {
+
+        Map<Integer, Integer> mine = new java.util.HashMap<>();
+        contents.forEach((id, v) -> {
+            if (id % writers == writer) {
+                mine.put(id, v);
+            }
+        });
+
+        /** 重放历史，维护与快照不同的 key 个数 */
+        Map<Integer, Integer> state = new java.util.HashMap<>();
+        int diff = mine.size();
+        for (int step = 0; step <= hi; step++) {
+
+            if (step >= lo && diff == 0) {
+                return;
+            }
+            if (step == hi) {
+                break;
+            }
+
+            int id = ids[step];
+            Integer before = state.get(id), after = vals[step] < 0 ? null : vals[step];
+            Integer expected = mine.get(id);
+            if (after == null) {
+                state.remove(id);
+            } else {
+                state.put(id, after);
+            }
+            diff += (java.util.Objects.equals(after, expected) ? 0 : 1) - (java.util.Objects.equals(before, expected) ? 0 : 1);
+
+        }
+
+        throw new AssertionError(where + " snapshot is not a prefix of the history in [" + lo + ", " + hi + "]");
+
+    }
+
+    /**
+     * 快照：跨线程的因果顺序
+     *      写入线程 A 依次添加 a0、a1、...；线程 B 看到 ai 之后才添加 bi，同时不断做快照：
+     *          快照中有 bi 就必须有 ai（bi 因果上晚于 ai）
+     *          snapshot() 返回之后立即读取 A 接下来的几个 key，读到不存在的 key 在快照时间点之后才添加，快照中不能出现
+     *      开始快照时还在桶锁内、判断“没有快照”之后还没修改的写入线程，修改会晚于快照时间点，只检查各自历史的测试发现不了
+     */
+    public void testSnapshotRespectsCausalOrder() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            int rounds = ROUNDS / 10, count = 5000, snapshots = 0;
+            for (int round = 0; round < rounds; round++) {
+
+                MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas, true);
+                java.util.concurrent.atomic.AtomicInteger written = new java.util.concurrent.atomic.AtomicInteger();
+                List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+                Thread writerA = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            map.putVal(causalKey(i, false), i);
+                            written.set(i + 1);
+                            if ((i & 63) == 0) {
+                                Thread.yield();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                Thread writerB = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < count && errors.isEmpty(); i++) {
+                            while (map.get(causalKey(i, false)) == null) {
+                                Thread.yield();
+                            }
+                            map.putVal(causalKey(i, true), i);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                writerA.start();
+                writerB.start();
+
+                while (written.get() < count && errors.isEmpty()) {
+
+                    MyConcurrentMapSnapshot<Key, Integer> snapshot = map.snapshot();
+
+                    /** 快照已开始，此时不存在的 key 一定在快照之后才添加 */
+                    List<Integer> absent = new ArrayList<>();
+                    for (int i = written.get(), end = Math.min(count, i + 8); i < end; i++) {
+                        if (map.get(causalKey(i, false)) == null) {
+                            absent.add(2 * i);
+                        }
+                    }
+
+                    java.util.Set<Integer> ids = new java.util.HashSet<>();
+                    snapshot.forEach((k, v) -> ids.add(k.id));
+
+                    String where = "cas=" + cas + " round=" + round + " snapshot=" + snapshots;
+                    for (int id : ids) {
+                        if ((id & 1) == 1 && !ids.contains(id - 1)) {
+                            throw new AssertionError(where + " contains b" + id / 2 + " but not a" + id / 2);
+                        }
+                    }
+                    for (int id : absent) {
+                        if (ids.contains(id)) {
+                            throw new AssertionError(where + " contains a" + id / 2 + " that was absent after snapshot() returned");
+                        }
+                    }
+                    snapshots++;
+
+                }
+
+                writerA.join();
+                writerB.join();
+                if (!errors.isEmpty()) {
+                    throw new AssertionError(errors.get(0));
+                }
+                check("cas=" + cas + " round=" + round + " size", (long) count * 2, map.size());
+
+            }
+
+            report("snapshot causal cas=" + cas + " snapshots=" + snapshots);
+
+        }
+
+    }
+
+    /**
+     * 因果测试的 key：a 的 id 为偶数，b 的 id 为奇数；一半落在少数几个桶里（加锁写入），一半分散（空桶 CAS 写入）
+     */
+    static Key causalKey(int i, boolean b) {
+        return new Key(2 * i + (b ? 1 : 0), (i & 1) == 0 ? (i & 7) + (b ? 8 : 0) : i * (b ? 0x61C88647 : 0x9E3779B9));
+    }
+
+    /**
+     * 没有开启快照的 map 写入不登记（没有额外开销），也不能创建快照
+     */
+    public void testSnapshotRequiresOptIn() {
+
+        for (boolean cas : LOCK_MODES) {
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+            map.putVal(new Key(1, 1), 1);
+            check("cas=" + cas + " writer stripes", null, map.writers);
+            try {
+                map.snapshot();
+                throw new AssertionError("cas=" + cas + " snapshot() without opt-in");
+            } catch (UnsupportedOperationException expected) {
+            }
+        }
+
+    }
+
+    /**
+     * 快照期间暂停扩容：try-with-resources 关闭之后补做扩容，可以开始新的快照
+     */
+    public void testSnapshotClosedByTryWithResources() {
+
+        for (boolean cas : LOCK_MODES) {
+
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas, true);
+            map.putVal(new Key(0, 0), 0);
+            int capacity = map.capacity();
+
+            try (MyConcurrentMapSnapshot<Key, Integer> snapshot = map.snapshot()) {
+                for (int i = 1; i < 1000; i++) {
+                    map.putVal(new Key(i, i), i);
+                }
+                check("cas=" + cas + " capacity while open", capacity, map.capacity());
+                check("cas=" + cas + " preserved while open", true, snapshot.peakPreservedBins() > 0);
+            }
+
+            check("cas=" + cas + " resized after close", true, map.capacity() > capacity);
+            check("cas=" + cas + " next snapshot", 1000L, map.snapshot().forEach((k, v) -> { }));
+
+        }
+
+    }
+
+    /**
+     * 超过最长存活时间、没有遍历也没有关闭的快照不能一直阻止扩容：扩容时作废，之后遍历抛出异常
+     */
+    public void testOverdueSnapshotExpiresOnResize() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas, true);
+            map.putVal(new Key(0, 0), 0);
+            int capacity = map.capacity();
+
+            MyConcurrentMapSnapshot<Key, Integer> forgotten = map.snapshot(1, java.util.concurrent.TimeUnit.MILLISECONDS);
+            Thread.sleep(5);
+            for (int i = 1; i < 1000; i++) {
+                map.putVal(new Key(i, i), i);
+            }
+            check("cas=" + cas + " resized past overdue snapshot", true, map.capacity() > capacity);
+
+            try {
+                forgotten.forEach((k, v) -> { });
+                throw new AssertionError("cas=" + cas + " expired snapshot iterated");
+            } catch (IllegalStateException expected) {
+            }
+            check("cas=" + cas + " next snapshot", 1000L, map.snapshot().forEach((k, v) -> { }));
+
+        }
+
+    }
+
+    /**
+     * 事务：多个线程在少量账户之间随机转账（大量冲突、条带很少，不同账户共用条带），同时有线程用只读事务对账；
+     *      对账事务内看到的总额必须始终不变（不会读到提交了一半的转账），结束后总额不变、与单线程重放结果一致
+     */
+    public void testTransactionsPreserveTotal() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            long seed = Long.getLong("stress.seed", System.nanoTime());
+            int accounts = 32, initial = 1000;
+            MyTransactionalMap<Key, Integer> map = new MyTransactionalMap<>(8, cas);
+            for (int a = 0; a < accounts; a++) {
+                map.put(new Key(a, a & 7), initial);
+            }
+
+            List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+            int[] audits = new int[1];
+
+            Thread auditor = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        int total = map.atomically(tx -> {
+                            int sum = 0;
+                            for (int a = 0; a < accounts; a++) {
+                                sum += tx.get(new Key(a, a & 7));
+                            }
+                            return sum;
+                        });
+                        check("seed=" + seed + " audit", accounts * initial, total);
+                        audits[0]++;
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            auditor.start();
+
+            Thread[] workers = new Thread[4];
+            for (int t = 0; t < workers.length; t++) {
+                int thread = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        Random random = new Random(seed + thread);
+                        for (int step = 0; step < 5000; step++) {
+                            int from = random.nextInt(accounts), to = random.nextInt(accounts);
+                            Key f = new Key(from, from & 7), d = new Key(to, to & 7);
+                            int amount = random.nextInt(50);
+                            map.atomically(tx -> {
+                                int balance = tx.get(f);
+                                if (balance < amount || f.equals(d)) {
+                                    return false;
+                                }
+                                tx.put(f, balance - amount);
+                                tx.put(d, tx.get(d) + amount);
+                                return true;
+                            });
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                workers[t].start();
+            }
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            done.set(true);
+            auditor.join();
+
+            if (!errors.isEmpty()) {
+                throw new AssertionError(errors.get(0));
+            }
+
+            long[] total = {0};
+            map.forEach((k, v) -> {
+                if (v < 0) {
+                    throw new AssertionError("negative balance " + k + "=" + v);
+                }
+                total[0] += v;
+            });
+            check("seed=" + seed + " cas=" + cas + " total", (long) accounts * initial, total[0]);
+            check("seed=" + seed + " cas=" + cas + " commits", (long) workers.length * 5000 + audits[0], map.commitCount());
+
+            report("transactions cas=" + cas + " commits=" + map.commitCount() + " conflicts=" + map.conflictCount()
+                    + " audits=" + audits[0]);
+
+        }
+
+    }
+
+    /**
+     * 计数器：多线程同时首次计数、累加同一批碰撞 key，两个上报线程同时周期性 sumThenReset，
+     *      取走的计数加上剩余计数必须等于总累加次数
+     */
+    public void testCounterMapIsExact() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            long seed = Long.getLong("stress.seed", System.nanoTime());
+            int keys = 64, steps = 20000;
+            MyCounterMap<Key> counters = new MyCounterMap<>(cas);
+
+            List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+            java.util.concurrent.atomic.AtomicLongArray drainedBy = new java.util.concurrent.atomic.AtomicLongArray(keys);
+
+            Thread[] reporters = new Thread[2];
+            for (int r = 0; r < reporters.length; r++) {
+                reporters[r] = new Thread(() -> {
+                    try {
+                        while (!done.get()) {
+                            counters.sumThenReset((k, count) -> drainedBy.addAndGet(k.id, count));
+                            Thread.yield();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                reporters[r].start();
+            }
+
+            Thread[] workers = new Thread[4];
+            for (int t = 0; t < workers.length; t++) {
+                int thread = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        Random random = new Random(seed + thread);
+                        for (int step = 0; step < steps; step++) {
+                            int id = random.nextInt(keys);
+                            counters.add(new Key(id, id & 7), id + 1);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                workers[t].start();
+            }
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            done.set(true);
+            for (Thread reporter : reporters) {
+                reporter.join();
+            }
+            long[] drained = new long[keys];
+            for (int id = 0; id < keys; id++) {
+                drained[id] = drainedBy.get(id);
+            }
+
+            if (!errors.isEmpty()) {
+                throw new AssertionError(errors.get(0));
+            }
+
+            /** 各 key 的期望值：按相同种子重放 */
+            long[] expected = new long[keys];
+            for (int t = 0; t < workers.length; t++) {
+                Random random = new Random(seed + t);
+                for (int step = 0; step < steps; step++) {
+                    int id = random.nextInt(keys);
+                    expected[id] += id + 1;
+                }
+            }
+
+            long expectedTotal = 0;
+            for (int id = 0; id < keys; id++) {
+                check("seed=" + seed + " cas=" + cas + " key=" + id, expected[id], drained[id] + counters.sum(new Key(id, id & 7)));
+                expectedTotal += expected[id];
+            }
+            check("seed=" + seed + " cas=" + cas + " size", (long) keys, counters.size());
+
+            long drainedTotal = 0;
+            for (long d : drained) {
+                drainedTotal += d;
+            }
+            check("seed=" + seed + " cas=" + cas + " total", expectedTotal, drainedTotal + counters.sum());
+
+            /** topK 与按剩余计数排序的结果一致 */
+            List<java.util.Map.Entry<Key, Long>> top = counters.topK(5);
+            check("seed=" + seed + " topK size", 5L, (long) top.size());
+            long[] sorted = new long[keys];
+            for (int id = 0; id < keys; id++) {
+                sorted[id] = counters.sum(new Key(id, id & 7));
+            }
+            java.util.Arrays.sort(sorted);
+            for (int j = 0; j < top.size(); j++) {
+                check("seed=" + seed + " topK " + j, sorted[keys - 1 - j], (long) top.get(j).getValue());
+            }
+
+        }
+
+    }
+
+    /**
+     * 布谷鸟哈希：从很小的数组开始，写线程插入新 key（触发挪动、扩容）并删除一部分旧 key，
+     * 读线程同时读取已确认写入且不会删除的 key，乐观读不能因为元素正在两个桶之间挪动而读不到
+     */
+    public void testCuckooReadsNeverMissDuringDisplacement() throws Exception {
+
+        long seed = Long.getLong("stress.seed", System.nanoTime());
+        int writers = 4, perWriter = 5000;
+        MyCuckooConcurrentMap<Integer, Integer> map = new MyCuckooConcurrentMap<>(8);
+
+        /** 第一阶段：每个写线程插入自己的 key（id = 线程号 + 写线程数 * j），progress 记录已确认写入的个数 */
+        java.util.concurrent.atomic.AtomicIntegerArray progress = new java.util.concurrent.atomic.AtomicIntegerArray(writers);
+        List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+        java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+        long[] reads = new long[2];
+
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            int reader = r;
+            readers[r] = new Thread(() -> {
+                try {
+                    Random random = new Random(seed ^ (reader + 100));
+                    while (!done.get()) {
+                        int w = random.nextInt(writers), p = progress.get(w);
+                        if (p == 0) {
+                            continue;
+                        }
+                        /** 奇数 j 从不删除 */
+                        int j = random.nextInt(p) | 1;
+                        if (j >= p) {
+                            continue;
+                        }
+                        int id = w + writers * j;
+                        Integer v = map.get(id);
+                        if (v == null || v != id) {
+                            throw new AssertionError("seed=" + seed + " key " + id + " read " + v);
+                        }
+                        reads[reader]++;
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            readers[r].start();
+        }
+
+        Thread[] threads = new Thread[writers];
+        for (int t = 0; t < writers; t++) {
+            int w = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < perWriter; j++) {
+                        map.putVal(w + writers * j, w + writers * j);
+                        progress.set(w, j + 1);
+                    }
+                    /** 第二阶段：删除偶数 j，同时插入新 key 继续挪动奇数 j 的元素 */
+                    for (int j = 0; j < perWriter; j += 2) {
+                        map.remove(w + writers * j);
+                        int extra = writers * perWriter + w + writers * j;
+                        map.putVal(extra, extra);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+
+        /** 最终内容：奇数 j 与新 key 存在，偶数 j 已删除 */
+        for (int w = 0; w < writers; w++) {
+            for (int j = 0; j < perWriter; j++) {
+                int id = w + writers * j, extra = writers * perWriter + id;
+                if ((j & 1) == 1) {
+                    check("seed=" + seed + " key " + id, id, map.get(id));
+                } else {
+                    check("seed=" + seed + " key " + id, null, map.get(id));
+                    check("seed=" + seed + " key " + extra, extra, map.get(extra));
+                }
+            }
+        }
+        long expected = (long) writers * perWriter;
+        check("seed=" + seed + " size", expected, map.size());
+
+        long[] visited = {0};
+        map.forEach((k, v) -> visited[0]++);
+        check("seed=" + seed + " forEach", expected, visited[0]);
+
+        if (map.displacementCount() == 0 || map.resizeCount() == 0) {
+            throw new AssertionError("no displacement or resize exercised: " + map.displacementCount() + "/" + map.resizeCount());
+        }
+
+        report("cuckoo reads=" + (reads[0] + reads[1]) + " displacements=" + map.displacementCount()
+                + " resizes=" + map.resizeCount() + " load=" + map.loadFactor());
+
+    }
+
+    /**
+     * 布谷鸟哈希确定性交错：读线程在扩容前读到旧数组，扩容后 key 在新数组上被删除、再重新添加，
+     *      旧数组里仍留着原来的元素，从旧数组读到的结果必须作废重读，不能返回已删除的值或删除前的旧值
+     */
+    public void testCuckooReadAfterGrowSeesLaterRemove() {
+
+        MyCuckooConcurrentMap<Integer, Integer> map = new MyCuckooConcurrentMap<>(8);
+        Integer k = 1;
+        int h = MyCuckooConcurrentMap.hash(k);
+        map.putVal(k, 1);
+
+        /** 读线程读到的数组 */
+        MyCuckooConcurrentMap.Table<Integer, Integer> old = map.table;
+        check("read before grow", 1, map.read(old, h, k));
+
+        map.grow(old);
+        check("table replaced", true, map.table != old);
+
+        map.remove(k);
+        check("removed entry still in old table", true,
+                MyCuckooConcurrentMap.find(old, h & old.mask, h, k) != null
+                        || MyCuckooConcurrentMap.find(old, MyCuckooConcurrentMap.altBucket(h, old.mask), h, k) != null);
+        check("read old table after remove", MyCuckooConcurrentMap.RETRY, map.read(old, h, k));
+        check("get after remove", null, map.get(k));
+
+        map.putVal(k, 2);
+        check("read old table after re-insert", MyCuckooConcurrentMap.RETRY, map.read(old, h, k));
+        check("get after re-insert", 2, map.get(k));
+
+    }
+
+    /**
+     * 持久化哈希表：随机 put/remove/transient 批量修改与 HashMap 逐步对比，
+     * 过程中保存的旧版本在之后的所有修改（包括基于它的 transient）之后内容不变
+     */
+    public void testPersistentHashMapVersionsAreIndependent() {
+
+        long seed = Long.getLong("stress.seed", System.nanoTime());
+        Random random = new Random(seed);
+        MyPersistentHashMap<Key, Integer> map = MyPersistentHashMap.empty();
+        Map<Key, Integer> model = new java.util.HashMap<>();
+        List<MyPersistentHashMap<Key, Integer>> versions = new ArrayList<>();
+        List<Map<Key, Integer>> expected = new ArrayList<>();
+
+        for (int step = 0; step < 50000; step++) {
+
+            /** 三种哈希值：只有高位不同（树很深）、只有 37 种（完全冲突）、普通 */
+            int id = random.nextInt(3000);
+            Key key = new Key(id, id < 1000 ? id << 22 : id < 2000 ? id % 37 : id * 0x9E3779B9);
+            int op = random.nextInt(10);
+            String where = "seed=" + seed + " step=" + step + " key=" + id;
+
+            if (op < 5) {
+                map = map.put(key, step);
+                model.put(key, step);
+            } else if (op < 8) {
+                MyPersistentHashMap<Key, Integer> before = map;
+                map = map.remove(key);
+                if (model.remove(key) == null && map != before) {
+                    throw new AssertionError(where + " removing a missing key created a new version");
+                }
+            } else if (op < 9) {
+                /** 基于某个旧版本或当前版本做一批修改 */
+                MyPersistentHashMap.Transient<Key, Integer> t = map.asTransient();
+                for (int j = 0; j < 20; j++) {
+                    int bid = random.nextInt(3000);
+                    Key bkey = new Key(bid, bid < 1000 ? bid << 22 : bid < 2000 ? bid % 37 : bid * 0x9E3779B9);
+                    if (random.nextInt(3) == 0) {
+                        t.remove(bkey);
+                        model.remove(bkey);
+                    } else {
+                        t.put(bkey, -step);
+                        model.put(bkey, -step);
+                    }
+                    check(where + " transient get", model.get(bkey), t.get(bkey));
+                }
+                map = t.persistent();
+            } else {
+                check(where + " get", model.get(key), map.get(key));
+            }
+
+            check(where + " size", model.size(), map.size());
+
+            if (step % 500 == 0) {
+                versions.add(map);
+                expected.add(new java.util.HashMap<>(model));
+            }
+
+        }
+
+        for (int v = 0; v < versions.size(); v++) {
+
+            MyPersistentHashMap<Key, Integer> version = versions.get(v);
+            Map<Key, Integer> contents = expected.get(v);
+            check("seed=" + seed + " version " + v + " size", contents.size(), version.size());
+
+            for (Map.Entry<Key, Integer> e : contents.entrySet()) {
+                check("seed=" + seed + " version " + v + " key " + e.getKey(), e.getValue(), version.get(e.getKey()));
+            }
+
+            int[] visited = {0};
+            String where = "seed=" + seed + " version " + v;
+            version.forEach((k, val) -> {
+                check(where + " forEach " + k, contents.get(k), val);
+                visited[0]++;
+            });
+            check("seed=" + seed + " version " + v + " forEach count", contents.size(), visited[0]);
+
+        }
+
+    }
+
+    /**
+     * 冻结哈希表：30万个 key（超过并行构建阈值），其中一部分 hashCode 完全相同（只能放到兜底表），
+     * 冻结后每个 key 都能查到、不存在的 key 返回 null，之后修改原表不影响冻结结果
+     */
+    public void testFrozenHashMapFindsEveryKey() {
+
+        long seed = Long.getLong("stress.seed", System.nanoTime());
+        Random random = new Random(seed);
+        MyHashMap<Key, Integer> source = new MyHashMap<>();
+        Map<Key, Integer> model = new java.util.HashMap<>();
+
+        for (int id = 0; id < 300000; id++) {
+            /** 每 1000 个 key 中有 10 个 hashCode 只有 3 种 */
+            Key key = new Key(id, id % 1000 < 10 ? id % 3 : random.nextInt());
+            source.put(key, id);
+            model.put(key, id);
+        }
+
+        MyFrozenHashMap<Key, Integer> frozen = source.freeze();
+        String where = "seed=" + seed;
+        check(where + " size", model.size(), frozen.size());
+
+        for (Map.Entry<Key, Integer> e : model.entrySet()) {
+            check(where + " get " + e.getKey(), e.getValue(), frozen.get(e.getKey()));
+        }
+
+        for (int j = 0; j < 100000; j++) {
+            Key missing = new Key(-1 - j, j % 100 == 0 ? j % 3 : random.nextInt());
+            check(where + " missing " + missing, null, frozen.get(missing));
+            check(where + " containsKey " + missing, false, frozen.containsKey(missing));
+        }
+
+        for (int id = 0; id < 1000; id++) {
+            source.put(new Key(id, id), -id);
+        }
+        int[] visited = {0};
+        frozen.forEach((k, v) -> {
+            check(where + " forEach " + k, model.get(k), v);
+            visited[0]++;
+        });
+        check(where + " forEach count", model.size(), visited[0]);
+        check(where + " fallback", true, frozen.fallbackSize() > 0);
+
+    }
+
+    /**
+     * 冻结哈希表有兜底表时，不存在的 key 只在落到有冲突的编号时才查兜底表：
+     *      兜底表查找会再调用一次 hashCode，统计 hashCode 调用次数；20000 个编号里最多 9 个有冲突，多出的调用应当很少
+     */
+    public void testFrozenHashMapProbesFallbackOnlyOnCollisions() {
+
+        long seed = Long.getLong("stress.seed", System.nanoTime());
+        Random random = new Random(seed);
+        MyHashMap<CountingKey, Integer> source = new MyHashMap<>();
+        for (int id = 0; id < 20000; id++) {
+            source.put(new CountingKey(id, id < 10 ? 7 : random.nextInt()), id);
+        }
+
+        MyFrozenHashMap<CountingKey, Integer> frozen = source.freeze();
+        String where = "seed=" + seed;
+        check(where + " fallback", 9, frozen.fallbackSize());
+        for (int id = 0; id < 10; id++) {
+            check(where + " colliding key " + id, id, frozen.get(new CountingKey(id, 7)));
+        }
+
+        int lookups = 20000;
+        CountingKey[] missing = new CountingKey[lookups];
+        for (int j = 0; j < lookups; j++) {
+            missing[j] = new CountingKey(-1 - j, random.nextInt());
+        }
+        long before = CountingKey.HASH_CALLS.get();
+        for (CountingKey k : missing) {
+            check(where + " missing " + k.id, null, frozen.get(k));
+        }
+        long extra = CountingKey.HASH_CALLS.get() - before - lookups;
+        check(where + " fallback probes " + extra, true, extra < lookups / 100);
+
+    }
+
+    /**
+     * 统计 hashCode 调用次数的 key
+     */
+    static final class CountingKey implements Comparable<CountingKey> {
+
+        static final java.util.concurrent.atomic.AtomicLong HASH_CALLS = new java.util.concurrent.atomic.AtomicLong();
+
+        final int id;
+
+        final int hash;
+
+        CountingKey(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            HASH_CALLS.incrementAndGet();
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CountingKey && ((CountingKey) o).id == id;
+        }
+
+        @Override
+        public int compareTo(CountingKey o) {
+            return Integer.compare(id, o.id);
+        }
+
+    }
+
+    /**
+     * 有界缓存准入、淘汰：容量100，50个热点 key 持续被访问，中间穿插大量只写一次的扫描 key（每两次热点访问之间有 150 个其他 key，
+     * 纯 LRU 下热点 key 每次都已被淘汰）；频率准入让扫描 key 进不了主区，热点 key 后半段几乎全部命中，个数、淘汰次数与写入一致
+     */
+    public void testBoundedCacheAdmitsFrequentKeys() {
+
+        int maximum = 100, hot = 50, scans = 3;
+        MyBoundedCache<Integer, Integer> cache = new MyBoundedCache<>(maximum);
+        for (int h = 0; h < hot; h++) {
+            cache.put(h, h);
+        }
+
+        int rounds = 20000, scanKey = 1_000_000, hits = 0, lookups = 0, inserts = hot;
+        for (int r = 0; r < rounds; r++) {
+
+            int h = r % hot;
+            Integer v = cache.get(h);
+            if (v == null) {
+                cache.put(h, h);
+                inserts++;
+            } else {
+                check("hot value " + h, h, v);
+            }
+            if (r >= rounds / 2) {
+                lookups++;
+                hits += v == null ? 0 : 1;
+            }
+
+            for (int s = 0; s < scans; s++) {
+                cache.put(scanKey++, 0);
+                inserts++;
+            }
+
+        }
+
+        cache.cleanUp();
+        check("size", true, cache.size() <= maximum);
+        check("weightedSize", cache.size(), cache.weightedSize());
+        check("hot hit rate " + hits + "/" + lookups, true, hits >= lookups * 0.9);
+
+        /** 没有删除操作，每次新增的 key 要么还在、要么被淘汰 */
+        check("evictions", (long) inserts, cache.evictionCount() + cache.size());
+
+    }
+
+    /**
+     * 有界缓存权重上限：随机权重写入、覆盖、删除之后总权重不超过上限，且等于剩余元素的权重之和；
+     * 权重以字节计的大上限缓存不会按最大权重分配频率统计，而是随元素个数扩大
+     */
+    public void testBoundedCacheWeightBound() {
+
+        long seed = Long.getLong("stress.seed", System.nanoTime());
+        Random random = new Random(seed);
+        int maximum = 1000, keys = 2000;
+        MyBoundedCache<Integer, Integer> cache = new MyBoundedCache<>(maximum, (k, v) -> v);
+
+        for (int step = 0; step < 50000; step++) {
+            int k = random.nextInt(keys);
+            if (random.nextInt(10) == 0) {
+                cache.remove(k);
+            } else {
+                cache.put(k, 1 + random.nextInt(50));
+            }
+        }
+
+        long weight = cache.weightedSize();
+        long sum = 0;
+        for (int k = 0; k < keys; k++) {
+            Integer v = cache.get(k);
+            sum += v == null ? 0 : v;
+        }
+        check("seed=" + seed + " weight bound " + weight, true, weight <= maximum);
+        check("seed=" + seed + " weight sum", weight, sum);
+
+        MyBoundedCache<Integer, byte[]> bytes = new MyBoundedCache<>(512L << 20, (k, v) -> v.length);
+        check("initial sketch", true, bytes.sketch.table.length <= 1024);
+        for (int k = 0; k < 5000; k++) {
+            bytes.put(k, new byte[16]);
+        }
+        bytes.cleanUp();
+        check("grown sketch " + bytes.sketch.table.length, true,
+                bytes.sketch.table.length >= 4096 && bytes.sketch.table.length <= 16384);
+
+    }
+
+    /**
+     * 过期哈希表（手动推进的时间源）：
+     *      访问后过期：被访问的 key 从最后一次访问起计时，其余 key 到期后读不到，cleanUp 之后从时间轮和哈希表中删除
+     *      写后过期：一直访问也会在写入后到期；覆盖写入重新计时；跨过时间轮第一层的长过期时间同样按时清理
+     */
+    public void testExpiringMapExpiresAfterWriteAndAccess() {
+
+        java.util.concurrent.atomic.AtomicLong time = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.TimeUnit seconds = java.util.concurrent.TimeUnit.SECONDS;
+
+        /** 写后 10 秒、访问后 3 秒过期 */
+        MyExpiringMap<Integer, Integer> map = new MyExpiringMap<>(10, 3, seconds, time::get);
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+
+        time.addAndGet(seconds.toNanos(2));
+        check("2s key 0", 0, map.get(0));
+
+        /** 4 秒：key 0 距上次访问 2 秒，其余 key 距写入 4 秒，已超过访问后过期时间 */
+        time.addAndGet(seconds.toNanos(2));
+        check("4s key 0", 0, map.get(0));
+        check("4s key 1", null, map.get(1));
+        map.cleanUp();
+        check("4s size", 1L, map.size());
+
+        /** 每 2 秒访问一次 key 0，访问后过期一直推迟，但写入 10 秒后仍然过期 */
+        for (int s = 6; s < 10; s += 2) {
+            time.addAndGet(seconds.toNanos(2));
+            check(s + "s key 0", 0, map.get(0));
+        }
+        time.addAndGet(seconds.toNanos(2));
+        check("10s key 0", null, map.get(0));
+        map.cleanUp();
+        check("10s size", 0L, map.size());
+
+        /** 过期后重新写入等同于新增 */
+        check("put after expiry", null, map.put(0, 1));
+        check("get after re-put", 1, map.get(0));
+
+        /** 只有写后过期：覆盖写入重新计时 */
+        MyExpiringMap<Integer, Integer> ttl = new MyExpiringMap<>(5, 0, seconds, time::get);
+        ttl.put(1, 1);
+        ttl.put(2, 2);
+        time.addAndGet(seconds.toNanos(4));
+        check("ttl overwrite", 1, ttl.put(1, 10));
+        time.addAndGet(seconds.toNanos(1));
+        check("ttl key 2 at 5s", null, ttl.get(2));
+        check("ttl key 1 rewritten at 4s", 10, ttl.get(1));
+        time.addAndGet(seconds.toNanos(4));
+        check("ttl key 1 at 9s", null, ttl.get(1));
+        ttl.cleanUp();
+        check("ttl size", 0L, ttl.size());
+
+        /** 过期时间落在时间轮的第二、三层：到期前不清理，到期后一次推进全部清理 */
+        MyExpiringMap<Integer, Integer> hours = new MyExpiringMap<>(2, 0, java.util.concurrent.TimeUnit.HOURS, time::get);
+        for (int i = 0; i < 1000; i++) {
+            hours.put(i, i);
+            time.addAndGet(java.util.concurrent.TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        time.addAndGet(java.util.concurrent.TimeUnit.MINUTES.toNanos(100));
+        hours.cleanUp();
+        check("hours before expiry", 1000L, hours.size());
+        check("hours get before expiry", 999, hours.get(999));
+        time.addAndGet(java.util.concurrent.TimeUnit.MINUTES.toNanos(30));
+        hours.cleanUp();
+        check("hours after expiry", 0L, hours.size());
+
+    }
+
+    /**
+     * 异步加载（手动推进的时间源，手动完成的加载结果）：
+     *      64 个线程同时未命中同一个 key 只加载一次，共享同一个结果；
+     *      超过刷新时间返回旧值并只触发一次后台刷新，刷新完成后读到新值，刷新失败保留旧值；超过过期时间重新加载；
+     *      加载失败（同步抛出、异步异常完成）时等待中的调用者都收到异常，之后的调用重新加载
+     */
+    public void testLoadingMapDedupRefreshAndRetry() throws Exception {
+
+        java.util.concurrent.atomic.AtomicLong time = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.TimeUnit seconds = java.util.concurrent.TimeUnit.SECONDS;
+        MyLoadingMap<String, String> map = new MyLoadingMap<>(5, 10, seconds, time::get);
+
+        /** 每次加载返回一个未完成的 Future，由测试决定何时完成 */
+        java.util.concurrent.atomic.AtomicInteger loads = new java.util.concurrent.atomic.AtomicInteger();
+        List<java.util.concurrent.CompletableFuture<String>> pending = new java.util.concurrent.CopyOnWriteArrayList<>();
+        java.util.function.Function<String, java.util.concurrent.CompletableFuture<String>> loader = k -> {
+            loads.incrementAndGet();
+            java.util.concurrent.CompletableFuture<String> f = new java.util.concurrent.CompletableFuture<>();
+            pending.add(f);
+            return f;
+        };
+
+        /** 击穿：加载结果在所有调用者返回之后才完成，64 个调用者只能触发一次加载 */
+        int callers = 64;
+        CyclicBarrier barrier = new CyclicBarrier(callers);
+        List<java.util.concurrent.CompletableFuture<String>> futures = new java.util.concurrent.CopyOnWriteArrayList<>();
+        List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+        Thread[] threads = new Thread[callers];
+        for (int t = 0; t < callers; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    barrier.await();
+                    futures.add(map.getOrLoad("hot", loader));
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+        check("stampede loads", 1, loads.get());
+        check("stampede pending", false, futures.get(0).isDone());
+        pending.get(0).complete("v1");
+        for (java.util.concurrent.CompletableFuture<String> f : futures) {
+            check("stampede value", "v1", f.getNow(null));
+        }
+
+        /** 6 秒：超过刷新时间，两次调用都立即返回旧值，只触发一次刷新 */
+        time.addAndGet(seconds.toNanos(6));
+        check("refresh returns stale", "v1", map.getOrLoad("hot", loader).getNow(null));
+        check("refresh returns stale again", "v1", map.getOrLoad("hot", loader).getNow(null));
+        check("refresh loads", 2, loads.get());
+        pending.get(1).complete("v2");
+        check("after refresh", "v2", map.getIfPresent("hot"));
+
+        /** 刷新失败保留旧值，下一次访问重新触发刷新 */
+        time.addAndGet(seconds.toNanos(6));
+        check("failing refresh returns stale", "v2", map.getOrLoad("hot", loader).getNow(null));
+        pending.get(2).completeExceptionally(new IllegalStateException("backend down"));
+        check("kept after failed refresh", "v2", map.getIfPresent("hot"));
+        check("refresh retried", "v2", map.getOrLoad("hot", loader).getNow(null));
+        check("refresh retry loads", 4, loads.get());
+        pending.get(3).complete("v3");
+        check("after retried refresh", "v3", map.getIfPresent("hot"));
+
+        /** 再过 11 秒：已过期，不返回旧值，等待重新加载 */
+        time.addAndGet(seconds.toNanos(11));
+        check("expired", null, map.getIfPresent("hot"));
+        java.util.concurrent.CompletableFuture<String> reload = map.getOrLoad("hot", loader);
+        check("expired reload pending", false, reload.isDone());
+        pending.get(4).complete("v4");
+        check("expired reload", "v4", reload.getNow(null));
+
+        /** 同步抛出：Future 异常完成，占位节点被删除，下次重新加载 */
+        java.util.concurrent.CompletableFuture<String> thrown = map.getOrLoad("bad", k -> {
+            throw new IllegalStateException("backend down");
+        });
+        check("thrown failed", true, thrown.isCompletedExceptionally());
+        check("thrown removed", null, map.data.get("bad"));
+
+        /** 异步失败：等待中的调用者共享同一个失败，之后重新加载成功 */
+        java.util.concurrent.CompletableFuture<String> first = map.getOrLoad("bad", loader);
+        java.util.concurrent.CompletableFuture<String> second = map.getOrLoad("bad", loader);
+        check("shared failing load", true, first == second);
+        pending.get(5).completeExceptionally(new IllegalStateException("backend down"));
+        check("async failed", true, second.isCompletedExceptionally());
+        java.util.concurrent.CompletableFuture<String> retry = map.getOrLoad("bad", loader);
+        check("retry loads", 7, loads.get());
+        pending.get(6).complete("ok");
+        check("retry value", "ok", retry.getNow(null));
+        check("size", 2L, map.size());
+
+    }
+
+    /**
+     * 链表模式的 MyHashMap 与 LinkedHashMap 逐步对比遍历顺序（插入顺序、访问顺序）：
+     *      大量冲突的 key 在同一个桶中转换为红黑树，反复删除有两个子节点的树节点（红黑树把前驱节点的数据复制到该节点上，
+     *      双向链表依靠 transferLinks 恢复顺序）；最后验证 removeEldestEntry 按访问顺序淘汰
+     */
+    public void testLinkedHashMapOrderAcrossTreeRemoval() {
+
+        for (boolean accessOrder : new boolean[]{false, true}) {
+
+            String where = "accessOrder=" + accessOrder;
+            MyHashMap<Key, Integer> map = new MyHashMap<>(true, accessOrder);
+            Map<Key, Integer> model = new java.util.LinkedHashMap<>(16, 0.75f, accessOrder);
+
+            /** 冲突的 key（哈希值都为 7）与分散的 key 交替插入 */
+            for (int i = 0; i < 24; i++) {
+                Key collide = new Key(i, 7), spread = new Key(100 + i, 100 + i);
+                map.put(collide, i);
+                model.put(collide, i);
+                map.put(spread, 100 + i);
+                model.put(spread, 100 + i);
+            }
+            check(where + " tree bin", true, map.tab[(map.tab.length - 1) & 7] instanceof MyHashMap.TreeNode);
+            checkOrder(where + " after insert", model, map);
+
+            int twoChildRemovals = 0;
+            for (int round = 0; ; round++) {
+
+                /** 访问、覆盖部分 key，访问顺序模式下会移动到链表尾部 */
+                for (int i = round % 3; i < 24; i += 5) {
+                    Key collide = new Key(i, 7), spread = new Key(100 + i, 100 + i);
+                    check(where + " get " + collide, model.get(collide), map.get(collide));
+                    if (model.containsKey(spread)) {
+                        map.put(spread, 1000 + round);
+                        model.put(spread, 1000 + round);
+                    }
+                }
+                checkOrder(where + " round " + round + " after access", model, map);
+
+                Key target = twoChildKey(map, 7);
+                if (target == null) {
+                    break;
+                }
+                check(where + " remove " + target, model.remove(target), map.remove(target));
+                twoChildRemovals++;
+                checkOrder(where + " round " + round + " after remove " + target, model, map);
+
+            }
+
+            if (twoChildRemovals < 3) {
+                throw new AssertionError(where + " only " + twoChildRemovals + " two-child removals exercised");
+            }
+            check(where + " size", model.size(), map.size());
+
+        }
+
+        /** 访问顺序 + 最多保留 3 个元素：淘汰最久未访问的 b */
+        MyHashMap<String, Integer> lru = new MyHashMap<String, Integer>(true, true) {
+            @Override
+            protected boolean removeEldestEntry(String key, Integer value) {
+                return size() > 3;
+            }
+        };
+        lru.put("a", 1);
+        lru.put("b", 2);
+        lru.put("c", 3);
+        lru.get("a");
+        lru.put("d", 4);
+        List<String> order = new ArrayList<>();
+        lru.forEach((k, v) -> order.add(k));
+        check("lru order", java.util.Arrays.asList("c", "a", "d"), order);
+        check("lru evicted", null, lru.get("b"));
+
+    }
+
+    /**
+     * 比较遍历顺序（key 和 value）
+     */
+    static <K extends Comparable<K>> void checkOrder(String where, Map<K, Integer> model, MyHashMap<K, Integer> map) {
+        List<String> expected = new ArrayList<>(), actual = new ArrayList<>();
+        model.forEach((k, v) -> expected.add(k + "=" + v));
+        map.forEach((k, v) -> actual.add(k + "=" + v));
+        check(where, expected, actual);
+    }
+
+    /**
+     * 在哈希值为 hash 的红黑树桶中找一个有两个子节点的节点
+     * @return 该节点的 key，桶不是红黑树或没有这样的节点时返回 null
+     */
+    static <V> Key twoChildKey(MyHashMap<Key, V> map, int hash) {
+
+        MyHashMap.Node<Key, V> bin = map.tab[(map.tab.length - 1) & hash];
+        if (!(bin instanceof MyHashMap.TreeNode)) {
+            return null;
+        }
+
+        java.util.ArrayDeque<MyHashMap.TreeNode<Key, V>> queue = new java.util.ArrayDeque<>();
+        queue.add(((MyHashMap.TreeNode<Key, V>) bin).root);
+        while (!queue.isEmpty()) {
+            MyHashMap.TreeNode<Key, V> n = queue.poll();
+            if (n.left != null && n.right != null) {
+                return n.key;
+            }
+            if (n.left != null) {
+                queue.add(n.left);
+            }
+            if (n.right != null) {
+                queue.add(n.right);
+            }
+        }
+        return null;
+
+    }
+
+    /**
+     * 单线程随机操作与 ConcurrentHashMap 逐步对比
+     */
+    public void testRandomizedModelSequential() {
+
+        for (boolean cas : LOCK_MODES) {
+
+            long seed = Long.getLong("stress.seed", System.nanoTime());
+            Random random = new Random(seed);
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+            ConcurrentHashMap<Key, Integer> model = new ConcurrentHashMap<>();
+
+            for (int step = 0; step < 200000; step++) {
+
+                /** 只有 64 种哈希值，制造长链表和红黑树 */
+                int id = random.nextInt(2000);
+                Key key = new Key(id, id & 63);
+                int op = random.nextInt(10);
+                String where = "seed=" + seed + " cas=" + cas + " step=" + step + " key=" + id;
+
+                if (op < 4) {
+                    check(where + " putVal", model.put(key, step), map.putVal(key, step));
+                } else if (op < 5) {
+                    check(where + " putIfAbsent", model.putIfAbsent(key, step), map.putIfAbsent(key, step));
+                } else if (op < 6) {
+                    check(where + " remove", model.remove(key), map.remove(key));
+                } else if (op < 7) {
+                    /** 条件操作的期望值一半取当前值、一半取随机值，两种分支都能覆盖 */
+                    Integer expected = random.nextBoolean() ? model.get(key) : Integer.valueOf(random.nextInt(4));
+                    int cond = random.nextInt(3);
+                    if (cond == 0) {
+                        check(where + " replace", model.replace(key, step), map.replace(key, step));
+                    } else if (expected == null) {
+                        check(where + " remove(k, null)", false, map.remove(key, null));
+                    } else if (cond == 1) {
+                        check(where + " remove(k, v)", model.remove(key, expected), map.remove(key, expected));
+                    } else {
+                        check(where + " replace(k, v, v)", model.replace(key, expected, step), map.replace(key, expected, step));
+                    }
+                } else {
+                    check(where + " get", model.get(key), map.get(key));
+                }
+
+                if (map.size() != model.size()) {
+                    throw new AssertionError(where + " size " + map.size() + " != " + model.size());
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * 多线程随机操作：每个线程只操作自己的 key（但与其他线程的 key 共享哈希桶），结束后与 ConcurrentHashMap 整体对比
+     */
+    public void testRandomizedModelConcurrent() throws Exception {
+
+        for (boolean cas : LOCK_MODES) {
+
+            long seed = Long.getLong("stress.seed", System.nanoTime());
+            int threads = 4;
+            MyConcurrentMap<Key, Integer> map = new MyConcurrentMap<>(cas);
+            ConcurrentHashMap<Key, Integer> model = new ConcurrentHashMap<>();
+            List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        Random random = new Random(seed + thread);
+                        for (int step = 0; step < 100000; step++) {
+
+                            /** key 按线程号分组，哈希值只有 128 种，不同线程的 key 落在同一个桶里 */
+                            int id = random.nextInt(1000) * threads + thread;
+                            Key key = new Key(id, id & 127);
+                            int op = random.nextInt(10);
+                            String where = "seed=" + seed + " cas=" + cas + " thread=" + thread + " step=" + step;
+
+                            if (op < 5) {
+                                check(where + " putVal", model.put(key, step), map.putVal(key, step));
+                            } else if (op < 7) {
+                                check(where + " remove", model.remove(key), map.remove(key));
+                            } else if (op < 8) {
+                                Integer current = model.get(key);
+                                if (current == null) {
+                                    check(where + " replace", null, map.replace(key, step));
+                                } else if (random.nextBoolean()) {
+                                    check(where + " replace(k, v, v)", model.replace(key, current, step), map.replace(key, current, step));
+                                } else {
+                                    check(where + " remove(k, v)", model.remove(key, current), map.remove(key, current));
+                                }
+                            } else {
+                                check(where + " get", model.get(key), map.get(key));
+                            }
+
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                workers[t].start();
+            }
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            if (!errors.isEmpty()) {
+                throw new AssertionError(errors.get(0));
+            }
+
+            for (Map.Entry<Key, Integer> e : model.entrySet()) {
+                check("seed=" + seed + " cas=" + cas + " final " + e.getKey().id, e.getValue(), map.get(e.getKey()));
+            }
+
+            if (map.size() != model.size()) {
+                throw new AssertionError("seed=" + seed + " cas=" + cas + " size " + map.size() + " != " + model.size());
+            }
+
+        }
+
+    }
+
+    /**
+     * 确认 surefire 的两次执行分别加载了 Unsafe（target/classes）和 VarHandle（META-INF/versions/9）版本的 ConcurrentMapAccess，
+     *      否则 VarHandle 版本的内存语义从来没有被上面的测试覆盖
+     */
+    public void testLoadsExpectedAccessLayer() {
+
+        String expected = System.getProperty("stress.access");
+        if (expected == null) {
+            return;
+        }
+
+        String actual = "Unsafe";
+        for (java.lang.reflect.Field field : ConcurrentMapAccess.class.getDeclaredFields()) {
+            if ("VarHandle".equals(field.getType().getSimpleName())) {
+                actual = "VarHandle";
+            }
+        }
+        check("access layer", expected, actual);
+
+    }
+
+    // ------------------------------------------------------------------ 竞争测试框架
+
+    /**
+     * 参与者：对本轮的状态执行操作，返回值交给仲裁
+     */
+    interface Actor<S> {
+        Object act(S state);
+    }
+
+    /**
+     * 仲裁：所有参与者执行完之后，根据状态和返回值得出本轮结果
+     */
+    interface Arbiter<S> {
+        String arbitrate(S state, Object[] results);
+    }
+
+    @SafeVarargs
+    static <S> List<Actor<S>> actors(Actor<S>... actors) {
+        List<Actor<S>> list = new ArrayList<>(actors.length);
+        for (Actor<S> actor : actors) {
+            list.add(actor);
+        }
+        return list;
+    }
+
+    /**
+     * 执行竞争测试
+     *      每个参与者一个常驻线程，每轮由 setup 创建新状态，所有参与者在栅栏处对齐后同时开始
+     * @return 结果 -> 出现次数
+     */
+    static <S> Map<String, Integer> race(int rounds, Supplier<S> setup, List<Actor<S>> actors, Arbiter<S> arbiter) throws Exception {
+
+        int n = actors.size();
+        CyclicBarrier start = new CyclicBarrier(n + 1), end = new CyclicBarrier(n + 1);
+        Object[] results = new Object[n];
+        java.util.concurrent.atomic.AtomicReference<S> state = new java.util.concurrent.atomic.AtomicReference<>();
+        List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+        Thread[] threads = new Thread[n];
+        for (int a = 0; a < n; a++) {
+            int actor = a;
+            threads[a] = new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        start.await();
+                        try {
+                            results[actor] = actors.get(actor).act(state.get());
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        }
+                        end.await();
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }, "actor-" + a);
+            threads[a].setDaemon(true);
+            threads[a].start();
+        }
+
+        /** 栅栏保证了 state、results 在线程之间的可见性 */
+        Map<String, Integer> outcomes = new TreeMap<>();
+        for (int round = 0; round < rounds; round++) {
+            state.set(setup.get());
+            start.await();
+            end.await();
+            outcomes.merge(arbiter.arbitrate(state.get(), results.clone()), 1, Integer::sum);
+        }
+
+        if (!errors.isEmpty()) {
+            throw new AssertionError("actor failed", errors.get(0));
+        }
+
+        return outcomes;
+
+    }
+
+    static void expectOnly(String name, Map<String, Integer> outcomes, String... allowed) {
+
+        List<String> allowedList = java.util.Arrays.asList(allowed);
+        for (String outcome : outcomes.keySet()) {
+            if (!allowedList.contains(outcome)) {
+                throw new AssertionError(name + " forbidden outcome '" + outcome + "', observed: " + outcomes);
+            }
+        }
+
+        report(name + " " + outcomes);
+
+    }
+
+    static void report(String line) {
+        if (VERBOSE) {
+            System.out.println(line);
+        }
+    }
+
+    static void check(String where, Object expected, Object actual) {
+        if (!java.util.Objects.equals(expected, actual)) {
+            throw new AssertionError(where + " expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * 可以指定哈希值的 key，用于制造哈希冲突
+     */
+    static final class Key implements Comparable<Key> {
+
+        final int id;
+
+        final int hash;
+
+        Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == id;
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            return Integer.compare(id, o.id);
+        }
+
+        @Override
+        public String toString() {
+            return "Key" + id;
+        }
+
+    }
+
+}
@@ -0,0 +1,193 @@
+package cn.map;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @Description: MyConcurrentMap 单线程正确性测试（无第三方依赖，surefire 自动执行 public void test*() 方法）
+ *
+ *      覆盖：添加返回旧值、putIfAbsent、链表中删除头/中间/尾节点、扩容时桶拆分为高低位两条链表、
+ *           红黑树桶的插入与删除（包括有两个子节点的节点）、负数和与 MOVED 相同的哈希值
+ *
+ * @Author 一枚路过的程序猿
+ * @Date 2026/10/18 20:10
+ * @Version 1.0
+ */
+public class MyConcurrentMapTest {
+
+    /**
+     * 添加：新 key 返回 null，已存在的 key 覆盖并返回旧值，个数只在新增时增加
+     */
+    public void testPutReturnsPreviousValue() {
+
+        MyConcurrentMap<HashKey, Integer> map = new MyConcurrentMap<>();
+        HashKey key = new HashKey(1, 1);
+
+        check("first put", null, map.putVal(key, 1));
+        check("second put", 1, map.putVal(key, 2));
+        check("get", 2, map.get(key));
+        check("size", 1L, map.size());
+
+    }
+
+    /**
+     * putIfAbsent：已存在时不覆盖，返回当前值
+     */
+    public void testPutIfAbsent() {
+
+        MyConcurrentMap<HashKey, Integer> map = new MyConcurrentMap<>();
+        HashKey key = new HashKey(1, 1);
+
+        check("absent", null, map.putIfAbsent(key, 1));
+        check("present", 1, map.putIfAbsent(key, 2));
+        check("not overwritten", 1, map.get(key));
+        check("size", 1L, map.size());
+
+    }
+
+    /**
+     * 同一个桶的链表中分别删除中间、尾部、头部节点：返回被删除的值，其余节点不受影响，个数减少
+     */
+    public void testRemoveUnlinksFromChain() {
+
+        MyConcurrentMap<HashKey, Integer> map = new MyConcurrentMap<>();
+        for (int i = 0; i < 5; i++) {
+            map.putVal(new HashKey(i, 3), i);
+        }
+
+        int[] order = {2, 4, 0};
+        for (int n = 0; n < order.length; n++) {
+            int id = order[n];
+            check("remove " + id, id, map.remove(new HashKey(id, 3)));
+            check("removed " + id, null, map.get(new HashKey(id, 3)));
+            check("size after removing " + id, 4L - n, map.size());
+        }
+
+        check("kept 1", 1, map.get(new HashKey(1, 3)));
+        check("kept 3", 3, map.get(new HashKey(3, 3)));
+
+    }
+
+    /**
+     * 多次扩容：哈希值只在高位不同的 key 落在同一个旧桶，迁移时拆分到新数组的两个桶，所有 key 都能找到
+     */
+    public void testResizeSplitsBins() {
+
+        MyConcurrentMap<HashKey, Integer> map = new MyConcurrentMap<>();
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            /** 低 4 位只有 4 种取值，其余位不同 */
+            map.putVal(new HashKey(i, (i << 4) | (i & 3)), i);
+        }
+
+        check("size", (long) count, map.size());
+        for (int i = 0; i < count; i++) {
+            check("get " + i, i, map.get(new HashKey(i, (i << 4) | (i & 3))));
+        }
+
+    }
+
+    /**
+     * 红黑树桶：同一个哈希值的 key 乱序插入转换为红黑树，再乱序删除一半；
+     *      删除有两个子节点的节点时 key、value 必须一起替换，每个剩余的 key 都对应自己的值
+     */
+    public void testTreeBinInsertAndRemove() {
+
+        long seed = Long.getLong("stress.seed", System.nanoTime());
+        Random random = new Random(seed);
+
+        MyConcurrentMap<HashKey, Integer> map = new MyConcurrentMap<>();
+
+        /** 先放入足够多的分散 key，让数组长度达到转换红黑树的要求 */
+        for (int i = 0; i < 100; i++) {
+            map.putVal(new HashKey(10000 + i, 10000 + i), i);
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            ids.add(i);
+        }
+        Collections.shuffle(ids, random);
+        for (int id : ids) {
+            map.putVal(new HashKey(id, 5), id * 10);
+        }
+
+        Collections.shuffle(ids, random);
+        List<Integer> removed = ids.subList(0, 100);
+        for (int id : removed) {
+            check("seed=" + seed + " remove " + id, id * 10, map.remove(new HashKey(id, 5)));
+        }
+
+        for (int id = 0; id < 200; id++) {
+            Integer expected = removed.contains(id) ? null : id * 10;
+            check("seed=" + seed + " get " + id, expected, map.get(new HashKey(id, 5)));
+        }
+        check("seed=" + seed + " size", 200L, map.size());
+
+    }
+
+    /**
+     * 负数哈希值（包括 -1，与 MOVED 相同）不能被当成迁移节点或红黑树桶
+     */
+    public void testNegativeHashes() {
+
+        MyConcurrentMap<HashKey, Integer> map = new MyConcurrentMap<>();
+        int[] hashes = {-1, -2, Integer.MIN_VALUE, 0x7fffffff};
+        for (int i = 0; i < hashes.length; i++) {
+            map.putVal(new HashKey(i, hashes[i]), i);
+        }
+
+        for (int i = 0; i < hashes.length; i++) {
+            check("get hash " + hashes[i], i, map.get(new HashKey(i, hashes[i])));
+        }
+        check("remove hash -1", 0, map.remove(new HashKey(0, -1)));
+        check("removed hash -1", null, map.get(new HashKey(0, -1)));
+        check("size", 3L, map.size());
+
+    }
+
+    static void check(String where, Object expected, Object actual) {
+        if (!java.util.Objects.equals(expected, actual)) {
+            throw new AssertionError(where + " expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * 可以指定哈希值的 key，用于制造哈希冲突
+     */
+    static final class HashKey implements Comparable<HashKey> {
+
+        final int id;
+
+        final int hash;
+
+        HashKey(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof HashKey && ((HashKey) o).id == id;
+        }
+
+        @Override
+        public int compareTo(HashKey o) {
+            return Integer.compare(id, o.id);
+        }
+
+        @Override
+        public String toString() {
+            return "HashKey" + id;
+        }
+
+    }
+
+}